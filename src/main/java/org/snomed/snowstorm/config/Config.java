@@ -20,12 +20,16 @@ import org.snomed.snowstorm.core.data.domain.classification.Classification;
 import org.snomed.snowstorm.core.data.domain.classification.EquivalentConcepts;
 import org.snomed.snowstorm.core.data.domain.classification.RelationshipChange;
 import org.snomed.snowstorm.core.data.domain.jobs.ExportConfiguration;
+import org.snomed.snowstorm.core.data.domain.jobs.CommitListenerOutboxEntry;
+import org.snomed.snowstorm.core.data.domain.jobs.IdentifierSequence;
 import org.snomed.snowstorm.core.data.domain.jobs.IdentifiersForRegistration;
 import org.snomed.snowstorm.core.data.services.*;
 import org.snomed.snowstorm.core.data.services.classification.BranchClassificationStatusService;
+import org.snomed.snowstorm.core.data.services.commitlistener.CommitListenerPipeline;
 import org.snomed.snowstorm.core.data.services.identifier.IdentifierCacheManager;
 import org.snomed.snowstorm.core.data.services.identifier.IdentifierSource;
 import org.snomed.snowstorm.core.data.services.identifier.LocalRandomIdentifierSource;
+import org.snomed.snowstorm.core.data.services.identifier.LocalSequentialIdentifierSource;
 import org.snomed.snowstorm.core.data.services.identifier.SnowstormCISClient;
 import org.snomed.snowstorm.core.data.services.pojo.DescriptionCriteria;
 import org.snomed.snowstorm.core.data.services.servicehook.CommitServiceHookClient;
@@ -166,25 +170,37 @@ public abstract class Config extends ElasticsearchConfig {
 	@Autowired
 	private RefsetDescriptorUpdaterService refsetDescriptorUpdaterService;
 
+	@Autowired
+	private UnreleasedComponentJournalService unreleasedComponentJournalService;
+
+	@Autowired
+	private CommitListenerPipeline commitListenerPipeline;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	@PostConstruct
 	public void configureCommitListeners() {
-		// Commit listeners will be called in this order
-		branchService.addCommitListener(mrcmLoader);
-		branchService.addCommitListener(conceptDefinitionStatusUpdateService);
-		branchService.addCommitListener(semanticIndexUpdateService);
-		branchService.addCommitListener(mrcmUpdateService);
-		branchService.addCommitListener(branchClassificationStatusService);
-		branchService.addCommitListener(refsetDescriptorUpdaterService);
-		branchService.addCommitListener(traceabilityLogService);
-		branchService.addCommitListener(integrityService);
-		branchService.addCommitListener(multiSearchService);
-		branchService.addCommitListener(eclPreprocessingService);
-		branchService.addCommitListener(commitServiceHookClient);
-		branchService.addCommitListener(BranchMetadataHelper::clearTransientMetadata);
-		branchService.addCommitListener(commit ->
-			logger.info("Completed commit on {} in {} seconds.", commit.getBranch().getPath(), secondsDuration(commit.getTimepoint())));
+		// Commit listeners run once the listeners they depend on have completed.
+		// Listeners which save content through the commit or change branch metadata depend on each other because neither is thread safe.
+		commitListenerPipeline
+				.add("mrcm-cache", mrcmLoader)
+				.add("multi-search-cache", multiSearchService)
+				.add("ecl-cache", eclPreprocessingService)
+				.add("definition-status", conceptDefinitionStatusUpdateService)
+				.add("semantic-index", semanticIndexUpdateService, "definition-status")
+				.add("mrcm-update", mrcmUpdateService, "semantic-index")
+				.add("refset-descriptor", refsetDescriptorUpdaterService, "mrcm-update")
+				.add("unreleased-journal", unreleasedComponentJournalService, "refset-descriptor")
+				.add("classification-status", branchClassificationStatusService, "unreleased-journal")
+				.add("integrity", integrityService, "classification-status")
+				// Read only, so these run at the same time
+				.addDeferred("traceability", traceabilityLogService, "integrity")
+				.add("service-hook", commitServiceHookClient, "integrity")
+				.add("clear-transient-metadata", BranchMetadataHelper::clearTransientMetadata,
+						"traceability", "service-hook", "mrcm-cache", "multi-search-cache", "ecl-cache")
+				.add("log", commit -> logger.info("Completed commit on {} in {} seconds.", commit.getBranch().getPath(), secondsDuration(commit.getTimepoint())),
+						"clear-transient-metadata");
+		branchService.addCommitListener(commitListenerPipeline);
 
 		// Push configured term constraints into static field
 		DescriptionCriteria.configure(searchTermMinimumLength, searchTermMaximumLength);
@@ -215,10 +231,13 @@ public abstract class Config extends ElasticsearchConfig {
 			@Value("${cis.username}") String username,
 			@Value("${cis.password}") String password,
 			@Value("${cis.softwareName}") String softwareName,
-			@Value("${cis.timeout}") int timeoutSeconds) {
+			@Value("${cis.timeout}") int timeoutSeconds,
+			@Value("${cis.local-sequential.first-item-id}") long firstItemId) {
 
 		if (cisApiUrl.equals("local-random") || cisApiUrl.equals("local")) {// local is the legacy name
 			return new LocalRandomIdentifierSource(elasticsearchRestTemplate());
+		} else if (cisApiUrl.equals("local-sequential")) {
+			return new LocalSequentialIdentifierSource(elasticsearchRestTemplate(), firstItemId);
 		} else {
 			return new SnowstormCISClient(cisApiUrl, username, password, softwareName, timeoutSeconds);
 		}
@@ -329,6 +348,8 @@ public abstract class Config extends ElasticsearchConfig {
 					RelationshipChange.class,
 					EquivalentConcepts.class,
 					IdentifiersForRegistration.class,
+					IdentifierSequence.class,
+					CommitListenerOutboxEntry.class,
 					ExportConfiguration.class
 			);
 			for (Class aClass : objectsNotVersionControlled) {
@@ -0,0 +1,71 @@
+package org.snomed.snowstorm.core.data.domain;
+
+import io.kaicode.elasticvc.domain.DomainEntity;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+import java.util.Objects;
+
+/**
+ * Journal entry for a component which has a version without an effective time, used to find the content of Delta exports.
+ * Entries are maintained at commit time and are versioned with the content so they follow it through rebase and promotion.
+ * An entry may remain after its component is released or deleted so entries are only ever used to narrow a search.
+ */
+@Document(indexName = "unreleased")
+public class UnreleasedComponent extends DomainEntity<UnreleasedComponent> {
+
+	public interface Fields {
+		String COMPONENT_ID = "componentId";
+		String COMPONENT_TYPE = "componentType";
+		String REFSET_ID = "refsetId";
+	}
+
+	@Field(type = FieldType.Keyword)
+	private String componentId;
+
+	// Simple name of the component class
+	@Field(type = FieldType.Keyword)
+	private String componentType;
+
+	// Only set for reference set members
+	@Field(type = FieldType.Keyword)
+	private String refsetId;
+
+	public UnreleasedComponent() {
+	}
+
+	public UnreleasedComponent(String componentId, String componentType, String refsetId) {
+		this.componentId = componentId;
+		this.componentType = componentType;
+		this.refsetId = refsetId;
+		markChanged();
+	}
+
+	@Override
+	public String getId() {
+		return componentId;
+	}
+
+	@Override
+	public boolean isComponentChanged(UnreleasedComponent existingComponent) {
+		return existingComponent == null || !Objects.equals(refsetId, existingComponent.refsetId);
+	}
+
+	public String getComponentId() {
+		return componentId;
+	}
+
+	public String getComponentType() {
+		return componentType;
+	}
+
+	public String getRefsetId() {
+		return refsetId;
+	}
+
+	@Override
+	public String toString() {
+		return componentType + "|" + componentId;
+	}
+}
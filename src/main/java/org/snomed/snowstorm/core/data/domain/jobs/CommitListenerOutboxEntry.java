@@ -0,0 +1,123 @@
+package org.snomed.snowstorm.core.data.domain.jobs;
+
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+import java.util.UUID;
+
+/**
+ * Work prepared by a deferred commit listener within a commit, to be processed once the commit has completed.
+ * The entry is stored before the commit completes so the work is not lost if Snowstorm stops.
+ * Entries are deleted once processed, or once it is clear that the commit was rolled back.
+ */
+@Document(indexName = "commit-listener-outbox")
+public class CommitListenerOutboxEntry {
+
+	public interface Fields {
+		String LISTENER = "listener";
+		String CREATED = "created";
+		String NEXT_ATTEMPT = "nextAttempt";
+	}
+
+	private String id;
+
+	@Field(type = FieldType.Keyword)
+	private String listener;
+
+	@Field(type = FieldType.Keyword)
+	private String branchPath;
+
+	@Field(type = FieldType.Long)
+	private long commitTimepoint;
+
+	// JSON, only read back by the listener
+	@Field(type = FieldType.Keyword, index = false, docValues = false)
+	private String work;
+
+	@Field(type = FieldType.Long)
+	private long created;
+
+	@Field(type = FieldType.Integer)
+	private int attempts;
+
+	@Field(type = FieldType.Long)
+	private long nextAttempt;
+
+	public CommitListenerOutboxEntry(String listener, String branchPath, long commitTimepoint, String work) {
+		id = UUID.randomUUID().toString();
+		this.listener = listener;
+		this.branchPath = branchPath;
+		this.commitTimepoint = commitTimepoint;
+		this.work = work;
+		created = System.currentTimeMillis();
+		nextAttempt = created;
+	}
+
+	public CommitListenerOutboxEntry() {
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getListener() {
+		return listener;
+	}
+
+	public void setListener(String listener) {
+		this.listener = listener;
+	}
+
+	public String getBranchPath() {
+		return branchPath;
+	}
+
+	public void setBranchPath(String branchPath) {
+		this.branchPath = branchPath;
+	}
+
+	public long getCommitTimepoint() {
+		return commitTimepoint;
+	}
+
+	public void setCommitTimepoint(long commitTimepoint) {
+		this.commitTimepoint = commitTimepoint;
+	}
+
+	public String getWork() {
+		return work;
+	}
+
+	public void setWork(String work) {
+		this.work = work;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long created) {
+		this.created = created;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public long getNextAttempt() {
+		return nextAttempt;
+	}
+
+	public void setNextAttempt(long nextAttempt) {
+		this.nextAttempt = nextAttempt;
+	}
+}
@@ -0,0 +1,82 @@
+package org.snomed.snowstorm.core.data.domain.jobs;
+
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
+
+/**
+ * The last item identifier reserved by the local sequential identifier source for one namespace and partition.
+ * The document is updated before the identifiers are handed out so that identifiers are never issued twice, even after a crash.
+ * Concurrent updates are rejected using the sequence number and primary term of the document.
+ */
+@Document(indexName = "identifier-sequence")
+public class IdentifierSequence {
+
+	private String id;
+
+	@Field(type = FieldType.Integer)
+	private int namespace;
+
+	@Field(type = FieldType.Keyword)
+	private String partitionId;
+
+	@Field(type = FieldType.Long)
+	private long lastItemId;
+
+	private SeqNoPrimaryTerm seqNoPrimaryTerm;
+
+	public IdentifierSequence(int namespace, String partitionId, long lastItemId) {
+		this.id = getId(namespace, partitionId);
+		this.namespace = namespace;
+		this.partitionId = partitionId;
+		this.lastItemId = lastItemId;
+	}
+
+	public IdentifierSequence() {
+	}
+
+	public static String getId(int namespace, String partitionId) {
+		return namespace + "-" + partitionId;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public int getNamespace() {
+		return namespace;
+	}
+
+	public void setNamespace(int namespace) {
+		this.namespace = namespace;
+	}
+
+	public String getPartitionId() {
+		return partitionId;
+	}
+
+	public void setPartitionId(String partitionId) {
+		this.partitionId = partitionId;
+	}
+
+	public long getLastItemId() {
+		return lastItemId;
+	}
+
+	public void setLastItemId(long lastItemId) {
+		this.lastItemId = lastItemId;
+	}
+
+	public SeqNoPrimaryTerm getSeqNoPrimaryTerm() {
+		return seqNoPrimaryTerm;
+	}
+
+	public void setSeqNoPrimaryTerm(SeqNoPrimaryTerm seqNoPrimaryTerm) {
+		this.seqNoPrimaryTerm = seqNoPrimaryTerm;
+	}
+}
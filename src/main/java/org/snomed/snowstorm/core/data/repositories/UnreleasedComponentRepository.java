@@ -0,0 +1,8 @@
+package org.snomed.snowstorm.core.data.repositories;
+
+import org.snomed.snowstorm.core.data.domain.UnreleasedComponent;
+import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
+
+public interface UnreleasedComponentRepository extends ElasticsearchRepository<UnreleasedComponent, String> {
+
+}
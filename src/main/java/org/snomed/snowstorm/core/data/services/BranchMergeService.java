@@ -31,7 +31,11 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static io.kaicode.elasticvc.api.VersionControlHelper.LARGE_PAGE;
@@ -94,6 +98,9 @@ public class BranchMergeService {
 	@Autowired
 	private ExecutorService executorService;
 
+	// Number of entities of one type held in memory during promotion. One window is saved while the next is read.
+	private static final int PROMOTION_WINDOW_SIZE = 10_000;
+
 	private static final String USE_MERGE_REVIEW = "The target branch is diverged, please use the merge review endpoint instead.";
 	private static final Logger logger = LoggerFactory.getLogger(BranchMergeService.class);
 
@@ -170,6 +177,10 @@ public class BranchMergeService {
 	}
 
 	public void mergeBranchSync(String source, String target, Collection<Concept> manuallyMergedConcepts) throws ServiceException {
+		mergeBranchSync(source, target, manuallyMergedConcepts, PROMOTION_WINDOW_SIZE);
+	}
+
+	void mergeBranchSync(String source, String target, Collection<Concept> manuallyMergedConcepts, int promotionWindowSize) throws ServiceException {
 		logger.info("Request merge {} -> {}", source, target);
 		final Branch sourceBranch = branchService.findBranchOrThrow(source);
 		final Branch targetBranch = branchService.findBranchOrThrow(target);
@@ -259,7 +270,18 @@ public class BranchMergeService {
 				logger.info("Performing promotion {} -> {}", source, target);
 				final Map<String, Set<String>> versionsReplaced = sourceBranch.getVersionsReplaced();
 				final Map<Class<? extends DomainEntity>, ElasticsearchRepository> componentTypeRepoMap = domainEntityConfiguration.getAllTypeRepositoryMap();
-				componentTypeRepoMap.entrySet().parallelStream().forEach(entry -> promoteEntities(source, commit, entry.getKey(), entry.getValue(), versionsReplaced));
+				// Every type must finish before the commit is closed, even if another type fails, so nothing is saved after a rollback
+				CompletableFuture<?>[] typePromotions = componentTypeRepoMap.entrySet().stream()
+						.map(entry -> CompletableFuture.runAsync(() -> promoteEntities(source, commit, entry.getKey(), entry.getValue(), versionsReplaced, promotionWindowSize)))
+						.toArray(CompletableFuture[]::new);
+				try {
+					CompletableFuture.allOf(typePromotions).join();
+				} catch (CompletionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw e;
+				}
 
 				commit.markSuccessful();
 			}
@@ -517,14 +539,15 @@ public class BranchMergeService {
 	}
 
 	private <T extends DomainEntity> void promoteEntities(String source, Commit commit, Class<T> entityClass,
-			ElasticsearchRepository<T, String> entityRepository, Map<String, Set<String>> versionsReplaced) {
+			ElasticsearchRepository<T, String> entityRepository, Map<String, Set<String>> versionsReplaced, int windowSize) {
 
 		final String targetPath = commit.getBranch().getPath();
 
-		// End entities on target which have been replaced on source branch
-		List<T> toEnd = new ArrayList<>();
+		// End entities on target which have been replaced on source branch, one segment at a time
 		String entityClassName = entityClass.getSimpleName();
+		int endedCount = 0;
 		for (List<String> versionsReplacedSegment : Iterables.partition(versionsReplaced.getOrDefault(entityClassName, Collections.emptySet()), 1000)) {
+			List<T> toEnd = new ArrayList<>();
 			try (final SearchHitsIterator<T> entitiesToEnd = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
 					.withQuery(boolQuery()
 							.must(termQuery("path", targetPath))
@@ -539,50 +562,101 @@ public class BranchMergeService {
 					}
 				});
 			}
-		}
-		if (!toEnd.isEmpty()) {
-			// End entities on target
-			toEnd.forEach(entity -> entity.setEnd(commit.getTimepoint()));
-			for (List<T> saveSegment : Iterables.partition(toEnd, conceptService.getSaveBatchSize())) {
-				entityRepository.saveAll(saveSegment);
-			}
-
-			// Reduce versionsReplaced map by removing those component versions which have now been ended on the parent branch.
-			commit.getVersionsReplacedForPromotion().getOrDefault(entityClassName, Collections.emptySet()).removeAll(toEnd.stream().map(Entity::getInternalId).collect(Collectors.toList()));
+			if (!toEnd.isEmpty()) {
+				// End entities on target
+				toEnd.forEach(entity -> entity.setEnd(commit.getTimepoint()));
+				for (List<T> saveSegment : Iterables.partition(toEnd, conceptService.getSaveBatchSize())) {
+					entityRepository.saveAll(saveSegment);
+				}
 
-			logger.debug("Ended {} {}", versionsReplaced.size(), entityClassName);
+				// Reduce versionsReplaced map by removing those component versions which have now been ended on the parent branch.
+				commit.getVersionsReplacedForPromotion().getOrDefault(entityClassName, Collections.emptySet()).removeAll(toEnd.stream().map(Entity::getInternalId).collect(Collectors.toList()));
+				endedCount += toEnd.size();
+			}
+		}
+		if (endedCount > 0) {
+			logger.debug("Ended {} {}", endedCount, entityClassName);
 		}
 
-		copyChangesOnBranchToCommit(source, commit, entityClass, entityRepository, "Promoting", true);
+		copyChangesOnBranchToCommit(source, commit, entityClass, entityRepository, "Promoted", true, windowSize);
 	}
 
+	/**
+	 * Streams the entities changed on the source branch in windows of windowSize so that memory use does not depend on the size of the change.
+	 * Each window is ended on the source and saved on the target in the background while the next window is read.
+	 * Everything is saved within the given commit, so the promotion is still rolled back as a whole if it fails.
+	 */
 	private <T extends DomainEntity<T>> void copyChangesOnBranchToCommit(String source, Commit commit, Class<T> entityClass,
-			ElasticsearchRepository<T, String> entityRepository, String logAction, boolean endEntitiesOnSource) {
+			ElasticsearchRepository<T, String> entityRepository, String logAction, boolean endEntitiesOnSource, int windowSize) {
 
-		// Load all entities on source
+		long copiedCount = 0;
+		Future<?> windowSave = null;
 		try (final SearchHitsIterator<T> entities = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
 				.withQuery(versionControlHelper.getChangesOnBranchCriteria(source).getEntityBranchCriteria(entityClass))
 				.withPageable(ConceptService.LARGE_PAGE)
 				.build(), entityClass)) {
 
-			List<T> toPromote = new ArrayList<>();
-			entities.forEachRemaining(hit -> toPromote.add(hit.getContent()));
-			if (toPromote.isEmpty()) {
-				return;
+			List<T> window = new ArrayList<>();
+			while (entities.hasNext()) {
+				window.add(entities.next().getContent());
+				if (window.size() == windowSize || !entities.hasNext()) {
+					// Only one window is saved at a time
+					waitForWindowSave(windowSave);
+					List<T> toCopy = window;
+					windowSave = executorService.submit(() -> copyWindowToCommit(toCopy, commit, entityClass, entityRepository, endEntitiesOnSource));
+					copiedCount += toCopy.size();
+					window = new ArrayList<>();
+				}
 			}
-			logger.info(logAction + " {} {}", toPromote.size(), entityClass.getSimpleName());
-
-			if (endEntitiesOnSource) {
-				// End entities on source
-				toPromote.forEach(entity -> entity.setEnd(commit.getTimepoint()));
-				for (List<T> saveSegment : Iterables.partition(toPromote, conceptService.getSaveBatchSize())) {
-					entityRepository.saveAll(saveSegment);
+			waitForWindowSave(windowSave);
+			windowSave = null;
+		} finally {
+			if (windowSave != null) {
+				// Reading failed, the commit must not be closed while a window is still being saved
+				try {
+					windowSave.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.debug("Saving promotion window also failed.", e);
 				}
 			}
+		}
+		if (copiedCount > 0) {
+			logger.info(logAction + " {} {}", copiedCount, entityClass.getSimpleName());
+		}
+	}
 
-			// Save entities on target
-			toPromote.forEach(DomainEntity::markChanged);
-			conceptService.doSaveBatchComponents(toPromote, entityClass, commit);
+	private <T extends DomainEntity<T>> void copyWindowToCommit(List<T> toCopy, Commit commit, Class<T> entityClass,
+			ElasticsearchRepository<T, String> entityRepository, boolean endEntitiesOnSource) {
+
+		if (endEntitiesOnSource) {
+			// End entities on source
+			toCopy.forEach(entity -> entity.setEnd(commit.getTimepoint()));
+			for (List<T> saveSegment : Iterables.partition(toCopy, conceptService.getSaveBatchSize())) {
+				entityRepository.saveAll(saveSegment);
+			}
+		}
+
+		// Save entities on target
+		toCopy.forEach(DomainEntity::markChanged);
+		conceptService.doSaveBatchComponents(toCopy, entityClass, commit);
+	}
+
+	private void waitForWindowSave(Future<?> windowSave) {
+		if (windowSave == null) {
+			return;
+		}
+		try {
+			windowSave.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeServiceException("Interrupted while promoting changes.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeServiceException("Failed to promote changes.", e.getCause());
 		}
 	}
 
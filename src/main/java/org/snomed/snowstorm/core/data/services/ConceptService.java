@@ -35,6 +35,7 @@ import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -83,6 +84,9 @@ public class ConceptService extends ComponentService {
 	@Autowired
 	private QueryConceptRepository queryConceptRepository;
 
+	@Autowired
+	private UnreleasedComponentRepository unreleasedComponentRepository;
+
 	@Autowired
 	private BranchService branchService;
 
@@ -105,6 +109,9 @@ public class ConceptService extends ComponentService {
 	@Autowired
 	private ElasticsearchRestTemplate elasticsearchTemplate;
 
+	@Autowired
+	private SlicedSearchService slicedSearchService;
+
 	@Autowired
 	@Lazy
 	private CodeSystemService codeSystemService;
@@ -118,6 +125,9 @@ public class ConceptService extends ComponentService {
 	@Autowired
 	private QueryService queryService;
 
+	@Autowired
+	private JoinExecutor joinExecutor;
+
 	private final Cache<String, AsyncConceptChangeBatch> batchConceptChanges;
 
 	private final Cache<BranchTimepoint, BranchCriteria> branchCriteriaCache = CacheBuilder.newBuilder().expireAfterAccess(Duration.ofDays(1)).build();
@@ -401,28 +411,59 @@ public class ConceptService extends ComponentService {
 			concept.getRelationships().clear();
 		}
 
-		Map<String, ConceptMini> conceptMiniMap = new HashMap<>();
+		// Relationships and axioms only add placeholders to the concept mini map so the two joins can run at the same time
+		Map<String, ConceptMini> conceptMiniMap = new ConcurrentHashMap<>();
 
 		if (includeRelationships) {
-			// Fetch Relationships
-			joinRelationships(conceptIdMap, conceptMiniMap, languageDialects, branchPath, branchCriteria, timer, false);
-
-			// Fetch Axioms
-			for (List<String> conceptIds : Iterables.partition(conceptIdMap.keySet(), CLAUSE_LIMIT)) {
-				queryBuilder.withQuery(boolQuery()
-						.must(termQuery(ReferenceSetMember.Fields.REFSET_ID, Concepts.OWL_AXIOM_REFERENCE_SET))
-						.must(termsQuery(ReferenceSetMember.Fields.REFERENCED_COMPONENT_ID, conceptIds))
-						.must(branchCriteria.getEntityBranchCriteria(ReferenceSetMember.class)))
-						.withPageable(LARGE_PAGE);
-
-				try (final SearchHitsIterator<ReferenceSetMember> axiomMembers = elasticsearchTemplate.searchForStream(queryBuilder.build(), ReferenceSetMember.class)) {
-					axiomMembers.forEachRemaining(axiomMember -> joinAxiom(axiomMember.getContent(), conceptIdMap, conceptMiniMap, languageDialects));
-				}
+			joinExecutor.runAll(
+					() -> {
+						long start = System.currentTimeMillis();
+						joinRelationships(conceptIdMap, conceptMiniMap, languageDialects, branchPath, branchCriteria, null, false);
+						timer.parallelCheckpoint("get relationships " + getFetchCount(conceptIdMap.size()), start);
+					},
+					() -> {
+						long start = System.currentTimeMillis();
+						joinAxioms(conceptIdMap, conceptMiniMap, languageDialects, branchCriteria);
+						timer.parallelCheckpoint("get axioms " + getFetchCount(conceptIdMap.size()), start);
+					});
+			timer.checkpoint("get relationships and axioms");
+		}
+
+		// ConceptMini definition statuses and descriptions do not depend on each other
+		joinExecutor.runAll(
+				() -> {
+					long start = System.currentTimeMillis();
+					joinConceptMiniDefinitionStatuses(conceptMiniMap, branchCriteria);
+					timer.parallelCheckpoint("get relationship def status " + getFetchCount(conceptMiniMap.size()), start);
+				},
+				() -> descriptionService.joinDescriptions(branchCriteria, conceptIdMap, conceptMiniMap, timer, true, includeDescriptionInactivationInfo));
+		timer.checkpoint("get relationship def status and descriptions");
+
+		conceptAttributeSortHelper.sortAttributes(conceptIdMap.values());
+		timer.checkpoint("Sort attributes");
+
+		timer.finish();
+
+		return concepts;
+	}
+
+	private void joinAxioms(Map<String, Concept> conceptIdMap, Map<String, ConceptMini> conceptMiniMap, List<LanguageDialect> languageDialects, BranchCriteria branchCriteria) {
+		NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
+		for (List<String> conceptIds : Iterables.partition(conceptIdMap.keySet(), CLAUSE_LIMIT)) {
+			queryBuilder.withQuery(boolQuery()
+					.must(termQuery(ReferenceSetMember.Fields.REFSET_ID, Concepts.OWL_AXIOM_REFERENCE_SET))
+					.must(termsQuery(ReferenceSetMember.Fields.REFERENCED_COMPONENT_ID, conceptIds))
+					.must(branchCriteria.getEntityBranchCriteria(ReferenceSetMember.class)))
+					.withPageable(LARGE_PAGE);
+
+			try (final SearchHitsIterator<ReferenceSetMember> axiomMembers = elasticsearchTemplate.searchForStream(queryBuilder.build(), ReferenceSetMember.class)) {
+				axiomMembers.forEachRemaining(axiomMember -> joinAxiom(axiomMember.getContent(), conceptIdMap, conceptMiniMap, languageDialects));
 			}
-			timer.checkpoint("get axioms " + getFetchCount(conceptIdMap.size()));
 		}
+	}
 
-		// Fetch ConceptMini definition statuses
+	private void joinConceptMiniDefinitionStatuses(Map<String, ConceptMini> conceptMiniMap, BranchCriteria branchCriteria) {
+		NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder();
 		for (List<String> conceptIds : Iterables.partition(conceptMiniMap.keySet(), CLAUSE_LIMIT)) {
 			queryBuilder.withQuery(boolQuery()
 					.must(termsQuery("conceptId", conceptIds))
@@ -439,16 +480,6 @@ public class ConceptService extends ComponentService {
 				});
 			}
 		}
-		timer.checkpoint("get relationship def status " + getFetchCount(conceptMiniMap.size()));
-
-		descriptionService.joinDescriptions(branchCriteria, conceptIdMap, conceptMiniMap, timer, true, includeDescriptionInactivationInfo);
-
-		conceptAttributeSortHelper.sortAttributes(conceptIdMap.values());
-		timer.checkpoint("Sort attributes");
-
-		timer.finish();
-
-		return concepts;
 	}
 
 	public void joinRelationships(Map<String, Concept> conceptIdMap, Map<String, ConceptMini> typeAndTargetConceptMiniMap, List<LanguageDialect> languageDialects,
@@ -479,7 +510,9 @@ public class ConceptService extends ComponentService {
 				});
 			}
 		}
-		timer.checkpoint("get relationships " + getFetchCount(conceptIdMap.size()));
+		if (timer != null) {
+			timer.checkpoint("get relationships " + getFetchCount(conceptIdMap.size()));
+		}
 	}
 
 	/**
@@ -775,7 +808,8 @@ public class ConceptService extends ComponentService {
 				executorService.submit(() -> descriptionRepository.deleteAll()),
 				executorService.submit(() -> relationshipRepository.deleteAll()),
 				executorService.submit(() -> referenceSetMemberRepository.deleteAll()),
-				executorService.submit(() -> queryConceptRepository.deleteAll())
+				executorService.submit(() -> queryConceptRepository.deleteAll()),
+				executorService.submit(() -> unreleasedComponentRepository.deleteAll())
 		);
 		for (int i = 0; i < futures.size(); i++) {
 			getFutureWithTimeoutOrCancel(futures.get(i), i);
@@ -800,8 +834,8 @@ public class ConceptService extends ComponentService {
 				.withPageable(LARGE_PAGE)
 				.withFields(Concept.Fields.CONCEPT_ID);
 		List<Long> ids = new LongArrayList();
-		try (SearchHitsIterator<Concept> conceptStream = elasticsearchTemplate.searchForStream(queryBuilder.build(), Concept.class)) {
-			conceptStream.forEachRemaining(c -> ids.add(c.getContent().getConceptIdAsLong()));
+		try (CloseableIterator<Concept> conceptStream = slicedSearchService.stream(queryBuilder.build(), Concept.class)) {
+			conceptStream.forEachRemaining(c -> ids.add(c.getConceptIdAsLong()));
 		}
 
 		return ids;
@@ -96,6 +96,9 @@ public class DescriptionService extends ComponentService {
 	@Autowired
 	private DialectConfigurationService dialectConfigurationService;
 
+	@Autowired
+	private JoinExecutor joinExecutor;
+
 	private final Map<String, SemanticTagCacheEntry> semanticTagAggregationCache = new ConcurrentHashMap<>();
 
 	@Value("${search.description.aggregation.maxProcessableResultsSize}")
@@ -339,16 +342,19 @@ public class DescriptionService extends ComponentService {
 		}
 		if (timer != null) timer.checkpoint("get descriptions " + getFetchCount(allConceptIds.size()));
 
-		// Fetch Lang Refset Members
+		// Lang Refset Members and Inactivation Indicators and Associations are joined to different fields so are fetched at the same time
+		List<Runnable> joins = new ArrayList<>();
 		if (fetchLangRefsetMembers) {
-			joinLangRefsetMembers(branchCriteria, allConceptIds, descriptionIdMap);
-			if (timer != null) timer.checkpoint("get lang refset " + getFetchCount(allConceptIds.size()));
+			joins.add(() -> {
+				long start = System.currentTimeMillis();
+				joinLangRefsetMembers(branchCriteria, allConceptIds, descriptionIdMap);
+				if (timer != null) timer.parallelCheckpoint("get lang refset " + getFetchCount(allConceptIds.size()), start);
+			});
 		}
-
-		// Fetch Inactivation Indicators and Associations
 		if (fetchInactivationInfo) {
-			joinInactivationIndicatorsAndAssociations(conceptIdMap, descriptionIdMap, branchCriteria, timer);
+			joins.add(() -> joinInactivationIndicatorsAndAssociations(conceptIdMap, descriptionIdMap, branchCriteria, timer));
 		}
+		joinExecutor.runAll(joins.toArray(new Runnable[0]));
 	}
 
 	public Map<String, Long> countActiveConceptsPerSemanticTag(String branch) {
@@ -402,6 +408,7 @@ public class DescriptionService extends ComponentService {
 	private void joinInactivationIndicatorsAndAssociations(Map<String, Concept> conceptIdMap, Map<String, Description> descriptionIdMap,
 			BranchCriteria branchCriteria, TimerUtil timer) {
 
+		long start = System.currentTimeMillis();
 		Set<String> componentIds;
 		if (conceptIdMap != null) {
 			componentIds = Sets.union(conceptIdMap.keySet(), descriptionIdMap.keySet());
@@ -452,7 +459,7 @@ public class DescriptionService extends ComponentService {
 				});
 			}
 		}
-		if (timer != null) timer.checkpoint("get inactivation refset " + getFetchCount(componentIds.size()));
+		if (timer != null) timer.parallelCheckpoint("get inactivation refset " + getFetchCount(componentIds.size()), start);
 	}
 
 	private void joinLangRefsetMembers(BranchCriteria branchCriteria, Set<String> allConceptIds, Map<String, Description> descriptionIdMap) {
@@ -0,0 +1,81 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs independent search and join tasks at the same time on a bounded pool of threads.
+ * The calling thread runs the last task itself, then any task which no pool thread has started yet.
+ * This means a caller never waits for a free thread, so tasks may use this executor again without risk of deadlock when the pool is busy.
+ */
+@Service
+public class JoinExecutor {
+
+	@Value("${elasticsearch.search.join-threads}")
+	private int joinThreads;
+
+	private ExecutorService executorService;
+
+	@PostConstruct
+	public void init() {
+		if (joinThreads > 0) {
+			executorService = Executors.newFixedThreadPool(joinThreads);
+		}
+	}
+
+	/**
+	 * Runs the tasks and returns when all of them have finished.
+	 * If any task fails the exception is thrown after all tasks have finished.
+	 */
+	public void runAll(Runnable... tasks) {
+		if (tasks.length == 0) {
+			return;
+		}
+		List<FutureTask<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < tasks.length; i++) {
+			FutureTask<Void> future = new FutureTask<>(tasks[i], null);
+			futures.add(future);
+			if (executorService != null && i < tasks.length - 1) {
+				executorService.execute(future);
+			}
+		}
+		RuntimeException firstException = null;
+		// Run the last task here, then any not yet started. Running a task which has already started or finished does nothing.
+		for (int i = futures.size() - 1; i >= 0; i--) {
+			futures.get(i).run();
+		}
+		for (FutureTask<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (firstException == null) {
+					firstException = new RuntimeServiceException("Interrupted while waiting for join.", e);
+				}
+			} catch (ExecutionException e) {
+				if (firstException == null) {
+					firstException = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeServiceException(e.getCause());
+				}
+			}
+		}
+		if (firstException != null) {
+			throw firstException;
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executorService != null) {
+			executorService.shutdownNow();
+		}
+	}
+}
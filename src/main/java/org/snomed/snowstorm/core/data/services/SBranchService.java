@@ -85,6 +85,9 @@ public class SBranchService {
 					metadata.getMapOrCreate(INTERNAL_METADATA_KEY).put(INTEGRITY_ISSUE_METADATA_KEY, integrityFlag);
 				}
 			}
+		} else {
+			// A new root branch has no content so its unreleased component journal is complete from the start
+			metadata.getMapOrCreate(INTERNAL_METADATA_KEY).put(UnreleasedComponentJournalService.JOURNAL_COMPLETE_SINCE_METADATA_KEY, String.valueOf(new Date().getTime()));
 		}
 		final Branch branch = branchService.create(branchPath, metadata.getAsMap());
 
@@ -6,9 +6,10 @@ import com.google.common.collect.Sets;
 import io.kaicode.elasticvc.api.*;
 import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
-import io.kaicode.elasticvc.domain.Entity;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
@@ -22,7 +23,10 @@ import org.snomed.snowstorm.core.data.services.pojo.SAxiomRepresentation;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.GraphBuilder;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.GraphBuilderException;
 import org.snomed.snowstorm.core.data.services.transitiveclosure.Node;
+import org.snomed.snowstorm.core.data.services.transitiveclosure.TransitiveClosureCalculator;
 import org.snomed.snowstorm.core.util.TimerUtil;
+import org.snomed.snowstorm.ecl.ECLQueryService;
+import org.snomed.snowstorm.ecl.HierarchyIndexService;
 import org.snomed.snowstorm.mrcm.MRCMLoader;
 import org.snomed.snowstorm.mrcm.model.AttributeRange;
 import org.snomed.snowstorm.mrcm.model.MRCM;
@@ -37,7 +41,13 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -58,6 +68,9 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	@Value("${commit-hook.semantic-indexing.enabled:true}")
 	private boolean semanticIndexingEnabled;
 
+	@Value("${commit-hook.semantic-indexing.save-threads:4}")
+	private int saveThreads;
+
 	private static final long IS_A_TYPE = parseLong(Concepts.ISA);
 
 	@Autowired
@@ -81,6 +94,15 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 	@Autowired
 	private MRCMLoader mrcmLoader;
 
+	@Autowired
+	private ECLQueryService eclQueryService;
+
+	@Autowired
+	private HierarchyIndexService hierarchyIndexService;
+
+	// Saves batches of query concepts while the next batch is being prepared. Each update has at most one batch saving.
+	private ExecutorService saveExecutor;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 
@@ -123,8 +145,16 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 					Sets.union(commit.getEntityVersionsReplaced().getOrDefault(ReferenceSetMember.class.getSimpleName(), Collections.emptySet()),
 							commit.getEntityVersionsReplaced().getOrDefault(Relationship.class.getSimpleName(), Collections.emptySet()));
 
-			updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false);
-			updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false);
+			CommitSemanticChanges semanticChanges = new CommitSemanticChanges();
+			updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false, semanticChanges);
+			updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, false, false, false, semanticChanges);
+
+			// Let ECL caches move to the new branch version without starting again
+			String path = commit.getBranch().getPath();
+			Date previousHead = commit.getBranch().getHead();
+			eclQueryService.recordSemanticChanges(path, previousHead, commit.getTimepoint(), semanticChanges.conceptIdsAndAncestors);
+			hierarchyIndexService.applyCommitChanges(path, previousHead, commit.getTimepoint(), true, semanticChanges.statedParents);
+			hierarchyIndexService.applyCommitChanges(path, previousHead, commit.getTimepoint(), false, semanticChanges.inferredParents);
 		}
 		// If promotion the semantic changes will be promoted with the rest of the content.
 	}
@@ -142,13 +172,13 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 			removeQConceptChangesOnBranch(commit);
 		}
 		Map<String, Integer> updateCount = new HashMap<>();
-		updateCount.put(Form.STATED.getName(), updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun));
-		updateCount.put(Form.INFERRED.getName(), updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun));
+		updateCount.put(Form.STATED.getName(), updateSemanticIndex(Form.STATED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun, null));
+		updateCount.put(Form.INFERRED.getName(), updateSemanticIndex(Form.INFERRED, relationshipAndAxiomDeletionsToProcess, commit, true, completeRebuild, dryRun, null));
 		return updateCount;
 	}
 
 	private int updateSemanticIndex(Form form, Set<String> internalIdsOfDeletedComponents, Commit commit,
-			boolean rebuild, boolean completeRebuild, boolean dryRun) throws IllegalStateException, ConversionException, GraphBuilderException, ServiceException {
+			boolean rebuild, boolean completeRebuild, boolean dryRun, CommitSemanticChanges semanticChanges) throws IllegalStateException, ConversionException, GraphBuilderException, ServiceException {
 
 		if (dryRun && !completeRebuild) {
 			throw new IllegalArgumentException("dryRun flag can only be used when rebuilding the index of the MAIN branch.");
@@ -305,7 +335,6 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 				.filter(node -> newGraph || node.isAncestorOrSelfUpdated() || conceptAttributeChanges.containsKey(node.getId()))
 				.forEach(node -> nodesToSave.put(node.getId(), node));
 		Set<Long> nodesNotFound = new LongOpenHashSet(nodesToSave.keySet());
-		Set<QueryConcept> queryConceptsToSave = new HashSet<>();
 
 		// Collect ids of nodes and attribute updates and convert to conceptIdForm
 		Set<Long> conceptIdsToUpdate = new LongOpenHashSet(nodesToSave.keySet());
@@ -316,6 +345,14 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		// either by authoring or importing the new version of the extension.
 		boolean throwExceptionIfTransitiveClosureLoopFound = !commit.isRebase();
 
+		// A complete rebuild needs the closure of every node so calculate them all at once, sharing the work between nodes
+		TransitiveClosureCalculator closureCalculator = null;
+		if (completeRebuild) {
+			closureCalculator = TransitiveClosureCalculator.calculate(graphBuilder);
+			timer.checkpoint(format("Calculate transitive closure of %s nodes, %s part of or below a loop.",
+					graphBuilder.getNodeCount(), closureCalculator.getUnsortedCount()));
+		}
+
 		final BoolQueryBuilder filter = boolQuery()
 				// Exclude those QueryConcepts which were removed in this commit
 				.mustNot(boolQuery()
@@ -325,7 +362,8 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		if (!completeRebuild) {
 			filter.must(termsQuery(QueryConcept.Fields.CONCEPT_ID, conceptIdsToUpdate));
 		}
-		try (final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+		final QueryConceptBatchSaver saver = new QueryConceptBatchSaver(form, commit, dryRun, semanticChanges);
+		try (saver; final SearchHitsIterator<QueryConcept> existingQueryConcepts = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
 				.withQuery(boolQuery()
 						.must(previousStateCriteria.getEntityBranchCriteria(QueryConcept.class))
 						.must(termsQuery(QueryConcept.Fields.STATED, form.isStated()))
@@ -339,7 +377,8 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 				boolean save = false;
 				if (completeRebuild) {
 					if (node != null) {
-						QueryConcept newQueryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, node.getId(), node);
+						QueryConcept newQueryConcept = createQueryConcept(form, conceptAttributeChanges, node.getId(), node,
+								closureCalculator.getTransitiveClosure(node, branchPath, throwExceptionIfTransitiveClosureLoopFound));
 						if (!queryConcept.fieldsMatch(newQueryConcept)) {
 							queryConcept = newQueryConcept;
 							save = true;
@@ -352,84 +391,63 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 					QueryConcept newQueryConcept = new QueryConcept(queryConcept);
 					if (node != null) {
 						// TC changes
-						newQueryConcept.setParents(node.getParents().stream().map(Node::getId).collect(Collectors.toSet()));
+						newQueryConcept.setParents(node.getParentIds());
 						newQueryConcept.setAncestors(new HashSet<>(node.getTransitiveClosure(branchPath, throwExceptionIfTransitiveClosureLoopFound)));
 					}
 					if (updatedConceptIds.contains(conceptId)) {
 						applyAttributeChanges(newQueryConcept, conceptId, conceptAttributeChanges);
 					}
 					if (!queryConcept.fieldsMatch(newQueryConcept)) {
+						if (semanticChanges != null) {
+							semanticChanges.conceptIdsAndAncestors.addAll(queryConcept.getAncestors());
+						}
 						queryConcept = newQueryConcept;
 						save = true;
 					}
 				}
 				if (save) {
-					queryConceptsToSave.add(queryConcept);
+					// Saved in the background while the remaining concepts are processed
+					saver.add(queryConcept);
 				}
 				nodesNotFound.remove(conceptId);
 			}
-		}
-
-		timer.checkpoint("Collect existingDescendants from QueryConcept.");
 
-		// The remaining nodes are new - create new QueryConcepts
-		for (Long nodeId : nodesNotFound) {
-			Node node = nodesToSave.get(nodeId);
-			QueryConcept queryConcept = createQueryConcept(form, branchPath, conceptAttributeChanges, throwExceptionIfTransitiveClosureLoopFound, nodeId, node);
-			if (node.getParents().isEmpty() && !queryConcept.isRoot()) {
-				// Concept is probably inactive, don't add to semantic index.
-				continue;
+			timer.checkpoint("Collect existingDescendants from QueryConcept.");
+
+			// The remaining nodes are new - create new QueryConcepts
+			for (Long nodeId : nodesNotFound) {
+				Node node = nodesToSave.get(nodeId);
+				Set<Long> transitiveClosure = closureCalculator != null ?
+						closureCalculator.getTransitiveClosure(node, branchPath, throwExceptionIfTransitiveClosureLoopFound) :
+						node.getTransitiveClosure(branchPath, throwExceptionIfTransitiveClosureLoopFound);
+				QueryConcept queryConcept = createQueryConcept(form, conceptAttributeChanges, nodeId, node, transitiveClosure);
+				if (!node.hasParents() && !queryConcept.isRoot()) {
+					// Concept is probably inactive, don't add to semantic index.
+					continue;
+				}
+				queryConcept.setCreating(true);
+				saver.add(queryConcept);
 			}
-			queryConcept.setCreating(true);
-			queryConceptsToSave.add(queryConcept);
-		}
-
-		// Delete query concepts which have no parents
-		queryConceptsToSave.stream().filter(c -> c.getParents().isEmpty() && !c.isRoot()).forEach(Entity::markDeleted);
-
-		queryConceptsToSave.forEach(QueryConcept::serializeGroupedAttributesMap);
-
-		final long countToCreate = queryConceptsToSave.stream().filter(QueryConcept::isCreating).count();
-		final Optional<QueryConcept> firstToCreate = queryConceptsToSave.stream().filter(QueryConcept::isCreating).findFirst();
-		String createMessage = firstToCreate.isPresent() ? String.format("%s semantic concepts created including %s.", countToCreate, firstToCreate.get()) :
-				"No semantic concepts need creating.";
 
-		final long countToUpdate = queryConceptsToSave.stream().filter(q -> q.isChanged() && !q.isCreating()).count();
-		final Optional<QueryConcept> firstToUpdate = queryConceptsToSave.stream().filter(q -> q.isChanged() && !q.isCreating() && !q.isDeleted()).findFirst();
-		String updateMessage = firstToUpdate.isPresent() ? String.format("%s semantic concepts updated including %s.", countToUpdate, firstToUpdate.get()) :
-				"No semantic concepts need updating.";
-
-		final long countToDelete = queryConceptsToSave.stream().filter(QueryConcept::isDeleted).count();
-		final Optional<QueryConcept> firstToDelete = queryConceptsToSave.stream().filter(QueryConcept::isDeleted).findFirst();
-		String deleteMessage = firstToDelete.isPresent() ? String.format("%s semantic concepts deleted including %s.", countToDelete, firstToDelete.get()) :
-				"No semantic concepts need deleting.";
-
-		logger.info("Semantic index change summary for {} form: {} concepts loaded into the graph. {} {} {}", form.getName(), graphBuilder.getNodes().size(),
-				createMessage, updateMessage, deleteMessage);
-
-		if (!queryConceptsToSave.isEmpty()) {
+			saver.finish();
+		}
 
-			if (dryRun) {
-				logger.info("Semantic index rebuild is in dryRun mode so no changes will be persisted!");
-			} else {
-				// Save in batches
-				for (List<QueryConcept> queryConcepts : Iterables.partition(queryConceptsToSave, Config.BATCH_SAVE_SIZE)) {
-					doSaveBatch(queryConcepts, commit);
-				}
-			}
+		logger.info("Semantic index change summary for {} form: {} concepts loaded into the graph. {}", form.getName(), graphBuilder.getNodes().size(),
+				saver.getSummary());
+		if (dryRun && saver.getCount() > 0) {
+			logger.info("Semantic index rebuild is in dryRun mode so no changes were persisted!");
 		}
 		timer.checkpoint("Save updated QueryConcepts");
-		logger.debug("{} concepts updated within the {} semantic index.", queryConceptsToSave.size(), form.getName());
+		logger.debug("{} concepts updated within the {} semantic index.", saver.getCount(), form.getName());
 
 		timer.finish();
-		return queryConceptsToSave.size();
+		return saver.getCount();
 	}
 
-	private QueryConcept createQueryConcept(Form form, String branchPath, Map<Long, AttributeChanges> conceptAttributeChanges,
-			boolean throwExceptionIfTransitiveClosureLoopFound, Long nodeId, Node node) throws GraphBuilderException {
+	private QueryConcept createQueryConcept(Form form, Map<Long, AttributeChanges> conceptAttributeChanges, Long nodeId, Node node, Set<Long> nodeTransitiveClosure) {
 
-		final Set<Long> transitiveClosure = new HashSet<>(node.getTransitiveClosure(branchPath, throwExceptionIfTransitiveClosureLoopFound));
-		final Set<Long> parentIds = node.getParents().stream().map(Node::getId).collect(Collectors.toSet());
+		final Set<Long> transitiveClosure = new HashSet<>(nodeTransitiveClosure);
+		final Set<Long> parentIds = node.getParentIds();
 		QueryConcept queryConcept = new QueryConcept(nodeId, parentIds, transitiveClosure, form.isStated());
 		applyAttributeChanges(queryConcept, nodeId, conceptAttributeChanges);
 		return queryConcept;
@@ -723,6 +741,16 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 		doSaveBatchComponents(queryConcepts, commit, "conceptIdForm", queryConceptRepository);
 	}
 
+	@PostConstruct
+	public void init() {
+		saveExecutor = Executors.newFixedThreadPool(saveThreads);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		saveExecutor.shutdown();
+	}
+
 	private Set<Long> getInactiveOrMissingConceptIds(Set<Long> requiredActiveConcepts, BranchCriteria branchCriteria) {
 		// We can't select the concepts which are not there!
 		// For speed first we will count the concepts which are there and active
@@ -826,4 +854,137 @@ public class SemanticIndexUpdateService extends ComponentService implements Comm
 					'}';
 		}
 	}
+
+	/**
+	 * Prepares query concepts for saving and saves them in batches on a background thread, so that the next batch can be
+	 * built while the previous one is being saved. Only one batch is saved at a time, which keeps memory use bounded
+	 * during a complete rebuild. Also keeps the counts used for the change summary.
+	 */
+	private final class QueryConceptBatchSaver implements AutoCloseable {
+
+		private final Form form;
+		private final Commit commit;
+		private final boolean dryRun;
+		private final CommitSemanticChanges semanticChanges;
+
+		private List<QueryConcept> batch = new ArrayList<>();
+		private Future<?> batchInProgress;
+
+		private int count;
+		private int countToCreate;
+		private int countToUpdate;
+		private int countToDelete;
+		private QueryConcept firstToCreate;
+		private QueryConcept firstToUpdate;
+		private QueryConcept firstToDelete;
+
+		private QueryConceptBatchSaver(Form form, Commit commit, boolean dryRun, CommitSemanticChanges semanticChanges) {
+			this.form = form;
+			this.commit = commit;
+			this.dryRun = dryRun;
+			this.semanticChanges = semanticChanges;
+		}
+
+		private void add(QueryConcept queryConcept) throws ServiceException {
+			// Delete query concepts which have no parents
+			if (queryConcept.getParents().isEmpty() && !queryConcept.isRoot()) {
+				queryConcept.markDeleted();
+			}
+			queryConcept.serializeGroupedAttributesMap();
+
+			if (semanticChanges != null) {
+				Long2ObjectMap<long[]> changedParents = form.isStated() ? semanticChanges.statedParents : semanticChanges.inferredParents;
+				semanticChanges.conceptIdsAndAncestors.add(queryConcept.getConceptIdL().longValue());
+				semanticChanges.conceptIdsAndAncestors.addAll(queryConcept.getAncestors());
+				changedParents.put(queryConcept.getConceptIdL().longValue(),
+						queryConcept.isDeleted() ? null : queryConcept.getParents().stream().mapToLong(Long::longValue).toArray());
+			}
+
+			count++;
+			if (queryConcept.isCreating()) {
+				countToCreate++;
+				firstToCreate = firstToCreate != null ? firstToCreate : queryConcept;
+			} else if (queryConcept.isChanged()) {
+				countToUpdate++;
+				if (firstToUpdate == null && !queryConcept.isDeleted()) {
+					firstToUpdate = queryConcept;
+				}
+			}
+			if (queryConcept.isDeleted()) {
+				countToDelete++;
+				firstToDelete = firstToDelete != null ? firstToDelete : queryConcept;
+			}
+
+			if (!dryRun) {
+				batch.add(queryConcept);
+				if (batch.size() == Config.BATCH_SAVE_SIZE) {
+					awaitBatchInProgress();
+					List<QueryConcept> batchToSave = batch;
+					batch = new ArrayList<>();
+					batchInProgress = saveExecutor.submit(() -> doSaveBatch(batchToSave, commit));
+				}
+			}
+		}
+
+		private void finish() throws ServiceException {
+			awaitBatchInProgress();
+			if (!batch.isEmpty()) {
+				doSaveBatch(batch, commit);
+				batch = new ArrayList<>();
+			}
+		}
+
+		private void awaitBatchInProgress() throws ServiceException {
+			if (batchInProgress != null) {
+				try {
+					batchInProgress.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ServiceException("Interrupted while saving semantic index batch.", e);
+				} catch (ExecutionException e) {
+					throw new ServiceException("Failed to save semantic index batch. " + e.getCause().getMessage(), e.getCause());
+				} finally {
+					batchInProgress = null;
+				}
+			}
+		}
+
+		// Make sure nothing is still being saved if processing fails, before the commit is rolled back
+		@Override
+		public void close() {
+			if (batchInProgress != null) {
+				try {
+					batchInProgress.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.debug("Semantic index batch save failed during clean up.", e.getCause());
+				}
+			}
+		}
+
+		private int getCount() {
+			return count;
+		}
+
+		private String getSummary() {
+			String createMessage = firstToCreate != null ? String.format("%s semantic concepts created including %s.", countToCreate, firstToCreate) :
+					"No semantic concepts need creating.";
+			String updateMessage = firstToUpdate != null ? String.format("%s semantic concepts updated including %s.", countToUpdate, firstToUpdate) :
+					"No semantic concepts need updating.";
+			String deleteMessage = firstToDelete != null ? String.format("%s semantic concepts deleted including %s.", countToDelete, firstToDelete) :
+					"No semantic concepts need deleting.";
+			return createMessage + " " + updateMessage + " " + deleteMessage;
+		}
+	}
+
+	private static final class CommitSemanticChanges {
+
+		// Ids of concepts whose semantic index entry changed, plus their ancestors before and after the change
+		private final LongSet conceptIdsAndAncestors = new LongOpenHashSet();
+
+		// New parents of changed concepts, null if removed from the semantic index
+		private final Long2ObjectMap<long[]> statedParents = new Long2ObjectOpenHashMap<>();
+		private final Long2ObjectMap<long[]> inferredParents = new Long2ObjectOpenHashMap<>();
+	}
 }
@@ -0,0 +1,228 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Iterates the results of several slices of one search. Each slice is read on its own thread into a small bounded queue of pages,
+ * so a slice stops reading when the consumer falls behind.
+ * When a comparator is given the slices, which must each be sorted in the same order, are merged into one ordered sequence.
+ * Otherwise results are returned in whatever order the pages arrive.
+ * A slice which can not get a thread from the executor is read on the consumer thread, one page at a time as it is needed.
+ */
+class SlicedSearchIterator<T> implements CloseableIterator<T> {
+
+	// Pages buffered per slice
+	static final int QUEUE_PAGES_PER_SLICE = 2;
+
+	private static final List<?> END = new ArrayList<>(0);
+
+	private final List<BlockingQueue<List<T>>> queues;
+	private final Comparator<T> comparator;
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private final List<Future<?>> readerFutures = new ArrayList<>();
+	// Slices read on the consumer thread, null once finished or when read by a pool thread
+	private final SliceReader<T>[] inlineReaders;
+	private volatile boolean closed;
+
+	// Unordered mode
+	private int slicesRemaining;
+	private List<T> page = Collections.emptyList();
+	private int position;
+
+	// Ordered mode
+	private List<T>[] slicePages;
+	private int[] slicePositions;
+	private PriorityQueue<Integer> sliceHeads;
+
+	interface SliceReader<T> extends AutoCloseable {
+
+		/**
+		 * @return the next page of results or an empty list when there are no more.
+		 */
+		List<T> nextPage() throws Exception;
+
+		@Override
+		void close();
+	}
+
+	@SuppressWarnings("unchecked")
+	SlicedSearchIterator(List<SliceReader<T>> readers, Comparator<T> comparator, ExecutorService executorService) {
+		this.comparator = comparator;
+		queues = new ArrayList<>();
+		if (comparator != null) {
+			for (int i = 0; i < readers.size(); i++) {
+				queues.add(new ArrayBlockingQueue<>(QUEUE_PAGES_PER_SLICE));
+			}
+		} else {
+			queues.add(new ArrayBlockingQueue<>(QUEUE_PAGES_PER_SLICE * readers.size()));
+		}
+		inlineReaders = new SliceReader[readers.size()];
+		for (int i = 0; i < readers.size(); i++) {
+			SliceReader<T> reader = readers.get(i);
+			BlockingQueue<List<T>> queue = comparator != null ? queues.get(i) : queues.get(0);
+			try {
+				readerFutures.add(executorService.submit(() -> read(reader, queue)));
+				slicesRemaining++;
+			} catch (RejectedExecutionException e) {
+				inlineReaders[i] = reader;
+			}
+		}
+
+		if (comparator != null) {
+			slicePages = new List[readers.size()];
+			slicePositions = new int[readers.size()];
+			sliceHeads = new PriorityQueue<>(readers.size(), (a, b) -> comparator.compare(slicePages[a].get(slicePositions[a]), slicePages[b].get(slicePositions[b])));
+			for (int i = 0; i < readers.size(); i++) {
+				takeSlicePage(i);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void read(SliceReader<T> reader, BlockingQueue<List<T>> queue) {
+		try (reader) {
+			List<T> nextPage;
+			while (!closed && !(nextPage = reader.nextPage()).isEmpty()) {
+				put(queue, nextPage);
+			}
+		} catch (Exception e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			put(queue, (List<T>) END);
+		}
+	}
+
+	private void put(BlockingQueue<List<T>> queue, List<T> page) {
+		try {
+			while (!closed) {
+				if (queue.offer(page, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private List<T> take(BlockingQueue<List<T>> queue) {
+		try {
+			return checkFailure(queue.take());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeServiceException("Interrupted while reading search slices.", e);
+		}
+	}
+
+	// Null if no page is ready
+	private List<T> poll(BlockingQueue<List<T>> queue) {
+		return checkFailure(queue.poll());
+	}
+
+	private List<T> checkFailure(List<T> nextPage) {
+		if (nextPage == END && failure.get() != null) {
+			throw new RuntimeServiceException("Failed to read search slice.", failure.get());
+		}
+		return nextPage;
+	}
+
+	// Returns an empty page once the slice is finished
+	private List<T> readInline(int slice) {
+		try {
+			List<T> nextPage = inlineReaders[slice].nextPage();
+			if (nextPage.isEmpty()) {
+				closeInline(slice);
+			}
+			return nextPage;
+		} catch (Exception e) {
+			closeInline(slice);
+			throw new RuntimeServiceException("Failed to read search slice.", e);
+		}
+	}
+
+	private void closeInline(int slice) {
+		SliceReader<T> reader = inlineReaders[slice];
+		if (reader != null) {
+			inlineReaders[slice] = null;
+			reader.close();
+		}
+	}
+
+	private int getOpenInlineSlice() {
+		for (int slice = 0; slice < inlineReaders.length; slice++) {
+			if (inlineReaders[slice] != null) {
+				return slice;
+			}
+		}
+		return -1;
+	}
+
+	private void takeSlicePage(int slice) {
+		List<T> nextPage = inlineReaders[slice] != null ? readInline(slice) : take(queues.get(slice));
+		if (nextPage != END && !nextPage.isEmpty()) {
+			slicePages[slice] = nextPage;
+			slicePositions[slice] = 0;
+			sliceHeads.add(slice);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (comparator != null) {
+			return !sliceHeads.isEmpty();
+		}
+		while (position == page.size()) {
+			List<T> nextPage;
+			int inlineSlice = getOpenInlineSlice();
+			if (inlineSlice >= 0) {
+				// Pages from the pool threads first, so they can carry on reading
+				nextPage = poll(queues.get(0));
+				if (nextPage == null) {
+					nextPage = readInline(inlineSlice);
+				}
+			} else if (slicesRemaining > 0) {
+				nextPage = take(queues.get(0));
+			} else {
+				break;
+			}
+			if (nextPage == END) {
+				slicesRemaining--;
+			} else {
+				page = nextPage;
+				position = 0;
+			}
+		}
+		return position < page.size();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (comparator == null) {
+			return page.get(position++);
+		}
+		int slice = sliceHeads.poll();
+		T item = slicePages[slice].get(slicePositions[slice]++);
+		if (slicePositions[slice] < slicePages[slice].size()) {
+			sliceHeads.add(slice);
+		} else {
+			takeSlicePage(slice);
+		}
+		return item;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		// Readers stop at their next page and release their search context
+		readerFutures.forEach(future -> future.cancel(false));
+		for (int slice = 0; slice < inlineReaders.length; slice++) {
+			closeInline(slice);
+		}
+	}
+}
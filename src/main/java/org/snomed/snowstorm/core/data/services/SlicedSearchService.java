@@ -0,0 +1,165 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.elasticsearch.action.search.*;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.SourceFilter;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+
+/**
+ * Streams the results of large scans using a sliced scroll, with the slices read in parallel.
+ * Use for searches that return hundreds of thousands of documents, for example every concept on a branch.
+ * Each slice is read by its own thread, a few pages ahead of the caller, and is cleared when the iterator is closed.
+ * The reader threads come from a bounded pool. When the pool is busy the remaining slices are read by the calling thread,
+ * which never waits for a pool thread so several scans at once can not deadlock.
+ */
+@Service
+public class SlicedSearchService {
+
+	private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+	@Autowired
+	private ElasticsearchRestTemplate elasticsearchTemplate;
+
+	@Value("${elasticsearch.search.slices}")
+	private int slices;
+
+	@Value("${elasticsearch.search.slice-threads}")
+	private int sliceThreads;
+
+	private ExecutorService executorService;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Stream all results of the query in no particular order.
+	 * The sort of the query is ignored.
+	 */
+	public <T> CloseableIterator<T> stream(NativeSearchQuery query, Class<T> clazz) {
+		return new SlicedSearchIterator<>(createSliceReaders(query, clazz, false), null, executorService);
+	}
+
+	/**
+	 * Stream all results of the query in order.
+	 * Each slice is sorted using the sort of the query and the slices are merged using the comparator,
+	 * which must give the same order.
+	 */
+	public <T> CloseableIterator<T> streamOrdered(NativeSearchQuery query, Class<T> clazz, Comparator<T> comparator) {
+		return new SlicedSearchIterator<>(createSliceReaders(query, clazz, true), comparator, executorService);
+	}
+
+	private <T> List<SlicedSearchIterator.SliceReader<T>> createSliceReaders(NativeSearchQuery query, Class<T> clazz, boolean sorted) {
+		int maxSlices = Math.max(slices, 1);
+		List<SlicedSearchIterator.SliceReader<T>> readers = new ArrayList<>();
+		for (int slice = 0; slice < maxSlices; slice++) {
+			readers.add(new ScrollSliceReader<>(createSearchRequest(query, clazz, sorted, slice, maxSlices), clazz));
+		}
+		return readers;
+	}
+
+	private SearchRequest createSearchRequest(NativeSearchQuery query, Class<?> clazz, boolean sorted, int slice, int maxSlices) {
+		SearchSourceBuilder source = new SearchSourceBuilder()
+				.query(query.getQuery())
+				.size(query.getPageable().isPaged() ? query.getPageable().getPageSize() : LARGE_PAGE.getPageSize());
+		if (query.getFilter() != null) {
+			source.postFilter(query.getFilter());
+		}
+		SourceFilter sourceFilter = query.getSourceFilter();
+		if (sourceFilter != null) {
+			source.fetchSource(sourceFilter.getIncludes(), sourceFilter.getExcludes());
+		} else if (!query.getFields().isEmpty()) {
+			source.fetchSource(query.getFields().toArray(new String[0]), null);
+		}
+		if (sorted && query.getElasticsearchSorts() != null) {
+			query.getElasticsearchSorts().forEach(source::sort);
+		} else {
+			// Index order is the cheapest order to scroll
+			source.sort(SortBuilders.fieldSort("_doc"));
+		}
+		if (maxSlices > 1) {
+			source.slice(new SliceBuilder(slice, maxSlices));
+		}
+		return new SearchRequest(elasticsearchTemplate.getIndexCoordinatesFor(clazz).getIndexNames())
+				.source(source)
+				.scroll(SCROLL_KEEP_ALIVE);
+	}
+
+	@PostConstruct
+	public void init() {
+		// No queue, a slice which can not start straight away is read by the caller instead
+		executorService = new ThreadPoolExecutor(0, Math.max(sliceThreads, 1), 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	private final class ScrollSliceReader<T> implements SlicedSearchIterator.SliceReader<T> {
+
+		private final SearchRequest searchRequest;
+		private final Class<T> clazz;
+		private String scrollId;
+
+		private ScrollSliceReader(SearchRequest searchRequest, Class<T> clazz) {
+			this.searchRequest = searchRequest;
+			this.clazz = clazz;
+		}
+
+		@Override
+		public List<T> nextPage() {
+			SearchResponse response;
+			if (scrollId == null) {
+				response = elasticsearchTemplate.execute(client -> client.search(searchRequest, RequestOptions.DEFAULT));
+			} else {
+				SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE);
+				response = elasticsearchTemplate.execute(client -> client.scroll(scrollRequest, RequestOptions.DEFAULT));
+			}
+			scrollId = response.getScrollId();
+			SearchHit[] hits = response.getHits().getHits();
+			List<T> page = new ArrayList<>(hits.length);
+			for (SearchHit hit : hits) {
+				page.add(elasticsearchTemplate.getElasticsearchConverter().read(clazz, DocumentAdapters.from(hit)));
+			}
+			return page;
+		}
+
+		@Override
+		public void close() {
+			if (scrollId != null) {
+				ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+				clearScrollRequest.addScrollId(scrollId);
+				try {
+					elasticsearchTemplate.execute(client -> client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT));
+				} catch (RuntimeException e) {
+					logger.warn("Failed to clear scroll context.", e);
+				}
+				scrollId = null;
+			}
+		}
+	}
+}
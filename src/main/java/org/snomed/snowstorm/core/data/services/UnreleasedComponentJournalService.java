@@ -0,0 +1,249 @@
+package org.snomed.snowstorm.core.data.services;
+
+import com.google.common.collect.Iterables;
+import io.kaicode.elasticvc.api.*;
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Commit;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.*;
+import org.snomed.snowstorm.core.data.repositories.UnreleasedComponentRepository;
+import org.snomed.snowstorm.core.data.services.pojo.UnreleasedComponentIds;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+import static io.kaicode.elasticvc.domain.Commit.CommitType.PROMOTION;
+import static org.elasticsearch.index.query.QueryBuilders.*;
+import static org.snomed.snowstorm.config.Config.BATCH_SAVE_SIZE;
+import static org.snomed.snowstorm.core.data.services.BranchMetadataHelper.INTERNAL_METADATA_KEY;
+
+/**
+ * Maintains a journal of the components which have a version without an effective time, so that Delta exports can read
+ * the unreleased content of a branch directly rather than searching every version of every component.
+ * The journal is updated at commit time using the components changed in the commit. Journal entries are versioned like content,
+ * promotion carries them to the parent branch so promotion commits are skipped.
+ * <br/>
+ * The journal of a branch is only complete if every commit since the journal started was recorded. This is tracked using
+ * branch metadata set when a root branch is created or when the journal of a branch is rebuilt.
+ */
+@Service
+public class UnreleasedComponentJournalService extends ComponentService implements CommitListener {
+
+	public static final String JOURNAL_COMPLETE_SINCE_METADATA_KEY = "unreleasedJournalCompleteSince";
+
+	private static final List<Class<? extends SnomedComponent<?>>> COMPONENT_TYPES = List.of(Concept.class, Description.class, Relationship.class, ReferenceSetMember.class);
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private UnreleasedComponentRepository unreleasedComponentRepository;
+
+	@Autowired
+	private DomainEntityConfiguration domainEntityConfiguration;
+
+	@Autowired
+	private BranchMetadataHelper branchMetadataHelper;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Override
+	public void preCommitCompletion(Commit commit) throws IllegalStateException {
+		if (commit.getCommitType() == PROMOTION) {
+			return;
+		}
+		BranchCriteria changesCriteria = versionControlHelper.getBranchCriteriaChangesAndDeletionsWithinOpenCommitOnly(commit);
+		BranchCriteria currentCriteria = versionControlHelper.getBranchCriteriaIncludingOpenCommit(commit);
+		int saved = 0;
+		for (Class<? extends SnomedComponent<?>> componentType : COMPONENT_TYPES) {
+			saved += updateJournal(componentType, changesCriteria, currentCriteria, commit);
+		}
+		if (saved > 0) {
+			logger.debug("{} unreleased component journal entries updated on {}.", saved, commit.getBranch().getPath());
+		}
+	}
+
+	/**
+	 * Replaces the journal of the branch with the unreleased components currently visible on the branch and marks the journal complete.
+	 * Descendant branches which existed before the rebuild should also be rebuilt before their journal is used.
+	 */
+	public void rebuild(String path) throws ServiceException {
+		logger.info("Rebuilding unreleased component journal on {}.", path);
+		try (Commit commit = branchService.openCommit(path, branchMetadataHelper.getBranchLockMetadata("Rebuilding unreleased component journal."))) {
+			BranchCriteria currentCriteria = versionControlHelper.getBranchCriteriaIncludingOpenCommit(commit);
+			int saved = 0;
+			for (Class<? extends SnomedComponent<?>> componentType : COMPONENT_TYPES) {
+				Map<String, UnreleasedComponent> unreleased = findUnreleased(componentType, currentCriteria, null);
+				Map<String, UnreleasedComponent> journalEntries = findJournalEntries(componentType, currentCriteria, null);
+				saved += saveChanges(unreleased, journalEntries, commit);
+			}
+			commit.getBranch().getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY)
+					.put(JOURNAL_COMPLETE_SINCE_METADATA_KEY, String.valueOf(commit.getTimepoint().getTime()));
+			commit.markSuccessful();
+			logger.info("Rebuilt unreleased component journal on {}, {} entries updated.", path, saved);
+		} catch (Exception e) {
+			throw new ServiceException("Failed to rebuild unreleased component journal on " + path, e);
+		}
+	}
+
+	/**
+	 * @return the journal of unreleased components visible on the branch, or null if the journal of this branch is not known to be complete.
+	 */
+	public UnreleasedComponentIds getUnreleasedComponentIds(String path, BranchCriteria branchCriteria) {
+		if (!isJournalComplete(path)) {
+			return null;
+		}
+		UnreleasedComponentIds unreleasedComponentIds = new UnreleasedComponentIds();
+		try (SearchHitsIterator<UnreleasedComponent> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(branchCriteria.getEntityBranchCriteria(UnreleasedComponent.class))
+				.withPageable(LARGE_PAGE)
+				.build(), UnreleasedComponent.class)) {
+			stream.forEachRemaining(hit -> unreleasedComponentIds.add(hit.getContent()));
+		}
+		return unreleasedComponentIds;
+	}
+
+	/**
+	 * The journal of a branch is complete if the branch, or an ancestor, has a journal start time and every branch
+	 * between the two was created after that time, so that all of their commits were recorded.
+	 */
+	boolean isJournalComplete(String path) {
+		List<Branch> branchesBelow = new ArrayList<>();
+		for (String currentPath = path; currentPath != null; currentPath = PathUtil.getParentPath(currentPath)) {
+			Branch branch = branchService.findLatest(currentPath);
+			if (branch == null) {
+				return false;
+			}
+			String completeSince = branch.getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY).get(JOURNAL_COMPLETE_SINCE_METADATA_KEY);
+			if (completeSince != null) {
+				long since = Long.parseLong(completeSince);
+				return branchesBelow.stream().allMatch(branchBelow -> branchBelow.getCreation().getTime() > since);
+			}
+			branchesBelow.add(branch);
+		}
+		return false;
+	}
+
+	private int updateJournal(Class<? extends SnomedComponent<?>> componentType, BranchCriteria changesCriteria, BranchCriteria currentCriteria, Commit commit) {
+		long changedCount = elasticsearchTemplate.count(new NativeSearchQueryBuilder()
+				.withQuery(changesCriteria.getEntityBranchCriteria(componentType))
+				.build(), componentType);
+		if (changedCount == 0) {
+			return 0;
+		}
+		Set<String> candidateIds;
+		Map<String, UnreleasedComponent> journalEntries;
+		if (changedCount <= CLAUSE_LIMIT) {
+			// Check every changed component
+			candidateIds = findIds(componentType, changesCriteria, null);
+			journalEntries = findJournalEntries(componentType, currentCriteria, candidateIds);
+		} else {
+			// Large commit, usually an import. Check the unreleased versions and any journaled components which changed.
+			candidateIds = findIds(componentType, changesCriteria, boolQuery().mustNot(existsQuery(SnomedComponent.Fields.EFFECTIVE_TIME)));
+			journalEntries = findJournalEntries(componentType, currentCriteria, null);
+			for (List<String> batch : Iterables.partition(journalEntries.keySet(), CLAUSE_LIMIT)) {
+				candidateIds.addAll(findIds(componentType, changesCriteria, termsQuery(getIdField(componentType), batch)));
+			}
+			journalEntries.keySet().retainAll(candidateIds);
+		}
+		Map<String, UnreleasedComponent> unreleased = new HashMap<>();
+		for (List<String> batch : Iterables.partition(candidateIds, CLAUSE_LIMIT)) {
+			unreleased.putAll(findUnreleased(componentType, currentCriteria, batch));
+		}
+		return saveChanges(unreleased, journalEntries, commit);
+	}
+
+	private Set<String> findIds(Class<? extends SnomedComponent<?>> componentType, BranchCriteria branchCriteria, QueryBuilder clause) {
+		BoolQueryBuilder query = boolQuery().must(branchCriteria.getEntityBranchCriteria(componentType));
+		if (clause != null) {
+			query.must(clause);
+		}
+		Set<String> ids = new HashSet<>();
+		try (SearchHitsIterator<? extends SnomedComponent<?>> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(query)
+				.withFields(getIdField(componentType))
+				.withPageable(LARGE_PAGE)
+				.build(), componentType)) {
+			stream.forEachRemaining(hit -> ids.add(hit.getContent().getId()));
+		}
+		return ids;
+	}
+
+	private Map<String, UnreleasedComponent> findUnreleased(Class<? extends SnomedComponent<?>> componentType, BranchCriteria branchCriteria, Collection<String> ids) {
+		String idField = getIdField(componentType);
+		BoolQueryBuilder query = boolQuery()
+				.must(branchCriteria.getEntityBranchCriteria(componentType))
+				.mustNot(existsQuery(SnomedComponent.Fields.EFFECTIVE_TIME));
+		if (ids != null) {
+			query.must(termsQuery(idField, ids));
+		}
+		Map<String, UnreleasedComponent> unreleased = new HashMap<>();
+		try (SearchHitsIterator<? extends SnomedComponent<?>> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(query)
+				.withFields(idField, ReferenceSetMember.Fields.REFSET_ID)
+				.withPageable(LARGE_PAGE)
+				.build(), componentType)) {
+			stream.forEachRemaining(hit -> {
+				SnomedComponent<?> component = hit.getContent();
+				String refsetId = component instanceof ReferenceSetMember ? ((ReferenceSetMember) component).getRefsetId() : null;
+				unreleased.put(component.getId(), new UnreleasedComponent(component.getId(), componentType.getSimpleName(), refsetId));
+			});
+		}
+		return unreleased;
+	}
+
+	private Map<String, UnreleasedComponent> findJournalEntries(Class<? extends SnomedComponent<?>> componentType, BranchCriteria branchCriteria, Collection<String> ids) {
+		BoolQueryBuilder query = boolQuery()
+				.must(branchCriteria.getEntityBranchCriteria(UnreleasedComponent.class))
+				.must(termQuery(UnreleasedComponent.Fields.COMPONENT_TYPE, componentType.getSimpleName()));
+		if (ids != null) {
+			query.must(termsQuery(UnreleasedComponent.Fields.COMPONENT_ID, ids));
+		}
+		Map<String, UnreleasedComponent> journalEntries = new HashMap<>();
+		try (SearchHitsIterator<UnreleasedComponent> stream = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+				.withQuery(query)
+				.withPageable(LARGE_PAGE)
+				.build(), UnreleasedComponent.class)) {
+			stream.forEachRemaining(hit -> journalEntries.put(hit.getContent().getComponentId(), hit.getContent()));
+		}
+		return journalEntries;
+	}
+
+	private int saveChanges(Map<String, UnreleasedComponent> unreleased, Map<String, UnreleasedComponent> journalEntries, Commit commit) {
+		List<UnreleasedComponent> toSave = new ArrayList<>();
+		for (UnreleasedComponent unreleasedComponent : unreleased.values()) {
+			UnreleasedComponent journalEntry = journalEntries.get(unreleasedComponent.getComponentId());
+			if (unreleasedComponent.isComponentChanged(journalEntry)) {
+				toSave.add(unreleasedComponent);
+			}
+		}
+		// Components which have been released or deleted
+		for (UnreleasedComponent journalEntry : journalEntries.values()) {
+			if (!unreleased.containsKey(journalEntry.getComponentId())) {
+				journalEntry.markDeleted();
+				toSave.add(journalEntry);
+			}
+		}
+		for (List<UnreleasedComponent> batch : Iterables.partition(toSave, BATCH_SAVE_SIZE)) {
+			doSaveBatchComponents(batch, commit, UnreleasedComponent.Fields.COMPONENT_ID, unreleasedComponentRepository);
+		}
+		return toSave.size();
+	}
+
+	private String getIdField(Class<? extends SnomedComponent<?>> componentType) {
+		return domainEntityConfiguration.getAllIdFields().get(componentType);
+	}
+}
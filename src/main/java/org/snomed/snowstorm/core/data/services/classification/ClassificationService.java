@@ -11,7 +11,6 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.util.concurrent.UncategorizedExecutionException;
-import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.ihtsdo.otf.snomedboot.domain.rf2.RelationshipFieldIndexes;
@@ -42,6 +41,7 @@ import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.elasticsearch.core.*;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.security.core.context.SecurityContext;
@@ -113,6 +113,9 @@ public class ClassificationService {
 	@Autowired
 	private RelationshipService relationshipService;
 
+	@Autowired
+	private JoinExecutor joinExecutor;
+
 	private final List<Classification> classificationsInProgress;
 	private final Map<String, SecurityContext> classificationUserIdToUserContextMap;
 
@@ -125,6 +128,8 @@ public class ClassificationService {
 	private static final int SECOND = 1000;
 
 	private static final PageRequest PAGE_FIRST_1K = PageRequest.of(0, 1000);
+	private static final int RELATIONSHIP_CHANGE_WINDOW = 20_000;
+	private static final int RELATIONSHIP_CHANGE_SAVE_BATCH = 5_000;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -610,15 +615,22 @@ public class ClassificationService {
 	}
 
 	void saveRelationshipChanges(Classification classification, InputStream rf2Stream, boolean concrete) throws IOException, ElasticsearchException {
+		saveRelationshipChanges(classification, rf2Stream, concrete, RELATIONSHIP_CHANGE_WINDOW);
+	}
+
+	void saveRelationshipChanges(Classification classification, InputStream rf2Stream, boolean concrete, int windowSize) throws IOException, ElasticsearchException {
 		// Leave the stream open after use.
 		BufferedReader reader = new BufferedReader(new InputStreamReader(rf2Stream));
 
 		reader.readLine(); // Read and discard header line
 
-		List<RelationshipChange> relationshipChanges = new ArrayList<>();
+		// Changes are processed and saved in windows so the whole delta is never held in memory
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(classification.getPath());
+		NumberFormat numberFormat = NumberFormat.getIntegerInstance();
+		List<RelationshipChange> window = new ArrayList<>(windowSize);
+		String[] values = new String[RelationshipFieldIndexes.modifierId + 1];
+		long rowsProcessed = 0;
 		String line;
-		long activeRows = 0;
-		boolean active;
 		while ((line = reader.readLine()) != null) {
 
 			// Relationship Header:
@@ -627,83 +639,66 @@ public class ClassificationService {
 			// Concrete Relationship Header:
 			// id	effectiveTime	active	moduleId	sourceId	value	relationshipGroup	typeId	characteristicTypeId	modifierId
 
-			String[] values = line.split("\\t");
-			active = "1".equals(values[RelationshipFieldIndexes.active]);
-			relationshipChanges.add(new RelationshipChange(
+			splitTabs(line, values);
+			window.add(new RelationshipChange(
 					classification.getId(),
 					values[RelationshipFieldIndexes.id],
-					active,
+					"1".equals(values[RelationshipFieldIndexes.active]),
 					values[RelationshipFieldIndexes.sourceId],
 					values[RelationshipFieldIndexes.destinationId],// destination or value depending on value of concrete flag
 					Integer.parseInt(values[RelationshipFieldIndexes.relationshipGroup]),
 					values[RelationshipFieldIndexes.typeId],
 					values[RelationshipFieldIndexes.modifierId],
 					concrete));
-			if (active) {
-				activeRows++;
+			if (window.size() == windowSize) {
+				rowsProcessed += window.size();
+				logger.info("Processing classification relationship changes up to row {} for classification {}.", numberFormat.format(rowsProcessed), classification.getId());
+				markInferredNotPreviouslyStatedAndSave(window, branchCriteria);
+				window = new ArrayList<>(windowSize);
 			}
 		}
-
-		// - Mark inferred not previously stated changes -
-		// Build query to find concepts in the stated semantic index which do not contain the inferred parents or attributes
-		NumberFormat numberFormat = NumberFormat.getIntegerInstance();
-		if (activeRows > 0) {
-			logger.info("Looking up 'inferred not previously stated' values for {} active inferred relationship changes for classification {}.",
-					numberFormat.format(activeRows), classification.getId());
+		if (!window.isEmpty()) {
+			rowsProcessed += window.size();
+			markInferredNotPreviouslyStatedAndSave(window, branchCriteria);
 		}
-		long rowsProcessed = 0;
-		Map<Long, List<RelationshipChange>> activeConceptChanges = new HashMap<>();
-
-		// The max clauses for bool query in elastic search by default is 1024
-		for (List<RelationshipChange> relationshipChangePartition : Lists.partition(relationshipChanges, 1000)) {
-			BoolQueryBuilder allConceptsQuery = boolQuery();
-			for (RelationshipChange relationshipChange : relationshipChangePartition) {
-				if (relationshipChange.isActive()) {
-					Long sourceId = parseLong(relationshipChange.getSourceId());
-					BoolQueryBuilder conceptQuery = boolQuery()
-							.must(termQuery(QueryConcept.Fields.CONCEPT_ID, sourceId));
-					if (relationshipChange.getTypeId().equals(Concepts.ISA)) {
-						conceptQuery.mustNot(termQuery(QueryConcept.Fields.PARENTS, relationshipChange.getDestinationId()));
-					} else {
-						conceptQuery.mustNot(termQuery(QueryConcept.Fields.ATTR + "." + relationshipChange.getTypeId(), relationshipChange.getDestinationOrValueWithoutPrefix()));
-					}
-					allConceptsQuery.should(conceptQuery);
-					activeConceptChanges.computeIfAbsent(sourceId, id -> new ArrayList<>()).add(relationshipChange);
-					rowsProcessed++;
-					if (rowsProcessed % 1_000 == 0) {
-						logger.info("Processing row {} of {} for classification {}", numberFormat.format(rowsProcessed), numberFormat.format(activeRows), classification.getId());
-					}
-				}
-			}
+		if (rowsProcessed > 0) {
+			logger.info("Saved {} classification relationship changes total for classification {}.", numberFormat.format(rowsProcessed), classification.getId());
+		}
+	}
 
-			// make sure the should clause is not empty before running semantic index search
-			if (allConceptsQuery.should().isEmpty()) {
-				continue;
+	private void markInferredNotPreviouslyStatedAndSave(List<RelationshipChange> relationshipChanges, BranchCriteria branchCriteria) {
+		// - Mark inferred not previously stated changes -
+		// Load the stated semantic index of all source concepts with active changes and compare in memory
+		Map<Long, List<RelationshipChange>> activeConceptChanges = new Long2ObjectOpenHashMap<>();
+		for (RelationshipChange relationshipChange : relationshipChanges) {
+			if (relationshipChange.isActive()) {
+				activeConceptChanges.computeIfAbsent(parseLong(relationshipChange.getSourceId()), id -> new ArrayList<>()).add(relationshipChange);
 			}
-
-			BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(classification.getPath());
+		}
+		if (!activeConceptChanges.isEmpty()) {
 			try (SearchHitsIterator<QueryConcept> semanticIndexConcepts = elasticsearchOperations.searchForStream(
 					new NativeSearchQueryBuilder()
 							.withQuery(boolQuery()
 									.must(branchCriteria.getEntityBranchCriteria(QueryConcept.class))
 									.must(termQuery(QueryConcept.Fields.STATED, true)))
-							.withFilter(allConceptsQuery)
+							.withFilter(termsQuery(QueryConcept.Fields.CONCEPT_ID, activeConceptChanges.keySet()))
+							.withSourceFilter(new FetchSourceFilter(new String[]{QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.PARENTS, QueryConcept.Fields.ATTR_MAP}, null))
 							.withPageable(LARGE_PAGE).build(),
 					QueryConcept.class)) {
 
 				semanticIndexConcepts.forEachRemaining(hit -> {
-					// One or more inferred attributes or parents do not exist on this stated semanticIndexConcept
-					List<RelationshipChange> conceptChanges = activeConceptChanges.get(hit.getContent().getConceptIdL());
+					QueryConcept statedConcept = hit.getContent();
+					List<RelationshipChange> conceptChanges = activeConceptChanges.get(statedConcept.getConceptIdL());
 					if (conceptChanges != null) {
-						Map<String, Set<Object>> conceptAttributes = hit.getContent().getAttr();
+						Map<String, Set<Object>> conceptAttributes = statedConcept.getAttr();
 						for (RelationshipChange relationshipChange : conceptChanges) {
 							if (relationshipChange.getTypeId().equals(Concepts.ISA)) {
-								if (!hit.getContent().getParents().contains(parseLong(relationshipChange.getDestinationId()))) {
+								if (!statedConcept.getParents().contains(parseLong(relationshipChange.getDestinationId()))) {
 									relationshipChange.setInferredNotStated(true);
 								}
 							} else {
 								if (!conceptAttributes.getOrDefault(relationshipChange.getTypeId(), Collections.emptySet())
-                                        .contains(relationshipChange.getDestinationOrRawValue())) {
+										.contains(relationshipChange.getDestinationOrRawValue())) {
 									relationshipChange.setInferredNotStated(true);
 								}
 							}
@@ -713,16 +708,21 @@ public class ClassificationService {
 			}
 		}
 
-		if (!relationshipChanges.isEmpty()) {
-			logger.info("Saving {} classification relationship changes total.", numberFormat.format(relationshipChanges.size()));
-			int chunkSize = 10_000;
-			List<List<RelationshipChange>> partition = Lists.partition(relationshipChanges, chunkSize);
-			for (List<RelationshipChange> changes : partition) {
-				if (relationshipChanges.size() > chunkSize) {
-					logger.info("Saving batch of {} classification relationship changes.", numberFormat.format(changes.size()));
-				}
-				relationshipChangeRepository.saveAll(changes);
+		joinExecutor.runAll(Lists.partition(relationshipChanges, RELATIONSHIP_CHANGE_SAVE_BATCH).stream()
+				.map(batch -> (Runnable) () -> relationshipChangeRepository.saveAll(batch))
+				.toArray(Runnable[]::new));
+	}
+
+	// Splits an RF2 line into the given array without a regular expression. Fields beyond the length of the array are ignored.
+	static void splitTabs(String line, String[] values) {
+		int fieldStart = 0;
+		for (int i = 0; i < values.length; i++) {
+			int fieldEnd = line.indexOf('\t', fieldStart);
+			if (fieldEnd == -1) {
+				fieldEnd = line.length();
 			}
+			values[i] = fieldStart <= line.length() ? line.substring(fieldStart, fieldEnd) : null;
+			fieldStart = fieldEnd + 1;
 		}
 	}
 
@@ -0,0 +1,290 @@
+package org.snomed.snowstorm.core.data.services.commitlistener;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.CommitListener;
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Commit;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.jobs.CommitListenerOutboxEntry;
+import org.snomed.snowstorm.core.data.repositories.jobs.CommitListenerOutboxEntryRepository;
+import org.snomed.snowstorm.core.data.services.JoinExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.elasticsearch.index.query.QueryBuilders.*;
+
+/**
+ * Runs the commit listeners in the order given by their dependencies.
+ * A listener may only depend on listeners added before it. Listeners whose dependencies have all completed run at the same time.
+ * The time taken by each listener is recorded in the "snowstorm.commit.listener" timer, tagged with the listener name and phase.
+ * <p>
+ * Deferred listeners prepare their work within the commit. The work is stored in the outbox index and processed in the background
+ * once the commit has completed, so the commit does not wait for it. Work is discarded if the commit was rolled back.
+ */
+@Service
+public class CommitListenerPipeline implements CommitListener {
+
+	public static final String LISTENER_TIMER = "snowstorm.commit.listener";
+
+	// A commit which has not completed this long after its outbox entry was written, and no longer holds the branch lock, was rolled back
+	private static final long ROLLBACK_GRACE_PERIOD_MILLIS = 5 * 60 * 1_000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 10 * 60 * 1_000;
+	private static final int OUTBOX_BATCH_SIZE = 100;
+
+	@Autowired
+	private JoinExecutor joinExecutor;
+
+	@Autowired
+	private CommitListenerOutboxEntryRepository outboxRepository;
+
+	@Autowired
+	private ElasticsearchRestTemplate elasticsearchTemplate;
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${commit-listeners.outbox.poll-interval}")
+	private long outboxPollIntervalMillis;
+
+	// Listeners grouped by the number of dependencies which must run before them, added at startup only
+	private final List<List<PipelineListener>> levels = new ArrayList<>();
+	private final Map<String, PipelineListener> listeners = new HashMap<>();
+	private final Map<String, DeferredCommitListener<?>> deferredListeners = new HashMap<>();
+	private final Map<String, Long> listenerRetryTimes = new HashMap<>();
+	private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+	private ScheduledExecutorService outboxPoller;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@PostConstruct
+	public void startOutboxPolling() {
+		outboxPoller = Executors.newSingleThreadScheduledExecutor();
+		outboxPoller.scheduleWithFixedDelay(() -> {
+			try {
+				processOutbox();
+			} catch (RuntimeException e) {
+				logger.error("Failed to process the commit listener outbox.", e);
+			}
+		}, outboxPollIntervalMillis, outboxPollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdownOutboxPolling() {
+		outboxPoller.shutdownNow();
+	}
+
+	/**
+	 * Adds a listener which runs within the commit once all the named listeners have completed.
+	 */
+	public CommitListenerPipeline add(String name, CommitListener listener, String... dependsOn) {
+		int level = 0;
+		for (String dependency : dependsOn) {
+			PipelineListener dependencyListener = listeners.get(dependency);
+			if (dependencyListener == null) {
+				throw new IllegalArgumentException("Commit listener '" + name + "' depends on '" + dependency + "' which has not been added.");
+			}
+			level = Math.max(level, dependencyListener.level + 1);
+		}
+		if (listeners.containsKey(name)) {
+			throw new IllegalArgumentException("Commit listener '" + name + "' has already been added.");
+		}
+		PipelineListener pipelineListener = new PipelineListener(name, listener, level);
+		listeners.put(name, pipelineListener);
+		while (levels.size() <= level) {
+			levels.add(new ArrayList<>());
+		}
+		levels.get(level).add(pipelineListener);
+		return this;
+	}
+
+	/**
+	 * Adds a listener which prepares its work within the commit once all the named listeners have completed,
+	 * and processes the work after the commit has completed.
+	 */
+	public <T> CommitListenerPipeline addDeferred(String name, DeferredCommitListener<T> listener, String... dependsOn) {
+		add(name, commit -> {
+			T work = listener.prepare(commit);
+			if (work != null) {
+				try {
+					outboxRepository.save(new CommitListenerOutboxEntry(name, commit.getBranch().getPath(), commit.getTimepoint().getTime(),
+							objectMapper.writeValueAsString(work)));
+				} catch (JsonProcessingException e) {
+					throw new IllegalStateException("Failed to serialise work for deferred commit listener " + name + ".", e);
+				}
+			}
+		}, dependsOn);
+		deferredListeners.put(name, listener);
+		return this;
+	}
+
+	@Override
+	public void preCommitCompletion(Commit commit) throws IllegalStateException {
+		// Some listeners use the user of the commit, this is passed to the listeners running on other threads
+		SecurityContext securityContext = SecurityContextHolder.getContext();
+		for (List<PipelineListener> level : levels) {
+			joinExecutor.runAll(level.stream()
+					.map(listener -> (Runnable) () -> runListener(listener, commit, securityContext))
+					.toArray(Runnable[]::new));
+		}
+	}
+
+	private void runListener(PipelineListener pipelineListener, Commit commit, SecurityContext securityContext) {
+		SecurityContext callerContext = SecurityContextHolder.getContext();
+		SecurityContextHolder.setContext(securityContext);
+		long start = System.currentTimeMillis();
+		try {
+			pipelineListener.listener.preCommitCompletion(commit);
+		} finally {
+			long millisTaken = System.currentTimeMillis() - start;
+			meterRegistry.timer(LISTENER_TIMER, "listener", pipelineListener.name, "phase", "commit").record(millisTaken, TimeUnit.MILLISECONDS);
+			logger.debug("Commit listener {} took {} ms on {}.", pipelineListener.name, millisTaken, commit.getBranch().getPath());
+			SecurityContextHolder.setContext(callerContext);
+		}
+	}
+
+	/**
+	 * Processes the work of deferred listeners for commits which have completed. Called in the background, also useful in tests.
+	 * Work is passed to each listener in batches. When a batch fails the listener is not called again until the retry delay has passed,
+	 * so a listener which depends on an unavailable service is not called for every poll while work builds up in the outbox.
+	 */
+	public synchronized void processOutbox() {
+		if (deferredListeners.isEmpty()) {
+			return;
+		}
+		boolean fullPageProcessed;
+		do {
+			elasticsearchTemplate.indexOps(CommitListenerOutboxEntry.class).refresh();
+			long now = System.currentTimeMillis();
+			List<CommitListenerOutboxEntry> entries = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+							.withQuery(boolQuery().must(rangeQuery(CommitListenerOutboxEntry.Fields.NEXT_ATTEMPT).lte(now)))
+							.withPageable(PageRequest.of(0, OUTBOX_BATCH_SIZE, Sort.by(CommitListenerOutboxEntry.Fields.CREATED)))
+							.build(), CommitListenerOutboxEntry.class)
+					.stream().map(SearchHit::getContent).collect(Collectors.toList());
+
+			// Work of completed commits, grouped by listener in the order the commits were made
+			Map<String, List<CommitListenerOutboxEntry>> completedWork = new LinkedHashMap<>();
+			int processed = 0;
+			for (CommitListenerOutboxEntry entry : entries) {
+				if (!deferredListeners.containsKey(entry.getListener())) {
+					logger.warn("No deferred commit listener named {} for outbox entry {}, leaving in outbox.", entry.getListener(), entry.getId());
+					continue;
+				}
+				if (listenerRetryTimes.getOrDefault(entry.getListener(), 0L) > now) {
+					continue;
+				}
+				CommitState commitState = getCommitState(entry, now);
+				if (commitState == CommitState.COMPLETED) {
+					completedWork.computeIfAbsent(entry.getListener(), name -> new ArrayList<>()).add(entry);
+				} else if (commitState == CommitState.ROLLED_BACK) {
+					logger.info("Commit on {} at {} was rolled back, discarding work of deferred commit listener {}.",
+							entry.getBranchPath(), entry.getCommitTimepoint(), entry.getListener());
+					outboxRepository.delete(entry);
+					processed++;
+				}
+			}
+
+			for (Map.Entry<String, List<CommitListenerOutboxEntry>> listenerWork : completedWork.entrySet()) {
+				if (processBatch(listenerWork.getKey(), listenerWork.getValue())) {
+					processed += listenerWork.getValue().size();
+				}
+			}
+			fullPageProcessed = entries.size() == OUTBOX_BATCH_SIZE && processed > 0;
+		} while (fullPageProcessed);
+	}
+
+	private boolean processBatch(String listenerName, List<CommitListenerOutboxEntry> entries) {
+		DeferredCommitListener<?> listener = deferredListeners.get(listenerName);
+		long start = System.currentTimeMillis();
+		try {
+			processWork(listener, entries);
+			outboxRepository.deleteAll(entries);
+			listenerRetryTimes.remove(listenerName);
+			return true;
+		} catch (Exception e) {
+			int attempts = entries.stream().mapToInt(CommitListenerOutboxEntry::getAttempts).max().orElse(0) + 1;
+			long retryDelay = Math.min(outboxPollIntervalMillis << Math.min(attempts, 20), MAX_RETRY_DELAY_MILLIS);
+			long nextAttempt = System.currentTimeMillis() + retryDelay;
+			for (CommitListenerOutboxEntry entry : entries) {
+				entry.setAttempts(entry.getAttempts() + 1);
+				entry.setNextAttempt(nextAttempt);
+			}
+			outboxRepository.saveAll(entries);
+			listenerRetryTimes.put(listenerName, nextAttempt);
+			logger.warn("Deferred commit listener {} failed to process {} commits, attempt {}. Will retry in {} seconds.",
+					listenerName, entries.size(), attempts, retryDelay / 1_000, e);
+			return false;
+		} finally {
+			meterRegistry.timer(LISTENER_TIMER, "listener", listenerName, "phase", "deferred")
+					.record(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private <T> void processWork(DeferredCommitListener<T> listener, List<CommitListenerOutboxEntry> entries) throws Exception {
+		List<T> work = new ArrayList<>();
+		for (CommitListenerOutboxEntry entry : entries) {
+			work.add(objectMapper.readValue(entry.getWork(), listener.getWorkType()));
+		}
+		listener.commitsCompleted(work);
+	}
+
+	private CommitState getCommitState(CommitListenerOutboxEntry entry, long now) {
+		// A completed commit creates a branch version with the commit timepoint as its head
+		long versions = elasticsearchTemplate.count(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(termQuery(Branch.Fields.PATH, entry.getBranchPath()))
+						.must(termQuery("head", entry.getCommitTimepoint())))
+				.build(), Branch.class);
+		if (versions > 0) {
+			return CommitState.COMPLETED;
+		}
+		if (now - entry.getCreated() < ROLLBACK_GRACE_PERIOD_MILLIS) {
+			return CommitState.RUNNING;
+		}
+		Branch latest = branchService.findLatest(entry.getBranchPath());
+		if (latest != null && latest.isLocked() && latest.getHead().getTime() < entry.getCommitTimepoint()) {
+			return CommitState.RUNNING;
+		}
+		return CommitState.ROLLED_BACK;
+	}
+
+	private enum CommitState {
+		RUNNING, COMPLETED, ROLLED_BACK
+	}
+
+	private static final class PipelineListener {
+
+		private final String name;
+		private final CommitListener listener;
+		private final int level;
+
+		private PipelineListener(String name, CommitListener listener, int level) {
+			this.name = name;
+			this.listener = listener;
+			this.level = level;
+		}
+	}
+}
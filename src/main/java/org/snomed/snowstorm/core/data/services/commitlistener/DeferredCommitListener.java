@@ -0,0 +1,41 @@
+package org.snomed.snowstorm.core.data.services.commitlistener;
+
+import io.kaicode.elasticvc.domain.Commit;
+import org.snomed.snowstorm.core.data.services.ServiceException;
+
+import java.util.List;
+
+/**
+ * A commit listener with work which does not need to be done before the commit completes.
+ * The work is prepared within the commit, stored in the commit listener outbox and processed after the commit has completed.
+ *
+ * @param <T> Type of the work, must be serialisable to JSON.
+ */
+public interface DeferredCommitListener<T> {
+
+	/**
+	 * Called within the commit, while the branch is locked.
+	 * @return the work to do once the commit has completed, or null if there is nothing to do.
+	 */
+	T prepare(Commit commit) throws IllegalStateException;
+
+	/**
+	 * Called once the commit has completed. Work is processed at least once so this may be called again with the same work,
+	 * for example if Snowstorm stops before the outbox entry is deleted.
+	 * @throws ServiceException if the work should be retried later.
+	 */
+	void commitCompleted(T work) throws ServiceException;
+
+	/**
+	 * Called with the work of several completed commits, in the order the commits were made.
+	 * Override to process the work together. If this throws an exception all the work is retried later.
+	 */
+	default void commitsCompleted(List<T> work) throws ServiceException {
+		for (T commitWork : work) {
+			commitCompleted(commitWork);
+		}
+	}
+
+	Class<T> getWorkType();
+
+}
@@ -1,25 +1,33 @@
 package org.snomed.snowstorm.core.data.services.identifier;
 
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Pool of reserved identifiers for one namespace and partition. Identifiers are taken without locking.
+ * The count of available identifiers is claimed before identifiers are taken from the queue and only raised after identifiers are added,
+ * so a claimed quantity is always in the queue.
+ */
 public class IdentifierCache {
-	
+
 	private final int namespaceId;
 	private final String partitionId;
 	private final int maxCapacity;
-	private boolean topUpInProgress = false;
-	private boolean isLocked = false;
-	
-	private Deque<Long> identifiers = new ConcurrentLinkedDeque<>();
-	
+	private final AtomicBoolean topUpInProgress = new AtomicBoolean();
+
+	private final Queue<Long> identifiers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger available = new AtomicInteger();
+
 	IdentifierCache(int namespaceId, String partitionId, int maxCapacity) {
 		this.namespaceId = namespaceId;
 		this.partitionId = partitionId;
 		this.maxCapacity = maxCapacity;
 	}
-	
+
 	public int getNamespaceId() {
 		return namespaceId;
 	}
@@ -29,39 +37,51 @@ public class IdentifierCache {
 	public int getMaxCapacity() {
 		return maxCapacity;
 	}
-	
+
 	public int identifiersAvailable() {
-		return identifiers.size();
+		return available.get();
 	}
-	
-	Long getIdentifier() {
-		return identifiers.pop();
+
+	/**
+	 * Takes all of the requested identifiers or none of them.
+	 * @return the identifiers taken, or null if fewer than the quantity are available.
+	 */
+	List<Long> takeIdentifiers(int quantity) {
+		int availableBefore;
+		do {
+			availableBefore = available.get();
+			if (availableBefore < quantity) {
+				return null;
+			}
+		} while (!available.compareAndSet(availableBefore, availableBefore - quantity));
+
+		List<Long> taken = new ArrayList<>(quantity);
+		for (int i = 0; i < quantity; i++) {
+			taken.add(identifiers.poll());
+		}
+		return taken;
 	}
 
 	public boolean isTopUpInProgress() {
-		return topUpInProgress;
+		return topUpInProgress.get();
+	}
+
+	/**
+	 * @return true if this caller should top up the cache, false if a top-up is already in progress.
+	 */
+	boolean startTopUp() {
+		return topUpInProgress.compareAndSet(false, true);
 	}
 
-	public synchronized void setTopUpInProgress(boolean topUpInProgress) {
-		this.topUpInProgress = topUpInProgress;
+	void endTopUp() {
+		topUpInProgress.set(false);
 	}
 
 	public void topUp(List<Long> newIdentifiers) {
 		identifiers.addAll(newIdentifiers);
+		available.addAndGet(newIdentifiers.size());
 	}
 
-	public boolean lock() {
-		if (isLocked) {
-			return false;
-		} 
-		isLocked = true;
-		return true;
-	}
-	
-	public void unlock() {
-		isLocked = false;
-	}
-	
 	@Override
 	public String toString() {
 		return "IdCache(" + namespaceId + " - " + partitionId + ")";
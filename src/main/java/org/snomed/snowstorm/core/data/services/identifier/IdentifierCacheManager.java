@@ -3,7 +3,6 @@ package org.snomed.snowstorm.core.data.services.identifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snomed.snowstorm.core.data.domain.ComponentType;
-import org.snomed.snowstorm.core.data.services.RuntimeServiceException;
 import org.snomed.snowstorm.core.data.services.ServiceException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -11,30 +10,32 @@ import org.springframework.beans.factory.annotation.Value;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class IdentifierCacheManager implements Runnable {
 
 	// Time between successive polls in minutes
 	private int pollingIntervalMinutes = 10;
 
-	// Wait max to have access to cache
-	private int lockWaitLimitMilliseconds = 5 * 1000;
-	private int lockRetryMilliseconds = 200;
-
-	// Proportion below which cache will be topped up on next poll
+	// Proportion below which cache will be topped up, in the background after a request or on next poll
 	final static double topUpLevel = 0.7;
 
-	// Proportion below which cache will be topped up during next bulk request
-	private final static double criticalLevel = 0.1;
-
 	@Autowired
 	private IdentifierSource identifierSource;
 
 	@Value("${cis.cache.concept-prefetch-count}")
 	private int conceptIdPrefetchCount;
 
-	// Separate cache for each namespace/partition combination configured.
-	private Set<IdentifierCache> identifierCaches = Collections.synchronizedSet(new HashSet<>());
+	@Value("${cis.cache.top-up-threads}")
+	private int topUpThreads;
+
+	// Separate cache for each namespace/partition combination configured, keyed by namespace and partition.
+	private final Map<String, IdentifierCache> identifierCaches = new ConcurrentHashMap<>();
+	// Each cache has at most one top-up scheduled at a time
+	private ExecutorService topUpExecutor;
 	private Thread cacheDaemon;
 	private boolean stayAlive = true;
 	boolean isSleeping = false;
@@ -42,7 +43,11 @@ public class IdentifierCacheManager implements Runnable {
 	private static final Logger logger = LoggerFactory.getLogger(IdentifierCacheManager.class);
 
 	public void addCache(int namespaceId, String partitionId, int quantity) {
-		identifierCaches.add(new IdentifierCache(namespaceId, partitionId, quantity));
+		identifierCaches.putIfAbsent(getCacheKey(namespaceId, partitionId), new IdentifierCache(namespaceId, partitionId, quantity));
+	}
+
+	private static String getCacheKey(int namespaceId, String partitionId) {
+		return namespaceId + "-" + partitionId;
 	}
 
 	@PostConstruct
@@ -50,6 +55,7 @@ public class IdentifierCacheManager implements Runnable {
 		if (cacheDaemon != null) {
 			throw new IllegalStateException("Unable to start a second Identifier cache manager daemon");
 		}
+		topUpExecutor = Executors.newFixedThreadPool(topUpThreads);
 		cacheDaemon = new Thread(this, "IdentifierCacheManagerDaemon");
 		cacheDaemon.start();
 	}
@@ -57,6 +63,7 @@ public class IdentifierCacheManager implements Runnable {
 	@PreDestroy
 	public void shutdownPolling() {
 		stopBackgroundTask();
+		topUpExecutor.shutdownNow();
 	}
 
 	public void run() {
@@ -86,7 +93,7 @@ public class IdentifierCacheManager implements Runnable {
 	}
 	
 	public boolean topUpInProgress() {
-		for (IdentifierCache thisCache : identifierCaches) {
+		for (IdentifierCache thisCache : identifierCaches.values()) {
 			if (thisCache.isTopUpInProgress()) {
 				return true;
 			}
@@ -97,8 +104,8 @@ public class IdentifierCacheManager implements Runnable {
 	void checkTopUpRequired() {
 		try {
 			//Work through each cache and see if number of identifiers is below top up level
-			for (IdentifierCache thisCache : identifierCaches) {
-				if ((double)thisCache.identifiersAvailable() < (double)thisCache.getMaxCapacity() * topUpLevel) {
+			for (IdentifierCache thisCache : identifierCaches.values()) {
+				if (isBelowTopUpLevel(thisCache)) {
 					topUp(thisCache, 0);
 				}
 			}
@@ -107,12 +114,20 @@ public class IdentifierCacheManager implements Runnable {
 		}
 	}
 
+	private static boolean isBelowTopUpLevel(IdentifierCache cache) {
+		return (double)cache.identifiersAvailable() < (double)cache.getMaxCapacity() * topUpLevel;
+	}
+
 	void topUp(IdentifierCache cache, int extraRequired) {
-		if (cache.isTopUpInProgress()) {
+		if (!cache.startTopUp()) {
 			logger.warn("Top-up already in progress for {}", cache);
 			return;
 		}
-		cache.setTopUpInProgress(true);
+		doTopUp(cache, extraRequired);
+	}
+
+	// Caller must have started the top-up
+	private void doTopUp(IdentifierCache cache, int extraRequired) {
 		int quantityRequired = cache.getMaxCapacity() - cache.identifiersAvailable() + extraRequired;
 		try {
 			logger.info("Topping up {} by {}", cache, quantityRequired);
@@ -122,7 +137,19 @@ public class IdentifierCacheManager implements Runnable {
 		} catch (Exception e) {
 			logger.error("Failed to top-up {} with {} identifiers ",cache, quantityRequired,e);
 		} finally {
-			cache.setTopUpInProgress(false);
+			cache.endTopUp();
+		}
+	}
+
+	private void scheduleTopUp(IdentifierCache cache) {
+		// The flag is set before the task is queued so that only one top-up is scheduled per cache
+		if (cache.startTopUp()) {
+			try {
+				topUpExecutor.execute(() -> doTopUp(cache, 0));
+			} catch (RejectedExecutionException e) {
+				cache.endTopUp();
+				logger.warn("Unable to schedule top-up of {}", cache, e);
+			}
 		}
 	}
 
@@ -132,48 +159,45 @@ public class IdentifierCacheManager implements Runnable {
 		if (quantityRequired == 0) {
 			return;
 		}
-		
+		idBlock.addAll(ComponentType.getTypeFromPartition(partitionId), getIdentifiers(quantityRequired, namespaceId, partitionId));
+	}
+
+	/**
+	 * Takes identifiers from the cache for this namespace/partition without waiting for it to be topped up.
+	 * If the cache does not have enough the identifiers are reserved directly from the store.
+	 * A cache that falls below the top up level is topped up in the background.
+	 */
+	List<Long> getIdentifiers(int quantityRequired, int namespaceId, String partitionId) throws ServiceException {
+		if (quantityRequired == 0) {
+			return Collections.emptyList();
+		}
+
 		//Do we have a cache for this namespace/partition?
 		IdentifierCache cache = getCache(namespaceId, partitionId);
 		ComponentType componentType = ComponentType.getTypeFromPartition(partitionId);
-		boolean requestSatisfied = false;
-		boolean setupNewCache = false;
+		List<Long> identifiers = null;
 		if (cache != null) {
-			//Does cache need topping up anyway?
-			if (cache.identifiersAvailable() == 0 || 
-					( cache.identifiersAvailable() < (double)cache.getMaxCapacity() * criticalLevel 
-							&& quantityRequired > 5)
-					){
-				topUp(cache, quantityRequired);
-			}
-
-			//Does it have enough available?
-			if (cache.identifiersAvailable() > quantityRequired) {
-				waitForLock(cache);
-				for (int i=0; i < quantityRequired; i++) {
-					idBlock.addId(componentType, cache.getIdentifier());
-				}
-				cache.unlock();
-				requestSatisfied = true;
+			identifiers = cache.takeIdentifiers(quantityRequired);
+			if (isBelowTopUpLevel(cache)) {
+				scheduleTopUp(cache);
 			}
-		} else {
-			//If no cache available & not requesting for International (as already prefetched),
-			//then prefetch additional identifiers for subsequent requests.
-			setupNewCache = true;
 		}
-		
-		if (!requestSatisfied) {
+
+		if (identifiers == null) {
 			//If we don't have the right cache, or it doesn't have sufficient availability, then call storage directly
-			idBlock.addAll(componentType, identifierSource.reserveIds(namespaceId, partitionId, quantityRequired));
+			identifiers = identifierSource.reserveIds(namespaceId, partitionId, quantityRequired);
 		}
-		
-		if (setupNewCache) {
+
+		if (cache == null) {
+			//If no cache available & not requesting for International (as already prefetched),
+			//then prefetch additional identifiers for subsequent requests.
 			//Do this after the attempt to reserveIds because if that fails, we don't want
 			//to set up a cache that would then continue to fail every N seconds.
 			addCache(namespaceId, partitionId, determinePrefetchQuantity(componentType));
 		}
+		return identifiers;
 	}
-	
+
 	private int determinePrefetchQuantity(ComponentType componentType) {
 		switch (componentType) {
 			case Concept:
@@ -187,32 +211,8 @@ public class IdentifierCacheManager implements Runnable {
 		}
 	}
 
-	private void waitForLock(IdentifierCache cache) {
-		boolean lockedSuccessfully = false;
-		int totalWaitTime = 0;
-		do {
-			lockedSuccessfully = cache.lock();
-			if (!lockedSuccessfully) {
-				if (totalWaitTime > lockWaitLimitMilliseconds) {
-					throw new RuntimeServiceException("Lock wait limit exceeded on identifier cache " + cache);
-				}
-				try {
-					Thread.sleep(lockRetryMilliseconds);
-				} catch (InterruptedException e) {
-					throw new RuntimeServiceException("Lock wait interrupted",e);
-				}
-				totalWaitTime += lockRetryMilliseconds;
-			}
-		} while (!lockedSuccessfully);
-	}
-
 	IdentifierCache getCache(int namespaceId, String partitionId) {
-		for (IdentifierCache thisCache : identifierCaches) {
-			if (thisCache.getPartitionId().equals(partitionId) && thisCache.getNamespaceId() == namespaceId) {
-				return thisCache;
-			}
-		}
-		return null;
+		return identifierCaches.get(getCacheKey(namespaceId, partitionId));
 	}
 
 	public void stopBackgroundTask() {
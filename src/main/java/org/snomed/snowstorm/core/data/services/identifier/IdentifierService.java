@@ -16,7 +16,13 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 @Service
@@ -37,6 +43,9 @@ public class IdentifierService {
 	@Value("${cis.registration.chunkSize}")
 	private int registrationChunkSize;
 
+	@Value("${cis.reservation-threads}")
+	private int reservationThreads;
+
 	@Autowired
 	private IdentifierCacheManager cacheManager;
 	
@@ -46,6 +55,9 @@ public class IdentifierService {
 	@Autowired
 	private IdentifiersForRegistrationRepository identifiersForRegistrationRepository;
 
+	// Bounded without risk of deadlock because reservations are only submitted from request threads, never from a task running on this pool
+	private ExecutorService reservationExecutor;
+
 	private static final Logger logger = LoggerFactory.getLogger(IdentifierService.class);
 
 	public static boolean isConceptId(String sctid) {
@@ -91,17 +103,55 @@ public class IdentifierService {
 	private IdentifierReservedBlock getReservedBlock(int namespace, int conceptIds, int descriptionIds, int relationshipIds) throws ServiceException {
 		String partition_part1 = namespace == 0 ? PARTITION_PART1_INTERNATIONAL : PARTITION_PART1_EXTENSION;
 		IdentifierReservedBlock idBlock = new IdentifierReservedBlock(namespace);
-		//TODO Run these in parallel
+		// Each partition has its own cache so the three reservations are made in parallel
+		Future<List<Long>> conceptIdsFuture = reserveInBackground(conceptIds, namespace, partition_part1 + PARTITION_PART2_CONCEPT);
+		Future<List<Long>> descriptionIdsFuture = reserveInBackground(descriptionIds, namespace, partition_part1 + PARTITION_PART2_DESCRIPTION);
+		Future<List<Long>> relationshipIdsFuture = reserveInBackground(relationshipIds, namespace, partition_part1 + PARTITION_PART2_RELATIONSHIP);
 		try {
-			cacheManager.populateIdBlock(idBlock, conceptIds, namespace, partition_part1 + PARTITION_PART2_CONCEPT);
-			cacheManager.populateIdBlock(idBlock, descriptionIds, namespace, partition_part1 + PARTITION_PART2_DESCRIPTION);
-			cacheManager.populateIdBlock(idBlock, relationshipIds, namespace, partition_part1 + PARTITION_PART2_RELATIONSHIP);
+			idBlock.addAll(ComponentType.Concept, getReserved(conceptIdsFuture));
+			idBlock.addAll(ComponentType.Description, getReserved(descriptionIdsFuture));
+			idBlock.addAll(ComponentType.Relationship, getReserved(relationshipIdsFuture));
 		} catch (ServiceException e) {
+			conceptIdsFuture.cancel(true);
+			descriptionIdsFuture.cancel(true);
+			relationshipIdsFuture.cancel(true);
 			throw new ServiceException ("Unable to obtain SCTIDs", e);
 		}
 		return idBlock;
 	}
 
+	private Future<List<Long>> reserveInBackground(int quantity, int namespace, String partitionId) {
+		return reservationExecutor.submit(() -> cacheManager.getIdentifiers(quantity, namespace, partitionId));
+	}
+
+	private List<Long> getReserved(Future<List<Long>> future) throws ServiceException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while reserving SCTIDs", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ServiceException) {
+				throw (ServiceException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ServiceException("Failed to reserve SCTIDs", cause);
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		reservationExecutor = Executors.newFixedThreadPool(reservationThreads);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		reservationExecutor.shutdownNow();
+	}
+
 	public void persistAssignedIdsForRegistration(IdentifierReservedBlock reservedBlock) {
 		for (ComponentType componentType : ComponentType.values()) {
 			Collection<Long> idsAssigned = reservedBlock.getIdsAssigned(componentType);
@@ -0,0 +1,170 @@
+package org.snomed.snowstorm.core.data.services.identifier;
+
+import com.google.common.collect.Iterables;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.*;
+import org.snomed.snowstorm.core.data.domain.jobs.IdentifierSequence;
+import org.snomed.snowstorm.core.data.services.ServiceException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.IndexQuery;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+
+/**
+ * Generates SNOMED Component identifiers locally by counting up from the last item identifier used in each namespace and partition.
+ * The last item identifier is stored before identifiers are returned, so a crash can only leave a gap.
+ * The store is checked for existing identifiers, for example random identifiers from the local random source or imported content.
+ * The candidate identifiers are checked with exact terms queries, the identifier fields are keywords so a range query would be lexicographic.
+ */
+public class LocalSequentialIdentifierSource implements IdentifierSource {
+
+	// SCTIDs have at most 18 digits including the partition and check digit, and the namespace when not international
+	private static final int MAX_INTERNATIONAL_ITEM_ID_LENGTH = 15;
+	private static final int MAX_EXTENSION_ITEM_ID_LENGTH = 8;
+
+	// SCTIDs have at least 6 digits
+	private static final long MIN_INTERNATIONAL_ITEM_ID = 100;
+
+	private static final int MAX_CONFLICT_RETRIES = 10;
+
+	private static final int EXISTING_ID_QUERY_SIZE = 10_000;
+
+	private final ElasticsearchRestTemplate elasticsearchTemplate;
+	private final long firstItemId;
+	private final Map<String, Object> sequenceLocks = new ConcurrentHashMap<>();
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalSequentialIdentifierSource.class);
+
+	public LocalSequentialIdentifierSource(ElasticsearchRestTemplate elasticsearchTemplate, long firstItemId) {
+		this.elasticsearchTemplate = elasticsearchTemplate;
+		this.firstItemId = firstItemId;
+	}
+
+	@Override
+	public List<Long> reserveIds(int namespaceId, String partitionId, int quantity) throws ServiceException {
+		String namespace = namespaceId == 0 ? "" : namespaceId + "";
+		List<Long> newIdentifiers = new LongArrayList(quantity);
+		// Reservations for the same sequence are made one at a time in this instance, other instances are caught by the optimistic locking
+		synchronized (sequenceLocks.computeIfAbsent(IdentifierSequence.getId(namespaceId, partitionId), key -> new Object())) {
+			while (newIdentifiers.size() < quantity) {
+				long[] itemIdRange = reserveItemIdRange(namespaceId, partitionId, quantity - newIdentifiers.size());
+				Set<Long> existingItemIds = findExistingItemIds(itemIdRange[0], itemIdRange[1], namespace, partitionId);
+				for (long itemId = itemIdRange[0]; itemId <= itemIdRange[1]; itemId++) {
+					if (!existingItemIds.contains(itemId)) {
+						newIdentifiers.add(toSctid(itemId, namespace, partitionId));
+					}
+				}
+				if (!existingItemIds.isEmpty()) {
+					logger.info("Skipped {} existing identifiers in namespace {} partition {}.", existingItemIds.size(), namespaceId, partitionId);
+				}
+			}
+		}
+		return newIdentifiers;
+	}
+
+	// Moves the stored sequence on and returns the first and last item identifiers of the range reserved
+	private long[] reserveItemIdRange(int namespaceId, String partitionId, int quantity) throws ServiceException {
+		long maxItemId = (long) Math.pow(10, namespaceId == 0 ? MAX_INTERNATIONAL_ITEM_ID_LENGTH : MAX_EXTENSION_ITEM_ID_LENGTH) - 1;
+		for (int attempt = 0; attempt < MAX_CONFLICT_RETRIES; attempt++) {
+			IdentifierSequence sequence = elasticsearchTemplate.get(IdentifierSequence.getId(namespaceId, partitionId), IdentifierSequence.class);
+			long first = sequence != null ? sequence.getLastItemId() + 1 : Math.max(firstItemId, namespaceId == 0 ? MIN_INTERNATIONAL_ITEM_ID : 1);
+			if (first > maxItemId) {
+				throw new ServiceException("No identifiers left in namespace " + namespaceId + " partition " + partitionId + ".");
+			}
+			long last = Math.min(first + quantity - 1, maxItemId);
+			try {
+				if (sequence == null) {
+					IndexQuery createQuery = new IndexQueryBuilder()
+							.withId(IdentifierSequence.getId(namespaceId, partitionId))
+							.withObject(new IdentifierSequence(namespaceId, partitionId, last))
+							.withOpType(IndexQuery.OpType.CREATE)
+							.build();
+					elasticsearchTemplate.index(createQuery, elasticsearchTemplate.getIndexCoordinatesFor(IdentifierSequence.class));
+				} else {
+					sequence.setLastItemId(last);
+					elasticsearchTemplate.save(sequence);
+				}
+				return new long[]{first, last};
+			} catch (OptimisticLockingFailureException e) {
+				logger.debug("Identifier sequence {} was updated concurrently, retrying.", IdentifierSequence.getId(namespaceId, partitionId));
+			}
+		}
+		throw new ServiceException("Failed to reserve identifiers in namespace " + namespaceId + " partition " + partitionId + " because of concurrent updates.");
+	}
+
+	private static long toSctid(long itemId, String namespace, String partitionId) {
+		return Long.parseLong(toSctidString(itemId, namespace, partitionId));
+	}
+
+	private static String toSctidString(long itemId, String namespace, String partitionId) {
+		String sctidWithoutCheck = itemId + namespace + partitionId;
+		return sctidWithoutCheck + VerhoeffCheck.calculateChecksum(sctidWithoutCheck, 0, false);
+	}
+
+	// Finds the item identifiers in the range which are already used in any branch
+	private Set<Long> findExistingItemIds(long firstItemId, long lastItemId, String namespace, String partitionId) {
+		switch (partitionId) {
+			case "00":
+			case "10":
+				return findExistingItemIds(firstItemId, lastItemId, namespace, partitionId, Concept.class, Concept.Fields.CONCEPT_ID, Concept::getConceptId);
+			case "01":
+			case "11":
+				return findExistingItemIds(firstItemId, lastItemId, namespace, partitionId, Description.class, Description.Fields.DESCRIPTION_ID, Description::getDescriptionId);
+			case "02":
+			case "12":
+				return findExistingItemIds(firstItemId, lastItemId, namespace, partitionId, Relationship.class, Relationship.Fields.RELATIONSHIP_ID, Relationship::getRelationshipId);
+			case "06":
+				// Postcoordinated expression identifiers are only stored as the referenced component of the expression reference set members
+				return findExistingItemIds(firstItemId, lastItemId, namespace, partitionId, ReferenceSetMember.class, ReferenceSetMember.Fields.REFERENCED_COMPONENT_ID,
+						ReferenceSetMember::getReferencedComponentId);
+			default:
+				return new LongOpenHashSet();
+		}
+	}
+
+	private <T> Set<Long> findExistingItemIds(long firstItemId, long lastItemId, String namespace, String partitionId,
+			Class<T> componentClass, String idField, Function<T, String> idGetter) {
+
+		Map<String, Long> candidateItemIds = new HashMap<>();
+		for (long itemId = firstItemId; itemId <= lastItemId; itemId++) {
+			candidateItemIds.put(toSctidString(itemId, namespace, partitionId), itemId);
+		}
+		Set<Long> existingItemIds = new LongOpenHashSet();
+		for (List<String> candidateBatch : Iterables.partition(candidateItemIds.keySet(), EXISTING_ID_QUERY_SIZE)) {
+			NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+					.withQuery(termsQuery(idField, candidateBatch))
+					.withFields(idField)
+					.withPageable(LARGE_PAGE);
+			try (SearchHitsIterator<T> stream = elasticsearchTemplate.searchForStream(queryBuilder.build(), componentClass)) {
+				stream.forEachRemaining(hit -> {
+					Long itemId = candidateItemIds.get(idGetter.apply(hit.getContent()));
+					if (itemId != null) {
+						existingItemIds.add(itemId);
+					}
+				});
+			}
+		}
+		return existingItemIds;
+	}
+
+	@Override
+	public void registerIds(int namespace, Collection<Long> idsAssigned) {
+		// Not required for this implementation.
+	}
+}
@@ -0,0 +1,33 @@
+package org.snomed.snowstorm.core.data.services.pojo;
+
+import org.snomed.snowstorm.core.data.domain.UnreleasedComponent;
+
+import java.util.*;
+
+/**
+ * The identifiers of the unreleased component journal of a branch, grouped by component type and reference set.
+ */
+public class UnreleasedComponentIds {
+
+	private final Map<String, Set<String>> idsByType = new HashMap<>();
+	private final Map<String, Set<String>> memberIdsByRefset = new HashMap<>();
+
+	public void add(UnreleasedComponent unreleasedComponent) {
+		idsByType.computeIfAbsent(unreleasedComponent.getComponentType(), type -> new HashSet<>()).add(unreleasedComponent.getComponentId());
+		if (unreleasedComponent.getRefsetId() != null) {
+			memberIdsByRefset.computeIfAbsent(unreleasedComponent.getRefsetId(), refsetId -> new HashSet<>()).add(unreleasedComponent.getComponentId());
+		}
+	}
+
+	public Set<String> getIds(Class<?> componentClass) {
+		return idsByType.getOrDefault(componentClass.getSimpleName(), Collections.emptySet());
+	}
+
+	public Set<String> getMemberIds(String refsetId) {
+		return memberIdsByRefset.getOrDefault(refsetId, Collections.emptySet());
+	}
+
+	public int size() {
+		return idsByType.values().stream().mapToInt(Set::size).sum();
+	}
+}
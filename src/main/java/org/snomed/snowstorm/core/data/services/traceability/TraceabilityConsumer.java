@@ -7,8 +7,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.support.converter.MessageConverter;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -36,6 +38,29 @@ public class TraceabilityConsumer {
 		}
 	}
 
+	/**
+	 * Sends the activities in order using one JMS session, rather than a session per message.
+	 * Large activities are split in the same way as {@link #accept(Activity)}.
+	 */
+	public void acceptAll(List<Activity> activities) {
+		List<Activity> messages = new ArrayList<>();
+		for (Activity activity : activities) {
+			if (activity.getChanges().size() <= maxConceptActiviesPerMessage) {
+				messages.add(activity);
+			} else {
+				messages.addAll(split(activity));
+			}
+		}
+		MessageConverter messageConverter = jmsTemplate.getMessageConverter();
+		jmsTemplate.execute(jmsQueuePrefix + ".traceability", (session, producer) -> {
+			for (Activity message : messages) {
+				producer.send(messageConverter.toMessage(message, session));
+			}
+			return null;
+		});
+		logger.debug("Sent {} traceability messages for {} activities.", messages.size(), activities.size());
+	}
+
 	/**
 	 * A large activity object (with too many changes) should be messaged in batches.
 	 * @param activity
@@ -44,12 +69,20 @@ public class TraceabilityConsumer {
 		int changeListSize = activity.getChanges().size();
 		logger.info("Number of changes (concept activities) is {} and is larger than max ({}).", changeListSize, maxConceptActiviesPerMessage );
 
+		for (Activity activityChunk : split(activity)) {
+			jmsTemplate.convertAndSend(jmsQueuePrefix + ".traceability", activityChunk);
+		}
+	}
+
+	private List<Activity> split(Activity activity) {
+		List<Activity> chunks = new ArrayList<>();
 		Iterator<List<Activity.ConceptActivity>> activityListItr = Iterables.partition(activity.getChanges(), maxConceptActiviesPerMessage).iterator();
 		while (activityListItr.hasNext()) {
 			Activity activityChunk = new Activity(activity.getUserId(), activity.getBranchPath(),
 			activity.getCommitTimestamp(), activity.getSourceBranch(), activity.getActivityType());
 			activityChunk.setChanges(activityListItr.next());
-			jmsTemplate.convertAndSend(jmsQueuePrefix + ".traceability", activityChunk);
+			chunks.add(activityChunk);
 		}
+		return chunks;
 	}
 }
\ No newline at end of file
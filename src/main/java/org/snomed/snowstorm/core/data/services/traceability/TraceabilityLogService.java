@@ -5,7 +5,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Iterables;
 import io.kaicode.elasticvc.api.BranchCriteria;
-import io.kaicode.elasticvc.api.CommitListener;
 import io.kaicode.elasticvc.api.VersionControlHelper;
 import io.kaicode.elasticvc.domain.Commit;
 import it.unimi.dsi.fastutil.longs.Long2ObjectArrayMap;
@@ -18,6 +17,7 @@ import org.snomed.snowstorm.config.Config;
 import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.services.BranchMetadataHelper;
 import org.snomed.snowstorm.core.data.services.ServiceUtil;
+import org.snomed.snowstorm.core.data.services.commitlistener.DeferredCommitListener;
 import org.snomed.snowstorm.core.data.services.identifier.IdentifierService;
 import org.snomed.snowstorm.core.data.services.pojo.PersistedComponents;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,8 +44,12 @@ import static java.lang.Long.parseLong;
 import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
 import static org.snomed.snowstorm.core.data.services.traceability.Activity.ActivityType.CREATE_CODE_SYSTEM_VERSION;
 
+/**
+ * Builds a traceability activity within each commit. The activity is sent to the JMS queue after the commit has completed,
+ * using the commit listener outbox, so that commits do not wait for the message broker.
+ */
 @Service
-public class TraceabilityLogService implements CommitListener {
+public class TraceabilityLogService implements DeferredCommitListener<Activity> {
 
 	@Value("${authoring.traceability.enabled}")
 	private boolean enabled;
@@ -77,10 +81,10 @@ public class TraceabilityLogService implements CommitListener {
 	}
 
 	@Override
-	public void preCommitCompletion(final Commit commit) throws IllegalStateException {
+	public Activity prepare(final Commit commit) throws IllegalStateException {
 
-		if (BranchMetadataHelper.isImportingCodeSystemVersion(commit)) {
-			return;
+		if (!enabled || BranchMetadataHelper.isImportingCodeSystemVersion(commit)) {
+			return null;
 		}
 
 		Activity.ActivityType activityType = null;
@@ -106,7 +110,22 @@ public class TraceabilityLogService implements CommitListener {
 		PersistedComponents persistedComponents = activityType == Activity.ActivityType.PROMOTION || activityType == Activity.ActivityType.CREATE_CODE_SYSTEM_VERSION ?
 				new PersistedComponents() : buildPersistedComponents(commit);
 
-		logActivity(SecurityUtil.getUsername(), commit, persistedComponents, activityType);
+		return buildActivity(SecurityUtil.getUsername(), commit, persistedComponents, activityType);
+	}
+
+	@Override
+	public void commitCompleted(Activity activity) {
+		traceabilityConsumer.accept(activity);
+	}
+
+	@Override
+	public void commitsCompleted(List<Activity> activities) {
+		traceabilityConsumer.acceptAll(activities);
+	}
+
+	@Override
+	public Class<Activity> getWorkType() {
+		return Activity.class;
 	}
 
 	private PersistedComponents buildPersistedComponents(final Commit commit) {
@@ -125,13 +144,19 @@ public class TraceabilityLogService implements CommitListener {
 	}
 
 	void logActivity(String userId, final Commit commit, final PersistedComponents persistedComponents, Activity.ActivityType activityType) {
-
-		ServiceUtil.assertNotNull("activityType", activityType);
-		ServiceUtil.assertNotNull("persistedComponents", persistedComponents);
-
 		if (!enabled) {
 			return;
 		}
+		Activity activity = buildActivity(userId, commit, persistedComponents, activityType);
+		if (activity != null) {
+			traceabilityConsumer.accept(activity);
+		}
+	}
+
+	private Activity buildActivity(String userId, final Commit commit, final PersistedComponents persistedComponents, Activity.ActivityType activityType) {
+
+		ServiceUtil.assertNotNull("activityType", activityType);
+		ServiceUtil.assertNotNull("persistedComponents", persistedComponents);
 
 		if (userId == null) {
 			userId = Config.SYSTEM_USERNAME;
@@ -171,7 +196,7 @@ public class TraceabilityLogService implements CommitListener {
 		boolean changeFound = changes.values().stream().anyMatch(conceptActivity -> !conceptActivity.getComponentChanges().isEmpty());
 		if (commit.getCommitType() == CONTENT && !changeFound && activityType != CREATE_CODE_SYSTEM_VERSION) {
 			logger.info("Skipping traceability because there was no traceable change for commit {} at {}.", commit.getBranch().getPath(), commit.getTimepoint().getTime());
-			return;
+			return null;
 		}
 
 		// Limit the number of inferred relationship changes logged
@@ -201,13 +226,17 @@ public class TraceabilityLogService implements CommitListener {
 			conceptsWithNoChange.stream().map(Object::toString).forEach(changes::remove);
 		}
 
-		try {
-			logger.info("{}", objectMapper.writeValueAsString(activity));
-		} catch (JsonProcessingException e) {
-			logger.error("Failed to serialize activity {} to JSON.", activity.getCommitTimestamp());
+		logger.info("Traceability {} on {} at {} with {} concept changes.",
+				activity.getActivityType(), activity.getBranchPath(), activity.getCommitTimestamp(), changes.size());
+		if (logger.isDebugEnabled()) {
+			try {
+				logger.debug("{}", objectMapper.writeValueAsString(activity));
+			} catch (JsonProcessingException e) {
+				logger.error("Failed to serialize activity {} to JSON.", activity.getCommitTimestamp());
+			}
 		}
 
-		traceabilityConsumer.accept(activity);
+		return activity;
 	}
 
 	private Map<Long, List<ReferenceSetMember>> filterRefsetMembersAndLookupComponentConceptIds(Iterable<ReferenceSetMember> persistedReferenceSetMembers,
@@ -4,11 +4,14 @@ import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.domain.Commit;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
+import org.snomed.snowstorm.core.data.domain.Description;
+import org.snomed.snowstorm.core.data.domain.ReferenceSetMember;
 import org.snomed.snowstorm.core.data.domain.SnomedComponent;
 import org.snomed.snowstorm.core.data.services.BranchMetadataHelper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.stereotype.Service;
@@ -21,8 +24,14 @@ import static org.elasticsearch.index.query.QueryBuilders.*;
 @Service
 public class TraceabilityLogServiceHelper {
 
+	// Large fields which are not used in traceability
+	private static final Map<Class<?>, String[]> EXCLUDED_SOURCE_FIELDS = Map.of(
+			Description.class, new String[]{Description.Fields.TERM, Description.Fields.TERM_FOLDED, Description.Fields.TERM_LEN, Description.Fields.TAG},
+			ReferenceSetMember.class, new String[]{ReferenceSetMember.Fields.ADDITIONAL_FIELDS});
+
 	@Autowired
 	private ElasticsearchRestTemplate elasticsearchTemplate;
+
 	public <T extends SnomedComponent<T>> Iterable<T> loadChangesAndDeletionsWithinOpenCommitOnly(Class<T> clazz, BranchCriteria changesAndDeletionsWithinOpenCommitCriteria,
 			String branchPath, Commit commit) {
 
@@ -46,6 +55,7 @@ public class TraceabilityLogServiceHelper {
 		final NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
 				.withQuery(branchCriteria)
 				.withSort(SortBuilders.fieldSort("start"))
+				.withSourceFilter(new FetchSourceFilter(null, EXCLUDED_SOURCE_FIELDS.get(clazz)))
 				.withPageable(LARGE_PAGE)
 				.build();
 
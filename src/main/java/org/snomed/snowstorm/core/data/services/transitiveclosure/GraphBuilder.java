@@ -1,42 +1,298 @@
 package org.snomed.snowstorm.core.data.services.transitiveclosure;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Map;
+import java.io.PrintStream;
+import java.util.*;
 
+/**
+ * Graph of is-a relationships held as int indexed nodes.
+ * While the graph is being built edges are appended to primitive lists. On first read the graph is compacted
+ * into compressed sparse row form: the parents of node i are parents[parentOffsets[i]] to parents[parentOffsets[i + 1] - 1],
+ * children likewise. Concept ids are only held once, in a long array indexed by node.
+ * Nodes are light views over the graph, they are created once per compaction.
+ */
 public class GraphBuilder {
 
-	private final Map<Long, Node> nodeLookup = new Long2ObjectOpenHashMap<>();
+	private final Long2IntOpenHashMap indexes = new Long2IntOpenHashMap();
+	private final LongArrayList ids = new LongArrayList();
+
+	// Edges in the order added
+	private final IntArrayList edgeChildren = new IntArrayList();
+	private final IntArrayList edgeParents = new IntArrayList();
+	// Per node, edges added before this position were cleared
+	private final IntArrayList clearedBefore = new IntArrayList();
+	private final BitSet updated = new BitSet();
+
+	// Compacted form, null when there are changes which have not been compacted
+	private Compacted compacted;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(GraphBuilder.class);
 
+	public GraphBuilder() {
+		indexes.defaultReturnValue(-1);
+	}
+
 	public void addParent(Long sourceId, Long destinationId) {
 		LOGGER.debug("{} -> {}", sourceId, destinationId);
-		Node createNode = getCreateNode(sourceId);
-		createNode.addParent(getCreateNode(destinationId));
+		int childIndex = getCreateIndex(sourceId);
+		int parentIndex = getCreateIndex(destinationId);
+		edgeChildren.add(childIndex);
+		edgeParents.add(parentIndex);
+		compacted = null;
 	}
 
-	private Node getCreateNode(Long id) {
-		Node node = nodeLookup.get(id);
-		if (node == null) {
-			node = new Node(id);
-			nodeLookup.put(node.getId(), node);
+	private int getCreateIndex(long id) {
+		int index = indexes.get(id);
+		if (index == -1) {
+			index = ids.size();
+			ids.add(id);
+			clearedBefore.add(0);
+			indexes.put(id, index);
 		}
-		return node;
+		return index;
 	}
 
 	public Collection<Node> getNodes() {
-		return nodeLookup.values();
+		return Collections.unmodifiableList(Arrays.asList(getCompacted().nodes));
+	}
+
+	/**
+	 * @return the node with this id or null if it is not in the graph.
+	 */
+	public Node getNode(Long id) {
+		int index = indexes.get(id.longValue());
+		return index == -1 ? null : getCompacted().nodes[index];
 	}
 
 	public int getNodeCount() {
-		return nodeLookup.size();
+		return ids.size();
 	}
 
 	public void clearParentsAndMarkUpdated(Long sourceId) {
-		getCreateNode(sourceId).markUpdated().getParents().clear();
+		int index = getCreateIndex(sourceId);
+		clearedBefore.set(index, edgeChildren.size());
+		updated.set(index);
+		compacted = null;
+	}
+
+	long getId(int index) {
+		return ids.getLong(index);
+	}
+
+	int[] getParentOffsets() {
+		return getCompacted().parentOffsets;
+	}
+
+	int[] getParents() {
+		return getCompacted().parents;
+	}
+
+	int[] getChildOffsets() {
+		return getCompacted().childOffsets;
+	}
+
+	int[] getChildren() {
+		return getCompacted().children;
+	}
+
+	boolean isAncestorOrSelfUpdated(int index) {
+		return getCompacted().ancestorOrSelfUpdated.get(index);
+	}
+
+	Set<Long> getParentIds(int index) {
+		Compacted graph = getCompacted();
+		Set<Long> parentIds = new HashSet<>();
+		for (int p = graph.parentOffsets[index]; p < graph.parentOffsets[index + 1]; p++) {
+			parentIds.add(ids.getLong(graph.parents[p]));
+		}
+		return parentIds;
+	}
+
+	int getParentCount(int index) {
+		Compacted graph = getCompacted();
+		return graph.parentOffsets[index + 1] - graph.parentOffsets[index];
+	}
+
+	Set<Long> getTransitiveClosure(int index, String path, boolean throwExceptionIfLoopFound) throws GraphBuilderException {
+		Compacted graph = getCompacted();
+		int[] parentOffsets = graph.parentOffsets;
+		int[] parents = graph.parents;
+
+		// Breadth first, each ancestor is expanded once
+		IntOpenHashSet visited = new IntOpenHashSet();
+		IntArrayList queue = new IntArrayList();
+		queue.add(index);
+		for (int position = 0; position < queue.size(); position++) {
+			int current = queue.getInt(position);
+			for (int p = parentOffsets[current]; p < parentOffsets[current + 1]; p++) {
+				if (visited.add(parents[p])) {
+					queue.add(parents[p]);
+				}
+			}
+		}
+
+		long id = ids.getLong(index);
+		boolean loopFound = visited.remove(index);
+		Set<Long> ancestorIds = new HashSet<>(visited.size());
+		visited.forEach(ancestor -> ancestorIds.add(ids.getLong(ancestor)));
+		if (loopFound) {
+			Set<Long> ancestorsIncludingSelf = new LinkedHashSet<>();
+			ancestorsIncludingSelf.add(id);
+			ancestorsIncludingSelf.addAll(ancestorIds);
+			String message = String.format("Loop found in transitive closure for concept %s on branch %s. The concept %s is in its own set of ancestors: %s",
+					id, path, id, ancestorsIncludingSelf);
+			if (throwExceptionIfLoopFound) {
+				dumpTransitiveClosure(index);
+				throw new GraphBuilderException(message);
+			} else {
+				LOGGER.warn(message);
+			}
+		}
+		return ancestorIds;
+	}
+
+	private void dumpTransitiveClosure(int index) {
+		BitSet covered = new BitSet(ids.size());
+		PrintStream printStream = System.out;
+		printStream.println();
+		printStream.println("Dumping transitive closure for concept " + ids.getLong(index) + ", order is BOTTOM UP!");
+		doDumpTransitiveClosure(index, covered, "- ", printStream);
+		printStream.println();
+	}
+
+	private void doDumpTransitiveClosure(int index, BitSet covered, String indent, PrintStream printStream) {
+		Compacted graph = getCompacted();
+		printStream.print(indent + ids.getLong(index));
+		if (covered.get(index)) {
+			if (graph.parentOffsets[index + 1] > graph.parentOffsets[index]) {
+				printStream.print("(parents already output)");
+			}
+			printStream.println();
+		} else {
+			covered.set(index);
+			indent = "|" + indent;
+			printStream.println();
+			for (int p = graph.parentOffsets[index]; p < graph.parentOffsets[index + 1]; p++) {
+				doDumpTransitiveClosure(graph.parents[p], covered, indent, printStream);
+			}
+		}
+	}
+
+	private Compacted getCompacted() {
+		Compacted graph = compacted;
+		if (graph == null) {
+			graph = compact();
+			compacted = graph;
+		}
+		return graph;
+	}
+
+	private Compacted compact() {
+		int nodeCount = ids.size();
+		int edgeCount = edgeChildren.size();
+
+		// Count the parents of each node, skipping cleared edges. Duplicates are removed after sorting.
+		int[] parentCounts = new int[nodeCount];
+		for (int e = 0; e < edgeCount; e++) {
+			int child = edgeChildren.getInt(e);
+			if (e >= clearedBefore.getInt(child)) {
+				parentCounts[child]++;
+			}
+		}
+		int[] parentOffsets = toOffsets(parentCounts);
+		int[] parents = new int[parentOffsets[nodeCount]];
+		int[] parentPositions = Arrays.copyOf(parentOffsets, nodeCount);
+		for (int e = 0; e < edgeCount; e++) {
+			int child = edgeChildren.getInt(e);
+			if (e >= clearedBefore.getInt(child)) {
+				parents[parentPositions[child]++] = edgeParents.getInt(e);
+			}
+		}
+
+		// Sort and remove duplicate parents, compacting the arrays in place
+		int uniqueEnd = 0;
+		int start = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			int end = parentOffsets[i + 1];
+			Arrays.sort(parents, start, end);
+			int segmentStart = uniqueEnd;
+			parentOffsets[i] = segmentStart;
+			for (int p = start; p < end; p++) {
+				if (uniqueEnd == segmentStart || parents[uniqueEnd - 1] != parents[p]) {
+					parents[uniqueEnd++] = parents[p];
+				}
+			}
+			start = end;
+		}
+		parentOffsets[nodeCount] = uniqueEnd;
+		if (uniqueEnd < parents.length) {
+			parents = Arrays.copyOf(parents, uniqueEnd);
+		}
+
+		int[] childCounts = new int[nodeCount];
+		for (int parent : parents) {
+			childCounts[parent]++;
+		}
+		int[] childOffsets = toOffsets(childCounts);
+		int[] children = new int[parents.length];
+		int[] childPositions = Arrays.copyOf(childOffsets, nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			for (int p = parentOffsets[i]; p < parentOffsets[i + 1]; p++) {
+				children[childPositions[parents[p]]++] = i;
+			}
+		}
+
+		// Propagate the updated flag to all descendants in one breadth first pass
+		BitSet ancestorOrSelfUpdated = (BitSet) updated.clone();
+		IntArrayList queue = new IntArrayList();
+		updated.stream().forEach(queue::add);
+		for (int position = 0; position < queue.size(); position++) {
+			int current = queue.getInt(position);
+			for (int c = childOffsets[current]; c < childOffsets[current + 1]; c++) {
+				if (!ancestorOrSelfUpdated.get(children[c])) {
+					ancestorOrSelfUpdated.set(children[c]);
+					queue.add(children[c]);
+				}
+			}
+		}
+
+		Node[] nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = new Node(this, i);
+		}
+		return new Compacted(parentOffsets, parents, childOffsets, children, ancestorOrSelfUpdated, nodes);
+	}
+
+	private static int[] toOffsets(int[] counts) {
+		int[] offsets = new int[counts.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			offsets[i + 1] = offsets[i] + counts[i];
+		}
+		return offsets;
+	}
+
+	private static final class Compacted {
+
+		private final int[] parentOffsets;
+		private final int[] parents;
+		private final int[] childOffsets;
+		private final int[] children;
+		private final BitSet ancestorOrSelfUpdated;
+		private final Node[] nodes;
+
+		private Compacted(int[] parentOffsets, int[] parents, int[] childOffsets, int[] children, BitSet ancestorOrSelfUpdated, Node[] nodes) {
+			this.parentOffsets = parentOffsets;
+			this.parents = parents;
+			this.childOffsets = childOffsets;
+			this.children = children;
+			this.ancestorOrSelfUpdated = ancestorOrSelfUpdated;
+			this.nodes = nodes;
+		}
 	}
 }
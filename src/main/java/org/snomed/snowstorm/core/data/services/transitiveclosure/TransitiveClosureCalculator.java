@@ -0,0 +1,116 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates the transitive closure of every node in a graph up front, for complete rebuilds of the semantic index.
+ * The compacted graph is processed in topological order, top down, so the ancestors of each node
+ * are calculated once and then reused by all of its children rather than being walked again for every descendant.
+ * Nodes at the same depth do not depend on each other so each depth is calculated in parallel using the fork/join common pool.
+ * Nodes which are part of a loop, or below one, can not be sorted. Their closure is calculated on request by the node itself
+ * so that the usual loop detection and diagnostics apply.
+ */
+public class TransitiveClosureCalculator {
+
+	private static final int[] NONE = new int[0];
+
+	private final GraphBuilder graphBuilder;
+	// Sorted ancestor indexes of each node, null if the node could not be sorted
+	private final int[][] ancestors;
+	private final int unsortedCount;
+
+	private TransitiveClosureCalculator(GraphBuilder graphBuilder, int[][] ancestors, int unsortedCount) {
+		this.graphBuilder = graphBuilder;
+		this.ancestors = ancestors;
+		this.unsortedCount = unsortedCount;
+	}
+
+	public static TransitiveClosureCalculator calculate(GraphBuilder graphBuilder) {
+		int count = graphBuilder.getNodeCount();
+		int[] parentOffsets = graphBuilder.getParentOffsets();
+		int[] parents = graphBuilder.getParents();
+		int[] childOffsets = graphBuilder.getChildOffsets();
+		int[] children = graphBuilder.getChildren();
+
+		// Kahn's algorithm, one depth at a time. A node is ready once the closure of all its parents is known.
+		int[][] ancestors = new int[count][];
+		int[] parentsRemaining = new int[count];
+		IntArrayList level = new IntArrayList();
+		for (int i = 0; i < count; i++) {
+			parentsRemaining[i] = parentOffsets[i + 1] - parentOffsets[i];
+			if (parentsRemaining[i] == 0) {
+				level.add(i);
+			}
+		}
+		int sorted = 0;
+		while (!level.isEmpty()) {
+			int[] current = level.toIntArray();
+			IntStream.range(0, current.length).parallel()
+					.forEach(i -> ancestors[current[i]] = mergeParentClosures(current[i], parentOffsets, parents, ancestors));
+			sorted += current.length;
+
+			level = new IntArrayList();
+			for (int index : current) {
+				for (int c = childOffsets[index]; c < childOffsets[index + 1]; c++) {
+					if (--parentsRemaining[children[c]] == 0) {
+						level.add(children[c]);
+					}
+				}
+			}
+		}
+		return new TransitiveClosureCalculator(graphBuilder, ancestors, count - sorted);
+	}
+
+	private static int[] mergeParentClosures(int index, int[] parentOffsets, int[] parents, int[][] ancestors) {
+		int start = parentOffsets[index];
+		int end = parentOffsets[index + 1];
+		if (start == end) {
+			return NONE;
+		}
+		int size = 0;
+		for (int p = start; p < end; p++) {
+			size += 1 + ancestors[parents[p]].length;
+		}
+		int[] merged = new int[size];
+		int position = 0;
+		for (int p = start; p < end; p++) {
+			int[] parentAncestors = ancestors[parents[p]];
+			merged[position++] = parents[p];
+			System.arraycopy(parentAncestors, 0, merged, position, parentAncestors.length);
+			position += parentAncestors.length;
+		}
+		Arrays.sort(merged);
+		int unique = 0;
+		for (int value : merged) {
+			if (unique == 0 || merged[unique - 1] != value) {
+				merged[unique++] = value;
+			}
+		}
+		return unique == merged.length ? merged : Arrays.copyOf(merged, unique);
+	}
+
+	public Set<Long> getTransitiveClosure(Node node, String path, boolean throwExceptionIfLoopFound) throws GraphBuilderException {
+		int index = node.getIndex();
+		if (ancestors[index] == null) {
+			return node.getTransitiveClosure(path, throwExceptionIfLoopFound);
+		}
+		int[] nodeAncestors = ancestors[index];
+		Set<Long> ancestorIds = new LongOpenHashSet(nodeAncestors.length);
+		for (int ancestor : nodeAncestors) {
+			ancestorIds.add(graphBuilder.getId(ancestor));
+		}
+		return ancestorIds;
+	}
+
+	/**
+	 * @return the number of nodes which are part of a loop or below one.
+	 */
+	public int getUnsortedCount() {
+		return unsortedCount;
+	}
+}
@@ -23,10 +23,13 @@ import org.snomed.snowstorm.core.data.services.CodeSystemService;
 import org.snomed.snowstorm.core.data.services.ModuleDependencyService;
 import org.snomed.snowstorm.core.data.services.NotFoundException;
 import org.snomed.snowstorm.core.data.services.QueryService;
+import org.snomed.snowstorm.core.data.services.UnreleasedComponentJournalService;
+import org.snomed.snowstorm.core.data.services.pojo.UnreleasedComponentIds;
 import org.snomed.snowstorm.core.rf2.RF2Type;
 import org.snomed.snowstorm.core.util.DateUtil;
 import org.snomed.snowstorm.core.util.TimerUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
@@ -38,6 +41,12 @@ import org.springframework.util.CollectionUtils;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -73,6 +82,17 @@ public class ExportService {
 	@Autowired
 	private CodeSystemService codeSystemService;
 
+	@Autowired
+	private UnreleasedComponentJournalService unreleasedComponentJournalService;
+
+	@Value("${elasticsearch.index.max.terms.count}")
+	private int maxTermsCount;
+
+	@Value("${export.parallel-files:1}")
+	private int parallelFiles;
+
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
 	private final Set<String> refsetTypesRequiredForClassification = Sets.newHashSet(Concepts.REFSET_MRCM_ATTRIBUTE_DOMAIN, Concepts.OWL_EXPRESSION_TYPE_REFERENCE_SET);
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -102,13 +122,7 @@ public class ExportService {
 	}
 
 	public void exportRF2Archive(ExportConfiguration exportConfiguration, OutputStream outputStream) throws ExportException {
-		synchronized (this) {
-			if (exportConfiguration.getStartDate() != null) {
-				throw new IllegalStateException("Export already started.");
-			}
-			exportConfiguration.setStartDate(new Date());
-			exportConfigurationRepository.save(exportConfiguration);
-		}
+		markStarted(exportConfiguration);
 
 		File exportFile = exportRF2ArchiveFile(exportConfiguration.getBranchPath(), exportConfiguration.getFilenameEffectiveDate(),
 				exportConfiguration.getType(), exportConfiguration.isConceptsAndRelationshipsOnly(), exportConfiguration.isUnpromotedChangesOnly(),
@@ -127,6 +141,38 @@ public class ExportService {
 		}
 	}
 
+	/**
+	 * Writes the RF2 archive straight into the output stream as the components are read, without a temporary file.
+	 * The first bytes are sent as soon as the first file starts but an error part way through can only be reported by ending the stream early.
+	 * The branch stays locked until the client has received the whole archive.
+	 * The output stream is not closed.
+	 */
+	public void streamRF2Archive(ExportConfiguration exportConfiguration, OutputStream outputStream) throws ExportException {
+		markStarted(exportConfiguration);
+
+		logger.info("Streaming export {}", exportConfiguration.getId());
+		try {
+			BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+			writeRF2Archive(exportConfiguration.getBranchPath(), exportConfiguration.getFilenameEffectiveDate(),
+					exportConfiguration.getType(), exportConfiguration.isConceptsAndRelationshipsOnly(), exportConfiguration.isUnpromotedChangesOnly(),
+					exportConfiguration.getTransientEffectiveTime(), exportConfiguration.getStartEffectiveTime(), exportConfiguration.getModuleIds(),
+					exportConfiguration.isLegacyZipNaming(), exportConfiguration.getRefsetIds(), exportConfiguration.getId(), bufferedOutputStream);
+			bufferedOutputStream.flush();
+		} catch (IOException e) {
+			throw new ExportException("Failed to write RF2 data into output stream.", e);
+		}
+	}
+
+	private void markStarted(ExportConfiguration exportConfiguration) {
+		synchronized (this) {
+			if (exportConfiguration.getStartDate() != null) {
+				throw new IllegalStateException("Export already started.");
+			}
+			exportConfiguration.setStartDate(new Date());
+			exportConfigurationRepository.save(exportConfiguration);
+		}
+	}
+
 	public File exportRF2ArchiveFile(String branchPath, String filenameEffectiveDate, RF2Type exportType, boolean forClassification) throws ExportException {
 		return exportRF2ArchiveFile(branchPath, filenameEffectiveDate, exportType, forClassification, false, null, null, null, true, new HashSet<>(), null);
 	}
@@ -135,6 +181,29 @@ public class ExportService {
 			boolean unpromotedChangesOnly, String transientEffectiveTime, String startEffectiveTime, Set<String> moduleIds,
 			boolean legacyZipNaming, Set<String> refsetIds, String exportId) throws ExportException {
 
+		File exportFile = null;
+		try {
+			exportFile = File.createTempFile("export-" + new Date().getTime(), ".zip");
+			try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(exportFile))) {
+				writeRF2Archive(branchPath, filenameEffectiveDate, exportType, forClassification, unpromotedChangesOnly, transientEffectiveTime,
+						startEffectiveTime, moduleIds, legacyZipNaming, refsetIds, exportId, outputStream);
+			}
+			return exportFile;
+		} catch (IOException | RuntimeException e) {
+			if (exportFile != null) {
+				exportFile.delete();
+			}
+			if (e instanceof IOException) {
+				throw new ExportException("Failed to write RF2 zip file.", e);
+			}
+			throw (RuntimeException) e;
+		}
+	}
+
+	private void writeRF2Archive(String branchPath, String filenameEffectiveDate, RF2Type exportType, boolean forClassification,
+			boolean unpromotedChangesOnly, String transientEffectiveTime, String startEffectiveTime, Set<String> moduleIds,
+			boolean legacyZipNaming, Set<String> refsetIds, String exportId, OutputStream outputStream) throws IOException {
+
 		if (exportType == RF2Type.FULL) {
 			throw new IllegalArgumentException("FULL RF2 export is not implemented.");
 		}
@@ -151,6 +220,17 @@ public class ExportService {
 		BranchCriteria allContentBranchCriteria = versionControlHelper.getBranchCriteria(branchPath);
 		BranchCriteria selectionBranchCriteria = unpromotedChangesOnly ? versionControlHelper.getChangesOnBranchCriteria(branchPath) : allContentBranchCriteria;
 
+		// A Delta of the whole branch can be limited to the components in the unreleased component journal
+		UnreleasedComponentIds unreleasedComponentIds = null;
+		if (exportType == RF2Type.DELTA && !unpromotedChangesOnly) {
+			unreleasedComponentIds = unreleasedComponentJournalService.getUnreleasedComponentIds(branchPath, allContentBranchCriteria);
+			if (unreleasedComponentIds != null) {
+				logger.info("Using unreleased component journal with {} entries for export of {}{}", unreleasedComponentIds.size(), branchPath, exportStr);
+			} else {
+				logger.info("Unreleased component journal not complete for {}, searching all content for Delta export.", branchPath);
+			}
+		}
+
 		String entryDirectoryPrefix = "SnomedCT_Export/RF2Release/";
 		String codeSystemRF2Name = "INT";
 		if (!legacyZipNaming) {
@@ -169,138 +249,240 @@ public class ExportService {
 
 		try {
 			branchService.lockBranch(branchPath, branchMetadataHelper.getBranchLockMetadata("Exporting RF2 " + exportType.getName()));
-			File exportFile = File.createTempFile("export-" + new Date().getTime(), ".zip");
-			try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(exportFile))) {
-
-				boolean refsetOnlyExport = refsetIds != null && !refsetIds.isEmpty();
-
-				if (!refsetOnlyExport) {
-					// Write Concepts
-					int conceptLines = exportComponents(Concept.class, entryDirectoryPrefix, "Terminology/", "sct2_Concept_", filenameEffectiveDate, exportType, zipOutputStream,
-							getContentQuery(exportType, moduleIds, startEffectiveTime, selectionBranchCriteria.getEntityBranchCriteria(Concept.class)), transientEffectiveTime, null, codeSystemRF2Name, null);
-					logger.info("{} concept states exported", conceptLines);
-
-					if (!forClassification) {
-						// Write Descriptions
-						BoolQueryBuilder descriptionBranchCriteria = selectionBranchCriteria.getEntityBranchCriteria(Description.class);
-						BoolQueryBuilder descriptionContentQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, descriptionBranchCriteria);
-						descriptionContentQuery.mustNot(termQuery(Description.Fields.TYPE_ID, Concepts.TEXT_DEFINITION));
-						int descriptionLines = exportComponents(Description.class, entryDirectoryPrefix, "Terminology/", "sct2_Description_", filenameEffectiveDate, exportType, zipOutputStream,
-								descriptionContentQuery, transientEffectiveTime, null, codeSystemRF2Name, null);
-						logger.info("{} description states exported", descriptionLines);
-
-						// Write Text Definitions
-						BoolQueryBuilder textDefinitionContentQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, descriptionBranchCriteria);
-						textDefinitionContentQuery.must(termQuery(Description.Fields.TYPE_ID, Concepts.TEXT_DEFINITION));
-						int textDefinitionLines = exportComponents(Description.class, entryDirectoryPrefix, "Terminology/", "sct2_TextDefinition_", filenameEffectiveDate, exportType, zipOutputStream,
-								textDefinitionContentQuery, transientEffectiveTime, null, codeSystemRF2Name, null);
-						logger.info("{} text defintion states exported", textDefinitionLines);
-					}
-
-					// Write Stated Relationships
-					BoolQueryBuilder relationshipBranchCritera = selectionBranchCriteria.getEntityBranchCriteria(Relationship.class);
-					BoolQueryBuilder relationshipQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera);
-					relationshipQuery.must(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.STATED_RELATIONSHIP));
-					int statedRelationshipLines = exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_StatedRelationship_", filenameEffectiveDate, exportType, zipOutputStream,
-							relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null);
-					logger.info("{} stated relationship states exported", statedRelationshipLines);
-
-					// Write Inferred non-concrete Relationships
-					relationshipQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera);
-					// Not 'stated' will include inferred and additional
-					relationshipQuery.mustNot(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.STATED_RELATIONSHIP));
-					relationshipQuery.must(existsQuery(Relationship.Fields.DESTINATION_ID));
-					int inferredRelationshipLines = exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_Relationship_", filenameEffectiveDate, exportType, zipOutputStream,
-							relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null);
-					logger.info("{} inferred (non-concrete) and additional relationship states exported", inferredRelationshipLines);
-
-					// Write Concrete Inferred Relationships
-					relationshipQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera);
-					relationshipQuery.must(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.INFERRED_RELATIONSHIP));
-					relationshipQuery.must(existsQuery(Relationship.Fields.VALUE));
-					int inferredConcreteRelationshipLines = exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_RelationshipConcreteValues_", filenameEffectiveDate, exportType,
-							zipOutputStream,
-							relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null);
-					logger.info("{} concrete inferred relationship states exported", inferredConcreteRelationshipLines);
+			List<ExportEntry> entries = new ArrayList<>();
+
+			boolean refsetOnlyExport = refsetIds != null && !refsetIds.isEmpty();
+
+			if (!refsetOnlyExport) {
+				// Write Concepts
+				entries.add(exportComponents(Concept.class, entryDirectoryPrefix, "Terminology/", "sct2_Concept_", filenameEffectiveDate, exportType,
+						restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, selectionBranchCriteria.getEntityBranchCriteria(Concept.class)),
+								unreleasedComponentIds, Concept.class, Concept.Fields.CONCEPT_ID), transientEffectiveTime, null, codeSystemRF2Name, null,
+						conceptLines -> logger.info("{} concept states exported", conceptLines)));
+
+				if (!forClassification) {
+					// Write Descriptions
+					BoolQueryBuilder descriptionBranchCriteria = selectionBranchCriteria.getEntityBranchCriteria(Description.class);
+					BoolQueryBuilder descriptionContentQuery = restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, descriptionBranchCriteria),
+							unreleasedComponentIds, Description.class, Description.Fields.DESCRIPTION_ID);
+					descriptionContentQuery.mustNot(termQuery(Description.Fields.TYPE_ID, Concepts.TEXT_DEFINITION));
+					entries.add(exportComponents(Description.class, entryDirectoryPrefix, "Terminology/", "sct2_Description_", filenameEffectiveDate, exportType,
+							descriptionContentQuery, transientEffectiveTime, null, codeSystemRF2Name, null,
+							descriptionLines -> logger.info("{} description states exported", descriptionLines)));
+
+					// Write Text Definitions
+					BoolQueryBuilder textDefinitionContentQuery = restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, descriptionBranchCriteria),
+							unreleasedComponentIds, Description.class, Description.Fields.DESCRIPTION_ID);
+					textDefinitionContentQuery.must(termQuery(Description.Fields.TYPE_ID, Concepts.TEXT_DEFINITION));
+					entries.add(exportComponents(Description.class, entryDirectoryPrefix, "Terminology/", "sct2_TextDefinition_", filenameEffectiveDate, exportType,
+							textDefinitionContentQuery, transientEffectiveTime, null, codeSystemRF2Name, null,
+							textDefinitionLines -> logger.info("{} text defintion states exported", textDefinitionLines)));
 				}
 
-				// Write Reference Sets
-				List<ReferenceSetType> referenceSetTypes = getReferenceSetTypes(allContentBranchCriteria.getEntityBranchCriteria(ReferenceSetType.class)).stream()
-						.filter(type -> !forClassification || refsetTypesRequiredForClassification.contains(type.getConceptId()))
-						.collect(Collectors.toList());
-
-				logger.info("{} Reference Set Types found for this export: {}", referenceSetTypes.size(), referenceSetTypes);
-
-				BoolQueryBuilder memberBranchCriteria = selectionBranchCriteria.getEntityBranchCriteria(ReferenceSetMember.class);
-				for (ReferenceSetType referenceSetType : referenceSetTypes) {
-					List<Long> refsetsOfThisType = new ArrayList<>(queryService.findDescendantIdsAsUnion(allContentBranchCriteria, true, Collections.singleton(Long.parseLong(referenceSetType.getConceptId()))));
-					refsetsOfThisType.add(Long.parseLong(referenceSetType.getConceptId()));
-					for (Long refsetToExport : refsetsOfThisType) {
-						boolean isMDRS =  refsetToExport.toString().equals(Concepts.REFSET_MODULE_DEPENDENCY);
-						//Export filter is pass-through when null
-						ExportFilter<ReferenceSetMember> exportFilter = null;
-						if (isMDRS) {
-							logger.info("MDRS being exported for " + (isExtension?"extension":"edition") + " package style.");
-							exportFilter = new ExportFilter<ReferenceSetMember>() {
-								public boolean isValid(ReferenceSetMember rm) {
-									return mdrService.isExportable(rm, isExtension);
-								}
-							};
+				// Write Stated Relationships
+				BoolQueryBuilder relationshipBranchCritera = selectionBranchCriteria.getEntityBranchCriteria(Relationship.class);
+				BoolQueryBuilder relationshipQuery = restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera),
+						unreleasedComponentIds, Relationship.class, Relationship.Fields.RELATIONSHIP_ID);
+				relationshipQuery.must(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.STATED_RELATIONSHIP));
+				entries.add(exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_StatedRelationship_", filenameEffectiveDate, exportType,
+						relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null,
+						statedRelationshipLines -> logger.info("{} stated relationship states exported", statedRelationshipLines)));
+
+				// Write Inferred non-concrete Relationships
+				relationshipQuery = restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera),
+						unreleasedComponentIds, Relationship.class, Relationship.Fields.RELATIONSHIP_ID);
+				// Not 'stated' will include inferred and additional
+				relationshipQuery.mustNot(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.STATED_RELATIONSHIP));
+				relationshipQuery.must(existsQuery(Relationship.Fields.DESTINATION_ID));
+				entries.add(exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_Relationship_", filenameEffectiveDate, exportType,
+						relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null,
+						inferredRelationshipLines -> logger.info("{} inferred (non-concrete) and additional relationship states exported", inferredRelationshipLines)));
+
+				// Write Concrete Inferred Relationships
+				relationshipQuery = restrictToJournal(getContentQuery(exportType, moduleIds, startEffectiveTime, relationshipBranchCritera),
+						unreleasedComponentIds, Relationship.class, Relationship.Fields.RELATIONSHIP_ID);
+				relationshipQuery.must(termQuery(Relationship.Fields.CHARACTERISTIC_TYPE_ID, Concepts.INFERRED_RELATIONSHIP));
+				relationshipQuery.must(existsQuery(Relationship.Fields.VALUE));
+				entries.add(exportComponents(Relationship.class, entryDirectoryPrefix, "Terminology/", "sct2_RelationshipConcreteValues_", filenameEffectiveDate, exportType,
+						relationshipQuery, transientEffectiveTime, null, codeSystemRF2Name, null,
+						inferredConcreteRelationshipLines -> logger.info("{} concrete inferred relationship states exported", inferredConcreteRelationshipLines)));
+			}
+
+			// Write Reference Sets
+			List<ReferenceSetType> referenceSetTypes = getReferenceSetTypes(allContentBranchCriteria.getEntityBranchCriteria(ReferenceSetType.class)).stream()
+					.filter(type -> !forClassification || refsetTypesRequiredForClassification.contains(type.getConceptId()))
+					.collect(Collectors.toList());
+
+			logger.info("{} Reference Set Types found for this export: {}", referenceSetTypes.size(), referenceSetTypes);
+
+			BoolQueryBuilder memberBranchCriteria = selectionBranchCriteria.getEntityBranchCriteria(ReferenceSetMember.class);
+			for (ReferenceSetType referenceSetType : referenceSetTypes) {
+				List<Long> refsetsOfThisType = new ArrayList<>(queryService.findDescendantIdsAsUnion(allContentBranchCriteria, true, Collections.singleton(Long.parseLong(referenceSetType.getConceptId()))));
+				refsetsOfThisType.add(Long.parseLong(referenceSetType.getConceptId()));
+				for (Long refsetToExport : refsetsOfThisType) {
+					boolean isMDRS =  refsetToExport.toString().equals(Concepts.REFSET_MODULE_DEPENDENCY);
+					//Export filter is pass-through when null
+					ExportFilter<ReferenceSetMember> exportFilter = null;
+					if (isMDRS) {
+						logger.info("MDRS being exported for " + (isExtension?"extension":"edition") + " package style.");
+						exportFilter = new ExportFilter<ReferenceSetMember>() {
+							public boolean isValid(ReferenceSetMember rm) {
+								return mdrService.isExportable(rm, isExtension);
+							}
+						};
+					}
+					if (generateMDR && isMDRS) {
+						logger.info("MDR being generated rather than persisted.");
+						String exportDir = referenceSetType.getExportDir();
+						String entryDirectory = !exportDir.startsWith("/") ? "Refset/" + exportDir + "/" : exportDir.substring(1) + "/";
+						String entryFilenamePrefix = (!entryDirectory.startsWith("Terminology/") ? "der2_" : "sct2_") + referenceSetType.getFieldTypes() + "Refset_" + referenceSetType.getName() + (refsetsOfThisType.size() > 1 ? refsetToExport : "");
+						entries.add(exportComponents(
+								ReferenceSetMember.class,
+								entryDirectoryPrefix, entryDirectory,
+								entryFilenamePrefix,
+								filenameEffectiveDate,
+								exportType,
+								() -> mdrService.generateModuleDependencies(branchPath, transientEffectiveTime, moduleIds, exportType.equals(RF2Type.DELTA), null),
+								transientEffectiveTime,
+								referenceSetType.getFieldNameList(),
+								codeSystemRF2Name,
+								exportFilter,
+								rowCount -> logger.info("Exported Reference Set {} {} with {} members", refsetToExport, referenceSetType.getName(), rowCount)));
+					} else if (!refsetOnlyExport || refsetIds.contains(refsetToExport.toString())) {
+						BoolQueryBuilder memberQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, memberBranchCriteria);
+						memberQuery.must(QueryBuilders.termQuery(ReferenceSetMember.Fields.REFSET_ID, refsetToExport));
+						long memberCount;
+						if (unreleasedComponentIds != null && unreleasedComponentIds.getMemberIds(refsetToExport.toString()).isEmpty()) {
+							// Nothing unreleased in this refset, no need to search
+							memberCount = 0;
+						} else {
+							if (unreleasedComponentIds != null) {
+								restrictToIds(memberQuery, unreleasedComponentIds.getMemberIds(refsetToExport.toString()), ReferenceSetMember.Fields.MEMBER_ID);
+							}
+							memberCount = elasticsearchTemplate.count(getNativeSearchQuery(memberQuery), ReferenceSetMember.class);
 						}
-						if (generateMDR && isMDRS) {
-							logger.info("MDR being generated rather than persisted.");
+						if (memberCount > 0) {
+							logger.info("Exporting Reference Set {} {} with {} members", refsetToExport, referenceSetType.getName(), memberCount);
 							String exportDir = referenceSetType.getExportDir();
 							String entryDirectory = !exportDir.startsWith("/") ? "Refset/" + exportDir + "/" : exportDir.substring(1) + "/";
 							String entryFilenamePrefix = (!entryDirectory.startsWith("Terminology/") ? "der2_" : "sct2_") + referenceSetType.getFieldTypes() + "Refset_" + referenceSetType.getName() + (refsetsOfThisType.size() > 1 ? refsetToExport : "");
-							int rowCount = exportComponents(
+							entries.add(exportComponents(
 									ReferenceSetMember.class,
 									entryDirectoryPrefix, entryDirectory,
 									entryFilenamePrefix,
 									filenameEffectiveDate,
 									exportType,
-									zipOutputStream,
-									mdrService.generateModuleDependencies(branchPath, transientEffectiveTime, moduleIds, exportType.equals(RF2Type.DELTA), null),
+									memberQuery,
 									transientEffectiveTime,
 									referenceSetType.getFieldNameList(),
 									codeSystemRF2Name,
-									exportFilter);
-							logger.info("Exported Reference Set {} {} with {} members", refsetToExport, referenceSetType.getName(), rowCount);
-						} else if (!refsetOnlyExport || refsetIds.contains(refsetToExport.toString())) {
-							BoolQueryBuilder memberQuery = getContentQuery(exportType, moduleIds, startEffectiveTime, memberBranchCriteria);
-							memberQuery.must(QueryBuilders.termQuery(ReferenceSetMember.Fields.REFSET_ID, refsetToExport));
-							long memberCount = elasticsearchTemplate.count(getNativeSearchQuery(memberQuery), ReferenceSetMember.class);
-							if (memberCount > 0) {
-								logger.info("Exporting Reference Set {} {} with {} members", refsetToExport, referenceSetType.getName(), memberCount);
-								String exportDir = referenceSetType.getExportDir();
-								String entryDirectory = !exportDir.startsWith("/") ? "Refset/" + exportDir + "/" : exportDir.substring(1) + "/";
-								String entryFilenamePrefix = (!entryDirectory.startsWith("Terminology/") ? "der2_" : "sct2_") + referenceSetType.getFieldTypes() + "Refset_" + referenceSetType.getName() + (refsetsOfThisType.size() > 1 ? refsetToExport : "");
-								exportComponents(
-										ReferenceSetMember.class,
-										entryDirectoryPrefix, entryDirectory,
-										entryFilenamePrefix,
-										filenameEffectiveDate,
-										exportType,
-										zipOutputStream,
-										memberQuery,
-										transientEffectiveTime,
-										referenceSetType.getFieldNameList(),
-										codeSystemRF2Name,
-										exportFilter);
-							}
+									exportFilter,
+									null));
 						}
 					}
 				}
 			}
 
+			// Finished rather than closed, the caller owns the output stream
+			ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+			// All entries get the same timestamp so the archive does not depend on how long each file took to write
+			long entryTime = startTime.getTime();
+			if (parallelFiles > 1 && entries.size() > 1) {
+				writeEntriesInParallel(entries, zipOutputStream, entryTime);
+			} else {
+				for (ExportEntry entry : entries) {
+					writeEntry(entry, zipOutputStream, entryTime);
+				}
+			}
+			zipOutputStream.finish();
+
 			logger.info("{} export of {}{} complete in {} seconds.", exportType, branchPath, exportStr, TimerUtil.secondsSince(startTime));
-			return exportFile;
-		} catch (IOException e) {
-			throw new ExportException("Failed to write RF2 zip file.", e);
 		} finally {
 			branchService.unlock(branchPath);
 		}
 	}
 
+	private void writeEntry(ExportEntry entry, ZipOutputStream zipOutputStream, long entryTime) throws IOException {
+		logger.info("Exporting file {}", entry.path);
+		// Open zip entry
+		zipOutputStream.putNextEntry(createZipEntry(entry.path, entryTime));
+		try {
+			entry.complete(entry.content.write(zipOutputStream));
+		} finally {
+			// Close zip entry
+			zipOutputStream.closeEntry();
+		}
+	}
+
+	/**
+	 * Fetches and writes the content of each entry concurrently, each into its own temporary file, then copies the files into the zip
+	 * in the same order as the sequential export. The number of entries in progress is limited by the thread count.
+	 * Entries are copied as soon as they and the entries before them are complete.
+	 */
+	private void writeEntriesInParallel(List<ExportEntry> entries, ZipOutputStream zipOutputStream, long entryTime) throws IOException {
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelFiles, entries.size()));
+		List<Future<File>> entryFiles = new ArrayList<>();
+		try {
+			for (ExportEntry entry : entries) {
+				entryFiles.add(executorService.submit(() -> {
+					logger.info("Exporting file {}", entry.path);
+					File entryFile = File.createTempFile("export-entry-", ".txt");
+					try (OutputStream entryOutputStream = new BufferedOutputStream(new FileOutputStream(entryFile))) {
+						entry.complete(entry.content.write(entryOutputStream));
+					} catch (IOException | RuntimeException e) {
+						Files.deleteIfExists(entryFile.toPath());
+						throw e;
+					}
+					return entryFile;
+				}));
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				File entryFile = getEntryFile(entryFiles.get(i), entries.get(i));
+				try {
+					zipOutputStream.putNextEntry(createZipEntry(entries.get(i).path, entryTime));
+					Files.copy(entryFile.toPath(), zipOutputStream);
+					zipOutputStream.closeEntry();
+				} finally {
+					Files.deleteIfExists(entryFile.toPath());
+				}
+			}
+		} finally {
+			executorService.shutdownNow();
+			// Clean up the files of any entries which completed after a failure
+			for (Future<File> entryFile : entryFiles) {
+				if (entryFile.isDone() && !entryFile.isCancelled()) {
+					try {
+						Files.deleteIfExists(entryFile.get().toPath());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (ExecutionException e) {
+						// Already reported
+					}
+				}
+			}
+		}
+	}
+
+	private File getEntryFile(Future<File> entryFile, ExportEntry entry) {
+		try {
+			return entryFile.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExportException("Interrupted while writing export zip entry '" + entry.path + "'", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ExportException) {
+				throw (ExportException) e.getCause();
+			}
+			throw new ExportException("Failed to write export zip entry '" + entry.path + "'", e.getCause());
+		}
+	}
+
+	private ZipEntry createZipEntry(String path, long entryTime) {
+		ZipEntry zipEntry = new ZipEntry(path);
+		zipEntry.setTime(entryTime);
+		return zipEntry;
+	}
+
 	public String getFilename(ExportConfiguration exportConfiguration) {
 		return format("snomed-%s-%s-%s.zip",
 				exportConfiguration.getBranchPath().replace("/", "_"),
@@ -308,6 +490,20 @@ public class ExportService {
 				exportConfiguration.getType().getName());
 	}
 
+	private BoolQueryBuilder restrictToJournal(BoolQueryBuilder contentQuery, UnreleasedComponentIds unreleasedComponentIds, Class<?> componentClass, String idField) {
+		if (unreleasedComponentIds != null) {
+			restrictToIds(contentQuery, unreleasedComponentIds.getIds(componentClass), idField);
+		}
+		return contentQuery;
+	}
+
+	private void restrictToIds(BoolQueryBuilder contentQuery, Set<String> ids, String idField) {
+		// Larger sets are left to the full search, the terms query would be rejected
+		if (ids.size() <= maxTermsCount) {
+			contentQuery.filter(termsQuery(idField, ids));
+		}
+	}
+
 	private BoolQueryBuilder getContentQuery(RF2Type exportType, Set<String> moduleIds, String startEffectiveTime, QueryBuilder branchCriteria) {
 		BoolQueryBuilder contentQuery = boolQuery().must(branchCriteria);
 		if (exportType == RF2Type.DELTA) {
@@ -326,30 +522,24 @@ public class ExportService {
 		return contentQuery;
 	}
 
-	private <T> int exportComponents(Class<T> componentClass, String entryDirectoryPrefix, String entryDirectory, String entryFilenamePrefix, String filenameEffectiveDate,
-			RF2Type exportType, ZipOutputStream zipOutputStream, BoolQueryBuilder contentQuery, String transientEffectiveTime, List<String> extraFieldNames, String codeSystemRF2Name, ExportFilter<T> exportFilter) {
+	private <T> ExportEntry exportComponents(Class<T> componentClass, String entryDirectoryPrefix, String entryDirectory, String entryFilenamePrefix, String filenameEffectiveDate,
+			RF2Type exportType, BoolQueryBuilder contentQuery, String transientEffectiveTime, List<String> extraFieldNames, String codeSystemRF2Name, ExportFilter<T> exportFilter,
+			IntConsumer linesWrittenConsumer) {
 
 		String componentFilePath = entryDirectoryPrefix + entryDirectory + entryFilenamePrefix + format("%s_%s_%s.txt", exportType.getName(), codeSystemRF2Name, filenameEffectiveDate);
-		logger.info("Exporting file {}", componentFilePath);
-		logger.info("Export filter is " + (exportFilter==null?"null" : "present"));
-		try {
-			// Open zip entry
-			zipOutputStream.putNextEntry(new ZipEntry(componentFilePath));
-
+		return new ExportEntry(componentFilePath, outputStream -> {
+			logger.info("Export filter is " + (exportFilter==null?"null" : "present"));
 			// Stream components into zip
-			try (ExportWriter<T> writer = getExportWriter(componentClass, zipOutputStream, extraFieldNames, entryFilenamePrefix.contains("Concrete"));
+			try (ExportWriter<T> writer = getExportWriter(componentClass, outputStream, extraFieldNames, entryFilenamePrefix.contains("Concrete"));
 					SearchHitsIterator<T> componentStream = elasticsearchTemplate.searchForStream(getNativeSearchQuery(contentQuery), componentClass)) {
 				writer.setTransientEffectiveTime(transientEffectiveTime);
 				writer.writeHeader();
 				componentStream.forEachRemaining(hit -> doFilteredWrite(exportFilter, writer, hit.getContent()));
 				return writer.getContentLinesWritten();
-			} finally {
-				// Close zip entry
-				zipOutputStream.closeEntry();
+			} catch (IOException e) {
+				throw new ExportException("Failed to write export zip entry '" + componentFilePath + "'", e);
 			}
-		} catch (IOException e) {
-			throw new ExportException("Failed to write export zip entry '" + componentFilePath + "'", e);
-		}
+		}, linesWrittenConsumer);
 	}
 
 	private <T> void doFilteredWrite(ExportFilter<T> exportFilter, ExportWriter<T> writer, T item) {
@@ -358,29 +548,22 @@ public class ExportService {
 		}
 	}
 
-	private <T> int exportComponents(Class<T> componentClass, String entryDirectoryPrefix, String entryDirectory, String entryFilenamePrefix, String filenameEffectiveDate,
-			RF2Type exportType, ZipOutputStream zipOutputStream, Set<T> components, String transientEffectiveTime, List<String> extraFieldNames, String codeSystemRF2Name,
-			ExportFilter<T> exportFilter) {
+	private <T> ExportEntry exportComponents(Class<T> componentClass, String entryDirectoryPrefix, String entryDirectory, String entryFilenamePrefix, String filenameEffectiveDate,
+			RF2Type exportType, Supplier<Set<T>> componentSupplier, String transientEffectiveTime, List<String> extraFieldNames, String codeSystemRF2Name,
+			ExportFilter<T> exportFilter, IntConsumer linesWrittenConsumer) {
 
 		String componentFilePath = entryDirectoryPrefix + entryDirectory + entryFilenamePrefix + format("%s_%s_%s.txt", exportType.getName(), codeSystemRF2Name, filenameEffectiveDate);
-		logger.info("Exporting file {}", componentFilePath);
-		try {
-			// Open zip entry
-			zipOutputStream.putNextEntry(new ZipEntry(componentFilePath));
-
+		return new ExportEntry(componentFilePath, outputStream -> {
 			// Stream components into zip
-			try (ExportWriter<T> writer = getExportWriter(componentClass, zipOutputStream, extraFieldNames, entryFilenamePrefix.contains("Concrete"))) {
+			try (ExportWriter<T> writer = getExportWriter(componentClass, outputStream, extraFieldNames, entryFilenamePrefix.contains("Concrete"))) {
 				writer.setTransientEffectiveTime(transientEffectiveTime);
 				writer.writeHeader();
-				components.forEach(c -> doFilteredWrite(exportFilter, writer, c));
+				componentSupplier.get().forEach(c -> doFilteredWrite(exportFilter, writer, c));
 				return writer.getContentLinesWritten();
-			} finally {
-				// Close zip entry
-				zipOutputStream.closeEntry();
+			} catch (IOException e) {
+				throw new ExportException("Failed to write export zip entry '" + componentFilePath + "'", e);
 			}
-		} catch (IOException e) {
-			throw new ExportException("Failed to write export zip entry '" + componentFilePath + "'", e);
-		}
+		}, linesWrittenConsumer);
 	}
 
 	private <T> ExportWriter<T> getExportWriter(Class<T> componentClass, OutputStream outputStream, List<String> extraFieldNames, boolean concrete) {
@@ -420,4 +603,29 @@ public class ExportService {
 		return new BufferedWriter(new OutputStreamWriter(outputStream));
 	}
 
+	// One file of the export archive
+	private static final class ExportEntry {
+
+		private final String path;
+		private final EntryContent content;
+		private final IntConsumer linesWrittenConsumer;
+
+		private ExportEntry(String path, EntryContent content, IntConsumer linesWrittenConsumer) {
+			this.path = path;
+			this.content = content;
+			this.linesWrittenConsumer = linesWrittenConsumer;
+		}
+
+		private void complete(int linesWritten) {
+			if (linesWrittenConsumer != null) {
+				linesWrittenConsumer.accept(linesWritten);
+			}
+		}
+	}
+
+	private interface EntryContent {
+		// Returns the number of content lines written
+		int write(OutputStream outputStream) throws IOException;
+	}
+
 }
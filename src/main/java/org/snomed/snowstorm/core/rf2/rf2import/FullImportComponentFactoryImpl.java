@@ -2,25 +2,38 @@ package org.snomed.snowstorm.core.rf2.rf2import;
 
 import io.kaicode.elasticvc.api.BranchService;
 import org.ihtsdo.otf.snomedboot.factory.HistoryAwareComponentFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.snomed.snowstorm.core.data.services.BranchMetadataHelper;
 import org.snomed.snowstorm.core.data.services.CodeSystemService;
 import org.snomed.snowstorm.core.data.services.ConceptUpdateHelper;
 import org.snomed.snowstorm.core.data.services.ReferenceSetMemberService;
 
+import java.util.Map;
+import java.util.function.BiConsumer;
+
 public class FullImportComponentFactoryImpl extends ImportComponentFactoryImpl implements HistoryAwareComponentFactory {
 
 	private final String basePath;
 	private final BranchMetadataHelper branchMetadataHelper;
 	private final CodeSystemService codeSystemService;
 	private final String stopImportAfterEffectiveTime;
+	private final String resumeAfterRelease;
+	private final BiConsumer<String, Map<String, Long>> releaseCompletedListener;
+	private boolean skippingRelease;
+
+	private static final Logger logger = LoggerFactory.getLogger(FullImportComponentFactoryImpl.class);
 
 	FullImportComponentFactoryImpl(ConceptUpdateHelper conceptUpdateHelper, ReferenceSetMemberService memberService, BranchService branchService,
-			BranchMetadataHelper branchMetadataHelper, CodeSystemService codeSystemService, String path, String stopImportAfterEffectiveTime) {
-		super(conceptUpdateHelper, memberService, branchService, branchMetadataHelper, path, null, false, false);
+			BranchMetadataHelper branchMetadataHelper, CodeSystemService codeSystemService, String path, String stopImportAfterEffectiveTime, int persistThreads,
+			int persistBatchSize, String resumeAfterRelease, BiConsumer<String, Map<String, Long>> releaseCompletedListener) {
+		super(conceptUpdateHelper, memberService, branchService, branchMetadataHelper, path, null, false, false, persistThreads, persistBatchSize);
 		this.branchMetadataHelper = branchMetadataHelper;
 		this.basePath = path;
 		this.stopImportAfterEffectiveTime = stopImportAfterEffectiveTime;
 		this.codeSystemService = codeSystemService;
+		this.resumeAfterRelease = resumeAfterRelease;
+		this.releaseCompletedListener = releaseCompletedListener;
 
 		// There is no need to skip these stated relationships when importing the full
 		// because they will first be imported as stated then changed to inferred at a later effectiveTime.
@@ -29,17 +42,31 @@ public class FullImportComponentFactoryImpl extends ImportComponentFactoryImpl i
 
 	@Override
 	public void loadingReleaseDeltaStarting(String releaseDate) {
+		// Each release is committed separately so releases committed by an earlier attempt of this import are not loaded again
+		skippingRelease = resumeAfterRelease != null && releaseDate.compareTo(resumeAfterRelease) <= 0;
+		if (skippingRelease) {
+			logger.info("Skipping release {} which was imported by an earlier attempt.", releaseDate);
+			return;
+		}
 		setCommit(getBranchService().openCommit(basePath, branchMetadataHelper.getBranchLockMetadata("Loading components from RF2 Delta import.")));
 	}
 
 	@Override
 	public void loadingReleaseDeltaFinished(String releaseDate) {
+		if (skippingRelease) {
+			skippingRelease = false;
+			return;
+		}
 		completeImportCommit();
 
 		// Create codesystem version if there is one on this path
 		int effectiveDate = Integer.parseInt(releaseDate);
 		codeSystemService.createVersionIfCodeSystemFoundOnPath(basePath, effectiveDate, false);
 
+		if (releaseCompletedListener != null) {
+			releaseCompletedListener.accept(releaseDate, getComponentCounts());
+		}
+
 		if (stopImportAfterEffectiveTime != null && stopImportAfterEffectiveTime.equals(releaseDate)) {
 			throw new RuntimeException("Stopping import here after " + stopImportAfterEffectiveTime);
 		}
@@ -48,6 +75,45 @@ public class FullImportComponentFactoryImpl extends ImportComponentFactoryImpl i
 		coreComponentsFlushed = false;
 	}
 
+	@Override
+	public void newConceptState(String conceptId, String effectiveTime, String active, String moduleId, String definitionStatusId) {
+		if (!skippingRelease) {
+			super.newConceptState(conceptId, effectiveTime, active, moduleId, definitionStatusId);
+		}
+	}
+
+	@Override
+	public void newRelationshipState(String id, String effectiveTime, String active, String moduleId, String sourceId, String destinationId,
+			String relationshipGroup, String typeId, String characteristicTypeId, String modifierId) {
+		if (!skippingRelease) {
+			super.newRelationshipState(id, effectiveTime, active, moduleId, sourceId, destinationId, relationshipGroup, typeId, characteristicTypeId, modifierId);
+		}
+	}
+
+	@Override
+	public void newConcreteRelationshipState(String id, String effectiveTime, String active, String moduleId, String sourceId, String value,
+			String relationshipGroup, String typeId, String characteristicTypeId, String modifierId) {
+		if (!skippingRelease) {
+			super.newConcreteRelationshipState(id, effectiveTime, active, moduleId, sourceId, value, relationshipGroup, typeId, characteristicTypeId, modifierId);
+		}
+	}
+
+	@Override
+	public void newDescriptionState(String id, String effectiveTime, String active, String moduleId, String conceptId, String languageCode,
+			String typeId, String term, String caseSignificanceId) {
+		if (!skippingRelease) {
+			super.newDescriptionState(id, effectiveTime, active, moduleId, conceptId, languageCode, typeId, term, caseSignificanceId);
+		}
+	}
+
+	@Override
+	public void newReferenceSetMemberState(String[] fieldNames, String id, String effectiveTime, String active, String moduleId, String refsetId,
+			String referencedComponentId, String... otherValues) {
+		if (!skippingRelease) {
+			super.newReferenceSetMemberState(fieldNames, id, effectiveTime, active, moduleId, refsetId, referencedComponentId, otherValues);
+		}
+	}
+
 	@Override
 	public void loadingComponentsStarting() {
 		// Nothing to do
@@ -13,13 +13,14 @@ import org.snomed.snowstorm.core.data.domain.*;
 import org.snomed.snowstorm.core.data.services.BranchMetadataHelper;
 import org.snomed.snowstorm.core.data.services.ConceptUpdateHelper;
 import org.snomed.snowstorm.core.data.services.ReferenceSetMemberService;
+import org.snomed.snowstorm.core.data.services.RuntimeServiceException;
 import org.snomed.snowstorm.core.rf2.RF2Constants;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -30,7 +31,7 @@ import static org.elasticsearch.index.query.QueryBuilders.*;
 
 public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 
-	private static final int FLUSH_INTERVAL = 5000;
+	private static final long ABORT_WAIT_MINUTES = 10;
 
 	private final BranchService branchService;
 	private final BranchMetadataHelper branchMetadataHelper;
@@ -46,18 +47,24 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 	private final List<PersistBuffer<?>> persistBuffers;
 	private final List<PersistBuffer<?>> coreComponentPersistBuffers;
 	private final MaxEffectiveTimeCollector maxEffectiveTimeCollector;
-	private final Map<String, AtomicLong> componentTypeSkippedMap = new HashMap<>();
+	private final Map<String, AtomicLong> componentTypeSkippedMap = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> componentTypeImportedMap = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Boolean> componentTypeExistsMap = new ConcurrentHashMap<>();
+	private final int persistThreads;
+	private final int persistBatchSize;
 
 	private static final Logger logger = LoggerFactory.getLogger(ImportComponentFactoryImpl.class);
 
 	// A small number of stated relationships also appear in the inferred file. These should not be persisted when importing a snapshot.
 	Set<Long> statedRelationshipsToSkip = Sets.newHashSet(3187444026L, 3192499027L, 3574321020L);
-	boolean coreComponentsFlushed;
+	volatile boolean coreComponentsFlushed;
 
 	ImportComponentFactoryImpl(ConceptUpdateHelper conceptUpdateHelper, ReferenceSetMemberService memberService, BranchService branchService,
-			BranchMetadataHelper branchMetadataHelper, String path, Integer patchReleaseVersion, boolean copyReleaseFields, boolean clearEffectiveTimes) {
+			BranchMetadataHelper branchMetadataHelper, String path, Integer patchReleaseVersion, boolean copyReleaseFields, boolean clearEffectiveTimes, int persistThreads, int persistBatchSize) {
 
 		this.branchService = branchService;
+		this.persistThreads = persistThreads;
+		this.persistBatchSize = persistBatchSize;
 		this.branchMetadataHelper = branchMetadataHelper;
 		this.path = path;
 		persistBuffers = new ArrayList<>();
@@ -71,7 +78,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 			public void persistCollection(Collection<Concept> entities) {
 				processEntities(entities, patchReleaseVersion, elasticsearchTemplate, Concept.class, copyReleaseFields, clearEffectiveTimes);
 				if (!entities.isEmpty()) {
-					conceptUpdateHelper.doSaveBatchConcepts(entities, commit);
+					saveBatch(() -> conceptUpdateHelper.doSaveBatchConcepts(entities, commit));
 				}
 			}
 		};
@@ -82,7 +89,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 			public void persistCollection(Collection<Description> entities) {
 				processEntities(entities, patchReleaseVersion, elasticsearchTemplate, Description.class, copyReleaseFields, clearEffectiveTimes);
 				if (!entities.isEmpty()) {
-					conceptUpdateHelper.doSaveBatchDescriptions(entities, commit);
+					saveBatch(() -> conceptUpdateHelper.doSaveBatchDescriptions(entities, commit));
 				}
 			}
 		};
@@ -93,7 +100,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 			public void persistCollection(Collection<Relationship> entities) {
 				processEntities(entities, patchReleaseVersion, elasticsearchTemplate, Relationship.class, copyReleaseFields, clearEffectiveTimes);
 				if (!entities.isEmpty()) {
-					conceptUpdateHelper.doSaveBatchRelationships(entities, commit);
+					saveBatch(() -> conceptUpdateHelper.doSaveBatchRelationships(entities, commit));
 				}
 			}
 		};
@@ -103,7 +110,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 			@Override
 			public void persistCollection(Collection<ReferenceSetMember> entities) {
 				if (!coreComponentsFlushed) { // Avoid having to sync to check this
-					synchronized (this) {
+					synchronized (coreComponentPersistBuffers) {
 						if (!coreComponentsFlushed) {
 							coreComponentPersistBuffers.forEach(PersistBuffer::flush);
 							coreComponentsFlushed = true;
@@ -112,7 +119,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 				}
 				processEntities(entities, patchReleaseVersion, elasticsearchTemplate, ReferenceSetMember.class, copyReleaseFields, clearEffectiveTimes);
 				if (!entities.isEmpty()) {
-					memberService.doSaveBatchMembers(entities, commit);
+					saveBatch(() -> memberService.doSaveBatchMembers(entities, commit));
 				}
 			}
 		};
@@ -142,32 +149,39 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 			}
 		});
 		// patchReleaseVersion=-1 is a special case which allows replacing any effectiveTime
-		if (patchReleaseVersion == null || !patchReleaseVersion.equals(-1)) {
-			for (Integer effectiveTime : new TreeSet<>(effectiveDateMap.keySet())) {
-				// Find component states with an equal or greater effective time
-				boolean replacementOfThisEffectiveTimeAllowed = patchReleaseVersion != null && patchReleaseVersion.equals(effectiveTime);
-				List<T> componentsAtDate = effectiveDateMap.get(effectiveTime);
-				String idField = componentsAtDate.get(0).getIdField();
-				AtomicInteger alreadyExistingComponentCount = new AtomicInteger();
-				try (SearchHitsIterator<T> componentsWithSameOrLaterEffectiveTime = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
-						.withQuery(boolQuery()
-								.must(branchCriteriaBeforeOpenCommit.getEntityBranchCriteria(componentClass))
-								.must(termsQuery(idField, componentsAtDate.stream().map(T::getId).collect(Collectors.toList())))
-								.must(replacementOfThisEffectiveTimeAllowed ?
-										rangeQuery(SnomedComponent.Fields.EFFECTIVE_TIME).gt(effectiveTime)
-										: rangeQuery(SnomedComponent.Fields.EFFECTIVE_TIME).gte(effectiveTime)))
-						.withFields(idField)// Only fetch the id
-						.withPageable(LARGE_PAGE)
-						.build(), componentClass)) {
-					componentsWithSameOrLaterEffectiveTime.forEachRemaining(hit -> {
-						// Skip component import
-						components.remove(hit.getContent());// Compared by id only
-						alreadyExistingComponentCount.incrementAndGet();
-					});
-				}
-				componentTypeSkippedMap.computeIfAbsent(componentClass.getSimpleName(), key -> new AtomicLong()).addAndGet(alreadyExistingComponentCount.get());
+		if ((patchReleaseVersion == null || !patchReleaseVersion.equals(-1)) && !effectiveDateMap.isEmpty() && componentTypeExists(componentClass, elasticsearchTemplate)) {
+			// Find component states with an equal or greater effective time, for all effective times in the batch at once
+			Map<String, T> idToComponentMap = new HashMap<>();
+			effectiveDateMap.values().forEach(componentsAtDate -> componentsAtDate.forEach(component -> idToComponentMap.put(component.getId(), component)));
+			String idField = idToComponentMap.values().iterator().next().getIdField();
+			Set<String> idsToSkip = new HashSet<>();
+			try (SearchHitsIterator<T> componentsWithSameOrLaterEffectiveTime = elasticsearchTemplate.searchForStream(new NativeSearchQueryBuilder()
+					.withQuery(boolQuery()
+							.must(branchCriteriaBeforeOpenCommit.getEntityBranchCriteria(componentClass))
+							.must(termsQuery(idField, idToComponentMap.keySet()))
+							.must(rangeQuery(SnomedComponent.Fields.EFFECTIVE_TIME).gte(Collections.min(effectiveDateMap.keySet()))))
+					.withFields(idField, SnomedComponent.Fields.EFFECTIVE_TIME)// Only fetch the id and effective time
+					.withPageable(LARGE_PAGE)
+					.build(), componentClass)) {
+				componentsWithSameOrLaterEffectiveTime.forEachRemaining(hit -> {
+					T component = idToComponentMap.get(hit.getContent().getId());
+					Integer existingEffectiveTime = hit.getContent().getEffectiveTimeI();
+					if (component != null && existingEffectiveTime != null) {
+						int effectiveTime = component.getEffectiveTimeI();
+						boolean replacementOfThisEffectiveTimeAllowed = patchReleaseVersion != null && patchReleaseVersion.equals(effectiveTime);
+						if (replacementOfThisEffectiveTimeAllowed ? existingEffectiveTime > effectiveTime : existingEffectiveTime >= effectiveTime) {
+							idsToSkip.add(component.getId());
+						}
+					}
+				});
+			}
+			if (!idsToSkip.isEmpty()) {
+				// Skip component import
+				components.removeIf(component -> idsToSkip.contains(component.getId()));
 			}
+			componentTypeSkippedMap.computeIfAbsent(componentClass.getSimpleName(), key -> new AtomicLong()).addAndGet(idsToSkip.size());
 		}
+		componentTypeImportedMap.computeIfAbsent(componentClass.getSimpleName(), key -> new AtomicLong()).addAndGet(components.size());
 		if (copyReleaseFields) {
 			Map<String, T> idToUnreleasedComponentMap = components.stream().filter(component -> component.getEffectiveTime() == null).collect(Collectors.toMap(T::getId, Function.identity()));
 			if (!idToUnreleasedComponentMap.isEmpty()) {
@@ -191,6 +205,13 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 		}
 	}
 
+	// When the branch has no components of this type, for example during the first import, there is nothing to skip
+	private boolean componentTypeExists(Class<?> componentClass, ElasticsearchOperations elasticsearchTemplate) {
+		return componentTypeExistsMap.computeIfAbsent(componentClass, type -> elasticsearchTemplate.count(new NativeSearchQueryBuilder()
+				.withQuery(branchCriteriaBeforeOpenCommit.getEntityBranchCriteria(type))
+				.build(), type) > 0);
+	}
+
 	@Override
 	public void loadingComponentsStarting() {
 		setCommit(branchService.openCommit(path, branchMetadataHelper.getBranchLockMetadata("Loading components from RF2 import.")));
@@ -199,6 +220,7 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 	protected void setCommit(Commit commit) {
 		this.commit = commit;
 		branchCriteriaBeforeOpenCommit = versionControlHelper.getBranchCriteriaBeforeOpenCommit(commit);
+		componentTypeExistsMap.clear();
 	}
 
 	@Override
@@ -212,7 +234,15 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 				logger.info("{} components of type {} were not imported from RF2 because a newer version was found.", componentTypeSkippedMap.get(type).get(), type);
 			}
 		}
-		persistBuffers.forEach(PersistBuffer::flush);
+		boolean flushed = false;
+		try {
+			persistBuffers.forEach(PersistBuffer::flush);
+			flushed = true;
+		} finally {
+			if (!flushed) {
+				abortPersisting();
+			}
+		}
 		commit.markSuccessful();
 		commit.close();
 		commit = null;
@@ -301,6 +331,15 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 		return maxEffectiveTimeCollector.getMaxEffectiveTime();
 	}
 
+	/**
+	 * @return the number of components of each type passed for saving so far, after skipping components which already exist.
+	 */
+	Map<String, Long> getComponentCounts() {
+		Map<String, Long> componentCounts = new TreeMap<>();
+		componentTypeImportedMap.forEach((type, count) -> componentCounts.put(type, count.get()));
+		return componentCounts;
+	}
+
 	protected BranchService getBranchService() {
 		return branchService;
 	}
@@ -313,9 +352,33 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 		return commit;
 	}
 
+	/**
+	 * Stops persisting in every buffer and waits for batches which are already saving.
+	 * Must be called before a failed commit is closed, so that no components are written after the rollback.
+	 */
+	void abortPersisting() {
+		for (PersistBuffer<?> persistBuffer : persistBuffers) {
+			try {
+				persistBuffer.abort();
+			} catch (RuntimeException e) {
+				logger.error("Failed to stop persisting imported components.", e);
+			}
+		}
+	}
+
+	/**
+	 * Collects components of one type and persists them in batches on a pool of worker threads, so that reading the RF2 files
+	 * continues while earlier batches are checked and saved. The number of batches waiting or running is limited.
+	 * Batches of the same type are checked in parallel but saved one at a time.
+	 */
 	private abstract class PersistBuffer<E extends Entity> {
 
 		private List<E> entities = new ArrayList<>();
+		private final Queue<Future<?>> pendingBatches = new ConcurrentLinkedQueue<>();
+		private final Semaphore batchPermits = new Semaphore(persistThreads * 2);
+		private final Object saveLock = new Object();
+		private volatile ExecutorService executorService;
+		private volatile boolean aborted;
 
 		PersistBuffer() {
 			persistBuffers.add(this);
@@ -323,14 +386,101 @@ public class ImportComponentFactoryImpl extends ImpotentComponentFactory {
 
 		synchronized void save(E entity) {
 			entities.add(entity);
-			if (entities.size() >= FLUSH_INTERVAL) {
-				flush();
+			if (entities.size() >= persistBatchSize) {
+				submitBatch();
 			}
 		}
 
 		synchronized void flush() {
-			persistCollection(entities);
-			entities.clear();
+			submitBatch();
+			while (!pendingBatches.isEmpty()) {
+				waitForBatch(pendingBatches.poll());
+			}
+			// Threads are not kept between loading phases. After a failure the threads are stopped by abort.
+			if (executorService != null) {
+				executorService.shutdown();
+				executorService = null;
+			}
+		}
+
+		// Not synchronized, another thread may be waiting for a batch in flush
+		void abort() {
+			aborted = true;
+			Future<?> batch;
+			while ((batch = pendingBatches.poll()) != null) {
+				batch.cancel(true);
+			}
+			// Batches cancelled before they started never release their permit
+			batchPermits.release(persistThreads * 2);
+			ExecutorService executor = executorService;
+			executorService = null;
+			if (executor != null) {
+				executor.shutdownNow();
+				try {
+					if (!executor.awaitTermination(ABORT_WAIT_MINUTES, TimeUnit.MINUTES)) {
+						logger.error("Imported components were still being saved {} minutes after the import failed.", ABORT_WAIT_MINUTES);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void submitBatch() {
+			if (aborted) {
+				throw new IllegalStateException("Persisting imported components has been stopped.");
+			}
+			if (entities.isEmpty()) {
+				return;
+			}
+			if (executorService == null) {
+				executorService = Executors.newFixedThreadPool(persistThreads);
+			}
+			List<E> batch = entities;
+			entities = new ArrayList<>();
+			try {
+				batchPermits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeServiceException("Interrupted while waiting to persist imported components.", e);
+			}
+			try {
+				pendingBatches.add(executorService.submit(() -> {
+					try {
+						persistCollection(batch);
+					} finally {
+						batchPermits.release();
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				batchPermits.release();
+				throw e;
+			}
+			// Fail fast if an earlier batch failed
+			while (!pendingBatches.isEmpty() && pendingBatches.peek().isDone()) {
+				waitForBatch(pendingBatches.poll());
+			}
+		}
+
+		private void waitForBatch(Future<?> batch) {
+			try {
+				batch.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeServiceException("Interrupted while persisting imported components.", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeServiceException("Failed to persist imported components.", e.getCause());
+			}
+		}
+
+		// The commit is not updated concurrently for one component type
+		void saveBatch(Runnable saveOperation) {
+			synchronized (saveLock) {
+				saveOperation.run();
+			}
 		}
 
 		abstract void persistCollection(Collection<E> entities);
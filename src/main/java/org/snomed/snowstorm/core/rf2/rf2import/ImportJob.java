@@ -3,6 +3,7 @@ package org.snomed.snowstorm.core.rf2.rf2import;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.snomed.snowstorm.core.rf2.RF2Type;
 
+import java.util.Map;
 import java.util.Set;
 
 public class ImportJob {
@@ -22,6 +23,14 @@ public class ImportJob {
 
 	private String errorMessage;
 
+	private String archiveChecksum;
+
+	private String resumedAfterRelease;
+
+	private String lastCompletedRelease;
+
+	private Map<String, Long> componentCounts;
+
 	public void setStatus(ImportStatus status) {
 		this.status = status;
 	}
@@ -66,4 +75,37 @@ public class ImportJob {
 	public String getErrorMessage() {
 		return errorMessage;
 	}
+
+	@JsonIgnore
+	public String getArchiveChecksum() {
+		return archiveChecksum;
+	}
+
+	public void setArchiveChecksum(String archiveChecksum) {
+		this.archiveChecksum = archiveChecksum;
+	}
+
+	public String getResumedAfterRelease() {
+		return resumedAfterRelease;
+	}
+
+	public void setResumedAfterRelease(String resumedAfterRelease) {
+		this.resumedAfterRelease = resumedAfterRelease;
+	}
+
+	public String getLastCompletedRelease() {
+		return lastCompletedRelease;
+	}
+
+	public void setLastCompletedRelease(String lastCompletedRelease) {
+		this.lastCompletedRelease = lastCompletedRelease;
+	}
+
+	public Map<String, Long> getComponentCounts() {
+		return componentCounts;
+	}
+
+	public void setComponentCounts(Map<String, Long> componentCounts) {
+		this.componentCounts = componentCounts;
+	}
 }
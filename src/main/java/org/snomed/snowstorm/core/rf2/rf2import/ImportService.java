@@ -1,5 +1,6 @@
 package org.snomed.snowstorm.core.rf2.rf2import;
 
+import com.google.common.hash.Hashing;
 import io.kaicode.elasticvc.api.BranchService;
 import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
@@ -13,6 +14,7 @@ import org.snomed.snowstorm.core.data.domain.CodeSystem;
 import org.snomed.snowstorm.core.data.services.*;
 import org.snomed.snowstorm.core.rf2.RF2Type;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -25,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
 
 import static org.snomed.snowstorm.core.data.services.BranchMetadataHelper.*;
 import static org.snomed.snowstorm.core.rf2.RF2Type.FULL;
@@ -33,6 +36,10 @@ import static org.snomed.snowstorm.core.rf2.RF2Type.FULL;
 public class ImportService {
 
 	public static final String IMPORT_TYPE_KEY = "importType";
+	// Last release committed by a FULL import, kept if the import fails so that a retry of the same job with the same archive can resume after it
+	public static final String IMPORT_COMPLETED_RELEASE_KEY = "importCompletedRelease";
+	public static final String IMPORT_CHECKPOINT_JOB_KEY = "importCheckpointJob";
+	public static final String IMPORT_CHECKPOINT_ARCHIVE_KEY = "importCheckpointArchive";
 
 	public static final String BATCH_CHANGE_KEY = "batch-change";
 
@@ -58,6 +65,12 @@ public class ImportService {
 	@Autowired
 	private CodeSystemService codeSystemService;
 
+	@Value("${import.persist-threads}")
+	private int persistThreads;
+
+	@Value("${import.persist-batch-size}")
+	private int persistBatchSize;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public ImportService() {
@@ -92,14 +105,28 @@ public class ImportService {
 	}
 
 	public void importArchive(String importId, InputStream releaseFileStream) throws ReleaseImportException {
+		importArchive(importId, releaseFileStream, null);
+	}
+
+	/**
+	 * @param archiveChecksum Checksum of the archive, if known. A FULL import only records checkpoints when this is known.
+	 *                        Uploading an archive again for a failed FULL import job retries the job. The retry resumes after the last release committed
+	 *                        only if the checkpoint belongs to this job and the archive has the same checksum.
+	 */
+	void importArchive(String importId, InputStream releaseFileStream, String archiveChecksum) throws ReleaseImportException {
 		ImportJob job = getJob(importId);
-		if (job.getStatus() != ImportJob.ImportStatus.WAITING_FOR_FILE) {
-			throw new IllegalStateException("Import Job must be in state " + ImportJob.ImportStatus.WAITING_FOR_FILE);
+		boolean retry = job.getStatus() == ImportJob.ImportStatus.FAILED && job.getType() == FULL;
+		if (job.getStatus() != ImportJob.ImportStatus.WAITING_FOR_FILE && !retry) {
+			throw new IllegalStateException("Import Job must be in state " + ImportJob.ImportStatus.WAITING_FOR_FILE + ", or " +
+					ImportJob.ImportStatus.FAILED + " to retry a FULL import.");
 		}
 		RF2Type importType = job.getType();
 		String branchPath = job.getBranchPath();
 		Integer patchReleaseVersion = job.getPatchReleaseVersion();
+		job.setArchiveChecksum(archiveChecksum);
+		job.setResumedAfterRelease(getResumeCheckpoint(importId, branchPath, archiveChecksum, retry));
 		setImportMetadata(importType, branchPath, job.isCreateCodeSystemVersion());
+		boolean completed = false;
 		try {
 			Date start = new Date();
 			logger.info("Starting RF2 {}{} import on branch {}. ID {}", importType, patchReleaseVersion != null ? " RELEASE PATCH on effectiveTime " + patchReleaseVersion : "", branchPath, importId);
@@ -108,7 +135,7 @@ public class ImportService {
 			LoadingProfile loadingProfile = DEFAULT_LOADING_PROFILE
 					.withModuleIds(job.getModuleIds().toArray(new String[]{}));
 
-			final Integer maxEffectiveTime = importFiles(releaseFileStream, job, importType, branchPath, patchReleaseVersion, new ReleaseImporter(), loadingProfile);
+			final Integer maxEffectiveTime = importFiles(importId, releaseFileStream, job, importType, branchPath, patchReleaseVersion, new ReleaseImporter(), loadingProfile);
 
 			if (job.isCreateCodeSystemVersion() && importType != FULL && maxEffectiveTime != null) {
 				// Create Code System version if a code system exists on this path
@@ -116,6 +143,7 @@ public class ImportService {
 			}
 
 			job.setStatus(ImportJob.ImportStatus.COMPLETED);
+			completed = true;
 			long seconds = (new Date().getTime() - start.getTime()) / 1_000;
 			logger.info("Completed RF2 {} import on branch {} in {} seconds. ID {}", importType, branchPath, seconds, importId);
 		} catch (Exception e) {
@@ -123,7 +151,7 @@ public class ImportService {
 			job.setStatus(ImportJob.ImportStatus.FAILED);
 			throw e;
 		} finally {
-			clearImportMetadata(branchPath);
+			clearImportMetadata(branchPath, completed);
 		}
 	}
 
@@ -132,6 +160,7 @@ public class ImportService {
 	 * If an <code>importType</code> is passed in which is not associated to an {@link RF2Type}, then
 	 * an {@code IllegalStateException} will be thrown.
 	 *
+	 * @param importId            Identifier of the import job.
 	 * @param releaseFileStream   The release ZIP files.
 	 * @param job                 Used to determine whether <code>org.snomed.snowstorm.core.rf2.rf2import.ImportJob#isCreateCodeSystemVersion() == false</code>
 	 *                            and if <code>org.snomed.snowstorm.core.rf2.rf2import.ImportJob#isClearEffectiveTimes() == true</code> when
@@ -149,7 +178,7 @@ public class ImportService {
 	 * @see RF2Type#SNAPSHOT
 	 * @see RF2Type#FULL
 	 */
-	private Integer importFiles(final InputStream releaseFileStream, final ImportJob job, final RF2Type importType, final String branchPath, final Integer patchReleaseVersion,
+	private Integer importFiles(final String importId, final InputStream releaseFileStream, final ImportJob job, final RF2Type importType, final String branchPath, final Integer patchReleaseVersion,
 			final ReleaseImporter releaseImporter, final LoadingProfile loadingProfile) throws ReleaseImportException {
 		switch (importType) {
 			case DELTA:
@@ -157,7 +186,7 @@ public class ImportService {
 			case SNAPSHOT:
 				return snapshotImport(releaseFileStream, job, branchPath, patchReleaseVersion, releaseImporter, loadingProfile);
 			case FULL:
-				return fullImport(releaseFileStream, branchPath, releaseImporter, loadingProfile);
+				return fullImport(importId, releaseFileStream, job, branchPath, releaseImporter, loadingProfile);
 			default:
 				throw new IllegalStateException("Unexpected import type: " + importType);
 		}
@@ -182,24 +211,75 @@ public class ImportService {
 		branchService.updateMetadata(branchPath, metadata);
 	}
 
-	private void clearImportMetadata(String branchPath) {
+	private void clearImportMetadata(String branchPath, boolean completed) {
 		Metadata metadata = branchService.findLatest(branchPath).getMetadata();
 		final Map<String, String> internalMetadataMap = metadata.getMapOrCreate(INTERNAL_METADATA_KEY);
 		internalMetadataMap.remove(IMPORT_TYPE_KEY);
 		internalMetadataMap.remove(IMPORTING_CODE_SYSTEM_VERSION);
+		if (completed) {
+			removeCheckpoint(internalMetadataMap);
+		}
+		branchService.updateMetadata(branchPath, metadata);
+	}
+
+	/**
+	 * Returns the release to resume after if this is a retry of the job which recorded the checkpoint on the branch, using the same archive.
+	 * Otherwise any checkpoint on the branch is removed because a new import has started.
+	 */
+	private String getResumeCheckpoint(String importId, String branchPath, String archiveChecksum, boolean retry) {
+		Metadata metadata = branchService.findLatest(branchPath).getMetadata();
+		final Map<String, String> internalMetadataMap = metadata.getMapOrCreate(INTERNAL_METADATA_KEY);
+		String completedRelease = internalMetadataMap.get(IMPORT_COMPLETED_RELEASE_KEY);
+		if (completedRelease == null) {
+			return null;
+		}
+		if (retry && archiveChecksum != null && importId.equals(internalMetadataMap.get(IMPORT_CHECKPOINT_JOB_KEY))
+				&& archiveChecksum.equals(internalMetadataMap.get(IMPORT_CHECKPOINT_ARCHIVE_KEY))) {
+			logger.info("Resuming RF2 FULL import {} on branch {} after release {}.", importId, branchPath, completedRelease);
+			return completedRelease;
+		}
+		logger.info("Removing checkpoint of import {} after release {} from branch {}, not resuming.",
+				internalMetadataMap.get(IMPORT_CHECKPOINT_JOB_KEY), completedRelease, branchPath);
+		removeCheckpoint(internalMetadataMap);
 		branchService.updateMetadata(branchPath, metadata);
+		return null;
+	}
+
+	private void removeCheckpoint(Map<String, String> internalMetadataMap) {
+		internalMetadataMap.remove(IMPORT_COMPLETED_RELEASE_KEY);
+		internalMetadataMap.remove(IMPORT_CHECKPOINT_JOB_KEY);
+		internalMetadataMap.remove(IMPORT_CHECKPOINT_ARCHIVE_KEY);
 	}
 
-	private Integer fullImport(final InputStream releaseFileStream, final String branchPath, final ReleaseImporter releaseImporter,
+	private void recordCompletedRelease(String importId, ImportJob job, String branchPath, String releaseDate, Map<String, Long> componentCounts) {
+		// Without a checksum a retry could not tell whether it has the same archive, so no checkpoint is recorded
+		if (job.getArchiveChecksum() != null) {
+			Metadata metadata = branchService.findLatest(branchPath).getMetadata();
+			final Map<String, String> internalMetadataMap = metadata.getMapOrCreate(INTERNAL_METADATA_KEY);
+			internalMetadataMap.put(IMPORT_COMPLETED_RELEASE_KEY, releaseDate);
+			internalMetadataMap.put(IMPORT_CHECKPOINT_JOB_KEY, importId);
+			internalMetadataMap.put(IMPORT_CHECKPOINT_ARCHIVE_KEY, job.getArchiveChecksum());
+			branchService.updateMetadata(branchPath, metadata);
+		}
+		job.setLastCompletedRelease(releaseDate);
+		job.setComponentCounts(componentCounts);
+	}
+
+	private Integer fullImport(final String importId, final InputStream releaseFileStream, final ImportJob job, final String branchPath, final ReleaseImporter releaseImporter,
 			final LoadingProfile loadingProfile) throws ReleaseImportException {
 
-		final FullImportComponentFactoryImpl importComponentFactory = getFullImportComponentFactory(branchPath);
+		// Resume after the last release committed by an earlier attempt of this job, set only when retrying with the same archive
+		final FullImportComponentFactoryImpl importComponentFactory = getFullImportComponentFactory(branchPath, job.getResumedAfterRelease(),
+				(releaseDate, componentCounts) -> recordCompletedRelease(importId, job, branchPath, releaseDate, componentCounts));
+		boolean loaded = false;
 		try {
 			releaseImporter.loadFullReleaseFiles(releaseFileStream, loadingProfile, importComponentFactory);
+			loaded = true;
 			return null;
-		} catch (ReleaseImportException e) {
-			rollbackIncompleteCommit(importComponentFactory);
-			throw e;
+		} finally {
+			if (!loaded) {
+				rollbackIncompleteCommit(importComponentFactory);
+			}
 		}
 	}
 
@@ -209,12 +289,16 @@ public class ImportService {
 		// If we are not creating a new version copy the release fields from the existing components
 		final ImportComponentFactoryImpl importComponentFactory =
 				getImportComponentFactory(branchPath, patchReleaseVersion, !job.isCreateCodeSystemVersion(), job.isClearEffectiveTimes());
+		boolean loaded = false;
 		try {
 			releaseImporter.loadSnapshotReleaseFiles(releaseFileStream, loadingProfile, importComponentFactory);
+			loaded = true;
+			job.setComponentCounts(importComponentFactory.getComponentCounts());
 			return importComponentFactory.getMaxEffectiveTime();
-		} catch (ReleaseImportException e) {
-			rollbackIncompleteCommit(importComponentFactory);
-			throw e;
+		} finally {
+			if (!loaded) {
+				rollbackIncompleteCommit(importComponentFactory);
+			}
 		}
 	}
 
@@ -224,32 +308,42 @@ public class ImportService {
 		// If we are not creating a new version copy the release fields from the existing components
 		final ImportComponentFactoryImpl importComponentFactory =
 				getImportComponentFactory(branchPath, patchReleaseVersion, !job.isCreateCodeSystemVersion(), job.isClearEffectiveTimes());
+		boolean loaded = false;
 		try {
 			releaseImporter.loadDeltaReleaseFiles(releaseFileStream, loadingProfile, importComponentFactory);
+			loaded = true;
+			job.setComponentCounts(importComponentFactory.getComponentCounts());
 			return importComponentFactory.getMaxEffectiveTime();
-		} catch (ReleaseImportException e) {
-			rollbackIncompleteCommit(importComponentFactory);
-			throw e;
+		} finally {
+			if (!loaded) {
+				rollbackIncompleteCommit(importComponentFactory);
+			}
 		}
 	}
 
 	private void rollbackIncompleteCommit(ImportComponentFactoryImpl importComponentFactory) {
-		final Commit commit = importComponentFactory.getCommit();
-		if (commit != null) {
-			logger.info("Triggering rollback of failed import commit on {} at {}", commit.getBranch().getPath(), commit.getTimepoint().getTime());
-			// Closing the commit without marking as successful causes commit rollback.
-			commit.close();
+		try {
+			// Batches still saving must finish before the rollback, otherwise they could write components after it
+			importComponentFactory.abortPersisting();
+		} finally {
+			final Commit commit = importComponentFactory.getCommit();
+			if (commit != null) {
+				logger.info("Triggering rollback of failed import commit on {} at {}", commit.getBranch().getPath(), commit.getTimepoint().getTime());
+				// Closing the commit without marking as successful causes commit rollback.
+				commit.close();
+			}
 		}
 	}
 
 	private ImportComponentFactoryImpl getImportComponentFactory(String branchPath, Integer patchReleaseVersion, boolean copyReleaseFields, boolean clearEffectiveTimes) {
 		return new ImportComponentFactoryImpl(conceptUpdateHelper, memberService, branchService, branchMetadataHelper,
-				branchPath, patchReleaseVersion, copyReleaseFields, clearEffectiveTimes);
+				branchPath, patchReleaseVersion, copyReleaseFields, clearEffectiveTimes, persistThreads, persistBatchSize);
 	}
 
-	private FullImportComponentFactoryImpl getFullImportComponentFactory(String branchPath) {
+	private FullImportComponentFactoryImpl getFullImportComponentFactory(String branchPath, String resumeAfterRelease,
+			BiConsumer<String, Map<String, Long>> releaseCompletedListener) {
 		return new FullImportComponentFactoryImpl(conceptUpdateHelper, memberService, branchService, branchMetadataHelper, codeSystemService,
-				branchPath, null);
+				branchPath, null, persistThreads, persistBatchSize, resumeAfterRelease, releaseCompletedListener);
 	}
 
 	@PreAuthorize("hasPermission('AUTHOR', #branchPath)")
@@ -258,7 +352,7 @@ public class ImportService {
 		executorService.submit(() -> {
 			SecurityContextHolder.setContext(securityContext);
 			try (FileInputStream releaseFileStream = new FileInputStream(tempFile)) {
-				importArchive(importId, releaseFileStream);
+				importArchive(importId, releaseFileStream, archiveChecksum(tempFile));
 			} catch (ReleaseImportException e) {
 				// Swallow exception - already logged and this is an async method
 			} catch (IOException e) {
@@ -285,4 +379,8 @@ public class ImportService {
 	private ImportJob getJob(String importId) {
 		return importJobMap.get(importId);
 	}
+
+	static String archiveChecksum(File archive) throws IOException {
+		return com.google.common.io.Files.asByteSource(archive).hash(Hashing.sha256()).toString();
+	}
 }
@@ -69,6 +69,21 @@ public class TimerUtil {
 		}
 	}
 
+	/**
+	 * Logs the time taken by one of several tasks running at the same time, measured from when that task started.
+	 * Unlike checkpoint this does not move the last checkpoint so it can be called from any thread.
+	 * The next checkpoint gives the wall time of all the tasks together.
+	 */
+	public void parallelCheckpoint(String name, long taskStartMilliseconds) {
+		float secondsTaken = getDuration(taskStartMilliseconds, new Date().getTime());
+		if (secondsTaken >= durationLoggingThreshold) {
+			log("Timer {}: {} took {} seconds in parallel", timerName, name, secondsTaken);
+		}
+		if (childTimer != null) {
+			childTimer.parallelCheckpoint(name, taskStartMilliseconds);
+		}
+	}
+
 	public void finish() {
 		final long now = new Date().getTime();
 		float secondsTaken = getDuration(start, now);
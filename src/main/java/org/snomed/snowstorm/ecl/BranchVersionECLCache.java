@@ -1,5 +1,7 @@
 package org.snomed.snowstorm.ecl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
@@ -7,18 +9,30 @@ import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BranchVersionECLCache {
 
+	private static final Pattern CONCEPT_ID_PATTERN = Pattern.compile("\\d{1,18}");
+
 	private final Date head;
 
-	private final Map<ECLCacheEntry, Page<Long>> eclToConceptsCache;
+	// Shared across all branches so that the memory budget and eviction policy are global
+	private final Cache<ECLResultsCache.ResultKey, CompactPage> sharedResults;
+
+	private final AtomicLong entryCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
 
 	private final Map<Calendar, AtomicLong> dayHits = new ConcurrentHashMap<>();
 
-	protected BranchVersionECLCache(Date branchHeadTimestamp) {
+	// Keys of the shared results which belong to this branch version
+	private final Set<ECLResultsCache.ResultKey> resultKeys = ConcurrentHashMap.newKeySet();
+
+	protected BranchVersionECLCache(Date branchHeadTimestamp, Cache<ECLResultsCache.ResultKey, CompactPage> sharedResults) {
 		head = branchHeadTimestamp;
-		eclToConceptsCache = new ConcurrentHashMap<>();
+		this.sharedResults = sharedResults;
 	}
 
 	public Date getHead() {
@@ -31,13 +45,55 @@ public class BranchVersionECLCache {
 	}
 
 	public Page<Long> get(String ecl, boolean stated, PageRequest pageRequest) {
-		ECLCacheEntry key = new ECLCacheEntry(ecl, stated, pageRequest);
-		Page<Long> longs = eclToConceptsCache.get(key);
-		return longs;
+		CompactPage compactPage = sharedResults.getIfPresent(new ECLResultsCache.ResultKey(this, new ECLCacheEntry(ecl, stated, pageRequest)));
+		if (compactPage == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		return compactPage.toPage();
 	}
 
 	public void put(String ecl, boolean stated, PageRequest pageRequest, Page<Long> page) {
-		eclToConceptsCache.put(new ECLCacheEntry(ecl, stated, pageRequest), page);
+		ECLResultsCache.ResultKey key = new ECLResultsCache.ResultKey(this, new ECLCacheEntry(ecl, stated, pageRequest));
+		CompactPage compactPage = CompactPage.of(page);
+		// Counted before the put so that an immediate eviction can not take the count negative
+		entryAdded(ECLResultsCache.weigh(key, compactPage));
+		sharedResults.put(key, compactPage);
+	}
+
+	void carryOver(ECLResultsCache.ResultKey previousKey, CompactPage compactPage) {
+		ECLResultsCache.ResultKey key = new ECLResultsCache.ResultKey(this, previousKey.getEntry());
+		entryAdded(ECLResultsCache.weigh(key, compactPage));
+		sharedResults.put(key, compactPage);
+	}
+
+	void indexResult(ECLResultsCache.ResultKey key) {
+		resultKeys.add(key);
+	}
+
+	void unindexResult(ECLResultsCache.ResultKey key) {
+		resultKeys.remove(key);
+	}
+
+	List<ECLResultsCache.ResultKey> getResultKeys() {
+		return new ArrayList<>(resultKeys);
+	}
+
+	void entryAdded(int sizeInBytes) {
+		entryCount.incrementAndGet();
+		byteCount.addAndGet(sizeInBytes);
+	}
+
+	void entryRemoved(int sizeInBytes) {
+		entryCount.decrementAndGet();
+		byteCount.addAndGet(-sizeInBytes);
+	}
+
+	/**
+	 * @return true if the results of the ECL depend only on the semantic index, not on descriptions or reference set members.
+	 */
+	static boolean isSemanticIndexOnly(String ecl) {
+		return !ecl.contains("^") && !ecl.contains("{{");
 	}
 
 	static String normaliseEclString(String ecl) {
@@ -62,7 +118,9 @@ public class BranchVersionECLCache {
 
 	public Map<String, Long> getStats() {
 		Map<String, Long> stats = new HashMap<>();
-		stats.put("size", (long) eclToConceptsCache.size());
+		stats.put("size", entryCount.get());
+		stats.put("bytes", byteCount.get());
+		stats.put("misses", missCount.get());
 		stats.put("hits-today", dayHits.getOrDefault(getToday(), new AtomicLong()).longValue());
 		addStat(stats, 7);
 		addStat(stats, 30);
@@ -90,7 +148,7 @@ public class BranchVersionECLCache {
 		return today;
 	}
 
-	private static final class ECLCacheEntry {
+	static final class ECLCacheEntry {
 
 		private final String ecl;
 		private final boolean stated;
@@ -123,6 +181,31 @@ public class BranchVersionECLCache {
 			result = 31 * result + Arrays.hashCode(searchAfter);
 			return result;
 		}
+
+		/**
+		 * Conservative test of whether a commit could have changed the results of this ECL.
+		 * Results only depend on the semantic index, so they can only change if the commit changed the semantic index entry of a concept
+		 * which is, or descends from, a concept referenced in the ECL. Expressions that use a wildcard, member of or filters
+		 * depend on more than that, these are always treated as affected.
+		 * @param changedConceptIds ids and old and new ancestors of all concepts whose semantic index entry changed.
+		 */
+		boolean mayBeAffectedBy(LongSet changedConceptIds) {
+			if (ecl.isEmpty() || ecl.contains("*") || !isSemanticIndexOnly(ecl)) {
+				return true;
+			}
+			Matcher matcher = CONCEPT_ID_PATTERN.matcher(ecl);
+			while (matcher.find()) {
+				if (changedConceptIds.contains(Long.parseLong(matcher.group()))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int estimateSizeInBytes() {
+			// String chars plus object headers, page request and search after values
+			return 96 + (ecl.length() * 2);
+		}
 	}
 
 }
@@ -0,0 +1,60 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.snomed.snowstorm.core.util.SearchAfterPage;
+import org.snomed.snowstorm.core.util.SearchAfterPageImpl;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+/**
+ * Immutable page of concept ids held in a primitive array.
+ * A boxed List<Long> costs roughly 24 bytes per id, this costs 8.
+ */
+class CompactPage {
+
+	// Rough JVM object overhead of this class, its array and the pageable
+	private static final int FIXED_OVERHEAD_BYTES = 128;
+
+	private final long[] ids;
+	private final Pageable pageable;
+	private final long totalElements;
+	private final Object[] searchAfter;
+
+	private CompactPage(long[] ids, Pageable pageable, long totalElements, Object[] searchAfter) {
+		this.ids = ids;
+		this.pageable = pageable;
+		this.totalElements = totalElements;
+		this.searchAfter = searchAfter;
+	}
+
+	static CompactPage of(Page<Long> page) {
+		List<Long> content = page.getContent();
+		long[] ids = new long[content.size()];
+		int i = 0;
+		for (Long id : content) {
+			ids[i++] = id;
+		}
+		Object[] searchAfter = page instanceof SearchAfterPage ? ((SearchAfterPage<Long>) page).getSearchAfter() : null;
+		return new CompactPage(ids, page.getPageable(), page.getTotalElements(), searchAfter);
+	}
+
+	Page<Long> toPage() {
+		// The wrapped list is a view over the array, ids are only boxed when read
+		LongArrayList content = LongArrayList.wrap(ids);
+		if (searchAfter != null) {
+			return new SearchAfterPageImpl<>(content, pageable, totalElements, searchAfter);
+		}
+		return new PageImpl<>(content, pageable, totalElements);
+	}
+
+	long[] getIds() {
+		return ids;
+	}
+
+	int estimateSizeInBytes() {
+		return FIXED_OVERHEAD_BYTES + (ids.length * Long.BYTES);
+	}
+}
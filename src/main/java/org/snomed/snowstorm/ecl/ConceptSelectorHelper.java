@@ -4,6 +4,7 @@ import com.google.common.collect.Sets;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongComparators;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.apache.commons.lang3.NotImplementedException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
@@ -16,6 +17,7 @@ import org.snomed.snowstorm.core.util.PageHelper;
 import org.snomed.snowstorm.ecl.domain.RefinementBuilder;
 import org.snomed.snowstorm.ecl.domain.RefinementBuilderImpl;
 import org.snomed.snowstorm.ecl.domain.expressionconstraint.SExpressionConstraint;
+import org.snomed.snowstorm.ecl.domain.expressionconstraint.SSubExpressionConstraint;
 import org.snomed.snowstorm.rest.converter.SearchAfterHelper;
 import org.springframework.data.domain.*;
 import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
@@ -49,6 +51,27 @@ public class ConceptSelectorHelper {
 	public static Page<Long> select(SExpressionConstraint sExpressionConstraint, BranchCriteria branchCriteria, boolean stated,
 			Collection<Long> conceptIdFilter, PageRequest pageRequest, ECLContentService eclContentService, boolean triedCache) {
 
+		if (sExpressionConstraint instanceof SSubExpressionConstraint) {
+			// Pure hierarchy constraints can be answered without a search if there is a resident index for this branch version
+			HierarchyIndex hierarchyIndex = eclContentService.getHierarchyIndex(branchCriteria, stated);
+			if (hierarchyIndex != null) {
+				LongArrayList ids = ((SSubExpressionConstraint) sExpressionConstraint).selectFromHierarchyIndex(hierarchyIndex);
+				if (ids != null) {
+					if (conceptIdFilter != null) {
+						LongOpenHashSet filter = new LongOpenHashSet(conceptIdFilter);
+						LongArrayList filteredIds = new LongArrayList();
+						for (int i = 0; i < ids.size(); i++) {
+							if (filter.contains(ids.getLong(i))) {
+								filteredIds.add(ids.getLong(i));
+							}
+						}
+						ids = filteredIds;
+					}
+					return getPage(pageRequest, ids);
+				}
+			}
+		}
+
 		BoolQueryBuilder query = getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated);
 		RefinementBuilder refinementBuilder = new RefinementBuilderImpl(query, branchCriteria, stated, eclContentService);
 
@@ -1,6 +1,10 @@
 package org.snomed.snowstorm.ecl;
 
 import io.kaicode.elasticvc.api.BranchCriteria;
+import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.PathUtil;
+import io.kaicode.elasticvc.api.VersionControlHelper;
+import io.kaicode.elasticvc.domain.Branch;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongArraySet;
 import it.unimi.dsi.fastutil.longs.LongComparators;
@@ -61,6 +65,15 @@ public class ECLContentService {
 	@Autowired
 	private QueryService queryService;
 
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	@Autowired
+	private HierarchyIndexService hierarchyIndexService;
+
 	@Autowired
 	@Lazy
 	private ReferenceSetMemberService memberService;
@@ -87,6 +100,10 @@ public class ECLContentService {
 		return eclQueryService.doSelectConceptIds(sSubExpressionConstraint, branchCriteria, stated, null, null).getContent();
 	}
 
+	public HierarchyIndex getHierarchyIndex(BranchCriteria branchCriteria, boolean stated) {
+		return hierarchyIndexService.getIndex(branchCriteria, stated);
+	}
+
 	public Page<QueryConcept> queryForPage(NativeSearchQuery searchQuery) {
 		searchQuery.setTrackTotalHits(true);
 		Pageable pageable = searchQuery.getPageable();
@@ -98,6 +115,30 @@ public class ECLContentService {
 		return elasticsearchTemplate.searchForStream(searchQuery, QueryConcept.class);
 	}
 
+	/**
+	 * A branch version that has no semantic index changes of its own has the same semantic content as its parent at the branch base.
+	 * @return the base timepoint if the branch version has no semantic index changes, otherwise null.
+	 * Null is also returned if the timepoint is not the branch head, for example during an open commit.
+	 */
+	public Date findSemanticallyUnchangedBase(String path, Date timepoint) {
+		if (PathUtil.isRoot(path)) {
+			return null;
+		}
+		Branch branch = branchService.findLatest(path);
+		if (branch == null || !branch.getHead().equals(timepoint) || !branch.getVersionsReplaced(QueryConcept.class).isEmpty()) {
+			return null;
+		}
+		long changes = elasticsearchTemplate.count(new NativeSearchQueryBuilder()
+				.withQuery(versionControlHelper.getChangesOnBranchCriteria(branch).getEntityBranchCriteria(QueryConcept.class))
+				.build(), QueryConcept.class);
+		return changes == 0 ? branch.getBase() : null;
+	}
+
+	public Date findBranchHead(String path) {
+		Branch branch = branchService.findLatest(path);
+		return branch != null ? branch.getHead() : null;
+	}
+
 	public SearchAfterPage<ReferenceSetMember> findReferenceSetMembers(Collection<Long> refsets, List<MemberFilterConstraint> memberFilterConstraints,
 			List<String> memberFieldsToReturn, Collection<Long> conceptIdFilter, boolean stated, BranchCriteria branchCriteria, PageRequest pageRequest,
 			ECLContentService eclContentService) {
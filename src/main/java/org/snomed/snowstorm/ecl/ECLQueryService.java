@@ -3,6 +3,7 @@ package org.snomed.snowstorm.ecl;
 import ch.qos.logback.classic.Level;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,8 +25,10 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.LongPredicate;
@@ -54,12 +57,16 @@ public class ECLQueryService {
 	@Value("${cache.ecl.enabled}")
 	private boolean eclCacheEnabled;
 
-	private final ECLResultsCache resultsCache;
+	@Value("${cache.ecl.max-size-mb:512}")
+	private long eclCacheMaxSizeMb;
+
+	private ECLResultsCache resultsCache;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
-	public ECLQueryService() {
-		resultsCache = new ECLResultsCache();
+	@PostConstruct
+	public void init() {
+		resultsCache = new ECLResultsCache(eclCacheMaxSizeMb * 1024 * 1024);
 	}
 
 	public Page<Long> selectConceptIds(String ecl, BranchCriteria branchCriteria, boolean stated, PageRequest pageRequest) throws ECLException {
@@ -140,7 +147,14 @@ public class ECLQueryService {
 
 		Optional<Page<Long>> pageOptional;
 		if (eclCacheEnabled) {
-			BranchVersionECLCache branchVersionCache = resultsCache.getOrCreateBranchVersionCache(path, branchCriteria.getTimepoint());
+			BranchVersionECLCache branchVersionCache;
+			if (BranchVersionECLCache.isSemanticIndexOnly(ecl)) {
+				// Results can be shared with the parent branch if this branch has no semantic changes
+				branchVersionCache = resultsCache.getOrCreateSemanticBranchVersionCache(path, branchCriteria.getTimepoint(),
+						eclContentService::findSemanticallyUnchangedBase, eclContentService::findBranchHead);
+			} else {
+				branchVersionCache = resultsCache.getOrCreateBranchVersionCache(path, branchCriteria.getTimepoint());
+			}
 
 			PageRequest queryPageRequest = pageRequest;
 			LongPredicate filter = null;
@@ -218,6 +232,16 @@ public class ECLQueryService {
 		resultsCache.clearCache();
 	}
 
+	/**
+	 * Allows cached results which the commit could not have affected to be reused after the commit.
+	 * @param changedConceptIds ids of concepts whose semantic index entry changed, plus their ancestors before and after the change.
+	 */
+	public void recordSemanticChanges(String path, Date previousHead, Date newHead, LongSet changedConceptIds) {
+		if (eclCacheEnabled) {
+			resultsCache.recordSemanticChanges(path, previousHead, newHead, changedConceptIds);
+		}
+	}
+
 	public void setEclCacheEnabled(boolean eclCacheEnabled) {
 		this.eclCacheEnabled = eclCacheEnabled;
 	}
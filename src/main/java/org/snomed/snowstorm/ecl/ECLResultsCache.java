@@ -1,45 +1,286 @@
 package org.snomed.snowstorm.ecl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.kaicode.elasticvc.api.PathUtil;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
+/**
+ * Cache of ECL results for each branch version.
+ * All results share a single memory budget. When the budget is reached the least valuable results, by recency and frequency,
+ * are evicted regardless of which branch they belong to.
+ * Each branch version keeps an index of its own results so that moving to a new version only visits the results of that branch version.
+ * When a commit only makes small semantic changes the results that the commit could not have affected are carried over to the new branch version.
+ * Branches without semantic changes of their own can share the results of their parent.
+ */
 public class ECLResultsCache {
 
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+	// Larger commits are likely to affect most results so the cache of the branch is just dropped
+	private static final int MAX_CARRY_OVER_CHANGED_CONCEPTS = 50_000;
+
+	private static final int MAX_UNCHANGED_BASES = 10_000;
+
 	private final Map<String, BranchVersionECLCache> cacheMap;
 
+	private final Map<String, SemanticChanges> pendingChanges;
+
+	private final Map<String, UnchangedBase> unchangedBases;
+
+	private final Cache<ResultKey, CompactPage> results;
+
+	private final long maxBytes;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public ECLResultsCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public ECLResultsCache(long maxBytes) {
+		this.maxBytes = maxBytes;
 		cacheMap = new ConcurrentHashMap<>();
+		pendingChanges = new ConcurrentHashMap<>();
+		// Task branches come and go so only the most recently used are kept
+		unchangedBases = Caffeine.newBuilder().maximumSize(MAX_UNCHANGED_BASES).<String, UnchangedBase>build().asMap();
+		// Caffeine's window TinyLFU policy takes both recency and frequency into account
+		results = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(ECLResultsCache::weigh)
+				// The writer is called atomically with each change so the index of each branch version is exact
+				.writer(new CacheWriter<ResultKey, CompactPage>() {
+					@Override
+					public void write(ResultKey key, CompactPage value) {
+						key.branchVersionCache.indexResult(key);
+					}
+
+					@Override
+					public void delete(ResultKey key, CompactPage value, RemovalCause cause) {
+						key.branchVersionCache.unindexResult(key);
+					}
+				})
+				.removalListener((ResultKey key, CompactPage value, RemovalCause cause) -> {
+					if (key != null && value != null) {
+						key.branchVersionCache.entryRemoved(weigh(key, value));
+					}
+				})
+				.recordStats()
+				.build();
 	}
 
 	public BranchVersionECLCache getOrCreateBranchVersionCache(String path, Date timepoint) {
+		return getOrCreateBranchVersionCache(path, timepoint, false);
+	}
+
+	/**
+	 * @param forwardOnly only replace the cache of the path with one for a later timepoint.
+	 * @return the cache, or null if forwardOnly and the cache of the path is already at a later timepoint.
+	 */
+	private BranchVersionECLCache getOrCreateBranchVersionCache(String path, Date timepoint, boolean forwardOnly) {
 		BranchVersionECLCache branchVersionCache = cacheMap.get(path);
-		if (branchVersionCache == null || branchVersionCache.isExpired(timepoint)) {
+		if (branchVersionCache != null && !branchVersionCache.isExpired(timepoint)) {
+			return branchVersionCache;
+		}
+		// Compute to make sure that only one thread replaces the cache of the path
+		BranchVersionECLCache[] replaced = new BranchVersionECLCache[1];
+		branchVersionCache = cacheMap.compute(path, (p, existing) -> {
+			if (existing != null && (!existing.isExpired(timepoint) || (forwardOnly && existing.getHead().after(timepoint)))) {
+				return existing;
+			}
+			replaced[0] = existing;
+			return new BranchVersionECLCache(timepoint, results);
+		});
+		if (branchVersionCache.isExpired(timepoint)) {
+			return null;
+		}
+		if (replaced[0] != null) {
+			moveToNewVersion(path, replaced[0], branchVersionCache);
+		}
+		return branchVersionCache;
+	}
+
+	// Done outside of the map compute, other threads can use the new version while results are carried over
+	private void moveToNewVersion(String path, BranchVersionECLCache previousCache, BranchVersionECLCache newCache) {
+		Date timepoint = newCache.getHead();
+		SemanticChanges changes = pendingChanges.get(path);
+		if (changes != null && changes.previousHead.equals(previousCache.getHead()) && changes.newHead.equals(timepoint)) {
+			pendingChanges.remove(path, changes);
+			int carried = carryOverUnaffectedEntries(previousCache, newCache, changes.changedConceptIds);
+			logger.info("ECL cache moved to new version {}@{}, {} results carried over.", path, timepoint.getTime(), carried);
+		} else {
+			logger.info("ECL cache expired {}@{}", path, timepoint.getTime());
+		}
+		invalidateEntries(previousCache);
+	}
 
-			if (branchVersionCache != null) {
-				logger.info("ECL cache expired {}@{}", path, timepoint.getTime());
+	/**
+	 * Get the cache for results which depend only on the semantic index.
+	 * If the branch version has no semantic changes of its own, and its parent has not moved on since the branch base,
+	 * then the cache of the parent is returned. This is applied recursively up the branch hierarchy.
+	 * @param unchangedBaseFinder returns the base timepoint of a branch version if it has no semantic changes, otherwise null.
+	 * @param headFinder returns the current head timepoint of a branch.
+	 */
+	public BranchVersionECLCache getOrCreateSemanticBranchVersionCache(String path, Date timepoint,
+			BiFunction<String, Date, Date> unchangedBaseFinder, Function<String, Date> headFinder) {
+
+		String cachePath = path;
+		Date cacheTimepoint = timepoint;
+		while (!PathUtil.isRoot(cachePath)) {
+			UnchangedBase unchangedBase = unchangedBases.get(cachePath);
+			if (unchangedBase == null || !unchangedBase.head.equals(cacheTimepoint)) {
+				unchangedBase = new UnchangedBase(cacheTimepoint, unchangedBaseFinder.apply(cachePath, cacheTimepoint));
+				unchangedBases.put(cachePath, unchangedBase);
+			}
+			if (unchangedBase.base == null || unchangedBase.parentMovedOn) {
+				break;
 			}
+			String parentPath = PathUtil.getParentPath(cachePath);
+			BranchVersionECLCache parentCache = cacheMap.get(parentPath);
+			// A parent cache at the base timepoint is valid even if the parent has moved on since, otherwise check the parent head
+			if ((parentCache == null || parentCache.isExpired(unchangedBase.base)) && !unchangedBase.base.equals(headFinder.apply(parentPath))) {
+				// The parent will never return to this timepoint
+				unchangedBase.parentMovedOn = true;
+				break;
+			}
+			cachePath = parentPath;
+			cacheTimepoint = unchangedBase.base;
+		}
+		if (!cachePath.equals(path)) {
+			BranchVersionECLCache ancestorCache = getOrCreateBranchVersionCache(cachePath, cacheTimepoint, true);
+			if (ancestorCache != null) {
+				return ancestorCache;
+			}
+			// The ancestor cache has moved on to a later version, it is not taken back for this branch
+		}
+		return getOrCreateBranchVersionCache(path, timepoint);
+	}
 
-			branchVersionCache = new BranchVersionECLCache(timepoint);
+	/**
+	 * Record the semantic changes made by a commit so that unaffected results can be carried over to the new branch version.
+	 * @param changedConceptIds ids of concepts whose semantic index entry changed, plus their ancestors before and after the change.
+	 */
+	public void recordSemanticChanges(String path, Date previousHead, Date newHead, LongSet changedConceptIds) {
+		if (changedConceptIds.size() > MAX_CARRY_OVER_CHANGED_CONCEPTS) {
+			pendingChanges.remove(path);
+			return;
+		}
+		pendingChanges.put(path, new SemanticChanges(previousHead, newHead, changedConceptIds));
+	}
 
-			// Replacing the existing item will allow the old cache entry to be garbage collected
-			cacheMap.put(path, branchVersionCache);
+	private int carryOverUnaffectedEntries(BranchVersionECLCache previousCache, BranchVersionECLCache newCache, LongSet changedConceptIds) {
+		int carried = 0;
+		for (ResultKey key : previousCache.getResultKeys()) {
+			// Map get does not count as a hit
+			CompactPage compactPage = results.asMap().get(key);
+			if (compactPage != null && !key.entry.mayBeAffectedBy(changedConceptIds)) {
+				newCache.carryOver(key, compactPage);
+				carried++;
+			}
 		}
-		return branchVersionCache;
+		return carried;
+	}
+
+	private void invalidateEntries(BranchVersionECLCache branchVersionCache) {
+		results.invalidateAll(branchVersionCache.getResultKeys());
+	}
+
+	static int weigh(ResultKey key, CompactPage page) {
+		long bytes = (long) key.entry.estimateSizeInBytes() + page.estimateSizeInBytes();
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
 	}
 
 	public Map<String, BranchVersionECLCache> getCacheMap() {
 		return new HashMap<>(cacheMap);
 	}
 
+	/**
+	 * @return hit, miss, eviction and memory statistics for the cache as a whole.
+	 */
+	public Map<String, Long> getStats() {
+		CacheStats cacheStats = results.stats();
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("size", results.estimatedSize());
+		stats.put("bytes", results.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L));
+		stats.put("max-bytes", maxBytes);
+		stats.put("hits", cacheStats.hitCount());
+		stats.put("misses", cacheStats.missCount());
+		stats.put("evictions", cacheStats.evictionCount());
+		stats.put("evicted-bytes", cacheStats.evictionWeight());
+		stats.put("branches", (long) cacheMap.size());
+		return stats;
+	}
+
 	public void clearCache() {
 		cacheMap.clear();
+		pendingChanges.clear();
+		unchangedBases.clear();
+		results.invalidateAll();
 		logger.info("ECL cache cleared.");
 	}
+
+	static final class ResultKey {
+
+		// Compared by identity, each branch version has its own instance
+		private final BranchVersionECLCache branchVersionCache;
+		private final BranchVersionECLCache.ECLCacheEntry entry;
+
+		ResultKey(BranchVersionECLCache branchVersionCache, BranchVersionECLCache.ECLCacheEntry entry) {
+			this.branchVersionCache = branchVersionCache;
+			this.entry = entry;
+		}
+
+		BranchVersionECLCache.ECLCacheEntry getEntry() {
+			return entry;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			ResultKey that = (ResultKey) o;
+			return branchVersionCache == that.branchVersionCache && entry.equals(that.entry);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(branchVersionCache) + entry.hashCode();
+		}
+	}
+
+	private static final class UnchangedBase {
+
+		private final Date head;
+		// Null if the branch version has semantic changes
+		private final Date base;
+		private volatile boolean parentMovedOn;
+
+		private UnchangedBase(Date head, Date base) {
+			this.head = head;
+			this.base = base;
+		}
+	}
+
+	private static final class SemanticChanges {
+
+		private final Date previousHead;
+		private final Date newHead;
+		private final LongSet changedConceptIds;
+
+		private SemanticChanges(Date previousHead, Date newHead, LongSet changedConceptIds) {
+			this.previousHead = previousHead;
+			this.newHead = newHead;
+			this.changedConceptIds = changedConceptIds;
+		}
+	}
 }
@@ -0,0 +1,367 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Immutable, resident copy of the is-a hierarchy of one form of the semantic index at one branch version.
+ * Concepts are held as int indexes into a sorted array of ids. Parent and child edges are held in
+ * compressed sparse row form so the whole International Edition hierarchy needs only a few megabytes.
+ * Commits are applied as a small overlay on top of the compressed arrays, which are shared between versions,
+ * until the overlay is large enough to be worth compacting into new arrays.
+ */
+public final class HierarchyIndex {
+
+	private static final int[] NO_EDGES = new int[0];
+
+	private final String path;
+	private final Date timepoint;
+	private final boolean stated;
+
+	// Sorted ascending. Includes parents which have no semantic index entry of their own.
+	private final long[] conceptIds;
+	// Concepts which have a semantic index entry
+	private final BitSet present;
+
+	private final int[] parentOffsets;
+	private final int[] parents;
+	private final int[] childOffsets;
+	private final int[] children;
+
+	// Overlay of changes since the arrays were built. Concepts not in the arrays are given indexes after the last concept id.
+	private final LongArrayList addedIds;
+	private final Long2IntOpenHashMap addedIndexes;
+	// A null value means the concept has no semantic index entry
+	private final Int2ObjectOpenHashMap<int[]> changedParents;
+	private final Int2ObjectOpenHashMap<int[]> changedChildren;
+	private int conceptCount;
+
+	private HierarchyIndex(String path, Date timepoint, boolean stated, long[] conceptIds, BitSet present,
+			int[] parentOffsets, int[] parents, int[] childOffsets, int[] children) {
+		this.path = path;
+		this.timepoint = timepoint;
+		this.stated = stated;
+		this.conceptIds = conceptIds;
+		this.present = present;
+		this.parentOffsets = parentOffsets;
+		this.parents = parents;
+		this.childOffsets = childOffsets;
+		this.children = children;
+		addedIds = new LongArrayList();
+		addedIndexes = new Long2IntOpenHashMap();
+		addedIndexes.defaultReturnValue(-1);
+		changedParents = new Int2ObjectOpenHashMap<>();
+		changedChildren = new Int2ObjectOpenHashMap<>();
+		conceptCount = present.cardinality();
+	}
+
+	// Copy of the overlay sharing the compressed arrays
+	private HierarchyIndex(HierarchyIndex previous, Date timepoint) {
+		path = previous.path;
+		this.timepoint = timepoint;
+		stated = previous.stated;
+		conceptIds = previous.conceptIds;
+		present = previous.present;
+		parentOffsets = previous.parentOffsets;
+		parents = previous.parents;
+		childOffsets = previous.childOffsets;
+		children = previous.children;
+		addedIds = new LongArrayList(previous.addedIds);
+		addedIndexes = new Long2IntOpenHashMap(previous.addedIndexes);
+		addedIndexes.defaultReturnValue(-1);
+		changedParents = new Int2ObjectOpenHashMap<>(previous.changedParents);
+		changedChildren = new Int2ObjectOpenHashMap<>(previous.changedChildren);
+		conceptCount = previous.conceptCount;
+	}
+
+	/**
+	 * @param conceptParents parent ids of every concept in the semantic index, keyed by concept id.
+	 */
+	public static HierarchyIndex build(String path, Date timepoint, boolean stated, Long2ObjectMap<long[]> conceptParents) {
+		LongOpenHashSet allIds = new LongOpenHashSet(conceptParents.keySet());
+		for (long[] parentIds : conceptParents.values()) {
+			allIds.addAll(LongArrayList.wrap(parentIds));
+		}
+		long[] conceptIds = allIds.toLongArray();
+		Arrays.sort(conceptIds);
+
+		BitSet present = new BitSet(conceptIds.length);
+		int[] parentCounts = new int[conceptIds.length];
+		int[] childCounts = new int[conceptIds.length];
+		for (Long2ObjectMap.Entry<long[]> entry : conceptParents.long2ObjectEntrySet()) {
+			int index = Arrays.binarySearch(conceptIds, entry.getLongKey());
+			present.set(index);
+			parentCounts[index] = entry.getValue().length;
+			for (long parentId : entry.getValue()) {
+				childCounts[Arrays.binarySearch(conceptIds, parentId)]++;
+			}
+		}
+
+		int[] parentOffsets = toOffsets(parentCounts);
+		int[] childOffsets = toOffsets(childCounts);
+		int[] parents = new int[parentOffsets[conceptIds.length]];
+		int[] children = new int[childOffsets[conceptIds.length]];
+		int[] childPositions = Arrays.copyOf(childOffsets, conceptIds.length);
+		for (Long2ObjectMap.Entry<long[]> entry : conceptParents.long2ObjectEntrySet()) {
+			int index = Arrays.binarySearch(conceptIds, entry.getLongKey());
+			int parentPosition = parentOffsets[index];
+			for (long parentId : entry.getValue()) {
+				int parentIndex = Arrays.binarySearch(conceptIds, parentId);
+				parents[parentPosition++] = parentIndex;
+				children[childPositions[parentIndex]++] = index;
+			}
+		}
+		return new HierarchyIndex(path, timepoint, stated, conceptIds, present, parentOffsets, parents, childOffsets, children);
+	}
+
+	private static int[] toOffsets(int[] counts) {
+		int[] offsets = new int[counts.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			offsets[i + 1] = offsets[i] + counts[i];
+		}
+		return offsets;
+	}
+
+	/**
+	 * Create a new version of this index with the parents of some concepts replaced. This happens in memory, without any search.
+	 * Only the changed concepts and their old and new parents are touched, the rest of the index is shared with this version.
+	 * @param changedParentIds new parent ids keyed by concept id. A null value removes the concept from the semantic index.
+	 */
+	public HierarchyIndex withChanges(Date newTimepoint, Long2ObjectMap<long[]> changedParentIds) {
+		HierarchyIndex next = new HierarchyIndex(this, newTimepoint);
+		Int2ObjectOpenHashMap<IntOpenHashSet> removedChildren = new Int2ObjectOpenHashMap<>();
+		Int2ObjectOpenHashMap<IntOpenHashSet> addedChildren = new Int2ObjectOpenHashMap<>();
+		for (Long2ObjectMap.Entry<long[]> entry : changedParentIds.long2ObjectEntrySet()) {
+			int index = next.getOrAddIndex(entry.getLongKey());
+			boolean wasPresent = next.isPresent(index);
+			IntOpenHashSet oldParents = new IntOpenHashSet(next.getEdges(index, parentOffsets, parents, next.changedParents));
+			int[] newParents = null;
+			if (entry.getValue() != null) {
+				newParents = new int[entry.getValue().length];
+				for (int i = 0; i < newParents.length; i++) {
+					newParents[i] = next.getOrAddIndex(entry.getValue()[i]);
+				}
+			}
+			next.changedParents.put(index, newParents);
+			next.conceptCount += (newParents != null ? 1 : 0) - (wasPresent ? 1 : 0);
+
+			for (int parentIndex : newParents != null ? newParents : NO_EDGES) {
+				if (!oldParents.remove(parentIndex)) {
+					addEdge(addedChildren, parentIndex, index);
+				}
+			}
+			for (int parentIndex : oldParents) {
+				addEdge(removedChildren, parentIndex, index);
+			}
+		}
+
+		IntOpenHashSet changedParentIndexes = new IntOpenHashSet(addedChildren.keySet());
+		changedParentIndexes.addAll(removedChildren.keySet());
+		for (int parentIndex : changedParentIndexes) {
+			IntOpenHashSet removed = removedChildren.get(parentIndex);
+			IntArrayList newChildren = new IntArrayList();
+			for (int childIndex : next.getEdges(parentIndex, childOffsets, children, next.changedChildren)) {
+				if (removed == null || !removed.contains(childIndex)) {
+					newChildren.add(childIndex);
+				}
+			}
+			IntOpenHashSet added = addedChildren.get(parentIndex);
+			if (added != null) {
+				newChildren.addAll(added);
+			}
+			next.changedChildren.put(parentIndex, newChildren.toIntArray());
+		}
+		return next;
+	}
+
+	private static void addEdge(Int2ObjectOpenHashMap<IntOpenHashSet> edges, int from, int to) {
+		IntOpenHashSet set = edges.get(from);
+		if (set == null) {
+			set = new IntOpenHashSet();
+			edges.put(from, set);
+		}
+		set.add(to);
+	}
+
+	/**
+	 * @return a copy of this version with the overlay merged into newly built arrays.
+	 */
+	public HierarchyIndex compact() {
+		Long2ObjectMap<long[]> conceptParents = new Long2ObjectOpenHashMap<>(conceptCount);
+		for (int index = 0; index < getIndexCount(); index++) {
+			if (isPresent(index)) {
+				int[] parentIndexes = getEdges(index, parentOffsets, parents, changedParents);
+				long[] parentIds = new long[parentIndexes.length];
+				for (int i = 0; i < parentIds.length; i++) {
+					parentIds[i] = getId(parentIndexes[i]);
+				}
+				conceptParents.put(getId(index), parentIds);
+			}
+		}
+		return build(path, timepoint, stated, conceptParents);
+	}
+
+	/**
+	 * @return number of concepts changed since the arrays were built.
+	 */
+	public int getOverlaySize() {
+		return changedParents.size();
+	}
+
+	private int getIndexCount() {
+		return conceptIds.length + addedIds.size();
+	}
+
+	private int getIndex(long conceptId) {
+		int index = Arrays.binarySearch(conceptIds, conceptId);
+		return index >= 0 ? index : addedIndexes.get(conceptId);
+	}
+
+	private int getOrAddIndex(long conceptId) {
+		int index = getIndex(conceptId);
+		if (index < 0) {
+			index = getIndexCount();
+			addedIds.add(conceptId);
+			addedIndexes.put(conceptId, index);
+		}
+		return index;
+	}
+
+	private long getId(int index) {
+		return index < conceptIds.length ? conceptIds[index] : addedIds.getLong(index - conceptIds.length);
+	}
+
+	private boolean isPresent(int index) {
+		if (changedParents.containsKey(index)) {
+			return changedParents.get(index) != null;
+		}
+		return index < conceptIds.length && present.get(index);
+	}
+
+	private int[] getEdges(int index, int[] offsets, int[] edges, Int2ObjectOpenHashMap<int[]> changedEdges) {
+		if (changedEdges.containsKey(index)) {
+			int[] changed = changedEdges.get(index);
+			return changed != null ? changed : NO_EDGES;
+		}
+		if (index >= conceptIds.length) {
+			return NO_EDGES;
+		}
+		return Arrays.copyOfRange(edges, offsets[index], offsets[index + 1]);
+	}
+
+	public LongArrayList findDescendants(Collection<Long> startIds, boolean includeSelf, boolean directOnly) {
+		return traverse(startIds, includeSelf, directOnly, childOffsets, children, changedChildren);
+	}
+
+	public LongArrayList findAncestors(Collection<Long> startIds, boolean includeSelf, boolean directOnly) {
+		return traverse(startIds, includeSelf, directOnly, parentOffsets, parents, changedParents);
+	}
+
+	/**
+	 * Breadth first traversal using a bitset of visited indexes, so each shared ancestor or descendant is only expanded once.
+	 * @return ids of present concepts found, in descending order to match the default semantic index sort.
+	 */
+	private LongArrayList traverse(Collection<Long> startIds, boolean includeSelf, boolean directOnly,
+			int[] offsets, int[] edges, Int2ObjectOpenHashMap<int[]> changedEdges) {
+
+		int indexCount = getIndexCount();
+		BitSet visited = new BitSet(indexCount);
+		BitSet results = new BitSet(indexCount);
+		IntArrayList queue = new IntArrayList();
+		for (Long startId : startIds) {
+			int index = getIndex(startId);
+			if (index >= 0 && !visited.get(index)) {
+				visited.set(index);
+				queue.add(index);
+				if (includeSelf) {
+					results.set(index);
+				}
+			}
+		}
+		int startCount = queue.size();
+		for (int position = 0; position < queue.size(); position++) {
+			int index = queue.getInt(position);
+			if (directOnly && position >= startCount) {
+				break;
+			}
+			if (index < conceptIds.length && !changedEdges.containsKey(index)) {
+				for (int e = offsets[index]; e < offsets[index + 1]; e++) {
+					visit(edges[e], visited, results, queue);
+				}
+			} else {
+				for (int next : getEdges(index, offsets, edges, changedEdges)) {
+					visit(next, visited, results, queue);
+				}
+			}
+		}
+
+		LongArrayList ids = new LongArrayList(results.cardinality());
+		for (int index = results.previousSetBit(indexCount - 1); index >= conceptIds.length; index = results.previousSetBit(index - 1)) {
+			if (isPresent(index)) {
+				ids.add(getId(index));
+			}
+		}
+		boolean sortNeeded = !ids.isEmpty();
+		if (changedParents.isEmpty()) {
+			results.and(present);
+			for (int index = results.previousSetBit(conceptIds.length - 1); index >= 0; index = results.previousSetBit(index - 1)) {
+				ids.add(conceptIds[index]);
+			}
+		} else {
+			for (int index = results.previousSetBit(conceptIds.length - 1); index >= 0; index = results.previousSetBit(index - 1)) {
+				if (isPresent(index)) {
+					ids.add(conceptIds[index]);
+				}
+			}
+		}
+		if (sortNeeded) {
+			// Concepts added since the arrays were built are not in id order
+			long[] sorted = ids.toLongArray();
+			Arrays.sort(sorted);
+			ids.clear();
+			for (int i = sorted.length - 1; i >= 0; i--) {
+				ids.add(sorted[i]);
+			}
+		}
+		return ids;
+	}
+
+	private static void visit(int next, BitSet visited, BitSet results, IntArrayList queue) {
+		results.set(next);
+		if (!visited.get(next)) {
+			visited.set(next);
+			queue.add(next);
+		}
+	}
+
+	public boolean isVersion(String path, Date timepoint, boolean stated) {
+		return this.stated == stated && this.path.equals(path) && this.timepoint.equals(timepoint);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public Date getTimepoint() {
+		return timepoint;
+	}
+
+	public boolean isStated() {
+		return stated;
+	}
+
+	public int getConceptCount() {
+		return conceptCount;
+	}
+}
@@ -0,0 +1,178 @@
+package org.snomed.snowstorm.ecl;
+
+import io.kaicode.elasticvc.api.BranchCriteria;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.domain.QueryConcept;
+import org.snomed.snowstorm.core.data.services.SlicedSearchService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+
+/**
+ * Optional resident hierarchy index for configured branches, usually code system branches.
+ * Pure hierarchy ECL constraints on those branches can be answered from memory rather than by searching the semantic index.
+ * The index is built in the background on first use and then kept up to date using the changes of each content commit.
+ * Commit changes are held as an overlay on the index, which is compacted in the background once it becomes large.
+ * Until an index is available for the requested branch version the normal search is used.
+ */
+@Service
+public class HierarchyIndexService {
+
+	@Value("${ecl.hierarchy-index.enabled:false}")
+	private boolean enabled;
+
+	@Value("${ecl.hierarchy-index.branches:MAIN}")
+	private String[] indexedBranches;
+
+	@Value("${ecl.hierarchy-index.compact-after-changes:10000}")
+	private int compactAfterChanges;
+
+	@Autowired
+	private SlicedSearchService slicedSearchService;
+
+	private final Map<String, HierarchyIndex> indexes = new ConcurrentHashMap<>();
+
+	// Indexes for a commit which is not yet complete
+	private final Map<String, HierarchyIndex> pendingIndexes = new ConcurrentHashMap<>();
+
+	private final Set<String> buildsInProgress = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> compactionsInProgress = ConcurrentHashMap.newKeySet();
+
+	private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * @return the index for this exact branch version and form, or null if not available.
+	 */
+	public HierarchyIndex getIndex(BranchCriteria branchCriteria, boolean stated) {
+		String path = branchCriteria.getBranchPath();
+		if (!isIndexed(path)) {
+			return null;
+		}
+		Date timepoint = branchCriteria.getTimepoint();
+		String key = getKey(path, stated);
+		HierarchyIndex index = indexes.get(key);
+		if (index != null && index.isVersion(path, timepoint, stated)) {
+			return index;
+		}
+		HierarchyIndex pendingIndex = pendingIndexes.get(key);
+		if (pendingIndex != null && pendingIndex.isVersion(path, timepoint, stated)) {
+			indexes.put(key, pendingIndex);
+			pendingIndexes.remove(key, pendingIndex);
+			return pendingIndex;
+		}
+		if (index == null || index.getTimepoint().before(timepoint)) {
+			scheduleBuild(key, branchCriteria, stated);
+		}
+		return null;
+	}
+
+	/**
+	 * Prepare the next version of the index using the semantic changes of a commit.
+	 * @param changedParents new parent ids keyed by concept id. A null value means the concept was removed from the semantic index.
+	 */
+	public void applyCommitChanges(String path, Date previousHead, Date newHead, boolean stated, Long2ObjectMap<long[]> changedParents) {
+		if (!isIndexed(path)) {
+			return;
+		}
+		String key = getKey(path, stated);
+		HierarchyIndex index = indexes.get(key);
+		if (index != null && index.getTimepoint().equals(previousHead)) {
+			HierarchyIndex pendingIndex = index.withChanges(newHead, changedParents);
+			pendingIndexes.put(key, pendingIndex);
+			if (pendingIndex.getOverlaySize() > compactAfterChanges) {
+				scheduleCompaction(key, pendingIndex);
+			}
+		} else {
+			// Can not be applied incrementally, next use will trigger a rebuild
+			pendingIndexes.remove(key);
+		}
+	}
+
+	private void scheduleBuild(String key, BranchCriteria branchCriteria, boolean stated) {
+		if (buildsInProgress.add(key)) {
+			buildExecutor.submit(() -> {
+				try {
+					HierarchyIndex index = build(branchCriteria, stated);
+					HierarchyIndex existing = indexes.get(key);
+					if (existing == null || existing.getTimepoint().before(index.getTimepoint())) {
+						indexes.put(key, index);
+					}
+				} catch (Exception e) {
+					logger.error("Failed to build hierarchy index for {}.", key, e);
+				} finally {
+					buildsInProgress.remove(key);
+				}
+			});
+		}
+	}
+
+	private void scheduleCompaction(String key, HierarchyIndex index) {
+		if (compactionsInProgress.add(key)) {
+			buildExecutor.submit(() -> {
+				try {
+					HierarchyIndex compacted = index.compact();
+					// Only replace the same version, it may have been promoted from pending or superseded by now
+					if (!pendingIndexes.replace(key, index, compacted)) {
+						indexes.replace(key, index, compacted);
+					}
+				} catch (Exception e) {
+					logger.error("Failed to compact hierarchy index for {}.", key, e);
+				} finally {
+					compactionsInProgress.remove(key);
+				}
+			});
+		}
+	}
+
+	private HierarchyIndex build(BranchCriteria branchCriteria, boolean stated) {
+		long start = System.currentTimeMillis();
+		Long2ObjectMap<long[]> conceptParents = new Long2ObjectOpenHashMap<>();
+		try (CloseableIterator<QueryConcept> stream = slicedSearchService.stream(new NativeSearchQueryBuilder()
+				.withQuery(ConceptSelectorHelper.getBranchAndStatedQuery(branchCriteria.getEntityBranchCriteria(QueryConcept.class), stated))
+				.withFields(QueryConcept.Fields.CONCEPT_ID, QueryConcept.Fields.PARENTS)
+				.withPageable(LARGE_PAGE)
+				.build(), QueryConcept.class)) {
+			stream.forEachRemaining(queryConcept -> {
+				conceptParents.put(queryConcept.getConceptIdL().longValue(), queryConcept.getParents().stream().mapToLong(Long::longValue).toArray());
+			});
+		}
+		HierarchyIndex index = HierarchyIndex.build(branchCriteria.getBranchPath(), branchCriteria.getTimepoint(), stated, conceptParents);
+		logger.info("Built {} hierarchy index for {}@{} with {} concepts in {} seconds.", stated ? "stated" : "inferred", branchCriteria.getBranchPath(),
+				branchCriteria.getTimepoint().getTime(), index.getConceptCount(), (System.currentTimeMillis() - start) / 1000f);
+		return index;
+	}
+
+	private boolean isIndexed(String path) {
+		return enabled && Arrays.asList(indexedBranches).contains(path);
+	}
+
+	private String getKey(String path, boolean stated) {
+		return path + (stated ? "_stated" : "_inferred");
+	}
+
+	public void clearIndexes() {
+		indexes.clear();
+		pendingIndexes.clear();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		buildExecutor.shutdownNow();
+	}
+}
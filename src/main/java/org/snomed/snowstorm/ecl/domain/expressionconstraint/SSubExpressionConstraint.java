@@ -15,6 +15,7 @@ import org.snomed.snowstorm.core.data.domain.Concepts;
 import org.snomed.snowstorm.core.data.domain.QueryConcept;
 import org.snomed.snowstorm.ecl.ConceptSelectorHelper;
 import org.snomed.snowstorm.ecl.ECLContentService;
+import org.snomed.snowstorm.ecl.HierarchyIndex;
 import org.snomed.snowstorm.ecl.deserializer.ECLModelDeserializer;
 import org.snomed.snowstorm.ecl.domain.RefinementBuilder;
 import org.snomed.snowstorm.ecl.domain.SubRefinementBuilder;
@@ -70,6 +71,37 @@ public class SSubExpressionConstraint extends SubExpressionConstraint implements
 		return conceptFilterConstraints != null || descriptionFilterConstraints != null || getHistorySupplement() != null;
 	}
 
+	/**
+	 * Select using a resident hierarchy index. Only possible for a hierarchy operator on a single concept, without filters.
+	 * @return matching concept ids in descending order, or null if this constraint can not be answered by the index.
+	 */
+	public LongArrayList selectFromHierarchyIndex(HierarchyIndex hierarchyIndex) {
+		if (conceptId == null || operator == null || isAnyFiltersOrSupplements()) {
+			return null;
+		}
+		Set<Long> focusConcept = Collections.singleton(parseLong(conceptId));
+		switch (operator) {
+			case childof:
+				return hierarchyIndex.findDescendants(focusConcept, false, true);
+			case childorselfof:
+				return hierarchyIndex.findDescendants(focusConcept, true, true);
+			case descendantof:
+				return hierarchyIndex.findDescendants(focusConcept, false, false);
+			case descendantorselfof:
+				return hierarchyIndex.findDescendants(focusConcept, true, false);
+			case parentof:
+				return hierarchyIndex.findAncestors(focusConcept, false, true);
+			case parentorselfof:
+				return hierarchyIndex.findAncestors(focusConcept, true, true);
+			case ancestorof:
+				return hierarchyIndex.findAncestors(focusConcept, false, false);
+			case ancestororselfof:
+				return hierarchyIndex.findAncestors(focusConcept, true, false);
+			default:
+				return null;
+		}
+	}
+
 	@Override
 	public Optional<Page<Long>> select(RefinementBuilder refinementBuilder) {
 		if (isUnconstrained()) {
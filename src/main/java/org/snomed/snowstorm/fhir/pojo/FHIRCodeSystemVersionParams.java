@@ -3,6 +3,8 @@ package org.snomed.snowstorm.fhir.pojo;
 import org.hl7.fhir.r4.model.StringType;
 import org.snomed.snowstorm.fhir.services.FHIRHelper;
 
+import java.util.Objects;
+
 import static java.lang.String.format;
 import static org.snomed.snowstorm.fhir.config.FHIRConstants.SNOMED_URI;
 import static org.snomed.snowstorm.fhir.config.FHIRConstants.SNOMED_URI_UNVERSIONED;
@@ -67,6 +69,20 @@ public class FHIRCodeSystemVersionParams {
 		return id;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		FHIRCodeSystemVersionParams that = (FHIRCodeSystemVersionParams) o;
+		return Objects.equals(codeSystem, that.codeSystem) && Objects.equals(snomedModule, that.snomedModule) &&
+				Objects.equals(version, that.version) && Objects.equals(id, that.id);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(codeSystem, snomedModule, version, id);
+	}
+
 	@Override
 	public String toString() {
 		return "CodeSystemVersionParams{" +
@@ -35,17 +35,18 @@ public final class ValueSetExpansionParameters {
 	private final CanonicalUri checkSystemVersion;
 	private final CanonicalUri forceSystemVersion;
 	private final String version;
+	private final String cursor;
 	private final ValueSet valueSet;
 
 	public ValueSetExpansionParameters(ValueSet valueSet, boolean includeDefinition1) {
 		this(null, valueSet, null, null, null, null, null, null, null, null, null,
-				null, includeDefinition1, null, null, null, null, null, null, null, null, null, null);
+				null, includeDefinition1, null, null, null, null, null, null, null, null, null, null, null);
 	}
 
 	public ValueSetExpansionParameters(String id, ValueSet valueSet, String url, String valueSetVersion, String context, String contextDirection, String filter, String date,
 			Integer offset, Integer count, Boolean includeDesignations, List<String> designations, Boolean includeDefinition, Boolean activeOnly,
 			Boolean excludeNested, Boolean excludeNotForUI, Boolean excludePostCoordinated, String displayLanguage, CanonicalUri excludeSystem, CanonicalUri systemVersion,
-			CanonicalUri checkSystemVersion, CanonicalUri forceSystemVersion, String version) {
+			CanonicalUri checkSystemVersion, CanonicalUri forceSystemVersion, String version, String cursor) {
 
 		this.id = id;
 		this.url = url;
@@ -69,6 +70,7 @@ public final class ValueSetExpansionParameters {
 		this.checkSystemVersion = checkSystemVersion;
 		this.forceSystemVersion = forceSystemVersion;
 		this.version = version;
+		this.cursor = cursor;
 		this.valueSet = valueSet;
 	}
 
@@ -171,6 +173,10 @@ public final class ValueSetExpansionParameters {
 		return version;
 	}
 
+	public String getCursor() {
+		return cursor;
+	}
+
 	public ValueSet getValueSet() {
 		return valueSet;
 	}
@@ -35,6 +35,30 @@ public class CodeSelectionCriteria {
 		return doGatherAllInclusionVersions(new HashSet<>());
 	}
 
+	/**
+	 * @return criteria selecting only the concepts of the given code system version, including those from nested value sets,
+	 * or null if nothing is included from that version.
+	 */
+	public CodeSelectionCriteria forVersion(FHIRCodeSystemVersion codeSystemVersion) {
+		CodeSelectionCriteria versionCriteria = new CodeSelectionCriteria(valueSetUserRef);
+		if (inclusionConstraints.containsKey(codeSystemVersion)) {
+			versionCriteria.inclusionConstraints.put(codeSystemVersion, inclusionConstraints.get(codeSystemVersion));
+		}
+		for (CodeSelectionCriteria nestedSelection : nestedSelections) {
+			CodeSelectionCriteria nestedVersionCriteria = nestedSelection.forVersion(codeSystemVersion);
+			if (nestedVersionCriteria != null) {
+				versionCriteria.nestedSelections.add(nestedVersionCriteria);
+			}
+		}
+		if (versionCriteria.inclusionConstraints.isEmpty() && versionCriteria.nestedSelections.isEmpty()) {
+			return null;
+		}
+		if (exclusionConstraints.containsKey(codeSystemVersion)) {
+			versionCriteria.exclusionConstraints.put(codeSystemVersion, exclusionConstraints.get(codeSystemVersion));
+		}
+		return versionCriteria;
+	}
+
 	public boolean isAnyECL() {
 		return inclusionConstraints.values().stream().flatMap(Collection::stream).anyMatch(ConceptConstraint::hasEcl) ||
 				exclusionConstraints.values().stream().flatMap(Collection::stream).anyMatch(ConceptConstraint::hasEcl) ||
@@ -10,6 +10,7 @@ import ca.uhn.fhir.rest.param.QuantityParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import com.google.common.collect.Iterables;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.ICompositeType;
@@ -26,6 +27,7 @@ import org.snomed.snowstorm.fhir.domain.SearchFilter;
 import org.snomed.snowstorm.fhir.pojo.ConceptAndSystemResult;
 import org.snomed.snowstorm.fhir.pojo.FHIRCodeSystemVersionParams;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
 import javax.servlet.http.HttpServletRequest;
@@ -44,6 +46,7 @@ public class FHIRCodeSystemProvider implements IResourceProvider, FHIRConstants
 
 	private static final String PARAM_SYSTEM = "system";
 	private static final String PARAM_FILE = "file";
+	private static final String BATCH_LOOKUP = "lookup";
 
 	@Autowired
 	private MultiSearchService snomedMultiSearchService;
@@ -259,6 +262,100 @@ public class FHIRCodeSystemProvider implements IResourceProvider, FHIRConstants
 		}
 	}
 
+	/**
+	 * Looks up many codes in one request. The body is a Parameters resource with a 'lookup' parameter for each code,
+	 * each holding a Parameters resource with the same parameters as $lookup.
+	 * Codes of the same code system version and display language are found together.
+	 * The response has a 'lookup' parameter for each code, in the same order, with the result or an OperationOutcome.
+	 */
+	@Operation(name="$batch-lookup")
+	public Parameters batchLookup(
+			HttpServletRequest request,
+			HttpServletResponse response,
+			@ResourceParam String rawBody) {
+
+		List<Parameters> lookups = getBatchEntries(fhirHelper.getFhirContext().newJsonParser().parseResource(Parameters.class, rawBody), BATCH_LOOKUP);
+		String acceptLanguageHeader = request.getHeader(ACCEPT_LANGUAGE_HEADER);
+		List<LookupRequest> lookupRequests = new ArrayList<>();
+		Map<List<Object>, List<LookupRequest>> lookupGroups = new LinkedHashMap<>();
+		for (Parameters lookup : lookups) {
+			List<Parameters.ParametersParameterComponent> parameters = lookup.getParameter();
+			LookupRequest lookupRequest = new LookupRequest(findParameterPrimitiveOrNull(parameters, "displayLanguage"),
+					parameters.stream().filter(parameter -> parameter.getName().equals("property") && parameter.hasValue())
+							.map(parameter -> new CodeType(parameter.getValue().primitiveValue())).collect(Collectors.toList()));
+			lookupRequests.add(lookupRequest);
+			try {
+				String code = findParameterPrimitiveOrNull(parameters, "code");
+				Coding coding = (Coding) findParameterValueOrNull(parameters, "coding");
+				String system = findParameterPrimitiveOrNull(parameters, "system");
+				String version = findParameterPrimitiveOrNull(parameters, "version");
+				mutuallyExclusive("code", code, "coding", coding);
+				notSupported("date", findParameterPrimitiveOrNull(parameters, "date"));
+				lookupRequest.codeSystemParams = fhirHelper.getCodeSystemVersionParams(system != null ? new UriType(system) : null,
+						version != null ? new StringType(version) : null, coding);
+				lookupRequest.code = fhirHelper.recoverCode(code != null ? new CodeType(code) : null, coding);
+				lookupGroups.computeIfAbsent(Arrays.asList(lookupRequest.codeSystemParams, lookupRequest.displayLanguage), key -> new ArrayList<>()).add(lookupRequest);
+			} catch (RuntimeException e) {
+				lookupRequest.result = toOperationOutcome(e);
+			}
+		}
+
+		for (List<LookupRequest> lookupGroup : lookupGroups.values()) {
+			try {
+				lookup(lookupGroup, acceptLanguageHeader);
+			} catch (RuntimeException e) {
+				OperationOutcome operationOutcome = toOperationOutcome(e);
+				lookupGroup.forEach(lookupRequest -> lookupRequest.result = operationOutcome);
+			}
+		}
+		return toBatchResponse(BATCH_LOOKUP, lookupRequests.stream().map(lookupRequest -> lookupRequest.result).collect(Collectors.toList()));
+	}
+
+	private void lookup(List<LookupRequest> lookupGroup, String acceptLanguageHeader) {
+		LookupRequest first = lookupGroup.get(0);
+		FHIRCodeSystemVersionParams codeSystemParams = first.codeSystemParams;
+		List<LanguageDialect> designations = new ArrayList<>();
+		fhirHelper.setLanguageOptions(designations, first.displayLanguage, acceptLanguageHeader);
+		Set<String> codes = lookupGroup.stream().map(lookupRequest -> lookupRequest.code).collect(Collectors.toSet());
+		if (codeSystemParams.isSnomed()) {
+			Map<String, ConceptAndSystemResult> conceptResults = fhirCodeSystemService.findSnomedConcepts(codes, designations, codeSystemParams);
+			// Children are found with one search per code system version
+			Map<FHIRCodeSystemVersion, Set<String>> foundCodesByVersion = new HashMap<>();
+			conceptResults.forEach((code, conceptResult) -> {
+				if (conceptResult.getConcept() != null) {
+					foundCodesByVersion.computeIfAbsent(conceptResult.getCodeSystemVersion(), version -> new HashSet<>()).add(code);
+				}
+			});
+			Map<String, List<String>> childrenByCode = new HashMap<>();
+			foundCodesByVersion.forEach((version, foundCodes) -> childrenByCode.putAll(graphService.findChildren(foundCodes, version)));
+
+			for (LookupRequest lookupRequest : lookupGroup) {
+				ConceptAndSystemResult conceptResult = conceptResults.get(lookupRequest.code);
+				if (conceptResult.getConcept() == null) {
+					lookupRequest.result = codeNotFound(lookupRequest.code, conceptResult.getCodeSystemVersion());
+				} else {
+					lookupRequest.result = pMapper.mapToFHIR(conceptResult.getCodeSystemVersion(), conceptResult.getConcept(),
+							childrenByCode.getOrDefault(lookupRequest.code, Collections.emptyList()), FhirSctProperty.parse(lookupRequest.properties), designations);
+				}
+			}
+		} else {
+			FHIRCodeSystemVersion fhirCodeSystemVersion = fhirCodeSystemService.findCodeSystemVersionOrThrow(codeSystemParams);
+			Map<String, FHIRConcept> concepts = new HashMap<>();
+			for (List<String> codesBatch : Iterables.partition(codes, LARGE_PAGE.getPageSize())) {
+				fhirConceptService.findConcepts(new HashSet<>(codesBatch), fhirCodeSystemVersion, PageRequest.of(0, codesBatch.size()))
+						.forEach(concept -> concepts.putIfAbsent(concept.getCode(), concept));
+			}
+			for (LookupRequest lookupRequest : lookupGroup) {
+				FHIRConcept concept = concepts.get(lookupRequest.code);
+				lookupRequest.result = concept != null ? pMapper.mapToFHIR(fhirCodeSystemVersion, concept) : codeNotFound(lookupRequest.code, fhirCodeSystemVersion);
+			}
+		}
+	}
+
+	private OperationOutcome codeNotFound(String code, FHIRCodeSystemVersion codeSystemVersion) {
+		return toOperationOutcome(exception(format("Code '%s' not found for system '%s'.", code, codeSystemVersion.getUrl()), IssueType.NOTFOUND, 404));
+	}
+
 	@Operation(name="$validate-code", idempotent=true)
 	public Parameters validateCodeImplicit(
 			HttpServletRequest request,
@@ -418,5 +515,19 @@ public class FHIRCodeSystemProvider implements IResourceProvider, FHIRConstants
 	public Class<? extends IBaseResource> getResourceType() {
 		return CodeSystem.class;
 	}
+
+	private static final class LookupRequest {
+
+		private final String displayLanguage;
+		private final List<CodeType> properties;
+		private FHIRCodeSystemVersionParams codeSystemParams;
+		private String code;
+		private Resource result;
+
+		private LookupRequest(String displayLanguage, List<CodeType> properties) {
+			this.displayLanguage = displayLanguage;
+			this.properties = properties;
+		}
+	}
 	
 }
@@ -1,5 +1,6 @@
 package org.snomed.snowstorm.fhir.services;
 
+import com.google.common.collect.Iterables;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.slf4j.Logger;
@@ -19,9 +20,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 import static java.lang.String.format;
 import static org.snomed.snowstorm.fhir.services.FHIRHelper.exception;
@@ -30,6 +29,7 @@ import static org.snomed.snowstorm.fhir.services.FHIRHelper.exception;
 public class FHIRCodeSystemService {
 
 	public static final String SCT_ID_PREFIX = "sct_";
+	private static final int FIND_BATCH_SIZE = 1_000;
 
 	@Autowired
 	private FHIRCodeSystemRepository codeSystemRepository;
@@ -189,18 +189,9 @@ public class FHIRCodeSystemService {
 			codeSystemVersion = getSnomedVersion(codeSystemParams);
 			concept = snomedConceptService.find(code, languageDialects, codeSystemVersion.getSnomedBranch());
 			if (concept == null) {
-				// Multi-search
-				ConceptCriteria criteria = new ConceptCriteria().conceptIds(Collections.singleton(code));
-				List<Concept> content = snomedMultiSearchService.findConcepts(criteria, PageRequest.of(0, 1)).getContent();
-				if (!content.isEmpty()) {
-					Concept bareConcept = content.get(0);
-					// Recover published version where this concept was found
-					CodeSystemVersion systemVersion = snomedMultiSearchService.getNearestPublishedVersion(bareConcept.getPath());
-					if (systemVersion != null) {
-						codeSystemVersion = new FHIRCodeSystemVersion(systemVersion);
-						// Load whole concept for this code
-						concept = snomedConceptService.find(code, languageDialects, codeSystemVersion.getSnomedBranch());
-					}
+				ConceptAndSystemResult publishedResult = findSnomedConceptInPublishedVersions(code, languageDialects);
+				if (publishedResult != null) {
+					return publishedResult;
 				}
 			}
 		} else {
@@ -210,6 +201,49 @@ public class FHIRCodeSystemService {
 		return new ConceptAndSystemResult(concept, codeSystemVersion);
 	}
 
+	/**
+	 * Same as {@link #findSnomedConcept(String, List, FHIRCodeSystemVersionParams)} for many codes of the same code system version.
+	 * The code system version is resolved once and the codes are loaded together.
+	 * @return a result for every code, the concept is null if the code was not found.
+	 */
+	public Map<String, ConceptAndSystemResult> findSnomedConcepts(Collection<String> codes, List<LanguageDialect> languageDialects, FHIRCodeSystemVersionParams codeSystemParams) {
+		FHIRCodeSystemVersion codeSystemVersion = getSnomedVersion(codeSystemParams);
+		Map<String, ConceptAndSystemResult> results = new HashMap<>();
+		for (List<String> codesBatch : Iterables.partition(codes, FIND_BATCH_SIZE)) {
+			for (Concept concept : snomedConceptService.find(codeSystemVersion.getSnomedBranch(), codesBatch, languageDialects)) {
+				results.put(concept.getConceptId(), new ConceptAndSystemResult(concept, codeSystemVersion));
+			}
+		}
+		for (String code : codes) {
+			if (!results.containsKey(code)) {
+				ConceptAndSystemResult publishedResult = null;
+				if (codeSystemParams.isUnspecifiedReleasedSnomed()) {
+					// Only codes not found on the default branch need the expensive multi-search
+					publishedResult = findSnomedConceptInPublishedVersions(code, languageDialects);
+				}
+				results.put(code, publishedResult != null ? publishedResult : new ConceptAndSystemResult(null, codeSystemVersion));
+			}
+		}
+		return results;
+	}
+
+	private ConceptAndSystemResult findSnomedConceptInPublishedVersions(String code, List<LanguageDialect> languageDialects) {
+		// Multi-search
+		ConceptCriteria criteria = new ConceptCriteria().conceptIds(Collections.singleton(code));
+		List<Concept> content = snomedMultiSearchService.findConcepts(criteria, PageRequest.of(0, 1)).getContent();
+		if (!content.isEmpty()) {
+			Concept bareConcept = content.get(0);
+			// Recover published version where this concept was found
+			CodeSystemVersion systemVersion = snomedMultiSearchService.getNearestPublishedVersion(bareConcept.getPath());
+			if (systemVersion != null) {
+				FHIRCodeSystemVersion codeSystemVersion = new FHIRCodeSystemVersion(systemVersion);
+				// Load whole concept for this code
+				return new ConceptAndSystemResult(snomedConceptService.find(code, languageDialects, codeSystemVersion.getSnomedBranch()), codeSystemVersion);
+			}
+		}
+		return null;
+	}
+
 	public boolean conceptExistsOrThrow(String code, FHIRCodeSystemVersion codeSystemVersion) {
 		if (codeSystemVersion.isSnomed()) {
 			if (!snomedConceptService.exists(code, codeSystemVersion.getSnomedBranch())) {
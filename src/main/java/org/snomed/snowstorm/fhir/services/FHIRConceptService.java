@@ -8,11 +8,13 @@ import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.snomed.snowstorm.core.data.services.RuntimeServiceException;
 import org.snomed.snowstorm.fhir.domain.FHIRCodeSystemVersion;
 import org.snomed.snowstorm.fhir.domain.FHIRConcept;
 import org.snomed.snowstorm.fhir.domain.FHIRProperty;
 import org.snomed.snowstorm.fhir.repositories.FHIRConceptRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
@@ -22,6 +24,11 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.snomed.snowstorm.core.util.CollectionUtils.orEmpty;
@@ -41,6 +48,9 @@ public class FHIRConceptService {
 	@Autowired
 	private ElasticsearchRestTemplate elasticsearchTemplate;
 
+	@Value("${fhir.concept-save.threads}")
+	private int saveThreads;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public void saveAllConceptsOfCodeSystemVersion(TermCodeSystemVersion termCodeSystemVersion, FHIRCodeSystemVersion codeSystemVersion) {
@@ -123,29 +133,51 @@ public class FHIRConceptService {
 				.forEach(concept -> props.addAll(concept.getProperties().keySet()));
 
 		logger.info("Saving {} '{}' fhir concepts. All properties: {}", concepts.size(), idWithVersion, props);
-		float allSize = concepts.size();
-		int tenPercent = concepts.size() / 10;
-		if (tenPercent == 0) {
-			tenPercent = 1;
-		}
-		Float percentToLog = null;
-		int saved = 0;
-
-		for (List<FHIRConcept> conceptsBatch : Iterables.partition(concepts, SAVE_BATCH_SIZE)) {
-			List<FHIRConcept> batch = new ArrayList<>();
-			for (FHIRConcept concept : conceptsBatch) {
-				concept.setAncestors(graphBuilder.getTransitiveClosure(concept.getCode()));
-				batch.add(concept);
-				saved++;
-				if (saved % tenPercent == 0f) {
-					percentToLog = (saved / allSize) * 100;
+		int allSize = concepts.size();
+		int tenPercent = Math.max(allSize / 10, 1);
+		AtomicInteger saved = new AtomicInteger();
+
+		// Batches are saved in parallel. Ancestors are only set while a batch is being saved so that the closure of the whole code system is not held at once.
+		ExecutorService executorService = Executors.newFixedThreadPool(saveThreads);
+		try {
+			Deque<Future<?>> batchesSaving = new ArrayDeque<>();
+			for (List<FHIRConcept> conceptsBatch : Iterables.partition(concepts, SAVE_BATCH_SIZE)) {
+				if (batchesSaving.size() >= saveThreads * 2) {
+					waitForBatch(batchesSaving.removeFirst());
 				}
+				batchesSaving.add(executorService.submit(() -> {
+					for (FHIRConcept concept : conceptsBatch) {
+						concept.setAncestors(graphBuilder.getTransitiveClosure(concept.getCode()));
+					}
+					conceptRepository.saveAll(conceptsBatch);
+					for (FHIRConcept concept : conceptsBatch) {
+						concept.setAncestors(null);
+					}
+					int savedBefore = saved.getAndAdd(conceptsBatch.size());
+					if (allSize > 1000 && (savedBefore + conceptsBatch.size()) / tenPercent > savedBefore / tenPercent) {
+						logger.info("Saved {}% of '{}' fhir concepts.", Math.round(((savedBefore + conceptsBatch.size()) / (float) allSize) * 100), idWithVersion);
+					}
+				}));
+			}
+			while (!batchesSaving.isEmpty()) {
+				waitForBatch(batchesSaving.removeFirst());
 			}
-			conceptRepository.saveAll(batch);
-			if (concepts.size() > 1000 && percentToLog != null) {
-				logger.info("Saved {}% of '{}' fhir concepts.", Math.round(percentToLog), idWithVersion);
-				percentToLog = null;
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	private void waitForBatch(Future<?> batch) {
+		try {
+			batch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeServiceException("Interrupted while saving fhir concepts.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
+			throw new RuntimeServiceException("Failed to save fhir concepts.", e.getCause());
 		}
 	}
 
@@ -1,91 +1,221 @@
 package org.snomed.snowstorm.fhir.services;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
+/**
+ * Hierarchy of a FHIR code system, used to set the ancestors, parents and children of concepts before they are saved.
+ * Codes are numbered as they are added and the hierarchy is held as arrays of those numbers.
+ * The ancestors of all codes are calculated together, without recursion, when first requested. Codes are visited parents first
+ * so that the ancestors of each code are built from the already calculated ancestors of its parents.
+ * The graph can not be changed once it has been read.
+ */
 public class FHIRGraphBuilder {
 
-	private final Map<String, Node> nodeLookup = new HashMap<>();
+	private final Object2IntOpenHashMap<String> codeToIndex = new Object2IntOpenHashMap<>();
+	private final List<String> codes = new ArrayList<>();
+	private IntArrayList edgeSources = new IntArrayList();
+	private IntArrayList edgeDestinations = new IntArrayList();
+
+	// Parents and children of code i are at offsets[i] (inclusive) to offsets[i + 1] (exclusive)
+	private int[] parentOffsets;
+	private int[] parents;
+	private int[] childOffsets;
+	private int[] children;
+
+	private int[][] ancestors;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(FHIRGraphBuilder.class);
 
+	public FHIRGraphBuilder() {
+		codeToIndex.defaultReturnValue(-1);
+	}
+
 	public void addParent(String sourceCode, String destinationCode) {
 		LOGGER.debug("{} -> {}", sourceCode, destinationCode);
-		Node createNode = getCreateNode(sourceCode);
-		createNode.addParent(getCreateNode(destinationCode));
+		if (parents != null) {
+			throw new IllegalStateException("The graph can not be changed after it has been read.");
+		}
+		edgeSources.add(getCreateIndex(sourceCode));
+		edgeDestinations.add(getCreateIndex(destinationCode));
 	}
 
-	private Node getCreateNode(String code) {
-		Node node = nodeLookup.get(code);
-		if (node == null) {
-			node = new Node(code);
-			nodeLookup.put(node.getCode(), node);
+	private int getCreateIndex(String code) {
+		int index = codeToIndex.getInt(code);
+		if (index == -1) {
+			index = codes.size();
+			codes.add(code);
+			codeToIndex.put(code, index);
 		}
-		return node;
+		return index;
 	}
 
 	public Set<String> getTransitiveClosure(String code) {
-		Node node = nodeLookup.get(code);
-		return node != null ? node.getTransitiveClosure() : null;
+		int index = codeToIndex.getInt(code);
+		if (index == -1) {
+			return null;
+		}
+		calculateAncestors();
+		return toCodes(ancestors[index], 0, ancestors[index].length);
 	}
 
 	public Collection<String> getNodeParents(String code) {
-		Node node = nodeLookup.get(code);
-		return node != null ? node.getParents().stream().map(Node::getCode).collect(Collectors.toList()) : Collections.emptyList();
+		int index = codeToIndex.getInt(code);
+		if (index == -1) {
+			return Collections.emptyList();
+		}
+		build();
+		return toCodes(parents, parentOffsets[index], parentOffsets[index + 1]);
 	}
 
 	public Collection<String> getNodeChildren(String code) {
-		Node node = nodeLookup.get(code);
-		return node != null ? node.getChildren().stream().map(Node::getCode).collect(Collectors.toList()) : Collections.emptyList();
+		int index = codeToIndex.getInt(code);
+		if (index == -1) {
+			return Collections.emptyList();
+		}
+		build();
+		return toCodes(children, childOffsets[index], childOffsets[index + 1]);
 	}
 
-	public static class Node {
-
-		private final String code;
-		private final Set<Node> parents;
-		private final Set<Node> children;
-
-		public Node(String code) {
-			this.code = code;
-			parents = new HashSet<>();
-			children = new HashSet<>();
+	private Set<String> toCodes(int[] indexes, int from, int to) {
+		Set<String> result = new HashSet<>(Math.max(16, (int) ((to - from) / 0.75f) + 1));
+		for (int i = from; i < to; i++) {
+			result.add(codes.get(indexes[i]));
 		}
+		return result;
+	}
 
-		public void addParent(Node parentCode) {
-			parents.add(parentCode);
-			parentCode.addChild(this);
+	private synchronized void build() {
+		if (parents != null) {
+			return;
 		}
+		int nodeCount = codes.size();
 
-		private void addChild(Node node) {
-			children.add(node);
+		// Sort the edges by source, dropping duplicates
+		long[] edges = new long[edgeSources.size()];
+		for (int i = 0; i < edges.length; i++) {
+			edges[i] = ((long) edgeSources.getInt(i) << 32) | edgeDestinations.getInt(i);
 		}
-
-		public String getCode() {
-			return code;
+		edgeSources = null;
+		edgeDestinations = null;
+		Arrays.sort(edges);
+		int edgeCount = 0;
+		for (int i = 0; i < edges.length; i++) {
+			if (i == 0 || edges[i] != edges[i - 1]) {
+				edges[edgeCount++] = edges[i];
+			}
 		}
 
-		public Set<String> getTransitiveClosure() {
-			HashSet<String> tc = new HashSet<>();
-			collectParents(tc);
-			return tc;
+		int[] parentsBuilding = new int[edgeCount];
+		int[] childrenBuilding = new int[edgeCount];
+		int[] parentOffsetsBuilding = new int[nodeCount + 1];
+		int[] childOffsetsBuilding = new int[nodeCount + 1];
+		for (int i = 0; i < edgeCount; i++) {
+			parentOffsetsBuilding[source(edges[i]) + 1]++;
+			childOffsetsBuilding[destination(edges[i]) + 1]++;
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			parentOffsetsBuilding[i + 1] += parentOffsetsBuilding[i];
+			childOffsetsBuilding[i + 1] += childOffsetsBuilding[i];
 		}
+		int[] childPositions = Arrays.copyOf(childOffsetsBuilding, nodeCount);
+		for (int i = 0; i < edgeCount; i++) {
+			// Edges are in source order so the parents are already grouped by code
+			parentsBuilding[i] = destination(edges[i]);
+			childrenBuilding[childPositions[destination(edges[i])]++] = source(edges[i]);
+		}
+		parentOffsets = parentOffsetsBuilding;
+		childOffsets = childOffsetsBuilding;
+		children = childrenBuilding;
+		parents = parentsBuilding;
+	}
+
+	private static int source(long edge) {
+		return (int) (edge >>> 32);
+	}
 
-		private void collectParents(Set<String> tc) {
-			for (Node parent : parents) {
-				tc.add(parent.getCode());
-				parent.collectParents(tc);
+	private static int destination(long edge) {
+		return (int) edge;
+	}
+
+	private synchronized void calculateAncestors() {
+		if (ancestors != null) {
+			return;
+		}
+		build();
+		int nodeCount = codes.size();
+		int[][] calculated = new int[nodeCount][];
+
+		// Visit each code once all of its parents have been visited, starting with the codes that have no parents
+		// Each code is queued at most once
+		int[] parentsRemaining = new int[nodeCount];
+		int[] ready = new int[nodeCount];
+		int readyHead = 0;
+		int readyTail = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			parentsRemaining[node] = parentOffsets[node + 1] - parentOffsets[node];
+			if (parentsRemaining[node] == 0) {
+				ready[readyTail++] = node;
+			}
+		}
+		IntOpenHashSet nodeAncestors = new IntOpenHashSet();
+		while (readyHead < readyTail) {
+			int node = ready[readyHead++];
+			nodeAncestors.clear();
+			for (int p = parentOffsets[node]; p < parentOffsets[node + 1]; p++) {
+				int parent = parents[p];
+				nodeAncestors.add(parent);
+				for (int ancestor : calculated[parent]) {
+					nodeAncestors.add(ancestor);
+				}
+			}
+			calculated[node] = nodeAncestors.toIntArray();
+			for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) {
+				if (--parentsRemaining[children[c]] == 0) {
+					ready[readyTail++] = children[c];
+				}
 			}
 		}
 
-		public Set<Node> getParents() {
-			return parents;
+		// Codes in or below a cycle are never ready, walk up their parents instead
+		int inCycles = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			if (calculated[node] == null) {
+				calculated[node] = walkAncestors(node, calculated);
+				inCycles++;
+			}
 		}
+		if (inCycles > 0) {
+			LOGGER.warn("{} codes are in or below a cycle in the code system hierarchy.", inCycles);
+		}
+		ancestors = calculated;
+	}
 
-		public Set<Node> getChildren() {
-			return children;
+	private int[] walkAncestors(int node, int[][] calculated) {
+		IntOpenHashSet visited = new IntOpenHashSet();
+		IntArrayList toVisit = new IntArrayList();
+		toVisit.add(node);
+		while (!toVisit.isEmpty()) {
+			int current = toVisit.popInt();
+			for (int p = parentOffsets[current]; p < parentOffsets[current + 1]; p++) {
+				int parent = parents[p];
+				if (visited.add(parent)) {
+					if (calculated[parent] != null) {
+						for (int ancestor : calculated[parent]) {
+							visited.add(ancestor);
+						}
+					} else {
+						toVisit.add(parent);
+					}
+				}
+			}
 		}
+		visited.remove(node);
+		return visited.toIntArray();
 	}
 }
@@ -9,15 +9,17 @@ import org.snomed.snowstorm.fhir.domain.FHIRGraphNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
-import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
+import static org.elasticsearch.index.query.QueryBuilders.*;
+import static org.snomed.snowstorm.core.util.CollectionUtils.orEmpty;
 
 @Service
 /*
@@ -55,6 +57,36 @@ public class FHIRGraphService {
 				.get().map(hit -> hit.getContent().getCode()).collect(Collectors.toList());
 	}
 
+	/**
+	 * Finds the children of many codes with one search.
+	 * @return children by code, codes without children are not included.
+	 */
+	public Map<String, List<String>> findChildren(Set<String> codes, FHIRCodeSystemVersion codeSystemVersion) {
+		GraphCriteria graphCriteria = getGraphCriteria(codeSystemVersion, LARGE_PAGE);
+		graphCriteria.getCriteria()
+				.must(termsQuery(PARENTS, codes));
+
+		Map<String, List<String>> childrenByCode = new HashMap<>();
+		try (SearchHitsIterator<? extends FHIRGraphNode> stream = elasticsearchTemplate.searchForStream(graphCriteria.getQuery(), graphCriteria.getNodeClass())) {
+			stream.forEachRemaining(hit -> {
+				FHIRGraphNode node = hit.getContent();
+				for (String parent : getParentCodes(node)) {
+					if (codes.contains(parent)) {
+						childrenByCode.computeIfAbsent(parent, code -> new ArrayList<>()).add(node.getCode());
+					}
+				}
+			});
+		}
+		return childrenByCode;
+	}
+
+	private Collection<String> getParentCodes(FHIRGraphNode node) {
+		if (node instanceof QueryConcept) {
+			return ((QueryConcept) node).getParents().stream().map(Object::toString).collect(Collectors.toList());
+		}
+		return orEmpty(((FHIRConcept) node).getParents());
+	}
+
 	private GraphCriteria getGraphCriteria(FHIRCodeSystemVersion codeSystemVersion, PageRequest page) {
 		if (codeSystemVersion.isSnomed()) {
 			BoolQueryBuilder criteria = snomedVersionControlHelper.getBranchCriteria(codeSystemVersion.getSnomedBranch()).getEntityBranchCriteria(QueryConcept.class);
@@ -74,6 +74,52 @@ public class FHIRHelper implements FHIRConstants {
 		return new SnowstormFHIRServerResponseException(theStatusCode, message, outcome, e);
 	}
 
+	public static OperationOutcome toOperationOutcome(RuntimeException e) {
+		if (e instanceof SnowstormFHIRServerResponseException && ((SnowstormFHIRServerResponseException) e).getOperationOutcome() != null) {
+			return (OperationOutcome) ((SnowstormFHIRServerResponseException) e).getOperationOutcome();
+		}
+		return (OperationOutcome) exception(e.getMessage(), IssueType.EXCEPTION, 500, e).getOperationOutcome();
+	}
+
+	/**
+	 * @return the Parameters resources of each entry of a batch operation, held in the repeating parameter with the given name.
+	 */
+	public static List<Parameters> getBatchEntries(Parameters batch, String name) {
+		List<Parameters> entries = new ArrayList<>();
+		for (Parameters.ParametersParameterComponent parameter : batch.getParameter()) {
+			if (parameter.getName().equals(name)) {
+				if (!(parameter.getResource() instanceof Parameters)) {
+					throw exception(format("Each '%s' parameter must contain a Parameters resource.", name), IssueType.INVALID, 400);
+				}
+				entries.add((Parameters) parameter.getResource());
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the response of a batch operation, with the result of each entry in the same order as the request.
+	 */
+	public static Parameters toBatchResponse(String name, List<? extends Resource> results) {
+		Parameters response = new Parameters();
+		for (Resource result : results) {
+			response.addParameter().setName(name).setResource(result);
+		}
+		return response;
+	}
+
+	public static Type findParameterValueOrNull(final List<Parameters.ParametersParameterComponent> parametersParameterComponents, final String name) {
+		return parametersParameterComponents.stream()
+				.filter(parametersParameterComponent -> parametersParameterComponent.getName().equals(name))
+				.findFirst()
+				.map(Parameters.ParametersParameterComponent::getValue).orElse(null);
+	}
+
+	public static String findParameterPrimitiveOrNull(final List<Parameters.ParametersParameterComponent> parametersParameterComponents, final String name) {
+		Type value = findParameterValueOrNull(parametersParameterComponents, name);
+		return value != null ? value.primitiveValue() : null;
+	}
+
 	public static String findParameterStringOrNull(final List<Parameters.ParametersParameterComponent> parametersParameterComponents, final String name) {
 		return parametersParameterComponents.stream()
 				.filter(parametersParameterComponent -> parametersParameterComponent.getName().equals(name))
@@ -1,19 +1,32 @@
 package org.snomed.snowstorm.fhir.services;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.snomed.snowstorm.core.data.domain.Description;
 import org.snomed.snowstorm.core.data.services.DescriptionService;
 import org.snomed.snowstorm.core.pojo.LanguageDialect;
 import org.snomed.snowstorm.core.util.DescriptionHelper;
 import org.snomed.snowstorm.fhir.domain.FHIRCodeSystemVersion;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
- * Service to cache small number of often-used snomed terms from the model module. Terms may be translated.
- * Cache works per code system version and language dialects requested.
+ * Service to cache often-used snomed terms from the model module. Terms may be translated.
+ * Terms are keyed by code system version and language dialects requested, in one cache shared by all versions.
+ * Terms are read without locking. Terms that are not cached are fetched in batches, so concurrent requests for the same version and dialects
+ * share one description search. The least recently used terms are evicted when the cache is full.
  */
 @Service
 public class FHIRSnomedModelTermCache {
@@ -21,27 +34,138 @@ public class FHIRSnomedModelTermCache {
 	@Autowired
 	private DescriptionService snomedDescriptionService;
 
-	private final Map<String, Map<String, String>> termCache = new HashMap<>();
+	@Value("${fhir.snomed-model-term-cache.max-size}")
+	private long maxSize;
 
-	public synchronized String getSnomedTerm(String snomedCode, FHIRCodeSystemVersion snomedVersion, List<LanguageDialect> languageDialects) {
-		String cacheKey = snomedVersion.getId() + "-" + languageDialects.stream().map(Object::toString).collect(Collectors.joining("|"));
-		Map<String, String> versionDialectTermCache = termCache.get(cacheKey);
-		if (versionDialectTermCache == null) {
-			synchronized (termCache) {
-				versionDialectTermCache = new HashMap<>();
-				termCache.put(cacheKey, versionDialectTermCache);
+	@Value("${fhir.snomed-model-term-cache.fetch-threads}")
+	private int fetchThreads;
+
+	// Values are optional because a concept may have no term in the requested dialects, which is also worth caching
+	private AsyncCache<TermKey, Optional<String>> termCache;
+
+	private final Map<String, TermBatcher> batchers = new ConcurrentHashMap<>();
+
+	// Bounded without risk of deadlock because a batcher only completes the futures of its own requests, it never joins another batcher's futures
+	private ExecutorService executorService;
+
+	@PostConstruct
+	public void init() {
+		executorService = Executors.newFixedThreadPool(fetchThreads);
+		termCache = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.recordStats()
+				.buildAsync();
+	}
+
+	public String getSnomedTerm(String snomedCode, FHIRCodeSystemVersion snomedVersion, List<LanguageDialect> languageDialects) {
+		String versionDialectKey = snomedVersion.getId() + "-" + languageDialects.stream().map(Object::toString).collect(Collectors.joining("|"));
+		CompletableFuture<Optional<String>> term = termCache.get(new TermKey(versionDialectKey, snomedCode), (key, executor) ->
+				batchers.computeIfAbsent(versionDialectKey, k -> new TermBatcher(k, snomedVersion.getSnomedBranch(), languageDialects)).request(snomedCode));
+		try {
+			return term.join().orElse(null);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
+			throw e;
 		}
-		String term = versionDialectTermCache.get(snomedCode);
-		if (term == null) {
-			Set<Description> descriptions = snomedDescriptionService.findDescriptionsByConceptId(snomedVersion.getSnomedBranch(), Collections.singleton(snomedCode), true);
-			Optional<Description> termOptional = DescriptionHelper.getPtDescription(descriptions, languageDialects);
-			term = termOptional.map(Description::getTerm).orElse(null);
-			synchronized (termCache) {
-				versionDialectTermCache.put(snomedCode, term);
+	}
+
+	/**
+	 * @return hit, miss, eviction and load statistics.
+	 */
+	public Map<String, Long> getStats() {
+		CacheStats cacheStats = termCache.synchronous().stats();
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("size", termCache.synchronous().estimatedSize());
+		stats.put("max-size", maxSize);
+		stats.put("hits", cacheStats.hitCount());
+		stats.put("misses", cacheStats.missCount());
+		stats.put("hit-rate-percent", Math.round(cacheStats.hitRate() * 100));
+		stats.put("evictions", cacheStats.evictionCount());
+		stats.put("load-failures", cacheStats.loadFailureCount());
+		return stats;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executorService.shutdownNow();
+	}
+
+	/**
+	 * Collects the codes requested for one code system version and set of dialects.
+	 * While a search is running the codes requested meanwhile are queued, then fetched together in the next search.
+	 */
+	private final class TermBatcher {
+
+		private final String versionDialectKey;
+		private final String branchPath;
+		private final List<LanguageDialect> languageDialects;
+		private Map<String, CompletableFuture<Optional<String>>> queued = new HashMap<>();
+		private boolean running;
+
+		private TermBatcher(String versionDialectKey, String branchPath, List<LanguageDialect> languageDialects) {
+			this.versionDialectKey = versionDialectKey;
+			this.branchPath = branchPath;
+			this.languageDialects = languageDialects;
+		}
+
+		private synchronized CompletableFuture<Optional<String>> request(String snomedCode) {
+			CompletableFuture<Optional<String>> future = queued.computeIfAbsent(snomedCode, code -> new CompletableFuture<>());
+			if (!running) {
+				running = true;
+				executorService.execute(this::fetchQueued);
+			}
+			return future;
+		}
+
+		private void fetchQueued() {
+			while (true) {
+				Map<String, CompletableFuture<Optional<String>>> batch;
+				synchronized (this) {
+					if (queued.isEmpty()) {
+						running = false;
+						// Idle batchers are not kept, a request that still holds this one will start a new fetch
+						batchers.remove(versionDialectKey, this);
+						return;
+					}
+					batch = queued;
+					queued = new HashMap<>();
+				}
+				try {
+					Map<String, Set<Description>> descriptionsByConcept = snomedDescriptionService.findDescriptionsByConceptId(branchPath, batch.keySet(), true).stream()
+							.collect(Collectors.groupingBy(Description::getConceptId, Collectors.toSet()));
+					batch.forEach((code, future) -> future.complete(
+							DescriptionHelper.getPtDescription(descriptionsByConcept.getOrDefault(code, Collections.emptySet()), languageDialects).map(Description::getTerm)));
+				} catch (RuntimeException e) {
+					// Failed terms are not cached so they will be fetched again next time
+					batch.values().forEach(future -> future.completeExceptionally(e));
+				}
 			}
 		}
-		return term;
 	}
 
+	private static final class TermKey {
+
+		private final String versionDialectKey;
+		private final String snomedCode;
+
+		private TermKey(String versionDialectKey, String snomedCode) {
+			this.versionDialectKey = versionDialectKey;
+			this.snomedCode = snomedCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			TermKey termKey = (TermKey) o;
+			return versionDialectKey.equals(termKey.versionDialectKey) && snomedCode.equals(termKey.snomedCode);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(versionDialectKey, snomedCode);
+		}
+	}
 }
@@ -192,7 +192,8 @@ public class FHIRValueSetProvider implements IResourceProvider, FHIRConstants {
 			@OperationParam(name="system-version") StringType systemVersion,
 			@OperationParam(name="check-system-version") StringType checkSystemVersion,
 			@OperationParam(name="force-system-version") StringType forceSystemVersion,
-			@OperationParam(name="version") StringType version)// Invalid parameter
+			@OperationParam(name="version") StringType version,// Invalid parameter
+			@OperationParam(name="cursor") String cursor)
 			{
 
 		ValueSetExpansionParameters params;
@@ -202,7 +203,7 @@ public class FHIRValueSetProvider implements IResourceProvider, FHIRConstants {
 		} else {
 			params = FHIRValueSetProviderHelper.getValueSetExpansionParameters(id, url, valueSetVersion, context, contextDirection, filter, date, offset, count,
 					includeDesignationsType, designations, includeDefinition, activeType, excludeNested, excludeNotForUI, excludePostCoordinated, displayLanguage,
-					excludeSystem, systemVersion, checkSystemVersion, forceSystemVersion, version);
+					excludeSystem, systemVersion, checkSystemVersion, forceSystemVersion, version, cursor);
 		}
 		return valueSetService.expand(params, FHIRHelper.getDisplayLanguage(params.getDisplayLanguage(), request.getHeader(ACCEPT_LANGUAGE_HEADER)));
 	}
@@ -232,7 +233,8 @@ public class FHIRValueSetProvider implements IResourceProvider, FHIRConstants {
 			@OperationParam(name="system-version") StringType systemVersion,
 			@OperationParam(name="check-system-version") StringType checkSystemVersion,
 			@OperationParam(name="force-system-version") StringType forceSystemVersion,
-			@OperationParam(name="version") StringType version)// Invalid parameter
+			@OperationParam(name="version") StringType version,// Invalid parameter
+			@OperationParam(name="cursor") String cursor)
 			{
 
 		ValueSetExpansionParameters params;
@@ -242,7 +244,7 @@ public class FHIRValueSetProvider implements IResourceProvider, FHIRConstants {
 		} else {
 			params = FHIRValueSetProviderHelper.getValueSetExpansionParameters(null, url, valueSetVersion, context, contextDirection, filter, date, offset, count,
 					includeDesignationsType, designations, includeDefinition, activeType, excludeNested, excludeNotForUI, excludePostCoordinated, displayLanguage,
-					excludeSystem, systemVersion, checkSystemVersion, forceSystemVersion, version);
+					excludeSystem, systemVersion, checkSystemVersion, forceSystemVersion, version, cursor);
 		}
 
 		return valueSetService.expand(params, FHIRHelper.getDisplayLanguage(params.getDisplayLanguage(), request.getHeader(ACCEPT_LANGUAGE_HEADER)));
@@ -297,6 +299,20 @@ public class FHIRValueSetProvider implements IResourceProvider, FHIRConstants {
 				FHIRHelper.getDisplayLanguage(displayLanguage, request.getHeader(ACCEPT_LANGUAGE_HEADER)));
 	}
 
+	/**
+	 * Validates many codings in one request. The body is a Parameters resource with a 'validation' parameter for each coding,
+	 * each holding a Parameters resource with the same parameters as $validate-code.
+	 * The response has a 'validation' parameter for each coding, in the same order, with the result or an OperationOutcome.
+	 */
+	@Operation(name="$batch-validate-code")
+	public Parameters batchValidateCode(
+			HttpServletRequest request,
+			HttpServletResponse response,
+			@ResourceParam String rawBody) {
+
+		return valueSetService.batchValidateCode(fhirContext.newJsonParser().parseResource(Parameters.class, rawBody), request.getHeader(ACCEPT_LANGUAGE_HEADER));
+	}
+
 	private void validateCodeParamHints(String incorrectParamSystemVersion) {
 		FHIRHelper.parameterNamingHint("system-version", incorrectParamSystemVersion, "systemVersion");
 	}
@@ -36,7 +36,8 @@ class FHIRValueSetProviderHelper {
 				findParameterCanonicalOrNull(parametersParameterComponents, "system-version"),
 				findParameterCanonicalOrNull(parametersParameterComponents, "check-system-version"),
 				findParameterCanonicalOrNull(parametersParameterComponents, "force-system-version"),
-				findParameterStringOrNull(parametersParameterComponents, "version"));
+				findParameterStringOrNull(parametersParameterComponents, "version"),
+				findParameterStringOrNull(parametersParameterComponents, "cursor"));
 	}
 
 	static ValueSetExpansionParameters getValueSetExpansionParameters(
@@ -61,7 +62,8 @@ class FHIRValueSetProviderHelper {
 			final StringType systemVersion,
 			final StringType checkSystemVersion,
 			final StringType forceSystemVersion,
-			final StringType version) {
+			final StringType version,
+			final String cursor) {
 
 		return new ValueSetExpansionParameters(
 				id != null ? id.getIdPart() : null,
@@ -86,7 +88,8 @@ class FHIRValueSetProviderHelper {
 				CanonicalUri.fromString(getOrNull(systemVersion)),
 				CanonicalUri.fromString(getOrNull(checkSystemVersion)),
 				CanonicalUri.fromString(getOrNull(forceSystemVersion)),
-				getOrNull(version));
+				getOrNull(version),
+				cursor);
 	}
 
 	@Nullable
@@ -1,5 +1,7 @@
 package org.snomed.snowstorm.fhir.services;
 
+import com.google.common.collect.Iterables;
+import io.kaicode.elasticvc.api.BranchService;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.index.query.BoolQueryBuilder;
@@ -25,17 +27,22 @@ import org.snomed.snowstorm.fhir.repositories.FHIRValueSetRepository;
 import org.snomed.snowstorm.fhir.services.context.CodeSystemVersionProvider;
 import org.snomed.snowstorm.rest.ControllerHelper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.*;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
 import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
@@ -54,6 +61,8 @@ public class FHIRValueSetService {
 	public static final String REFSETS_WITH_MEMBERS = "Refsets";
 
 	private static final PageRequest PAGE_OF_ONE = PageRequest.of(0, 1);
+	private static final String BATCH_VALIDATION = "validation";
+	private static final int VALIDATE_CODE_BATCH_SIZE = 1_000;
 
 	@Autowired
 	private FHIRCodeSystemService codeSystemService;
@@ -76,10 +85,26 @@ public class FHIRValueSetService {
 	@Autowired
 	private ElasticsearchRestTemplate elasticsearchTemplate;
 
+	@Autowired
+	private BranchService branchService;
+
+	@Value("${fhir.valueset.expansion-cache.max-size-mb}")
+	private long expansionCacheMaxSizeMb;
+
+	@Value("${fhir.valueset.expansion-cache.expire-after-access-minutes}")
+	private long expansionCacheExpireMinutes;
+
+	private ValueSetExpansionCache expansionCache;
+
 	private final Map<String, Set<String>> codeSystemVersionToRefsetsWithMembersCache = new HashMap<>();
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
+	@PostConstruct
+	public void init() {
+		expansionCache = new ValueSetExpansionCache(expansionCacheMaxSizeMb * 1024 * 1024, Duration.ofMinutes(expansionCacheExpireMinutes));
+	}
+
 	public Page<FHIRValueSet> findAll(Pageable pageable) {
 		NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
 				.withPageable(pageable)
@@ -184,32 +209,20 @@ public class FHIRValueSetService {
 		// Collate set of inclusion and exclusion constraints for each code system version
 		CodeSelectionCriteria codeSelectionCriteria = generateInclusionExclusionConstraints(hapiValueSet, codeSystemVersionProvider, activeOnly);
 
-		// Restrict expansion of ValueSets with multiple code system versions if any are SNOMED CT, to simplify pagination.
 		Set<FHIRCodeSystemVersion> allInclusionVersions = codeSelectionCriteria.gatherAllInclusionVersions();
 		boolean isSnomed = allInclusionVersions.stream().anyMatch(FHIRCodeSystemVersion::isSnomed);
-		if (isSnomed) {
-			if (allInclusionVersions.size() > 1) {
-				throw exception("This server does not yet support ValueSet$expand on ValueSets with multiple code systems if any are SNOMED CT, " +
-								"because of the complexities around pagination and result totals.",
-						OperationOutcome.IssueType.NOTSUPPORTED, 400);
-			}
-			if (!codeSelectionCriteria.getNestedSelections().isEmpty()) {
-				throw exception("This server does not yet support ValueSet$expand on SNOMED CT ValueSets with nested value sets, " +
-								"because of the complexities around pagination and result totals.",
-						OperationOutcome.IssueType.NOTSUPPORTED, 400);
-			}
-		}
 
 		if (allInclusionVersions.isEmpty()) {
 			return hapiValueSet;
 		}
 
 		Page<FHIRConcept> conceptsPage;
+		int expansionOffset = (int) pageRequest.getOffset();
+		String nextCursor = null;
 		String copyright = null;
 		boolean includeDesignations = TRUE.equals(params.getIncludeDesignations());
-		if (isSnomed) {
-			// SNOMED CT Expansion
-			// Only expansion of single version is supported.
+		if (isSnomed && allInclusionVersions.size() == 1) {
+			// SNOMED CT Expansion of a single version
 			copyright = SNOMED_VALUESET_COPYRIGHT;
 
 			FHIRCodeSystemVersion codeSystemVersion = allInclusionVersions.iterator().next();
@@ -218,60 +231,62 @@ public class FHIRValueSetService {
 			// Constraints:
 			// - Elasticsearch prevents us from requesting results beyond the first 10K
 			// Strategy:
-			// - Load concept ids until we reach the requested page
-			// - Then load the concepts for that page
-			int offsetRequested = (int) pageRequest.getOffset();
-			int limitRequested = (int) (pageRequest.getOffset() + pageRequest.getPageSize());
+			// - Pages within the first 10K are searched directly
+			// - Deeper pages, and pages requested with a cursor, are served from the complete expansion which is loaded once and cached
+			ValueSetExpansionCache.Cursor cursor = parseCursor(params);
+			int offsetRequested = cursor != null ? cursor.getOffset() : (int) pageRequest.getOffset();
+			int limitRequested = offsetRequested + pageRequest.getPageSize();
 
 			QueryService.ConceptQueryBuilder conceptQuery = getSnomedConceptQuery(filter, activeOnly, codeSelectionCriteria);
+			String snomedBranch = codeSystemVersion.getSnomedBranch();
 
-			int totalResults = 0;
+			int totalResults;
 			List<Long> conceptsToLoad;
-			if (limitRequested > LARGE_PAGE.getPageSize()) {
-				// Have to use search-after feature to paginate to the page requested because of Elasticsearch 10k limit.
-				SearchAfterPage<Long> previousPage = null;
-				List<Long> allConceptIds = new LongArrayList();
-				boolean loadedAll = false;
-				while (allConceptIds.size() < limitRequested || loadedAll) {
-					PageRequest largePageRequest;
-					if (previousPage == null) {
-						largePageRequest = LARGE_PAGE;
-					} else {
-						int pageSize = Math.min(limitRequested - allConceptIds.size(), LARGE_PAGE.getPageSize());
-						largePageRequest = SearchAfterPageRequest.of(previousPage.getSearchAfter(), pageSize, previousPage.getSort());
-					}
-					SearchAfterPage<Long> page = snomedQueryService.searchForIds(conceptQuery, codeSystemVersion.getSnomedBranch(), largePageRequest);
-					allConceptIds.addAll(page.getContent());
-					loadedAll = page.getNumberOfElements() < largePageRequest.getPageSize();
-					if (previousPage == null) {
-						// Collect results total
-						totalResults = (int) page.getTotalElements();
+			if (cursor != null || limitRequested > LARGE_PAGE.getPageSize()) {
+				ValueSetExpansionCache.ExpansionKey expansionKey = new ValueSetExpansionCache.ExpansionKey(snomedBranch,
+						branchService.findLatest(snomedBranch).getHeadTimestamp(), getSnomedExpansionDefinition(activeOnly, codeSelectionCriteria), filter);
+				ValueSetExpansionCache.Expansion cachedExpansion;
+				if (cursor != null && cursor.getExpansionId() != null) {
+					cachedExpansion = expansionCache.getIfPresent(expansionKey);
+					if (cachedExpansion == null || !cachedExpansion.getId().equals(cursor.getExpansionId())) {
+						throw exception("The expansion cursor has expired because the content has changed or the expansion is no longer cached. " +
+								"Please restart the expansion.", OperationOutcome.IssueType.EXPIRED, 410);
 					}
-					previousPage = page;
-				}
-				if (allConceptIds.size() > offsetRequested) {
-					conceptsToLoad = new LongArrayList(allConceptIds).subList(offsetRequested, Math.min(limitRequested, allConceptIds.size()));
 				} else {
-					conceptsToLoad = new ArrayList<>();
+					cachedExpansion = expansionCache.getOrLoad(expansionKey, key -> loadAllSnomedConceptIds(conceptQuery, snomedBranch));
+				}
+				conceptsToLoad = LongArrayList.wrap(cachedExpansion.getConceptIds(offsetRequested, limitRequested));
+				totalResults = cachedExpansion.getTotal();
+				if (limitRequested < totalResults) {
+					nextCursor = ValueSetExpansionCache.createCursor(cachedExpansion.getId(), limitRequested);
 				}
 			} else {
-				SearchAfterPage<Long> resultsPage = snomedQueryService.searchForIds(conceptQuery, codeSystemVersion.getSnomedBranch(), pageRequest);
+				SearchAfterPage<Long> resultsPage = snomedQueryService.searchForIds(conceptQuery, snomedBranch, pageRequest);
 				conceptsToLoad = resultsPage.getContent();
 				totalResults = (int) resultsPage.getTotalElements();
-			}
-
-			List<FHIRConcept> conceptsOnRequestedPage = new ArrayList<>();
-			if (!conceptsToLoad.isEmpty()) {
-				Map<String, ConceptMini> conceptMinis = snomedConceptService.findConceptMinis(codeSystemVersion.getSnomedBranch(), conceptsToLoad, languageDialects).getResultsMap();
-				for (Long conceptToLoad : conceptsToLoad) {
-					ConceptMini snomedConceptMini = conceptMinis.get(conceptToLoad.toString());
-					if (snomedConceptMini != null) {
-						conceptsOnRequestedPage.add(new FHIRConcept(snomedConceptMini, codeSystemVersion, includeDesignations));
-					}
+				if (limitRequested < totalResults) {
+					// The expansion is loaded into the cache if the cursor is used
+					nextCursor = ValueSetExpansionCache.createCursor(null, limitRequested);
 				}
 			}
+			expansionOffset = offsetRequested;
 
+			List<FHIRConcept> conceptsOnRequestedPage = loadSnomedConcepts(codeSystemVersion, conceptsToLoad, languageDialects, includeDesignations);
 			conceptsPage = new PageImpl<>(conceptsOnRequestedPage, pageRequest, totalResults);
+		} else if (isSnomed) {
+			// Expansion of SNOMED CT with other code systems, or other versions of SNOMED CT
+			copyright = SNOMED_VALUESET_COPYRIGHT;
+			List<LanguageDialect> languageDialects = ControllerHelper.parseAcceptLanguageHeader(displayLanguage);
+
+			ValueSetExpansionCache.Cursor cursor = parseCursor(params);
+			int offsetRequested = cursor != null ? cursor.getOffset() : (int) pageRequest.getOffset();
+			int limitRequested = offsetRequested + pageRequest.getPageSize();
+			conceptsPage = expandCodeSystemVersions(codeSelectionCriteria, allInclusionVersions, filter, activeOnly, offsetRequested, pageRequest.getPageSize(),
+					languageDialects, includeDesignations);
+			if (limitRequested < conceptsPage.getTotalElements()) {
+				nextCursor = ValueSetExpansionCache.createCursor(null, limitRequested);
+			}
+			expansionOffset = offsetRequested;
 		} else {
 			// FHIR Concept Expansion (non-SNOMED)
 			String sortField = filter != null ? "displayLen" : "code";
@@ -289,6 +304,10 @@ public class FHIRValueSetService {
 				expansion.addParameter(new ValueSet.ValueSetExpansionParameterComponent(new StringType("version"))
 						.setValue(new CanonicalType(codeSystemVersion.getCanonical()))));
 		expansion.addParameter(new ValueSet.ValueSetExpansionParameterComponent(new StringType("displayLanguage")).setValue(new StringType(displayLanguage)));
+		if (nextCursor != null) {
+			// Opaque cursor for the next page, an alternative to offset for clients reading the whole expansion
+			expansion.addParameter(new ValueSet.ValueSetExpansionParameterComponent(new StringType("cursor")).setValue(new StringType(nextCursor)));
+		}
 		expansion.setContains(conceptsPage.stream().map(concept -> {
 					ValueSet.ValueSetExpansionContainsComponent component = new ValueSet.ValueSetExpansionContainsComponent()
 							.setSystem(idAndVersionToUrl.get(concept.getCodeSystemVersion()))
@@ -307,7 +326,7 @@ public class FHIRValueSetService {
 					return component;
 		})
 				.collect(Collectors.toList()));
-		expansion.setOffset(conceptsPage.getNumber() * conceptsPage.getSize());
+		expansion.setOffset(expansionOffset);
 		expansion.setTotal((int) conceptsPage.getTotalElements());
 		hapiValueSet.setExpansion(expansion);
 
@@ -383,6 +402,200 @@ public class FHIRValueSetService {
 		return versionQuery;
 	}
 
+	@Nullable
+	private ValueSetExpansionCache.Cursor parseCursor(ValueSetExpansionParameters params) {
+		if (params.getCursor() == null) {
+			return null;
+		}
+		try {
+			return ValueSetExpansionCache.parseCursor(params.getCursor());
+		} catch (IllegalArgumentException e) {
+			throw exception("Parameter 'cursor' is not valid.", OperationOutcome.IssueType.INVALID, 400);
+		}
+	}
+
+	/**
+	 * Expand a ValueSet that includes more than one code system version, at least one of which is SNOMED CT.
+	 * The concepts of each code system version are selected by a single query, with nested value sets and exclusions applied within the query,
+	 * so the versions never overlap and no concept ids need to be collected to apply exclusions.
+	 * The versions are concatenated in order of their canonical uri. Only the concepts of the requested page are loaded, the other versions are just counted.
+	 */
+	private Page<FHIRConcept> expandCodeSystemVersions(CodeSelectionCriteria codeSelectionCriteria, Set<FHIRCodeSystemVersion> codeSystemVersions,
+			String filter, boolean activeOnly, int offset, int pageSize, List<LanguageDialect> languageDialects, boolean includeDesignations) {
+
+		List<FHIRCodeSystemVersion> orderedVersions = codeSystemVersions.stream()
+				.sorted(Comparator.comparing(FHIRCodeSystemVersion::getCanonical))
+				.collect(Collectors.toList());
+		List<FHIRConcept> concepts = new ArrayList<>();
+		long total = 0;
+		for (FHIRCodeSystemVersion codeSystemVersion : orderedVersions) {
+			CodeSelectionCriteria versionCriteria = codeSelectionCriteria.forVersion(codeSystemVersion);
+			if (versionCriteria == null) {
+				continue;
+			}
+			// Position of the requested page within the concepts of this version
+			int versionOffset = (int) Math.max(0, offset - total);
+			int versionCount = pageSize - concepts.size();
+			if (codeSystemVersion.isSnomed()) {
+				total += expandSnomedVersion(codeSystemVersion, versionCriteria, filter, activeOnly, versionOffset, versionCount, languageDialects, includeDesignations, concepts);
+			} else {
+				total += expandFHIRVersion(versionCriteria, filter, versionOffset, versionCount, concepts);
+			}
+		}
+		return new PageImpl<>(concepts, Pageable.unpaged(), total);
+	}
+
+	private long expandSnomedVersion(FHIRCodeSystemVersion codeSystemVersion, CodeSelectionCriteria versionCriteria, String filter, boolean activeOnly,
+			int versionOffset, int versionCount, List<LanguageDialect> languageDialects, boolean includeDesignations, List<FHIRConcept> concepts) {
+
+		QueryService.ConceptQueryBuilder conceptQuery = getSnomedConceptQuery(filter, activeOnly, versionCriteria);
+		String snomedBranch = codeSystemVersion.getSnomedBranch();
+		if (versionCount == 0) {
+			return snomedQueryService.searchForIds(conceptQuery, snomedBranch, PAGE_OF_ONE).getTotalElements();
+		}
+		List<Long> conceptIds;
+		long versionTotal;
+		if (canReadWindowDirectly(versionOffset, versionCount)) {
+			Page<Long> window = readWindow(versionOffset, versionCount, pageRequest ->
+					snomedQueryService.searchForIds(conceptQuery, snomedBranch, PageRequest.of(pageRequest.getPageNumber(), pageRequest.getPageSize(), DEFAULT_SORT)));
+			conceptIds = window.getContent();
+			versionTotal = window.getTotalElements();
+		} else {
+			versionTotal = snomedQueryService.searchForIds(conceptQuery, snomedBranch, PAGE_OF_ONE).getTotalElements();
+			if (versionOffset >= versionTotal) {
+				return versionTotal;
+			}
+			ValueSetExpansionCache.ExpansionKey expansionKey = new ValueSetExpansionCache.ExpansionKey(snomedBranch,
+					branchService.findLatest(snomedBranch).getHeadTimestamp(), getSnomedExpansionDefinition(activeOnly, versionCriteria), filter);
+			ValueSetExpansionCache.Expansion cachedExpansion = expansionCache.getOrLoad(expansionKey, key -> loadAllSnomedConceptIds(conceptQuery, snomedBranch));
+			conceptIds = LongArrayList.wrap(cachedExpansion.getConceptIds(versionOffset, versionOffset + versionCount));
+		}
+		concepts.addAll(loadSnomedConcepts(codeSystemVersion, conceptIds, languageDialects, includeDesignations));
+		return versionTotal;
+	}
+
+	private long expandFHIRVersion(CodeSelectionCriteria versionCriteria, String filter, int versionOffset, int versionCount, List<FHIRConcept> concepts) {
+		BoolQueryBuilder fhirConceptQuery = getFhirConceptQuery(versionCriteria, filter);
+		if (versionCount == 0) {
+			return conceptService.findConcepts(fhirConceptQuery, PAGE_OF_ONE).getTotalElements();
+		}
+		// Codes are unique within a code system version, so ties are broken by code to keep the order stable for search-after
+		Sort sort = filter != null ? Sort.by(FHIRConcept.Fields.DISPLAY_LENGTH, FHIRConcept.Fields.CODE) : Sort.by(FHIRConcept.Fields.CODE);
+		if (canReadWindowDirectly(versionOffset, versionCount)) {
+			Page<FHIRConcept> window = readWindow(versionOffset, versionCount, pageRequest ->
+					conceptService.findConcepts(fhirConceptQuery, PageRequest.of(pageRequest.getPageNumber(), pageRequest.getPageSize(), sort)));
+			concepts.addAll(window.getContent());
+			return window.getTotalElements();
+		}
+		long versionTotal = conceptService.findConcepts(fhirConceptQuery, PAGE_OF_ONE).getTotalElements();
+		if (versionOffset < versionTotal) {
+			// Beyond the Elasticsearch 10K limit, use search-after from the nearest known position before the requested page.
+			// Positions are remembered every LARGE_PAGE results so reading a large expansion page by page
+			// does not read through all of the results before each page.
+			NavigableMap<Integer, Object[]> positions = expansionCache.getSearchAfterPositions(fhirConceptQuery + ":" + versionTotal);
+			Map.Entry<Integer, Object[]> knownPosition = positions.floorEntry(versionOffset);
+			int position = knownPosition != null ? knownPosition.getKey() : 0;
+			Object[] searchAfter = knownPosition != null ? knownPosition.getValue() : null;
+			int end = versionOffset + versionCount;
+			while (position < end) {
+				// Results before the requested page are only needed for their sort values
+				boolean skipping = position < versionOffset;
+				int limit = skipping ? Math.min((position / LARGE_PAGE.getPageSize() + 1) * LARGE_PAGE.getPageSize(), versionOffset)
+						: Math.min(position + LARGE_PAGE.getPageSize(), end);
+				int size = limit - position;
+				SearchHits<FHIRConcept> searchHits = searchFHIRConceptsAfter(fhirConceptQuery, searchAfter, size, sort, skipping);
+				if (searchHits.isEmpty()) {
+					break;
+				}
+				if (!skipping) {
+					searchHits.forEach(searchHit -> concepts.add(searchHit.getContent()));
+				}
+				searchAfter = searchHits.getSearchHit(searchHits.getSearchHits().size() - 1).getSortValues().toArray();
+				position += searchHits.getSearchHits().size();
+				if (position % LARGE_PAGE.getPageSize() == 0) {
+					positions.put(position, searchAfter);
+				}
+				if (searchHits.getSearchHits().size() < size) {
+					break;
+				}
+			}
+		}
+		return versionTotal;
+	}
+
+	private SearchHits<FHIRConcept> searchFHIRConceptsAfter(BoolQueryBuilder fhirConceptQuery, Object[] searchAfter, int size, Sort sort, boolean codesOnly) {
+		PageRequest pageRequest = searchAfter != null ? SearchAfterPageRequest.of(searchAfter, size, sort) : PageRequest.of(0, size, sort);
+		NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+				.withQuery(fhirConceptQuery)
+				.withPageable(pageRequest);
+		if (codesOnly) {
+			queryBuilder.withSourceFilter(new FetchSourceFilter(new String[]{FHIRConcept.Fields.CODE}, new String[]{}));
+		}
+		return elasticsearchTemplate.search(queryBuilder.build(), FHIRConcept.class);
+	}
+
+	private static boolean canReadWindowDirectly(int offset, int count) {
+		// An unaligned window is read as two pages
+		int pageNumber = offset / count;
+		int pagesNeeded = offset % count == 0 ? 1 : 2;
+		return (long) (pageNumber + pagesNeeded) * count <= LARGE_PAGE.getPageSize();
+	}
+
+	/**
+	 * Read the results from offset, which may not be a multiple of count, using one or two pages of size count.
+	 * @return the window of results and the total number of results.
+	 */
+	private static <T> Page<T> readWindow(int offset, int count, Function<PageRequest, Page<T>> pageReader) {
+		int pageNumber = offset / count;
+		int start = offset - pageNumber * count;
+		Page<T> page = pageReader.apply(PageRequest.of(pageNumber, count));
+		List<T> window = new ArrayList<>(page.getContent().subList(Math.min(start, page.getNumberOfElements()), page.getNumberOfElements()));
+		if (start > 0 && page.getNumberOfElements() == count) {
+			Page<T> nextPage = pageReader.apply(PageRequest.of(pageNumber + 1, count));
+			nextPage.getContent().stream().limit(start).forEach(window::add);
+		}
+		return new PageImpl<>(window, Pageable.unpaged(), page.getTotalElements());
+	}
+
+	private List<FHIRConcept> loadSnomedConcepts(FHIRCodeSystemVersion codeSystemVersion, List<Long> conceptIds, List<LanguageDialect> languageDialects,
+			boolean includeDesignations) {
+
+		List<FHIRConcept> concepts = new ArrayList<>();
+		if (!conceptIds.isEmpty()) {
+			Map<String, ConceptMini> conceptMinis = snomedConceptService.findConceptMinis(codeSystemVersion.getSnomedBranch(), conceptIds, languageDialects).getResultsMap();
+			for (Long conceptId : conceptIds) {
+				ConceptMini snomedConceptMini = conceptMinis.get(conceptId.toString());
+				if (snomedConceptMini != null) {
+					concepts.add(new FHIRConcept(snomedConceptMini, codeSystemVersion, includeDesignations));
+				}
+			}
+		}
+		return concepts;
+	}
+
+	private long[] loadAllSnomedConceptIds(QueryService.ConceptQueryBuilder conceptQuery, String snomedBranch) {
+		// Use the search-after feature to read past the Elasticsearch 10k limit
+		// Must use the same sort as the pages searched directly, otherwise cursor pages and offset pages do not match
+		LongArrayList allConceptIds = new LongArrayList();
+		PageRequest largePageRequest = PageRequest.of(0, LARGE_PAGE.getPageSize(), DEFAULT_SORT);
+		SearchAfterPage<Long> page;
+		do {
+			page = snomedQueryService.searchForIds(conceptQuery, snomedBranch, largePageRequest);
+			allConceptIds.addAll(page.getContent());
+			largePageRequest = SearchAfterPageRequest.of(page.getSearchAfter(), LARGE_PAGE.getPageSize(), page.getSort());
+		} while (page.getNumberOfElements() == LARGE_PAGE.getPageSize());
+		logger.info("Loaded SNOMED CT ValueSet expansion of {} concepts on {}.", allConceptIds.size(), snomedBranch);
+		return allConceptIds.toLongArray();
+	}
+
+	private String getSnomedExpansionDefinition(boolean activeOnly, CodeSelectionCriteria codeSelectionCriteria) {
+		// Must match the query built by getSnomedConceptQuery
+		if (codeSelectionCriteria.isAnyECL()) {
+			return "ecl:" + activeOnly + ":" + inclusionExclusionClausesToEcl(codeSelectionCriteria);
+		}
+		return "codes:" + activeOnly + ":" + String.join(",", new TreeSet<>(collectCodes(codeSelectionCriteria)));
+	}
+
 	@NotNull
 	private QueryService.ConceptQueryBuilder getSnomedConceptQuery(String filter, boolean activeOnly, CodeSelectionCriteria codeSelectionCriteria) {
 		QueryService.ConceptQueryBuilder conceptQuery = snomedQueryService.createQueryBuilder(false);
@@ -392,10 +605,7 @@ public class FHIRValueSetService {
 			conceptQuery.ecl(ecl);
 		} else {
 			// Just a set of concept codes
-			Set<String> codes = new HashSet<>();
-			codeSelectionCriteria.getInclusionConstraints().values().stream().flatMap(Collection::stream).forEach(include -> codes.addAll(include.getCode()));
-			codeSelectionCriteria.getExclusionConstraints().values().stream().flatMap(Collection::stream).forEach(include -> codes.removeAll(include.getCode()));
-			conceptQuery.conceptIds(codes);
+			conceptQuery.conceptIds(collectCodes(codeSelectionCriteria));
 			if (activeOnly) {
 				conceptQuery.activeFilter(activeOnly);
 			}
@@ -406,6 +616,16 @@ public class FHIRValueSetService {
 		return conceptQuery;
 	}
 
+	private Set<String> collectCodes(CodeSelectionCriteria codeSelectionCriteria) {
+		Set<String> codes = new HashSet<>();
+		codeSelectionCriteria.getInclusionConstraints().values().stream().flatMap(Collection::stream).forEach(include -> codes.addAll(include.getCode()));
+		for (CodeSelectionCriteria nestedSelection : codeSelectionCriteria.getNestedSelections()) {
+			codes.addAll(collectCodes(nestedSelection));
+		}
+		codeSelectionCriteria.getExclusionConstraints().values().stream().flatMap(Collection::stream).forEach(include -> codes.removeAll(include.getCode()));
+		return codes;
+	}
+
 	@NotNull
 	private CodeSelectionCriteria generateInclusionExclusionConstraints(ValueSet valueSet, CodeSystemVersionProvider codeSystemVersionProvider, boolean activeOnly) {
 
@@ -444,6 +664,74 @@ public class FHIRValueSetService {
 	public Parameters validateCode(String id, UriType url, UriType context, ValueSet valueSet, String valueSetVersion, String code, UriType system, String systemVersion,
 			String display, Coding coding, CodeableConcept codeableConcept, DateTimeType date, BooleanType abstractBool, String displayLanguage) {
 
+		checkValidateCodeParams(context, valueSetVersion, code, system, display, coding, codeableConcept, date, abstractBool);
+
+		// Grab value set
+		ValueSet hapiValueSet = findOrInferValueSet(id, FHIRHelper.toString(url), valueSet);
+		if (hapiValueSet == null) {
+			return null;
+		}
+
+		ValidateCodeRequest request = new ValidateCodeRequest(getCodingsToValidate(code, system, systemVersion, display, coding, codeableConcept), displayLanguage);
+		validateCodes(hapiValueSet, Collections.singletonList(request));
+		return request.response;
+	}
+
+	/**
+	 * Validates many codings in one request. Each entry holds the same parameters as $validate-code.
+	 * Entries of the same value set are validated together, the value set and its code system versions are resolved once
+	 * and the codes are found with one search per code system version.
+	 * @return the result of each entry in the same order, or an OperationOutcome if the entry could not be validated.
+	 */
+	public Parameters batchValidateCode(Parameters batch, String acceptLanguageHeader) {
+		List<ValidateCodeRequest> requests = new ArrayList<>();
+		// Entries are grouped by value set url or, if given in the entry, the value set itself
+		Map<Object, List<ValidateCodeRequest>> requestsByValueSet = new LinkedHashMap<>();
+		for (Parameters validation : getBatchEntries(batch, BATCH_VALIDATION)) {
+			List<Parameters.ParametersParameterComponent> parameters = validation.getParameter();
+			ValidateCodeRequest request = new ValidateCodeRequest(null,
+					FHIRHelper.getDisplayLanguage(findParameterPrimitiveOrNull(parameters, "displayLanguage"), acceptLanguageHeader));
+			requests.add(request);
+			try {
+				Parameters.ParametersParameterComponent valueSetParam = FHIRValueSetProviderHelper.findParameterOrNull(parameters, "valueSet");
+				ValueSet valueSet = valueSetParam != null ? (ValueSet) valueSetParam.getResource() : null;
+				String url = findParameterPrimitiveOrNull(parameters, "url");
+				String code = findParameterPrimitiveOrNull(parameters, "code");
+				String system = findParameterPrimitiveOrNull(parameters, "system");
+				String display = findParameterPrimitiveOrNull(parameters, "display");
+				Coding coding = (Coding) findParameterValueOrNull(parameters, "coding");
+				CodeableConcept codeableConcept = (CodeableConcept) findParameterValueOrNull(parameters, "codeableConcept");
+				FHIRHelper.parameterNamingHint("system-version", findParameterPrimitiveOrNull(parameters, "system-version"), "systemVersion");
+				checkValidateCodeParams(findParameterValueOrNull(parameters, "context"), findParameterPrimitiveOrNull(parameters, "valueSetVersion"), code,
+						system, display, coding, codeableConcept, findParameterValueOrNull(parameters, "date"), findParameterValueOrNull(parameters, "abstract"));
+				requireExactlyOneOf("url", url, "valueSet", valueSet);
+				request.codings = getCodingsToValidate(code, system != null ? new UriType(system) : null, findParameterPrimitiveOrNull(parameters, "systemVersion"),
+						display, coding, codeableConcept);
+				requestsByValueSet.computeIfAbsent(valueSet != null ? valueSet : url, key -> new ArrayList<>()).add(request);
+			} catch (RuntimeException e) {
+				request.response = toOperationOutcome(e);
+			}
+		}
+
+		for (Map.Entry<Object, List<ValidateCodeRequest>> valueSetRequests : requestsByValueSet.entrySet()) {
+			try {
+				Object valueSetKey = valueSetRequests.getKey();
+				ValueSet hapiValueSet = valueSetKey instanceof ValueSet ? (ValueSet) valueSetKey : findOrInferValueSet(null, (String) valueSetKey, null);
+				if (hapiValueSet == null) {
+					throw exception(format("ValueSet '%s' not found.", valueSetKey), OperationOutcome.IssueType.NOTFOUND, 404);
+				}
+				validateCodes(hapiValueSet, valueSetRequests.getValue());
+			} catch (RuntimeException e) {
+				OperationOutcome operationOutcome = toOperationOutcome(e);
+				valueSetRequests.getValue().forEach(request -> request.response = operationOutcome);
+			}
+		}
+		return toBatchResponse(BATCH_VALIDATION, requests.stream().map(request -> request.response).collect(Collectors.toList()));
+	}
+
+	private void checkValidateCodeParams(Object context, String valueSetVersion, String code, Object system, String display, Coding coding,
+			CodeableConcept codeableConcept, Object date, Object abstractBool) {
+
 		notSupported("context", context);
 		notSupported("valueSetVersion", valueSetVersion);
 		notSupported("date", date);
@@ -452,13 +740,9 @@ public class FHIRValueSetService {
 		requireExactlyOneOf("code", code, "coding", coding, "codeableConcept", codeableConcept);
 		mutuallyRequired("code", code, "system", system);
 		mutuallyRequired("display", display, "code", code, "coding", coding);
+	}
 
-		// Grab value set
-		ValueSet hapiValueSet = findOrInferValueSet(id, FHIRHelper.toString(url), valueSet);
-		if (hapiValueSet == null) {
-			return null;
-		}
-
+	private Set<Coding> getCodingsToValidate(String code, UriType system, String systemVersion, String display, Coding coding, CodeableConcept codeableConcept) {
 		// Get set of codings - one of which needs to be valid
 		Set<Coding> codings = new HashSet<>();
 		if (code != null) {
@@ -472,18 +756,45 @@ public class FHIRValueSetService {
 		if (codings.isEmpty()) {
 			throw exception("No codings provided to validate.", OperationOutcome.IssueType.INVALID, 400);
 		}
+		return codings;
+	}
 
-		Set<CanonicalUri> codingSystemVersions = codings.stream()
-				.filter(Coding::hasVersion).map(codingA -> CanonicalUri.of(codingA.getSystem(), codingA.getVersion())).collect(Collectors.toSet());
-
-		CodeSystemVersionProvider codeSystemVersionProvider = new CodeSystemVersionProvider(codingSystemVersions, null, null, null, codeSystemService);
-		// Collate set of inclusion and exclusion constraints for each code system version
-		CodeSelectionCriteria codeSelectionCriteria = generateInclusionExclusionConstraints(hapiValueSet, codeSystemVersionProvider, false);
+	private void validateCodes(ValueSet hapiValueSet, List<ValidateCodeRequest> requests) {
+		// Requests with the same coding versions resolve the same code system versions
+		Map<Set<CanonicalUri>, List<ValidateCodeRequest>> requestsByCodingVersions = requests.stream()
+				.collect(Collectors.groupingBy(request -> request.codings.stream()
+						.filter(Coding::hasVersion).map(codingA -> CanonicalUri.of(codingA.getSystem(), codingA.getVersion())).collect(Collectors.toSet()),
+						LinkedHashMap::new, Collectors.toList()));
+
+		for (Map.Entry<Set<CanonicalUri>, List<ValidateCodeRequest>> codingVersionsRequests : requestsByCodingVersions.entrySet()) {
+			CodeSystemVersionProvider codeSystemVersionProvider = new CodeSystemVersionProvider(codingVersionsRequests.getKey(), null, null, null, codeSystemService);
+			// Collate set of inclusion and exclusion constraints for each code system version
+			CodeSelectionCriteria codeSelectionCriteria = generateInclusionExclusionConstraints(hapiValueSet, codeSystemVersionProvider, false);
+			Set<FHIRCodeSystemVersion> inclusionVersions = codeSelectionCriteria.gatherAllInclusionVersions();
+
+			List<ValidateCodeRequest> requestsToFind = new ArrayList<>();
+			for (ValidateCodeRequest request : codingVersionsRequests.getValue()) {
+				if (resolveCodeSystemVersions(request, inclusionVersions)) {
+					requestsToFind.add(request);
+				}
+			}
+			Map<String, FHIRConcept> conceptsInValueSet = findInValueSet(requestsToFind, codeSelectionCriteria);
+			for (ValidateCodeRequest request : requestsToFind) {
+				completeValidateCodeResponse(request, conceptsInValueSet);
+			}
+		}
+	}
 
+	/**
+	 * Starts the response and matches the codings to the code system versions of the value set.
+	 * @return false if the response is already complete because none of the codings match.
+	 */
+	private boolean resolveCodeSystemVersions(ValidateCodeRequest request, Set<FHIRCodeSystemVersion> inclusionVersions) {
+		Set<Coding> codings = request.codings;
 		Set<FHIRCodeSystemVersion> resolvedCodeSystemVersionsMatchingCodings = new HashSet<>();
 		boolean systemMatch = false;
 		for (Coding codingA : codings) {
-			for (FHIRCodeSystemVersion version : codeSelectionCriteria.gatherAllInclusionVersions()) {
+			for (FHIRCodeSystemVersion version : inclusionVersions) {
 				if (codingA.getSystem().equals(version.getUrl().replace("xsct", "sct"))) {
 					systemMatch = true;
 					if (codingA.getVersion() == null || codingA.getVersion().equals(version.getVersion()) ||
@@ -495,6 +806,7 @@ public class FHIRValueSetService {
 		}
 
 		Parameters response = new Parameters();
+		request.response = response;
 		if (codings.size() == 1) {
 			// Add response details about the coding, if there is only one
 			Coding codingA = codings.iterator().next();
@@ -519,21 +831,28 @@ public class FHIRValueSetService {
 					response.addParameter("message", "None of the codes in the CodableConcept are within a system included by this ValueSet.");
 				}
 			}
-			return response;
+			return false;
 		}
 		// Add version actually used in the response
 		if (codings.size() == 1) {
 			response.addParameter("version", resolvedCodeSystemVersionsMatchingCodings.iterator().next().getVersion());
 		}
+		request.resolvedCodeSystemVersions = resolvedCodeSystemVersionsMatchingCodings;
+		return true;
+	}
 
+	private void completeValidateCodeResponse(ValidateCodeRequest request, Map<String, FHIRConcept> conceptsInValueSet) {
+		Parameters response = (Parameters) request.response;
+		String displayLanguage = request.displayLanguage;
+		Set<Coding> codings = request.codings;
 		List<LanguageDialect> languageDialects = ControllerHelper.parseAcceptLanguageHeader(displayLanguage);
 		for (Coding codingA : codings) {
-			FHIRConcept concept = findInValueSet(codingA, resolvedCodeSystemVersionsMatchingCodings, codeSelectionCriteria);
+			FHIRConcept concept = getConceptInValueSet(codingA, request.resolvedCodeSystemVersions, conceptsInValueSet);
 			if (concept != null) {
 				String codingADisplay = codingA.getDisplay();
 				if (codingADisplay == null) {
 					response.addParameter("result", true);
-					return response;
+					return;
 				} else {
 					FHIRDesignation termMatch = null;
 					for (FHIRDesignation designation : concept.getDesignations()) {
@@ -544,7 +863,7 @@ public class FHIRValueSetService {
 								response.addParameter("result", true);
 								response.addParameter("message", format("The code '%s' was found in the ValueSet and the display matched one of the designations.",
 										codingA.getCode()));
-								return response;
+								return;
 							}
 						}
 					}
@@ -553,12 +872,12 @@ public class FHIRValueSetService {
 						response.addParameter("message", format("The code '%s' was found in the ValueSet and the display matched the designation with term '%s', " +
 								"however the language of the designation '%s' did not match any of the languages in the requested display language '%s'.",
 								codingA.getCode(), termMatch.getValue(), termMatch.getLanguage(), displayLanguage));
-						return response;
+						return;
 					} else {
 						response.addParameter("result", false);
 						response.addParameter("message", format("The code '%s' was found in the ValueSet, however the display '%s' did not match any designations.",
 								codingA.getCode(), codingA.getDisplay()));
-						return response;
+						return;
 					}
 				}
 			}
@@ -573,7 +892,6 @@ public class FHIRValueSetService {
 		} else {
 			response.addParameter("message", "None of the codes in the CodableConcept were found in this ValueSet.");
 		}
-		return response;
 	}
 
 	@Nullable
@@ -611,72 +929,109 @@ public class FHIRValueSetService {
 		return hapiValueSet;
 	}
 
-	private FHIRConcept findInValueSet(Coding coding, Set<FHIRCodeSystemVersion> codeSystemVersionsForExpansion, CodeSelectionCriteria codeSelectionCriteria) {
-
-		// Collect sets of SNOMED and FHIR-concept constraints relevant to this coding. The later can be evaluated in a single query.
-		Set<FHIRCodeSystemVersion> snomedVersions = new HashSet<>();
-		Set<FHIRCodeSystemVersion> genericVersions = new HashSet<>();
-		for (FHIRCodeSystemVersion codeSystemVersionForExpansion : codeSystemVersionsForExpansion) {
-
-			// Check system and version match
-			if (coding.getSystem().equals(codeSystemVersionForExpansion.getUrl()) &&
-					(coding.getVersion() == null || coding.getVersion().equals(codeSystemVersionForExpansion.getVersion())) ||
-					(FHIRHelper.isSnomedUri(coding.getSystem()) && codeSystemVersionForExpansion.getVersion().contains(coding.getVersion()))) {
-
-				if (codeSystemVersionForExpansion.isSnomed()) {
-					snomedVersions.add(codeSystemVersionForExpansion);
-				} else {
-					genericVersions.add(codeSystemVersionForExpansion);
+	/**
+	 * Finds the codes of the codings in the value set, with one search for each SNOMED CT version and one search for all other code system versions.
+	 * @return the concepts found, by code system version id and code.
+	 */
+	private Map<String, FHIRConcept> findInValueSet(List<ValidateCodeRequest> requests, CodeSelectionCriteria codeSelectionCriteria) {
+
+		// Collect the codes to find in each code system version
+		Map<FHIRCodeSystemVersion, Set<String>> codesByVersion = new HashMap<>();
+		for (ValidateCodeRequest request : requests) {
+			for (Coding coding : request.codings) {
+				for (FHIRCodeSystemVersion codeSystemVersion : request.resolvedCodeSystemVersions) {
+					if (codingMatchesVersion(coding, codeSystemVersion)) {
+						codesByVersion.computeIfAbsent(codeSystemVersion, version -> new HashSet<>()).add(coding.getCode());
+					}
 				}
 			}
 		}
 
-		QueryService.ConceptQueryBuilder snomedConceptQuery = null;
-		for (FHIRCodeSystemVersion snomedVersion : snomedVersions) {
-			if (snomedConceptQuery == null) {
-				snomedConceptQuery = getSnomedConceptQuery(null, false, codeSelectionCriteria);
-			}
-			// Add criteria to select just this code
-			snomedConceptQuery.conceptIds(Collections.singleton(coding.getCode()));
-			List<ConceptMini> conceptMinis = snomedQueryService.search(snomedConceptQuery, snomedVersion.getSnomedBranch(), PAGE_OF_ONE).getContent();
-			if (!conceptMinis.isEmpty()) {
-				return new FHIRConcept(conceptMinis.get(0), snomedVersion, true);
+		Map<String, FHIRConcept> conceptsFound = new HashMap<>();
+		Set<String> genericCodes = new HashSet<>();
+		Set<FHIRCodeSystemVersion> genericVersions = new HashSet<>();
+		for (Map.Entry<FHIRCodeSystemVersion, Set<String>> versionCodes : codesByVersion.entrySet()) {
+			FHIRCodeSystemVersion codeSystemVersion = versionCodes.getKey();
+			if (codeSystemVersion.isSnomed()) {
+				for (List<String> codesBatch : Iterables.partition(versionCodes.getValue(), VALIDATE_CODE_BATCH_SIZE)) {
+					QueryService.ConceptQueryBuilder snomedConceptQuery = getSnomedConceptQuery(null, false, codeSelectionCriteria);
+					// Add criteria to select just these codes
+					snomedConceptQuery.conceptIds(new HashSet<>(codesBatch));
+					for (ConceptMini conceptMini : snomedQueryService.search(snomedConceptQuery, codeSystemVersion.getSnomedBranch(), PageRequest.of(0, codesBatch.size()))) {
+						conceptsFound.put(getVersionCodeKey(codeSystemVersion.getId(), conceptMini.getConceptId()), new FHIRConcept(conceptMini, codeSystemVersion, true));
+					}
+				}
+			} else {
+				genericVersions.add(codeSystemVersion);
+				genericCodes.addAll(versionCodes.getValue());
 			}
 		}
 
-		if (!genericVersions.isEmpty()) {
+		// The FHIR-concept constraints of all versions can be evaluated in a single query, each code may be found in every version
+		int genericBatchSize = Math.max(1, Math.min(VALIDATE_CODE_BATCH_SIZE, LARGE_PAGE.getPageSize() / Math.max(1, genericVersions.size())));
+		for (List<String> codesBatch : Iterables.partition(genericCodes, genericBatchSize)) {
 			BoolQueryBuilder fhirConceptQuery = getFhirConceptQuery(codeSelectionCriteria, null);
-			// Add criteria to select just this code
-			fhirConceptQuery.must(termQuery(FHIRConcept.Fields.CODE, coding.getCode()));
-			List<FHIRConcept> concepts = conceptService.findConcepts(fhirConceptQuery, PAGE_OF_ONE).getContent();
-			if (!concepts.isEmpty()) {
-				return concepts.get(0);
+			// Add criteria to select just these codes
+			fhirConceptQuery.must(termsQuery(FHIRConcept.Fields.CODE, codesBatch));
+			for (FHIRConcept concept : conceptService.findConcepts(fhirConceptQuery, PageRequest.of(0, codesBatch.size() * genericVersions.size()))) {
+				conceptsFound.put(getVersionCodeKey(concept.getCodeSystemVersion(), concept.getCode()), concept);
 			}
 		}
+		return conceptsFound;
+	}
 
+	private FHIRConcept getConceptInValueSet(Coding coding, Set<FHIRCodeSystemVersion> codeSystemVersionsForExpansion, Map<String, FHIRConcept> conceptsInValueSet) {
+		// SNOMED CT versions are checked first
+		List<FHIRCodeSystemVersion> matchingVersions = codeSystemVersionsForExpansion.stream()
+				.filter(codeSystemVersion -> codingMatchesVersion(coding, codeSystemVersion))
+				.sorted(Comparator.comparing(codeSystemVersion -> !codeSystemVersion.isSnomed()))
+				.collect(Collectors.toList());
+		for (FHIRCodeSystemVersion codeSystemVersion : matchingVersions) {
+			FHIRConcept concept = conceptsInValueSet.get(getVersionCodeKey(codeSystemVersion.getId(), coding.getCode()));
+			if (concept != null) {
+				return concept;
+			}
+		}
 		return null;
 	}
 
+	private static boolean codingMatchesVersion(Coding coding, FHIRCodeSystemVersion codeSystemVersion) {
+		// Check system and version match
+		return coding.getSystem().equals(codeSystemVersion.getUrl()) &&
+				(coding.getVersion() == null || coding.getVersion().equals(codeSystemVersion.getVersion())) ||
+				(FHIRHelper.isSnomedUri(coding.getSystem()) && codeSystemVersion.getVersion().contains(coding.getVersion()));
+	}
+
+	private static String getVersionCodeKey(String codeSystemVersionId, String code) {
+		return codeSystemVersionId + "|" + code;
+	}
+
 	private String inclusionExclusionClausesToEcl(CodeSelectionCriteria codeSelectionCriteria) {
 		StringBuilder ecl = new StringBuilder();
-		for (ConceptConstraint inclusion : codeSelectionCriteria.getInclusionConstraints().values().iterator().next()) {
+		for (ConceptConstraint inclusion : codeSelectionCriteria.getInclusionConstraints().values().stream().flatMap(Collection::stream).collect(Collectors.toList())) {
 			if (ecl.length() > 0) {
 				ecl.append(" OR ");
 			}
 			ecl.append("( ").append(toEcl(inclusion)).append(" )");
 		}
+		for (CodeSelectionCriteria nestedSelection : codeSelectionCriteria.getNestedSelections()) {
+			if (ecl.length() > 0) {
+				ecl.append(" OR ");
+			}
+			ecl.append("( ").append(inclusionExclusionClausesToEcl(nestedSelection)).append(" )");
+		}
 
 		if (ecl.length() == 0) {
 			// This may be impossible because ValueSet.compose.include cardinality is 1..*
 			ecl.append("*");
 		}
 
-		if (!codeSelectionCriteria.getExclusionConstraints().isEmpty()) {
+		String exclusionEcl = codeSelectionCriteria.getExclusionConstraints().values().stream().flatMap(Collection::stream)
+				.map(exclusion -> "( " + toEcl(exclusion) + " )")
+				.collect(Collectors.joining(" OR "));
+		if (!exclusionEcl.isEmpty()) {
 			// Existing ECL must be made into sub expression, because disjunction and exclusion expressions can not be mixed.
-			ecl = new StringBuilder().append("( ").append(ecl).append(" )");
-			for (ConceptConstraint exclusion : codeSelectionCriteria.getExclusionConstraints().values().iterator().next()) {
-				ecl.append(" MINUS ( ").append(exclusion.getEcl()).append(" )");
-			}
+			ecl = new StringBuilder().append("( ").append(ecl).append(" ) MINUS ( ").append(exclusionEcl).append(" )");
 		}
 
 		return ecl.toString();
@@ -909,4 +1264,17 @@ public class FHIRValueSetService {
 		}
 	}
 
+
+	private static final class ValidateCodeRequest {
+
+		private Set<Coding> codings;
+		private final String displayLanguage;
+		private Set<FHIRCodeSystemVersion> resolvedCodeSystemVersions;
+		private Resource response;
+
+		private ValidateCodeRequest(Set<Coding> codings, String displayLanguage) {
+			this.codings = codings;
+			this.displayLanguage = displayLanguage;
+		}
+	}
 }
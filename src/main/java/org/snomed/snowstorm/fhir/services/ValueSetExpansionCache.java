@@ -0,0 +1,195 @@
+package org.snomed.snowstorm.fhir.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * Cache of complete SNOMED CT ValueSet expansions, each held as an ordered array of concept ids.
+ * An expansion is loaded once, then any page of it can be served without searching through all of the results before that page.
+ * Entries are keyed on the head of the SNOMED CT branch, entries for older heads are dropped when a newer head is seen.
+ * Expansions are also evicted by size and when they have not been used for a while.
+ * Search-after positions within the expansions of other code systems are also held here, so that deep pages can be read without
+ * reading through all of the results before them.
+ */
+class ValueSetExpansionCache {
+
+	private static final Base64.Encoder CURSOR_ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder CURSOR_DECODER = Base64.getUrlDecoder();
+	private static final int MAX_SEARCH_AFTER_QUERIES = 1_000;
+
+	private final Cache<ExpansionKey, Expansion> expansions;
+
+	private final Map<String, Date> branchHeads = new ConcurrentHashMap<>();
+
+	private final Cache<String, NavigableMap<Integer, Object[]>> searchAfterPositions;
+
+	ValueSetExpansionCache(long maxBytes, Duration expireAfterAccess) {
+		expansions = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(ValueSetExpansionCache::weigh)
+				.expireAfterAccess(expireAfterAccess)
+				.build();
+		searchAfterPositions = Caffeine.newBuilder()
+				.maximumSize(MAX_SEARCH_AFTER_QUERIES)
+				.expireAfterAccess(expireAfterAccess)
+				.build();
+	}
+
+	Expansion getOrLoad(ExpansionKey key, Function<ExpansionKey, long[]> loader) {
+		checkBranchHead(key);
+		return expansions.get(key, k -> new Expansion(UUID.randomUUID().toString(), loader.apply(k)));
+	}
+
+	Expansion getIfPresent(ExpansionKey key) {
+		checkBranchHead(key);
+		return expansions.getIfPresent(key);
+	}
+
+	private void checkBranchHead(ExpansionKey key) {
+		Date previousHead = branchHeads.put(key.branch, key.head);
+		if (previousHead != null && previousHead.before(key.head)) {
+			// Expansions of the previous branch versions will not be requested again
+			expansions.asMap().keySet().removeIf(existing -> existing.branch.equals(key.branch) && existing.head.before(key.head));
+		}
+	}
+
+	/**
+	 * @param query the query and its total number of results, so that positions are not reused if the content changes.
+	 * @return the search-after values of the last result before each known position within the results of the query.
+	 */
+	NavigableMap<Integer, Object[]> getSearchAfterPositions(String query) {
+		return searchAfterPositions.get(query, k -> new ConcurrentSkipListMap<>());
+	}
+
+	long size() {
+		return expansions.estimatedSize();
+	}
+
+	void clear() {
+		expansions.invalidateAll();
+		searchAfterPositions.invalidateAll();
+		branchHeads.clear();
+	}
+
+	private static int weigh(ExpansionKey key, Expansion expansion) {
+		long bytes = (long) expansion.conceptIds.length * Long.BYTES + key.definition.length() * 2L + key.branch.length() * 2L;
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param expansionId id of the cached expansion or null if the next page has not been served from the cache yet.
+	 * @return an opaque cursor that can be used to request the page starting at the offset.
+	 */
+	static String createCursor(String expansionId, int offset) {
+		String cursor = (expansionId != null ? expansionId : "") + ":" + offset;
+		return CURSOR_ENCODER.encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the cursor was not created by this class.
+	 */
+	static Cursor parseCursor(String cursor) {
+		String decoded = new String(CURSOR_DECODER.decode(cursor), StandardCharsets.UTF_8);
+		int separator = decoded.lastIndexOf(':');
+		if (separator == -1) {
+			throw new IllegalArgumentException("Cursor has no offset.");
+		}
+		String expansionId = decoded.substring(0, separator);
+		int offset = Integer.parseInt(decoded.substring(separator + 1));
+		if (offset < 0) {
+			throw new IllegalArgumentException("Cursor offset is negative.");
+		}
+		return new Cursor(expansionId.isEmpty() ? null : expansionId, offset);
+	}
+
+	static final class ExpansionKey {
+
+		private final String branch;
+		private final Date head;
+		// The ECL or concept ids of the ValueSet definition, rather than the canonical, so that an updated ValueSet is expanded again
+		private final String definition;
+		private final String filter;
+
+		ExpansionKey(String branch, Date head, String definition, String filter) {
+			this.branch = branch;
+			this.head = head;
+			this.definition = definition;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+			ExpansionKey that = (ExpansionKey) o;
+			return branch.equals(that.branch) && head.equals(that.head) && definition.equals(that.definition) && Objects.equals(filter, that.filter);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(branch, head, definition, filter);
+		}
+	}
+
+	static final class Expansion {
+
+		private final String id;
+		private final long[] conceptIds;
+
+		Expansion(String id, long[] conceptIds) {
+			this.id = id;
+			this.conceptIds = conceptIds;
+		}
+
+		String getId() {
+			return id;
+		}
+
+		int getTotal() {
+			return conceptIds.length;
+		}
+
+		/**
+		 * @return the concept ids from offset (inclusive) to limit (exclusive), or fewer if the expansion ends first.
+		 */
+		long[] getConceptIds(int offset, int limit) {
+			if (offset >= conceptIds.length) {
+				return new long[0];
+			}
+			long[] page = new long[Math.min(limit, conceptIds.length) - offset];
+			System.arraycopy(conceptIds, offset, page, 0, page.length);
+			return page;
+		}
+	}
+
+	static final class Cursor {
+
+		private final String expansionId;
+		private final int offset;
+
+		private Cursor(String expansionId, int offset) {
+			this.expansionId = expansionId;
+			this.offset = offset;
+		}
+
+		String getExpansionId() {
+			return expansionId;
+		}
+
+		int getOffset() {
+			return offset;
+		}
+	}
+}
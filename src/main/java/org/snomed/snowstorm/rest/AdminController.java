@@ -7,6 +7,7 @@ import org.snomed.snowstorm.core.data.services.*;
 import org.snomed.snowstorm.core.data.services.traceability.TraceabilityLogBackfiller;
 import org.snomed.snowstorm.ecl.BranchVersionECLCache;
 import org.snomed.snowstorm.ecl.ECLQueryService;
+import org.snomed.snowstorm.fhir.services.FHIRSnomedModelTermCache;
 import org.snomed.snowstorm.fix.ContentFixService;
 import org.snomed.snowstorm.fix.ContentFixType;
 import org.snomed.snowstorm.fix.TechnicalFixService;
@@ -57,6 +58,12 @@ public class AdminController {
 	@Autowired
 	private ECLQueryService eclQueryService;
 
+	@Autowired
+	private UnreleasedComponentJournalService unreleasedComponentJournalService;
+
+	@Autowired
+	private FHIRSnomedModelTermCache fhirSnomedModelTermCache;
+
 	@Operation(summary = "Rebuild the description index.",
 			description = "Use this if the search configuration for international character handling of a language has been " +
 					"set or updated after importing content of that language. " +
@@ -95,6 +102,17 @@ public class AdminController {
 		return new UpdatedDocumentCount(updateCount);
 	}
 
+	@Operation(summary = "Rebuild the unreleased component journal of the branch.",
+			description = "The journal lists the components without an effective time and allows Delta exports to read only those components. " +
+					"It is maintained automatically but must be built once for code system branches which existed before the journal was introduced. " +
+					"Until then Delta exports search all content. " +
+					"Child branches which already exist need their own rebuild before their journal is used.")
+	@PostMapping(value = "/{branch}/actions/rebuild-unreleased-journal")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public void rebuildUnreleasedComponentJournal(@PathVariable String branch) throws ServiceException {
+		unreleasedComponentJournalService.rebuild(BranchPathUriUtil.decodePath(branch));
+	}
+
 	@Operation(summary = "Force update of definition statuses of all concepts based on axioms.",
 			description = "You are unlikely to need this action. " +
 					"If something has wrong with processing content updates on the branch the definition statuses " +
@@ -275,6 +293,18 @@ public class AdminController {
 		return stats;
 	}
 
+	@GetMapping(value = "/cache/ecl/stats/global")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public Map<String, Long> getECLCacheGlobalStats() {
+		return eclQueryService.getResultsCache().getStats();
+	}
+
+	@GetMapping(value = "/cache/fhir-snomed-terms/stats")
+	@PreAuthorize("hasPermission('ADMIN', 'global')")
+	public Map<String, Long> getFHIRSnomedTermCacheStats() {
+		return fhirSnomedModelTermCache.getStats();
+	}
+
 	@PostMapping(value = "/cache/ecl/clear")
 	@PreAuthorize("hasPermission('ADMIN', 'global')")
 	public void clearEclCache() {
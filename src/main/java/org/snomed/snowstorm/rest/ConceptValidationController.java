@@ -9,8 +9,10 @@ import org.ihtsdo.drools.response.InvalidContent;
 import org.snomed.snowstorm.core.data.domain.Concept;
 import org.snomed.snowstorm.core.data.services.ContentReportService;
 import org.snomed.snowstorm.core.data.services.ServiceException;
+import org.snomed.snowstorm.validation.DroolsValidationBatch;
 import org.snomed.snowstorm.validation.DroolsValidationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 
@@ -47,6 +49,28 @@ public class ConceptValidationController {
 		return validationService.validateConcepts(branchPath, concepts);
 	}
 
+	@PostMapping(value = "/{branch}/validate/batch")
+	@Operation(summary = "Start validating all concepts matching the ECL using the Snomed-Drools project.",
+			description = "Results are written to a TSV file on the server. Use the location header in the response to check the job status.")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public ResponseEntity<Void> validateBatch(@PathVariable String branch, @RequestParam String ecl) throws ServiceException {
+		DroolsValidationBatch batch = validationService.validateBatch(BranchPathUriUtil.decodePath(branch), ecl);
+		return ControllerHelper.getCreatedResponse(batch.getId());
+	}
+
+	@GetMapping(value = "/{branch}/validate/batch/{batchId}")
+	@Operation(summary = "Fetch the status and progress of a batch validation.")
+	public DroolsValidationBatch getValidationBatch(@PathVariable String branch, @PathVariable String batchId) {
+		return ControllerHelper.throwIfNotFound("Validation batch", validationService.getBatch(BranchPathUriUtil.decodePath(branch), batchId));
+	}
+
+	@DeleteMapping(value = "/{branch}/validate/batch/{batchId}")
+	@Operation(summary = "Cancel a batch validation.", description = "Partitions of concepts already being validated are completed.")
+	@PreAuthorize("hasPermission('ADMIN', #branch)")
+	public DroolsValidationBatch cancelValidationBatch(@PathVariable String branch, @PathVariable String batchId) {
+		return ControllerHelper.throwIfNotFound("Validation batch", validationService.cancelBatch(BranchPathUriUtil.decodePath(branch), batchId));
+	}
+
 	@PostMapping(value = "/validation-maintenance/reload-validation-rules")
 	@Operation(description = "Reload SNOMED Drools assertions and test resources.")
 	@PreAuthorize("hasPermission('ADMIN', 'global')")
@@ -14,6 +14,7 @@ import org.snomed.snowstorm.core.rf2.export.ExportFilter;
 import org.snomed.snowstorm.core.rf2.export.ExportService;
 import org.snomed.snowstorm.rest.pojo.ExportRequestView;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -38,6 +39,9 @@ public class ExportController {
 	@Autowired
 	private ModuleDependencyService moduleDependencyService;
 
+	@Value("${export.stream-to-response}")
+	private boolean streamToResponse;
+
 	@Operation(summary = "Create an export job.",
 			description = "Create a job to export an RF2 archive. " +
 					"The 'location' response header contain the URL, including the identifier, of the new resource.")
@@ -62,7 +66,11 @@ public class ExportController {
 
 		String filename = exportService.getFilename(exportConfiguration);
 		response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-		exportService.exportRF2Archive(exportConfiguration, response.getOutputStream());
+		if (streamToResponse) {
+			exportService.streamRF2Archive(exportConfiguration, response.getOutputStream());
+		} else {
+			exportService.exportRF2Archive(exportConfiguration, response.getOutputStream());
+		}
 	}
 	
 	@Operation(summary = "View a preview of the module dependency refset that would be generated for export")
@@ -131,6 +131,8 @@ public class ImportController {
 
 	@Operation(summary = "Upload SNOMED CT release archive.",
 			description = "Uploads a SNOMED CT RF2 release archive for an import job. The import job must already exist and have a status of WAITING_FOR_FILE. " +
+					"A FULL import job with a status of FAILED can be retried by uploading the archive again, " +
+					"the retry resumes after the last release imported if the same archive is uploaded. " +
 					"PLEASE NOTE this is an asynchronous call, this function starts the import but does not wait for it to complete. " +
 					"Retrieve the import to check the status until it is COMPLETED or FAILED.")
 	@PostMapping(value = "/{importId}/archive", consumes = "multipart/form-data")
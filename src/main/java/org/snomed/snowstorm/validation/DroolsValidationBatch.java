@@ -0,0 +1,135 @@
+package org.snomed.snowstorm.validation;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.snomed.snowstorm.core.util.TimerUtil;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DroolsValidationBatch {
+
+	private final String id;
+	private final String branch;
+	private final String ecl;
+	private final String resultsFile;
+	private final Date queuedTime;
+	private Date startTime;
+	private final AtomicLong conceptsValidated = new AtomicLong();
+	private final AtomicLong invalidContentFound = new AtomicLong();
+	private volatile Status status;
+	private volatile long conceptsFound;
+	private volatile boolean cancelRequested;
+	private Date endTime;
+	private String message;
+	private Float secondsDuration;
+
+	public DroolsValidationBatch(String branch, String ecl) {
+		id = UUID.randomUUID().toString();
+		this.branch = branch;
+		this.ecl = ecl;
+		queuedTime = new Date();
+		resultsFile = "validation-bulk-" + id + ".tsv";
+		status = Status.QUEUED;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getBranch() {
+		return branch;
+	}
+
+	public String getEcl() {
+		return ecl;
+	}
+
+	public String getResultsFile() {
+		return resultsFile;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public synchronized void setStatus(Status status) {
+		this.status = status;
+		if (status == Status.RUNNING) {
+			startTime = new Date();
+		} else if (status != Status.QUEUED) {
+			endTime = new Date();
+			// Time spent in the queue is not included
+			secondsDuration = TimerUtil.getDuration((startTime != null ? startTime : queuedTime).getTime(), endTime.getTime());
+		}
+	}
+
+	public long getConceptsFound() {
+		return conceptsFound;
+	}
+
+	void addConceptsFound(long count) {
+		conceptsFound += count;
+	}
+
+	public long getConceptsValidated() {
+		return conceptsValidated.get();
+	}
+
+	void addConceptsValidated(long count) {
+		conceptsValidated.addAndGet(count);
+	}
+
+	public long getInvalidContentFound() {
+		return invalidContentFound.get();
+	}
+
+	void addInvalidContentFound(long count) {
+		invalidContentFound.addAndGet(count);
+	}
+
+	public Float getConceptsPerSecond() {
+		if (startTime == null) {
+			return null;
+		}
+		long millis = (endTime != null ? endTime.getTime() : System.currentTimeMillis()) - startTime.getTime();
+		return millis > 0 ? conceptsValidated.get() * 1_000f / millis : null;
+	}
+
+	@JsonIgnore
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	void requestCancel() {
+		cancelRequested = true;
+	}
+
+	public Date getQueuedTime() {
+		return queuedTime;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public Date getEndTime() {
+		return endTime;
+	}
+
+	public Float getSecondsDuration() {
+		return secondsDuration;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, CANCELLED, FAILED
+	}
+}
@@ -1,10 +1,13 @@
 package org.snomed.snowstorm.validation;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
 import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.BranchService;
 import io.kaicode.elasticvc.api.VersionControlHelper;
 import io.kaicode.elasticvc.domain.Branch;
+import io.micrometer.core.instrument.MeterRegistry;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.ihtsdo.drools.RuleExecutor;
 import org.ihtsdo.drools.RuleExecutorFactory;
@@ -21,20 +24,20 @@ import org.snomed.snowstorm.validation.domain.DroolsConcept;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ResourceLoader;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchAfterPageRequest;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import javax.annotation.PreDestroy;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static io.kaicode.elasticvc.api.VersionControlHelper.LARGE_PAGE;
@@ -62,12 +65,26 @@ public class DroolsValidationService {
 	@Autowired
 	private ConceptService conceptService;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	public static final String BATCH_CONCEPTS_COUNTER = "snowstorm.validation.batch.concepts";
+	public static final String BATCH_PARTITION_TIMER = "snowstorm.validation.batch.partition";
+	private static final int BATCH_PARTITION_SIZE = 100;
+	private static final int BATCH_WORKER_CACHE_CONCEPTS = 10_000;
+	private static final Sort BATCH_ID_SORT = Sort.sort(QueryConcept.class).by(QueryConcept::getConceptIdL).ascending();
+
 	private final String droolsRulesPath;
 	private final ResourceManager testResourceManager;
 
 	private RuleExecutor ruleExecutor;
 	private TestResourceProvider testResourceProvider;
+	private final int batchThreads;
+	// One batch runs at a time, using the worker threads to validate partitions of concepts in parallel
 	private final ExecutorService batchExecutorService;
+	private final ExecutorService batchWorkerExecutorService;
+	// Kept for as long as the bulk concept change jobs
+	private final Cache<String, DroolsValidationBatch> validationBatches = CacheBuilder.newBuilder().expireAfterWrite(2, TimeUnit.HOURS).build();
 
 	private Set<String> semanticTags;
 
@@ -75,13 +92,16 @@ public class DroolsValidationService {
 
 	public DroolsValidationService(
 			@Value("${validation.drools.rules.path}") String droolsRulesPath,
+			@Value("${validation.drools.batch.threads}") int batchThreads,
 			@Autowired TestResourcesResourceManagerConfiguration resourceManagerConfiguration,
 			@Autowired ResourceLoader cloudResourceLoader) {
 
 		this.droolsRulesPath = droolsRulesPath;
 		testResourceManager = new ResourceManager(resourceManagerConfiguration, cloudResourceLoader);
 		newRuleExecutorAndResources();
+		this.batchThreads = batchThreads;
 		batchExecutorService = Executors.newFixedThreadPool(1);
+		batchWorkerExecutorService = Executors.newFixedThreadPool(batchThreads);
 	}
 
 	public Set<String> getSemanticTags() {
@@ -95,12 +115,7 @@ public class DroolsValidationService {
 	public List<InvalidContent> validateConcepts(String branchPath, Set<Concept> concepts) throws ServiceException {
 		// Get drools assertion groups to run
 		Branch branchWithInheritedMetadata = branchService.findBranchOrThrow(branchPath, true);
-		String assertionGroupNamesMetaString = branchWithInheritedMetadata.getMetadata().getString(BranchMetadataKeys.ASSERTION_GROUP_NAMES);
-		if (assertionGroupNamesMetaString == null) {
-			throw new ServiceException("'" + BranchMetadataKeys.ASSERTION_GROUP_NAMES + "' not set on branch metadata for Snomed-Drools validation configuration.");
-		}
-		String[] names = assertionGroupNamesMetaString.split(",");
-		Set<String> ruleSetNames = new HashSet<>(Arrays.asList(names));
+		Set<String> ruleSetNames = getRuleSetNames(branchWithInheritedMetadata);
 		if (ruleSetNames.isEmpty()) {
 			logger.info("Branch metadata item '{}' set as empty for {}, skipping Snomed-Drools validation.", BranchMetadataKeys.ASSERTION_GROUP_NAMES, branchPath);
 			return Collections.emptyList();
@@ -125,41 +140,168 @@ public class DroolsValidationService {
 		return invalidContents;
 	}
 
-	public void validateBatch(String branch, String ecl, boolean afterClassification) {
+	/**
+	 * Starts validating all concepts matching the ECL in the background.
+	 * Results are written to a TSV file as each partition of concepts is validated.
+	 */
+	public DroolsValidationBatch validateBatch(String branchPath, String ecl) throws ServiceException {
+		Branch branch = branchService.findBranchOrThrow(branchPath, true);
+		Set<String> ruleSetNames = getRuleSetNames(branch);
+		DroolsValidationBatch batch = new DroolsValidationBatch(branchPath, ecl);
+		validationBatches.put(batch.getId(), batch);
 		batchExecutorService.submit(() -> {
 			try {
-				final PageRequest page = PageRequest.of(0, 2_000);
-				long startTime = new Date().getTime();
-				final SearchAfterPage<Long> conceptIds = queryService.searchForIds(queryService.createQueryBuilder(false).ecl(ecl), branch, page);
-				final int total = conceptIds.getNumberOfElements();
-				long doneCount = 0;
-				final String fileName = "validation-bulk-" + new Date().getTime() + ".tsv";
-				logger.info("Validating batch of {} concepts using ECL {} on branch {}, writing to {}", total, ecl, branch, fileName);
-
-				try (PrintWriter writer = new PrintWriter(fileName)) {
-					writer.println("conceptId\tfsn\terrorCount\tmessages\ttsv-duration\ttotal-duration");
-					writer.printf("-\t-\t-\tValidating batch of %s concepts using ECL %s on branch %s\t0\t0%n", total, ecl, branch);
-					for (List<Long> partition : Iterables.partition(conceptIds, 100)) {
-						final Page<Concept> concepts = conceptService.find(partition, Config.DEFAULT_LANGUAGE_DIALECTS, branch, page);
-						for (Concept concept : concepts) {
-							doneCount++;
-							if (doneCount % 10 == 0) {
-								logger.info("Validating concept {} of {}.", doneCount, total);
-							}
-						}
-					}
-					long end = new Date().getTime() - startTime;
-					writer.printf("-\t-\t-\tValidated batch of %s concepts using ECL %s on branch %s\t0\t%s%n", total, ecl, branch, end);
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
+				if (batch.isCancelRequested()) {
+					batch.setStatus(DroolsValidationBatch.Status.CANCELLED);
+					return;
 				}
-
-				logger.info("Validated batch of {} concepts using ECL {} on branch {}, written to {}", total, ecl, branch, fileName);
+				batch.setStatus(DroolsValidationBatch.Status.RUNNING);
+				runBatch(batch, branch, ruleSetNames);
 			} catch (Exception e) {
-				logger.error("Failed to validate batch using ECL {} on branch {}", ecl, branch, e);
-				throw e;
+				batch.setMessage(e.getMessage());
+				batch.setStatus(DroolsValidationBatch.Status.FAILED);
+				logger.error("Failed to validate batch using ECL {} on branch {}", ecl, branchPath, e);
 			}
 		});
+		return batch;
+	}
+
+	/**
+	 * @return the batch or null if there is no batch with this id on the branch.
+	 */
+	public DroolsValidationBatch getBatch(String branchPath, String batchId) {
+		DroolsValidationBatch batch = validationBatches.getIfPresent(batchId);
+		return batch != null && batch.getBranch().equals(branchPath) ? batch : null;
+	}
+
+	public DroolsValidationBatch cancelBatch(String branchPath, String batchId) {
+		DroolsValidationBatch batch = getBatch(branchPath, batchId);
+		if (batch != null) {
+			batch.requestCancel();
+		}
+		return batch;
+	}
+
+	private void runBatch(DroolsValidationBatch batch, Branch branch, Set<String> ruleSetNames) throws IOException, InterruptedException {
+		final String branchPath = branch.getPath();
+		final BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria(branch);
+		final RuleExecutor batchRuleExecutor = ruleExecutor;
+		final TestResourceProvider batchTestResourceProvider = testResourceProvider;
+		final Set<String> inferredTopLevelHierarchies = getTopLevelHierarchies();
+
+		// Each worker takes its own services from the queue so query caches are not shared between threads
+		BlockingQueue<BatchWorkerServices> workerServices = new ArrayBlockingQueue<>(batchThreads);
+		for (int i = 0; i < batchThreads; i++) {
+			workerServices.add(new BatchWorkerServices(branchPath, branchCriteria, inferredTopLevelHierarchies, batchTestResourceProvider));
+		}
+		// Concepts are loaded while the workers validate, this limits how far loading can get ahead
+		final int maxPartitionsInFlight = batchThreads * 2;
+		Semaphore partitionsInFlight = new Semaphore(maxPartitionsInFlight);
+		AtomicReference<Exception> workerFailure = new AtomicReference<>();
+
+		logger.info("Validating batch {} using ECL {} on branch {} with {} threads, writing to {}", batch.getId(), batch.getEcl(), branchPath, batchThreads,
+				batch.getResultsFile());
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(batch.getResultsFile())))) {
+			writer.println("conceptId\tfsn\truleId\tseverity\tmessage");
+
+			try {
+				QueryService.ConceptQueryBuilder conceptQuery = queryService.createQueryBuilder(false).ecl(batch.getEcl());
+				PageRequest pageRequest = PageRequest.of(0, LARGE_PAGE.getPageSize(), BATCH_ID_SORT);
+				SearchAfterPage<Long> conceptIdPage;
+				boolean stop = false;
+				do {
+					// Use the search-after feature to read all the ECL results, not just the first page
+					conceptIdPage = queryService.searchForIds(conceptQuery, branchCriteria, pageRequest);
+					batch.addConceptsFound(conceptIdPage.getNumberOfElements());
+					for (List<Long> partition : Iterables.partition(conceptIdPage.getContent(), BATCH_PARTITION_SIZE)) {
+						partitionsInFlight.acquire();
+						if (batch.isCancelRequested() || workerFailure.get() != null) {
+							partitionsInFlight.release();
+							stop = true;
+							break;
+						}
+						Collection<Concept> concepts;
+						try {
+							concepts = conceptService.find(branchCriteria, branchPath, partition, Config.DEFAULT_LANGUAGE_DIALECTS);
+						} catch (RuntimeException e) {
+							partitionsInFlight.release();
+							throw e;
+						}
+						batchWorkerExecutorService.execute(() -> {
+							try {
+								validatePartition(batch, concepts, ruleSetNames, batchRuleExecutor, workerServices, writer);
+							} catch (Exception e) {
+								workerFailure.compareAndSet(null, e);
+							} finally {
+								partitionsInFlight.release();
+							}
+						});
+					}
+					pageRequest = SearchAfterPageRequest.of(conceptIdPage.getSearchAfter(), LARGE_PAGE.getPageSize(), conceptIdPage.getSort());
+				} while (!stop && conceptIdPage.getNumberOfElements() == LARGE_PAGE.getPageSize());
+			} finally {
+				// Partitions still being validated write to the file, so wait for them even if loading failed
+				partitionsInFlight.acquireUninterruptibly(maxPartitionsInFlight);
+			}
+		}
+
+		if (workerFailure.get() != null) {
+			throw new IllegalStateException("Failed to validate concepts.", workerFailure.get());
+		}
+		batch.setStatus(batch.isCancelRequested() ? DroolsValidationBatch.Status.CANCELLED : DroolsValidationBatch.Status.COMPLETED);
+		logger.info("Validation batch {} {} after validating {} of {} concepts in {} seconds, {} concepts per second, written to {}",
+				batch.getId(), batch.getStatus(), batch.getConceptsValidated(), batch.getConceptsFound(), batch.getSecondsDuration(),
+				batch.getConceptsPerSecond(), batch.getResultsFile());
+	}
+
+	private void validatePartition(DroolsValidationBatch batch, Collection<Concept> concepts, Set<String> ruleSetNames, RuleExecutor batchRuleExecutor,
+			BlockingQueue<BatchWorkerServices> workerServices, PrintWriter writer) throws InterruptedException {
+
+		if (batch.isCancelRequested()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Set<DroolsConcept> droolsConcepts = concepts.stream().map(DroolsConcept::new).collect(Collectors.toSet());
+		BatchWorkerServices services = workerServices.take();
+		List<InvalidContent> invalidContents;
+		try {
+			invalidContents = batchRuleExecutor.execute(ruleSetNames, droolsConcepts, services.conceptService, services.descriptionService,
+					services.relationshipService, false, false);
+		} finally {
+			workerServices.add(services.renewIfFull(concepts.size()));
+		}
+
+		Map<String, String> conceptFsns = new HashMap<>();
+		for (Concept concept : concepts) {
+			conceptFsns.put(concept.getConceptId(), concept.getFsn() != null ? concept.getFsn().getTerm() : "");
+		}
+		synchronized (writer) {
+			for (InvalidContent invalidContent : invalidContents) {
+				writer.printf("%s\t%s\t%s\t%s\t%s%n", invalidContent.getConceptId(), conceptFsns.getOrDefault(invalidContent.getConceptId(), ""),
+						invalidContent.getRuleId(), invalidContent.getSeverity(), invalidContent.getMessage());
+			}
+			writer.flush();
+		}
+
+		batch.addConceptsValidated(concepts.size());
+		batch.addInvalidContentFound(invalidContents.size());
+		meterRegistry.counter(BATCH_CONCEPTS_COUNTER).increment(concepts.size());
+		meterRegistry.timer(BATCH_PARTITION_TIMER).record(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+	}
+
+	private Set<String> getRuleSetNames(Branch branchWithInheritedMetadata) throws ServiceException {
+		String assertionGroupNamesMetaString = branchWithInheritedMetadata.getMetadata().getString(BranchMetadataKeys.ASSERTION_GROUP_NAMES);
+		if (assertionGroupNamesMetaString == null) {
+			throw new ServiceException("'" + BranchMetadataKeys.ASSERTION_GROUP_NAMES + "' not set on branch metadata for Snomed-Drools validation configuration.");
+		}
+		String[] names = assertionGroupNamesMetaString.split(",");
+		return new HashSet<>(Arrays.asList(names));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		batchExecutorService.shutdownNow();
+		batchWorkerExecutorService.shutdownNow();
 	}
 
 	private void setReleaseHashAndEffectiveTime(Set<Concept> concepts, BranchCriteria branchCriteria) {
@@ -264,4 +406,37 @@ public class DroolsValidationService {
 		}
 		return topLevelHierarchies;
 	}
+
+	private final class BatchWorkerServices {
+
+		private final String branchPath;
+		private final BranchCriteria branchCriteria;
+		private final Set<String> inferredTopLevelHierarchies;
+		private final TestResourceProvider testResourceProvider;
+		private final ConceptDroolsValidationService conceptService;
+		private final DescriptionDroolsValidationService descriptionService;
+		private final RelationshipDroolsValidationService relationshipService;
+		private long conceptsValidated;
+
+		private BatchWorkerServices(String branchPath, BranchCriteria branchCriteria, Set<String> inferredTopLevelHierarchies, TestResourceProvider testResourceProvider) {
+			this.branchPath = branchPath;
+			this.branchCriteria = branchCriteria;
+			this.inferredTopLevelHierarchies = inferredTopLevelHierarchies;
+			this.testResourceProvider = testResourceProvider;
+			DisposableQueryService disposableQueryService = new DisposableQueryService(queryService, branchPath, branchCriteria);
+			conceptService = new ConceptDroolsValidationService(branchCriteria, elasticsearchOperations, disposableQueryService, inferredTopLevelHierarchies);
+			descriptionService = new DescriptionDroolsValidationService(branchPath, branchCriteria, elasticsearchOperations,
+					DroolsValidationService.this.descriptionService, disposableQueryService, testResourceProvider, inferredTopLevelHierarchies);
+			relationshipService = new RelationshipDroolsValidationService(disposableQueryService);
+		}
+
+		// The query cache grows with every concept validated so it is replaced from time to time
+		private BatchWorkerServices renewIfFull(int conceptsJustValidated) {
+			conceptsValidated += conceptsJustValidated;
+			if (conceptsValidated >= BATCH_WORKER_CACHE_CONCEPTS) {
+				return new BatchWorkerServices(branchPath, branchCriteria, inferredTopLevelHierarchies, testResourceProvider);
+			}
+			return this;
+		}
+	}
 }
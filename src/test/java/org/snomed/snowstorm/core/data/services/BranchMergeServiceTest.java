@@ -23,6 +23,7 @@ import org.snomed.snowstorm.core.data.domain.review.BranchReview;
 import org.snomed.snowstorm.core.data.domain.review.MergeReview;
 import org.snomed.snowstorm.core.data.domain.review.MergeReviewConceptVersions;
 import org.snomed.snowstorm.core.data.domain.review.ReviewStatus;
+import org.snomed.snowstorm.core.data.services.commitlistener.CommitListenerPipeline;
 import org.snomed.snowstorm.core.data.services.pojo.MemberSearchRequest;
 import org.snomed.snowstorm.core.data.services.traceability.Activity;
 import org.snomed.snowstorm.core.data.services.traceability.TraceabilityConsumer;
@@ -35,8 +36,10 @@ import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -45,6 +48,7 @@ import java.util.stream.IntStream;
 import static io.kaicode.elasticvc.api.ComponentService.LARGE_PAGE;
 import static java.util.function.Predicate.not;
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -96,6 +100,9 @@ class BranchMergeServiceTest extends AbstractTest {
 	@Autowired
 	private CodeSystemUpgradeService codeSystemUpgradeService;
 
+	@Autowired
+	private CommitListenerPipeline commitListenerPipeline;
+
 	private List<Activity> activities;
 
 	private Map<String, Branch> childBranches;
@@ -229,6 +236,8 @@ class BranchMergeServiceTest extends AbstractTest {
 	}
 
 	private Activity getLatestTraceabilityActivity() {
+		// Traceability activities are sent once the commit has completed
+		commitListenerPipeline.processOutbox();
 		return activities.get(activities.size() - 1);
 	}
 
@@ -1891,6 +1900,84 @@ class BranchMergeServiceTest extends AbstractTest {
 		assertEquals("Promotion blocked; not all criteria have been met.", message);
 	}
 
+	@Test
+	void testPromotionInWindows() throws ServiceException {
+		List<String> conceptIds = createConceptsForWindowedPromotion("MAIN/A/A1");
+
+		// Each component type is promoted in several windows
+		branchMergeService.mergeBranchSync("MAIN/A/A1", "MAIN/A", Collections.emptyList(), 3);
+
+		for (String conceptId : conceptIds) {
+			Concept concept = conceptService.find(conceptId, "MAIN/A");
+			assertNotNull(concept);
+			assertEquals(2, concept.getDescriptions().size());
+			assertEquals(1, concept.getRelationships().size());
+		}
+		List<Concept> sourceVersions = elasticsearchTemplate.search(new NativeSearchQueryBuilder()
+				.withQuery(boolQuery()
+						.must(termQuery("path", "MAIN/A/A1"))
+						.must(termsQuery(Concept.Fields.CONCEPT_ID, conceptIds)))
+				.withPageable(LARGE_PAGE)
+				.build(), Concept.class).stream().map(SearchHit::getContent).collect(Collectors.toList());
+		assertEquals(conceptIds.size(), sourceVersions.size());
+		for (Concept sourceVersion : sourceVersions) {
+			assertNotNull(sourceVersion.getEnd(), "Source version of " + sourceVersion.getConceptId() + " should be ended.");
+		}
+	}
+
+	@Test
+	void testPromotionRolledBackWhenWindowSaveFails() throws ServiceException {
+		List<String> conceptIds = createConceptsForWindowedPromotion("MAIN/A/A1");
+
+		// The third window saved fails after saving its content
+		AtomicInteger windowsSubmitted = new AtomicInteger();
+		ExecutorService failingExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+			@Override
+			public Future<?> submit(Runnable task) {
+				boolean fail = windowsSubmitted.incrementAndGet() == 3;
+				return super.submit(() -> {
+					task.run();
+					if (fail) {
+						throw new IllegalStateException("Failed to save window.");
+					}
+				});
+			}
+		};
+		ExecutorService executorService = (ExecutorService) ReflectionTestUtils.getField(branchMergeService, "executorService");
+		ReflectionTestUtils.setField(branchMergeService, "executorService", failingExecutor);
+		try {
+			assertThrows(IllegalStateException.class, () -> branchMergeService.mergeBranchSync("MAIN/A/A1", "MAIN/A", Collections.emptyList(), 3));
+		} finally {
+			ReflectionTestUtils.setField(branchMergeService, "executorService", executorService);
+			failingExecutor.shutdown();
+		}
+		assertTrue(windowsSubmitted.get() >= 3);
+
+		// Nothing was promoted and the source is unchanged
+		assertFalse(branchService.findLatest("MAIN/A").isLocked());
+		assertFalse(branchService.findLatest("MAIN/A/A1").isLocked());
+		for (String conceptId : conceptIds) {
+			assertNull(conceptService.find(conceptId, "MAIN/A"));
+			assertNotNull(conceptService.find(conceptId, "MAIN/A/A1"));
+		}
+
+		// The promotion can be run again
+		branchMergeService.mergeBranchSync("MAIN/A/A1", "MAIN/A", Collections.emptyList(), 3);
+		for (String conceptId : conceptIds) {
+			assertNotNull(conceptService.find(conceptId, "MAIN/A"));
+		}
+	}
+
+	private List<String> createConceptsForWindowedPromotion(String path) throws ServiceException {
+		List<String> conceptIds = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			String conceptId = "1000" + (100 + i) + "1";
+			createConcept(conceptId, path);
+			conceptIds.add(conceptId);
+		}
+		return conceptIds;
+	}
+
 	@Test
 	void testAutoMergeWhenConceptDeletedSomewhereAndVersionedElsewhere() throws ServiceException, InterruptedException {
 		String codeSystemShortName = "SNOMEDCT-TEST";
@@ -4183,7 +4270,6 @@ class BranchMergeServiceTest extends AbstractTest {
 		assertEquals(expectedBranchState, branchService.findLatest(path).getState());
 	}
 
-	@SuppressWarnings("SameParameterValue")
 	private void createConcept(String conceptId, String path) throws ServiceException {
 		conceptService.create(
 				new Concept(conceptId)
@@ -0,0 +1,47 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JoinExecutorTest {
+
+	private final JoinExecutor joinExecutor = new JoinExecutor();
+
+	@BeforeEach
+	void setUp() {
+		ReflectionTestUtils.setField(joinExecutor, "joinThreads", 1);
+		joinExecutor.init();
+	}
+
+	@AfterEach
+	void tearDown() {
+		joinExecutor.shutdown();
+	}
+
+	@Test
+	void testNestedJoinsOnSingleThread() {
+		AtomicInteger count = new AtomicInteger();
+		Runnable nested = () -> joinExecutor.runAll(count::incrementAndGet, count::incrementAndGet, count::incrementAndGet);
+		joinExecutor.runAll(nested, nested, nested);
+		assertEquals(9, count.get());
+	}
+
+	@Test
+	void testFailureThrownAfterAllTasks() {
+		AtomicInteger count = new AtomicInteger();
+		IllegalStateException exception = assertThrows(IllegalStateException.class, () -> joinExecutor.runAll(
+				() -> {
+					throw new IllegalStateException("Join failed");
+				},
+				count::incrementAndGet,
+				count::incrementAndGet));
+		assertEquals("Join failed", exception.getMessage());
+		assertEquals(2, count.get());
+	}
+}
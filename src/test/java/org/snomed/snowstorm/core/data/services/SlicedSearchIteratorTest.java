@@ -0,0 +1,138 @@
+package org.snomed.snowstorm.core.data.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlicedSearchIteratorTest {
+
+	private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+	@AfterEach
+	void tearDown() {
+		executorService.shutdownNow();
+	}
+
+	@Test
+	void testUnordered() {
+		AtomicInteger closed = new AtomicInteger();
+		List<SlicedSearchIterator.SliceReader<Integer>> readers = List.of(
+				reader(closed, List.of(1, 4), List.of(7)),
+				reader(closed, List.of(2, 5, 8)),
+				reader(closed));
+
+		List<Integer> results = new ArrayList<>();
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(readers, null, executorService)) {
+			iterator.forEachRemaining(results::add);
+		}
+		Collections.sort(results);
+		assertEquals(List.of(1, 2, 4, 5, 7, 8), results);
+		assertEquals(3, closed.get());
+	}
+
+	@Test
+	void testOrderedMerge() {
+		AtomicInteger closed = new AtomicInteger();
+		List<SlicedSearchIterator.SliceReader<Integer>> readers = List.of(
+				reader(closed, List.of(1, 4), List.of(7, 10)),
+				reader(closed, List.of(2), List.of(3), List.of(9)),
+				reader(closed),
+				reader(closed, List.of(5, 6, 8)));
+
+		List<Integer> results = new ArrayList<>();
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(readers, Comparator.naturalOrder(), executorService)) {
+			iterator.forEachRemaining(results::add);
+		}
+		assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), results);
+		assertEquals(4, closed.get());
+	}
+
+	@Test
+	void testSlicesReadInlineWhenNoThreadAvailable() {
+		ExecutorService rejectingExecutor = Executors.newSingleThreadExecutor();
+		rejectingExecutor.shutdown();
+
+		AtomicInteger closed = new AtomicInteger();
+		List<Integer> results = new ArrayList<>();
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(
+				List.of(reader(closed, List.of(1, 4), List.of(7)), reader(closed, List.of(2, 5, 8))), null, rejectingExecutor)) {
+			iterator.forEachRemaining(results::add);
+		}
+		Collections.sort(results);
+		assertEquals(List.of(1, 2, 4, 5, 7, 8), results);
+
+		results.clear();
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(
+				List.of(reader(closed, List.of(1, 4), List.of(7)), reader(closed, List.of(2, 5, 8))), Comparator.naturalOrder(), rejectingExecutor)) {
+			iterator.forEachRemaining(results::add);
+		}
+		assertEquals(List.of(1, 2, 4, 5, 7, 8), results);
+		assertEquals(4, closed.get());
+	}
+
+	@Test
+	void testSliceFailure() {
+		SlicedSearchIterator.SliceReader<Integer> failingReader = new SlicedSearchIterator.SliceReader<>() {
+			@Override
+			public List<Integer> nextPage() {
+				throw new IllegalStateException("Search failed");
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		List<SlicedSearchIterator.SliceReader<Integer>> readers = List.of(reader(new AtomicInteger(), List.of(1)), failingReader);
+
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(readers, null, executorService)) {
+			RuntimeServiceException exception = assertThrows(RuntimeServiceException.class, () -> iterator.forEachRemaining(i -> {}));
+			assertEquals("Search failed", exception.getCause().getMessage());
+		}
+	}
+
+	@Test
+	void testCloseEarlyReleasesSlices() throws InterruptedException {
+		AtomicInteger closed = new AtomicInteger();
+		List<List<Integer>> pages = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			pages.add(List.of(i));
+		}
+		List<SlicedSearchIterator.SliceReader<Integer>> readers = List.of(reader(closed, pages), reader(closed, pages));
+
+		try (SlicedSearchIterator<Integer> iterator = new SlicedSearchIterator<>(readers, null, executorService)) {
+			assertTrue(iterator.hasNext());
+			iterator.next();
+		}
+		for (int i = 0; i < 50 && closed.get() < 2; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(2, closed.get());
+	}
+
+	@SafeVarargs
+	private static SlicedSearchIterator.SliceReader<Integer> reader(AtomicInteger closed, List<Integer>... pages) {
+		return reader(closed, Arrays.asList(pages));
+	}
+
+	private static SlicedSearchIterator.SliceReader<Integer> reader(AtomicInteger closed, List<List<Integer>> pages) {
+		Iterator<List<Integer>> pageIterator = pages.iterator();
+		return new SlicedSearchIterator.SliceReader<>() {
+			@Override
+			public List<Integer> nextPage() {
+				return pageIterator.hasNext() ? pageIterator.next() : Collections.emptyList();
+			}
+
+			@Override
+			public void close() {
+				closed.incrementAndGet();
+			}
+		};
+	}
+
+}
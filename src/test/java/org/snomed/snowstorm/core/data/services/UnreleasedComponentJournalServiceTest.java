@@ -0,0 +1,66 @@
+package org.snomed.snowstorm.core.data.services;
+
+import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.VersionControlHelper;
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.AbstractTest;
+import org.snomed.snowstorm.core.data.domain.CodeSystem;
+import org.snomed.snowstorm.core.data.domain.Concept;
+import org.snomed.snowstorm.core.data.services.pojo.UnreleasedComponentIds;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnreleasedComponentJournalServiceTest extends AbstractTest {
+
+	@Autowired
+	private UnreleasedComponentJournalService unreleasedComponentJournalService;
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@Autowired
+	private CodeSystemService codeSystemService;
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	@Test
+	void testJournalMaintainedAtCommitTime() throws ServiceException {
+		conceptService.create(new Concept("100001"), MAIN);
+		// Journal not complete until rebuilt because MAIN was created without it
+		assertNull(getUnreleasedComponentIds(MAIN));
+		branchService.create("MAIN/A");
+
+		unreleasedComponentJournalService.rebuild(MAIN);
+		assertEquals(Set.of("100001"), getUnreleasedComponentIds(MAIN).getIds(Concept.class));
+		// Created before the rebuild
+		assertNull(getUnreleasedComponentIds("MAIN/A"));
+
+		branchService.create("MAIN/B");
+		conceptService.create(new Concept("200003"), "MAIN/B");
+		assertEquals(Set.of("100001", "200003"), getUnreleasedComponentIds("MAIN/B").getIds(Concept.class));
+		assertEquals(Set.of("100001"), getUnreleasedComponentIds(MAIN).getIds(Concept.class));
+
+		// Deleted before release
+		conceptService.create(new Concept("300009"), MAIN);
+		assertEquals(Set.of("100001", "300009"), getUnreleasedComponentIds(MAIN).getIds(Concept.class));
+		conceptService.deleteConceptAndComponents("300009", MAIN, false);
+		assertEquals(Set.of("100001"), getUnreleasedComponentIds(MAIN).getIds(Concept.class));
+
+		// Released
+		codeSystemService.createCodeSystem(new CodeSystem("SNOMEDCT", MAIN));
+		codeSystemService.createVersion(codeSystemService.find("SNOMEDCT"), 20210131, "");
+		assertEquals(Set.of(), getUnreleasedComponentIds(MAIN).getIds(Concept.class));
+	}
+
+	private UnreleasedComponentIds getUnreleasedComponentIds(String path) {
+		return unreleasedComponentJournalService.getUnreleasedComponentIds(path, versionControlHelper.getBranchCriteria(path));
+	}
+
+}
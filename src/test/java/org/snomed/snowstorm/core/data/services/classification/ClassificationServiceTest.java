@@ -136,6 +136,62 @@ class ClassificationServiceTest extends AbstractTest {
 //		assertEquals(1, activity.getChanges().size());
 	}
 
+	@Test
+	void testSaveRelationshipChangesInWindows() throws IOException, ServiceException {
+		final String branch = "MAIN";
+		createRangeConstraint("1142135004", "dec(>#0..)");
+		conceptService.create(
+				new Concept("123123123001")
+						.addAxiom(
+								new Relationship(Concepts.ISA, Concepts.SNOMEDCT_ROOT),
+								new Relationship("363698007", "84301002"),
+								Relationship.newConcrete("1142135004", ConcreteValue.newDecimal("#55.5"))
+						), branch);
+		conceptService.create(
+				new Concept("123123124001")
+						.addAxiom(
+								new Relationship(Concepts.ISA, Concepts.SNOMEDCT_ROOT),
+								new Relationship("363698007", "50960005")
+						), branch);
+
+		String classificationId = UUID.randomUUID().toString();
+		Classification classification = createClassification(branch, classificationId);
+
+		// Window of two rows so the changes of the first concept span two windows
+		classificationService.saveRelationshipChanges(classification, new ByteArrayInputStream(("" +
+				"id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId\n" +
+				"\t\t1\t\t123123123001\t138875005\t0\t116680003\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123124001\t50960005\t0\t363698007\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123123001\t84301002\t0\t363698007\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123123001\t247247001\t0\t116680003\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123124001\t84301002\t0\t363698007\t900000000000227009\t900000000000451002\n" +
+				"\t\t0\t\t123123124001\t138875005\t0\t116680003\t900000000000227009\t900000000000451002\n" +
+				"").getBytes()), false, 2);
+		classificationService.saveRelationshipChanges(classification, new ByteArrayInputStream(("" +
+				"id\teffectiveTime\tactive\tmoduleId\tsourceId\tvalue\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId\n" +
+				"\t\t1\t\t123123123001\t#55.5\t0\t1142135004\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123123001\t#6.5\t0\t1142135004\t900000000000227009\t900000000000451002\n" +
+				"\t\t1\t\t123123124001\t#55.5\t0\t1142135004\t900000000000227009\t900000000000451002\n" +
+				"").getBytes()), true, 2);
+
+		List<RelationshipChange> relationshipChanges = relationshipChangeRepository.findByClassificationId(classificationId, LARGE_PAGE).getContent();
+		String allChanges = relationshipChanges.stream()
+				.map(change -> change.getSourceId() + " -> " + change.getTypeId() + " -> " + change.getDestinationOrValue() + " active:" + change.isActive() +
+						" inferredNotStated:" + change.isInferredNotStated() + "\n")
+				.sorted()
+				.collect(Collectors.joining());
+
+		assertEquals("123123123001 -> 1142135004 -> #55.5 active:true inferredNotStated:false\n" +
+				"123123123001 -> 1142135004 -> #6.5 active:true inferredNotStated:true\n" +
+				"123123123001 -> 116680003 -> 138875005 active:true inferredNotStated:false\n" +
+				"123123123001 -> 116680003 -> 247247001 active:true inferredNotStated:true\n" +
+				"123123123001 -> 363698007 -> 84301002 active:true inferredNotStated:false\n" +
+				"123123124001 -> 1142135004 -> #55.5 active:true inferredNotStated:true\n" +
+				"123123124001 -> 116680003 -> 138875005 active:false inferredNotStated:false\n" +
+				"123123124001 -> 363698007 -> 50960005 active:true inferredNotStated:false\n" +
+				"123123124001 -> 363698007 -> 84301002 active:true inferredNotStated:true\n", allChanges);
+	}
+
 	@Test
 	void testSaveRelationshipChangesFailsWithLoop() throws IOException, ServiceException, InterruptedException {
 		// Create concept with some stated modeling in an axiom
@@ -505,6 +561,16 @@ class ClassificationServiceTest extends AbstractTest {
 		assertEquals(expected, owlExpressionAfterSave);
 	}
 
+	@Test
+	void testSplitTabs() {
+		String[] values = new String[4];
+		ClassificationService.splitTabs("200001001\t\t1\t900000000000207008\t100001", values);
+		assertArrayEquals(new String[]{"200001001", "", "1", "900000000000207008"}, values);
+
+		ClassificationService.splitTabs("200001001\t\t0", values);
+		assertArrayEquals(new String[]{"200001001", "", "0", null}, values);
+	}
+
 	Classification createClassification(String path, String classificationId) {
 		Classification classification = new Classification();
 		classification.setId(classificationId);
@@ -0,0 +1,96 @@
+package org.snomed.snowstorm.core.data.services.commitlistener;
+
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Commit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.core.data.services.JoinExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitListenerPipelineTest {
+
+	private final JoinExecutor joinExecutor = new JoinExecutor();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final CommitListenerPipeline pipeline = new CommitListenerPipeline();
+	private final Commit commit = new Commit(new Branch("MAIN"), Commit.CommitType.CONTENT, null, null) {};
+
+	@BeforeEach
+	void setUp() {
+		ReflectionTestUtils.setField(joinExecutor, "joinThreads", 4);
+		joinExecutor.init();
+		ReflectionTestUtils.setField(pipeline, "joinExecutor", joinExecutor);
+		ReflectionTestUtils.setField(pipeline, "meterRegistry", meterRegistry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		joinExecutor.shutdown();
+	}
+
+	@Test
+	void testDependenciesAndParallelListeners() {
+		List<String> completed = new CopyOnWriteArrayList<>();
+		// Both listeners wait for each other so they must run at the same time
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		pipeline
+				.add("a", c -> {
+					awaitOther(bothStarted);
+					completed.add("a");
+				})
+				.add("b", c -> {
+					awaitOther(bothStarted);
+					completed.add("b");
+				})
+				.add("c", c -> {
+					assertTrue(completed.contains("a") && completed.contains("b"));
+					completed.add("c");
+				}, "a", "b");
+
+		pipeline.preCommitCompletion(commit);
+
+		assertEquals(3, completed.size());
+		assertEquals("c", completed.get(2));
+		assertEquals(1, meterRegistry.get(CommitListenerPipeline.LISTENER_TIMER).tag("listener", "c").timer().count());
+	}
+
+	@Test
+	void testFailureStopsDependentListeners() {
+		List<String> completed = new CopyOnWriteArrayList<>();
+		pipeline
+				.add("a", c -> {
+					throw new IllegalStateException("Listener failed");
+				})
+				.add("b", c -> completed.add("b"))
+				.add("c", c -> completed.add("c"), "a");
+
+		IllegalStateException exception = assertThrows(IllegalStateException.class, () -> pipeline.preCommitCompletion(commit));
+		assertEquals("Listener failed", exception.getMessage());
+		assertEquals(List.of("b"), completed);
+	}
+
+	@Test
+	void testUnknownDependency() {
+		pipeline.add("a", c -> {});
+		assertThrows(IllegalArgumentException.class, () -> pipeline.add("b", c -> {}, "x"));
+		assertThrows(IllegalArgumentException.class, () -> pipeline.add("a", c -> {}));
+	}
+
+	private static void awaitOther(CountDownLatch latch) {
+		latch.countDown();
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS), "Listeners did not run at the same time.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail();
+		}
+	}
+}
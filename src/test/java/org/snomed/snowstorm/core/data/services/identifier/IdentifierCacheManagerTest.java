@@ -40,10 +40,11 @@ class IdentifierCacheManagerTest extends AbstractTest {
 	void testTopUp() throws ServiceException, InterruptedException {
 		Assert.assertEquals(0, testCache.identifiersAvailable());
 		
-		//Since the cache is below critical level, asking for identifiers will trigger a top up + additional required
+		//Since the cache is empty, asking for identifiers will reserve them directly and top up the cache in the background
 		IdentifierReservedBlock reservedBlock = new IdentifierReservedBlock(0);
 		cacheManager.populateIdBlock(reservedBlock, TEST_DEMAND, TEST_NAMESPACE, TEST_PARTITION);
 		Assert.assertEquals(TEST_DEMAND, reservedBlock.size(ComponentType.Concept));
+		waitForTopUp();
 		Assert.assertEquals(TEST_CAPACITY, testCache.identifiersAvailable());
 		
 		//Now take us down to above top up level and prove it remains constant
@@ -56,9 +57,8 @@ class IdentifierCacheManagerTest extends AbstractTest {
 		//Now drop below top up level and check we top up to capacity
 		reduction = TEST_DEMAND + testCache.identifiersAvailable() - (int)(TEST_CAPACITY * IdentifierCacheManager.topUpLevel);
 		cacheManager.populateIdBlock(reservedBlock, reduction, TEST_NAMESPACE, TEST_PARTITION);
-		expectedLevel -= reduction;
-		Assert.assertEquals(expectedLevel, testCache.identifiersAvailable());
-		cacheManager.checkTopUpRequired();
+		Assert.assertEquals(TEST_DEMAND + (TEST_CAPACITY - expectedLevel) + reduction, reservedBlock.size(ComponentType.Concept));
+		waitForTopUp();
 		Assert.assertEquals(TEST_CAPACITY, testCache.identifiersAvailable());
 		
 		//And check we've got a valid concept id.  
@@ -147,6 +147,13 @@ class IdentifierCacheManagerTest extends AbstractTest {
 		});
 	}
 	
+	private void waitForTopUp() throws InterruptedException {
+		for (int i = 0; i < 100 && cacheManager.topUpInProgress(); i++) {
+			Thread.sleep(50);
+		}
+		Assert.assertFalse("Background top-up did not complete", cacheManager.topUpInProgress());
+	}
+
 	@AfterEach
 	void restartCacheManager() {
 		cacheManager.startBackgroundTask();
@@ -0,0 +1,91 @@
+package org.snomed.snowstorm.core.data.services.identifier;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.snomed.snowstorm.AbstractTest;
+import org.snomed.snowstorm.TestConfig;
+import org.snomed.snowstorm.core.data.domain.ComponentType;
+import org.snomed.snowstorm.core.data.domain.Concept;
+import org.snomed.snowstorm.core.data.domain.Concepts;
+import org.snomed.snowstorm.core.data.domain.ReferenceSetMember;
+import org.snomed.snowstorm.core.data.domain.jobs.IdentifierSequence;
+import org.snomed.snowstorm.core.data.services.ConceptService;
+import org.snomed.snowstorm.core.data.services.ReferenceSetMemberService;
+import org.snomed.snowstorm.core.data.services.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@ExtendWith(SpringExtension.class)
+@ContextConfiguration(classes = TestConfig.class)
+class LocalSequentialIdentifierSourceTest extends AbstractTest {
+
+	@Autowired
+	private ElasticsearchRestTemplate elasticsearchTemplate;
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@Autowired
+	private ReferenceSetMemberService memberService;
+
+	@BeforeEach
+	void clearSequences() {
+		elasticsearchTemplate.indexOps(IdentifierSequence.class).delete();
+	}
+
+	@Test
+	void testReserveIdsInSequence() throws ServiceException {
+		List<Long> longs = new LocalSequentialIdentifierSource(elasticsearchTemplate, 1).reserveIds(0, "10", 3);
+		assertEquals("100108", longs.get(0).toString());
+		assertEquals("101107", longs.get(1).toString());
+		assertEquals("102104", longs.get(2).toString());
+
+		// A new instance carries on from the stored sequence
+		longs = new LocalSequentialIdentifierSource(elasticsearchTemplate, 1).reserveIds(0, "10", 1);
+		assertEquals("103105", longs.get(0).toString());
+	}
+
+	@Test
+	void testClashDetection() throws ServiceException {
+		conceptService.create(new Concept("101107").addFSN("Test"), "MAIN");
+
+		List<Long> longs = new LocalSequentialIdentifierSource(elasticsearchTemplate, 1).reserveIds(0, "10", 3);
+		assertEquals(3, longs.size());
+		assertEquals("100108", longs.get(0).toString());
+		// 101107 is skipped because it is already in the store
+		assertEquals("102104", longs.get(1).toString());
+		assertEquals("103105", longs.get(2).toString());
+	}
+
+	@Test
+	void testExpressionClashDetection() throws ServiceException {
+		memberService.createMember("MAIN", new ReferenceSetMember(Concepts.CORE_MODULE, "1119435002", "101066"));
+		// The same item identifier in another partition is not a clash
+		conceptService.create(new Concept("100005").addFSN("Test"), "MAIN");
+
+		List<Long> longs = new LocalSequentialIdentifierSource(elasticsearchTemplate, 1).reserveIds(0, "06", 2);
+		assertEquals(2, longs.size());
+		assertEquals("10006", longs.get(0).toString().substring(0, 5));
+		// 101066 is skipped because it is referenced by an expression reference set member
+		assertEquals("10206", longs.get(1).toString().substring(0, 5));
+	}
+
+	@Test
+	void testItemIdLengthChange() throws ServiceException {
+		List<Long> longs = new LocalSequentialIdentifierSource(elasticsearchTemplate, 998).reserveIds(1000154, "10", 4);
+		assertEquals(4, new LongOpenHashSet(longs).size());
+		assertEquals("998100015410", longs.get(0).toString().substring(0, 12));
+		assertEquals("1001100015410", longs.get(3).toString().substring(0, 13));
+		for (Long sctid : longs) {
+			assertNull(IdentifierService.isValidId(sctid.toString(), ComponentType.Concept));
+		}
+	}
+}
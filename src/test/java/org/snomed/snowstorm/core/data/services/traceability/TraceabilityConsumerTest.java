@@ -3,16 +3,24 @@ package org.snomed.snowstorm.core.data.services.traceability;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.ProducerCallback;
+import org.springframework.jms.support.converter.MessageConverter;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.util.List;
+
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @RunWith(SpringRunner.class)
@@ -52,6 +60,26 @@ public class TraceabilityConsumerTest {
 		verify(jmsTemplate, times(3)).convertAndSend(anyString(), any(Activity.class));
 	}
 
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAcceptAllUsesOneSession() throws Exception {
+		Activity large = createActivity();
+		for (int i = 0; i < 12; i++) {
+			large.addConceptActivity(String.valueOf(i));
+		}
+		MessageConverter messageConverter = mock(MessageConverter.class);
+		when(jmsTemplate.getMessageConverter()).thenReturn(messageConverter);
+
+		t.acceptAll(List.of(createActivity(), large));
+
+		ArgumentCaptor<ProducerCallback<Object>> callback = ArgumentCaptor.forClass(ProducerCallback.class);
+		verify(jmsTemplate, times(1)).execute(eq(QUEUE + ".traceability"), callback.capture());
+		MessageProducer producer = mock(MessageProducer.class);
+		callback.getValue().doInJms(mock(Session.class), producer);
+		verify(messageConverter, times(4)).toMessage(any(Activity.class), any(Session.class));
+		verify(producer, times(4)).send(any());
+	}
+
 	private Activity createActivity() {
 		return new Activity("user", "MAIN/BLA", 999999999999l, null, Activity.ActivityType.CONTENT_CHANGE);
 	}
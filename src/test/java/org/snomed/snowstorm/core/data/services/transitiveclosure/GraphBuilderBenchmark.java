@@ -0,0 +1,181 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compact graph with the previous structure of boxed nodes with hash sets of parents,
+ * using a generated hierarchy the size of the International Edition.
+ * Not run as part of the build. Run the main method, adding "-prof gc" to the options to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class GraphBuilderBenchmark {
+
+	@Param("350000")
+	private int conceptCount;
+
+	private long[] sources;
+	private long[] destinations;
+	private long[] updatedIds;
+
+	@Setup
+	public void setup() {
+		// Each concept has one to three parents with lower ids, giving a hierarchy of similar depth to SNOMED CT
+		Random random = new Random(1);
+		int edgeCount = 0;
+		sources = new long[conceptCount * 3];
+		destinations = new long[conceptCount * 3];
+		for (int i = 1; i < conceptCount; i++) {
+			int parentCount = 1 + (random.nextInt(10) < 8 ? 0 : random.nextInt(3));
+			for (int p = 0; p < parentCount; p++) {
+				sources[edgeCount] = 100 + i;
+				destinations[edgeCount++] = 100 + random.nextInt(i);
+			}
+		}
+		sources = Arrays.copyOf(sources, edgeCount);
+		destinations = Arrays.copyOf(destinations, edgeCount);
+		updatedIds = new long[100];
+		for (int i = 0; i < updatedIds.length; i++) {
+			updatedIds[i] = 100 + random.nextInt(conceptCount);
+		}
+	}
+
+	@Benchmark
+	public void compactUpdatedNodes(Blackhole blackhole) {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		for (int i = 0; i < sources.length; i++) {
+			graphBuilder.addParent(sources[i], destinations[i]);
+		}
+		for (long updatedId : updatedIds) {
+			graphBuilder.clearParentsAndMarkUpdated(updatedId);
+		}
+		blackhole.consume(graphBuilder.getNodes().stream().filter(Node::isAncestorOrSelfUpdated).count());
+	}
+
+	@Benchmark
+	public void legacyUpdatedNodes(Blackhole blackhole) {
+		LegacyGraphBuilder graphBuilder = new LegacyGraphBuilder();
+		for (int i = 0; i < sources.length; i++) {
+			graphBuilder.addParent(sources[i], destinations[i]);
+		}
+		for (long updatedId : updatedIds) {
+			graphBuilder.clearParentsAndMarkUpdated(updatedId);
+		}
+		blackhole.consume(graphBuilder.nodeLookup.values().stream().filter(LegacyNode::isAncestorOrSelfUpdated).count());
+	}
+
+	@Benchmark
+	public void compactTransitiveClosure(Blackhole blackhole) throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		for (int i = 0; i < sources.length; i++) {
+			graphBuilder.addParent(sources[i], destinations[i]);
+		}
+		TransitiveClosureCalculator calculator = TransitiveClosureCalculator.calculate(graphBuilder);
+		for (Node node : graphBuilder.getNodes()) {
+			blackhole.consume(calculator.getTransitiveClosure(node, "MAIN", true));
+		}
+	}
+
+	@Benchmark
+	public void legacyTransitiveClosure(Blackhole blackhole) {
+		LegacyGraphBuilder graphBuilder = new LegacyGraphBuilder();
+		for (int i = 0; i < sources.length; i++) {
+			graphBuilder.addParent(sources[i], destinations[i]);
+		}
+		for (LegacyNode node : graphBuilder.nodeLookup.values()) {
+			blackhole.consume(node.getTransitiveClosure());
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(GraphBuilderBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	// The previous graph structure, kept here for comparison only
+	private static final class LegacyGraphBuilder {
+
+		private final Map<Long, LegacyNode> nodeLookup = new Long2ObjectOpenHashMap<>();
+
+		private void addParent(Long sourceId, Long destinationId) {
+			getCreateNode(sourceId).parents.add(getCreateNode(destinationId));
+		}
+
+		private LegacyNode getCreateNode(Long id) {
+			return nodeLookup.computeIfAbsent(id, LegacyNode::new);
+		}
+
+		private void clearParentsAndMarkUpdated(Long sourceId) {
+			LegacyNode node = getCreateNode(sourceId);
+			node.updated = true;
+			node.parents.clear();
+		}
+	}
+
+	private static final class LegacyNode {
+
+		private final Long id;
+		private final Set<LegacyNode> parents = new HashSet<>();
+		private boolean updated;
+
+		private LegacyNode(Long id) {
+			this.id = id;
+		}
+
+		private Set<Long> getTransitiveClosure() {
+			Set<Long> parentIds = new LongOpenHashSet();
+			getTransitiveClosure(parentIds);
+			return parentIds;
+		}
+
+		private void getTransitiveClosure(Set<Long> parentIds) {
+			for (LegacyNode parent : parents) {
+				if (parentIds.add(parent.id)) {
+					parent.getTransitiveClosure(parentIds);
+				}
+			}
+		}
+
+		private boolean isAncestorOrSelfUpdated() {
+			return isAncestorOrSelfUpdated(new LongOpenHashSet());
+		}
+
+		private boolean isAncestorOrSelfUpdated(Set<Long> parentIds) {
+			if (updated) {
+				return true;
+			}
+			for (LegacyNode parent : parents) {
+				if (parentIds.add(parent.id) && parent.isAncestorOrSelfUpdated(parentIds)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return this == o || (o instanceof LegacyNode && id.equals(((LegacyNode) o).id));
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+	}
+}
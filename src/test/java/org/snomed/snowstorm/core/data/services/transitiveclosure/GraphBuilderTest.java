@@ -0,0 +1,66 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GraphBuilderTest {
+
+	@Test
+	void testParentsAndTransitiveClosure() throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		graphBuilder.addParent(2L, 1L);
+		graphBuilder.addParent(3L, 1L);
+		graphBuilder.addParent(4L, 2L);
+		graphBuilder.addParent(4L, 3L);
+		// Duplicate edge
+		graphBuilder.addParent(4L, 3L);
+
+		assertEquals(4, graphBuilder.getNodeCount());
+		assertEquals(4, graphBuilder.getNodes().size());
+		assertEquals(Set.of(2L, 3L), graphBuilder.getNode(4L).getParentIds());
+		assertFalse(graphBuilder.getNode(1L).hasParents());
+		assertEquals(Set.of(1L, 2L, 3L), graphBuilder.getNode(4L).getTransitiveClosure("MAIN", true));
+		assertNull(graphBuilder.getNode(5L));
+
+		// Graph can be extended after reading
+		graphBuilder.addParent(5L, 4L);
+		assertEquals(Set.of(1L, 2L, 3L, 4L), graphBuilder.getNode(5L).getTransitiveClosure("MAIN", true));
+	}
+
+	@Test
+	void testClearParentsAndUpdatedPropagation() throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		graphBuilder.addParent(2L, 1L);
+		graphBuilder.addParent(3L, 2L);
+		graphBuilder.addParent(4L, 3L);
+		graphBuilder.addParent(6L, 5L);
+
+		graphBuilder.clearParentsAndMarkUpdated(3L);
+		graphBuilder.addParent(3L, 5L);
+
+		assertEquals(Set.of(5L), graphBuilder.getNode(3L).getParentIds());
+		assertEquals(Set.of(3L, 5L), graphBuilder.getNode(4L).getTransitiveClosure("MAIN", true));
+
+		assertFalse(graphBuilder.getNode(1L).isAncestorOrSelfUpdated());
+		assertFalse(graphBuilder.getNode(2L).isAncestorOrSelfUpdated());
+		assertTrue(graphBuilder.getNode(3L).isAncestorOrSelfUpdated());
+		assertTrue(graphBuilder.getNode(4L).isAncestorOrSelfUpdated());
+		assertFalse(graphBuilder.getNode(6L).isAncestorOrSelfUpdated());
+	}
+
+	@Test
+	void testLoop() throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		graphBuilder.addParent(2L, 1L);
+		graphBuilder.addParent(3L, 2L);
+		graphBuilder.addParent(2L, 3L);
+
+		assertThrows(GraphBuilderException.class, () -> graphBuilder.getNode(3L).getTransitiveClosure("MAIN", true));
+		// Loop is logged and the concept removed from its own ancestors
+		assertEquals(Set.of(1L, 2L), graphBuilder.getNode(3L).getTransitiveClosure("MAIN", false));
+	}
+
+}
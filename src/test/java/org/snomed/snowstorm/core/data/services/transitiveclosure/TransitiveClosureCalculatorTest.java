@@ -0,0 +1,44 @@
+package org.snomed.snowstorm.core.data.services.transitiveclosure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransitiveClosureCalculatorTest {
+
+	@Test
+	void testClosureMatchesNodeClosure() throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		graphBuilder.addParent(2L, 1L);
+		graphBuilder.addParent(3L, 1L);
+		graphBuilder.addParent(4L, 2L);
+		graphBuilder.addParent(4L, 3L);
+		graphBuilder.addParent(5L, 4L);
+
+		TransitiveClosureCalculator calculator = TransitiveClosureCalculator.calculate(graphBuilder);
+		assertEquals(0, calculator.getUnsortedCount());
+		for (Node node : graphBuilder.getNodes()) {
+			assertEquals(node.getTransitiveClosure("MAIN", true), calculator.getTransitiveClosure(node, "MAIN", true));
+		}
+		assertEquals(Set.of(1L, 2L, 3L, 4L), calculator.getTransitiveClosure(graphBuilder.getNode(5L), "MAIN", true));
+	}
+
+	@Test
+	void testLoop() throws GraphBuilderException {
+		GraphBuilder graphBuilder = new GraphBuilder();
+		graphBuilder.addParent(2L, 1L);
+		graphBuilder.addParent(10L, 2L);
+		graphBuilder.addParent(11L, 10L);
+		graphBuilder.addParent(10L, 11L);
+		graphBuilder.addParent(12L, 11L);
+
+		TransitiveClosureCalculator calculator = TransitiveClosureCalculator.calculate(graphBuilder);
+		assertEquals(3, calculator.getUnsortedCount());
+		assertEquals(Set.of(1L), calculator.getTransitiveClosure(graphBuilder.getNode(2L), "MAIN", true));
+		assertThrows(GraphBuilderException.class, () -> calculator.getTransitiveClosure(graphBuilder.getNode(10L), "MAIN", true));
+		assertEquals(Set.of(1L, 2L, 10L, 11L), calculator.getTransitiveClosure(graphBuilder.getNode(12L), "MAIN", false));
+	}
+
+}
@@ -14,15 +14,10 @@ import org.snomed.snowstorm.core.util.StreamUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.*;
+import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -50,6 +45,9 @@ class ExportServiceTest extends AbstractTest {
 	@Autowired
 	private CodeSystemService codeSystemService;
 
+	@Autowired
+	private UnreleasedComponentJournalService unreleasedComponentJournalService;
+
 	private String descriptionId;
 	private String textDefId;
 	private ReferenceSetMember owlMember;
@@ -711,6 +709,84 @@ class ExportServiceTest extends AbstractTest {
 		}
 	}
 
+	@Test
+	void testParallelExportMatchesSequentialExport() throws IOException {
+		File sequentialExport = exportService.exportRF2ArchiveFile("MAIN", "20210731", RF2Type.SNAPSHOT, false);
+		ReflectionTestUtils.setField(exportService, "parallelFiles", 4);
+		try {
+			File parallelExport = exportService.exportRF2ArchiveFile("MAIN", "20210731", RF2Type.SNAPSHOT, false);
+			Map<String, byte[]> sequentialEntries = getEntries(sequentialExport);
+			Map<String, byte[]> parallelEntries = getEntries(parallelExport);
+			assertFalse(sequentialEntries.isEmpty());
+			assertEquals(new ArrayList<>(sequentialEntries.keySet()), new ArrayList<>(parallelEntries.keySet()));
+			for (String entryName : sequentialEntries.keySet()) {
+				assertArrayEquals(sequentialEntries.get(entryName), parallelEntries.get(entryName), entryName);
+			}
+			parallelExport.delete();
+		} finally {
+			ReflectionTestUtils.setField(exportService, "parallelFiles", 1);
+			sequentialExport.delete();
+		}
+	}
+
+	@Test
+	void testDeltaExportUsingUnreleasedComponentJournal() throws Exception {
+		File searchedExport = exportService.exportRF2ArchiveFile("MAIN", "20210731", RF2Type.DELTA, false);
+		unreleasedComponentJournalService.rebuild("MAIN");
+		File journalExport = exportService.exportRF2ArchiveFile("MAIN", "20210731", RF2Type.DELTA, false);
+		try {
+			Map<String, byte[]> searchedEntries = getEntries(searchedExport);
+			Map<String, byte[]> journalEntries = getEntries(journalExport);
+			assertFalse(searchedEntries.isEmpty());
+			assertEquals(new ArrayList<>(searchedEntries.keySet()), new ArrayList<>(journalEntries.keySet()));
+			for (String entryName : searchedEntries.keySet()) {
+				assertArrayEquals(searchedEntries.get(entryName), journalEntries.get(entryName), entryName);
+			}
+		} finally {
+			searchedExport.delete();
+			journalExport.delete();
+		}
+	}
+
+	@Test
+	void testStreamedExportMatchesFileExport() throws IOException {
+		ByteArrayOutputStream fileExport = new ByteArrayOutputStream();
+		ExportConfiguration exportConfiguration = new ExportConfiguration("MAIN", RF2Type.SNAPSHOT);
+		exportConfiguration.setFilenameEffectiveDate("20210731");
+		exportService.createJob(exportConfiguration);
+		exportService.exportRF2Archive(exportConfiguration, fileExport);
+
+		ByteArrayOutputStream streamedExport = new ByteArrayOutputStream();
+		ExportConfiguration streamedExportConfiguration = new ExportConfiguration("MAIN", RF2Type.SNAPSHOT);
+		streamedExportConfiguration.setFilenameEffectiveDate("20210731");
+		exportService.createJob(streamedExportConfiguration);
+		exportService.streamRF2Archive(streamedExportConfiguration, streamedExport);
+		assertThrows(IllegalStateException.class, () -> exportService.streamRF2Archive(streamedExportConfiguration, new ByteArrayOutputStream()));
+
+		Map<String, byte[]> fileEntries = getEntries(new ByteArrayInputStream(fileExport.toByteArray()));
+		Map<String, byte[]> streamedEntries = getEntries(new ByteArrayInputStream(streamedExport.toByteArray()));
+		assertFalse(fileEntries.isEmpty());
+		assertEquals(new ArrayList<>(fileEntries.keySet()), new ArrayList<>(streamedEntries.keySet()));
+		for (String entryName : fileEntries.keySet()) {
+			assertArrayEquals(fileEntries.get(entryName), streamedEntries.get(entryName), entryName);
+		}
+	}
+
+	private Map<String, byte[]> getEntries(File exportFile) throws IOException {
+		return getEntries(new FileInputStream(exportFile));
+	}
+
+	private Map<String, byte[]> getEntries(InputStream exportStream) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		try (ZipInputStream zipInputStream = new ZipInputStream(exportStream)) {
+			ZipEntry entry;
+			while ((entry = zipInputStream.getNextEntry()) != null) {
+				entries.put(entry.getName(), zipInputStream.readAllBytes());
+			}
+		}
+		return entries;
+	}
+
 	private List<String> getLines(ZipInputStream zipInputStream) throws IOException {
 		File conceptFile = getTempFile("temp", ".txt");
 		StreamUtils.copy(zipInputStream, new FileOutputStream(conceptFile), false, true);
@@ -3,12 +3,15 @@ package org.snomed.snowstorm.core.rf2.rf2import;
 import com.google.common.collect.Lists;
 import io.kaicode.elasticvc.api.BranchService;
 import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Metadata;
 import org.ihtsdo.otf.snomedboot.ReleaseImportException;
 import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
 import org.snomed.otf.snomedboot.testutil.ZipUtil;
 import org.snomed.snowstorm.AbstractTest;
 import org.snomed.snowstorm.TestConfig;
@@ -20,16 +23,22 @@ import org.snomed.snowstorm.core.rf2.RF2Type;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.*;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.snomed.snowstorm.core.data.services.BranchMetadataHelper.IMPORTING_CODE_SYSTEM_VERSION;
+import static org.snomed.snowstorm.core.data.services.BranchMetadataHelper.INTERNAL_METADATA_KEY;
 
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(classes = TestConfig.class)
@@ -59,8 +68,13 @@ class ImportServiceTest extends AbstractTest {
 	@Autowired
 	private CodeSystemService codeSystemService;
 
+	@Autowired
+	private ConceptUpdateHelper conceptUpdateHelper;
+
 	private File rf2Archive;
 	private File completeOwlRf2Archive;
+	private int defaultPersistThreads;
+	private int defaultPersistBatchSize;
 
 	@BeforeEach
 	void setup() throws IOException {
@@ -68,6 +82,14 @@ class ImportServiceTest extends AbstractTest {
 		referenceSetMemberService.init();
 		rf2Archive = ZipUtil.zipDirectoryRemovingCommentsAndBlankLines("src/main/resources/dummy-snomed-content/RF2Release");
 		completeOwlRf2Archive = ZipUtil.zipDirectoryRemovingCommentsAndBlankLines("src/main/resources/dummy-snomed-content/conversion-to-complete-owl");
+		defaultPersistThreads = (int) ReflectionTestUtils.getField(importService, "persistThreads");
+		defaultPersistBatchSize = (int) ReflectionTestUtils.getField(importService, "persistBatchSize");
+	}
+
+	@AfterEach
+	void restorePersistSettings() {
+		setPersistSettings(defaultPersistThreads, defaultPersistBatchSize);
+		ReflectionTestUtils.setField(importService, "conceptUpdateHelper", conceptUpdateHelper);
 	}
 
 	@Test
@@ -238,6 +260,73 @@ class ImportServiceTest extends AbstractTest {
 		}
 	}
 
+	@Test
+	void testResumeFullImport() throws ReleaseImportException, IOException {
+		final String branchPath = "MAIN";
+		String importId = importService.createJob(RF2Type.FULL, branchPath, true, false);
+		String archiveChecksum = ImportService.archiveChecksum(rf2Archive);
+
+		// Simulate an earlier attempt of this job which failed after committing the 2013-07-31 release
+		importService.getImportJobOrThrow(importId).setStatus(ImportJob.ImportStatus.FAILED);
+		setImportCheckpoint(branchPath, importId, archiveChecksum, "20130731");
+
+		importService.importArchive(importId, new FileInputStream(rf2Archive), archiveChecksum);
+
+		ImportJob importJob = importService.getImportJobOrThrow(importId);
+		assertEquals(ImportJob.ImportStatus.COMPLETED, importJob.getStatus());
+		assertEquals("20130731", importJob.getResumedAfterRelease());
+		assertEquals("20180731", importJob.getLastCompletedRelease());
+		assertTrue(importJob.getComponentCounts().get(Concept.class.getSimpleName()) > 0);
+
+		// Only the releases after the checkpoint were loaded
+		List<String> branchPaths = branchService.findAll().stream().map(Branch::getPath).collect(Collectors.toList());
+		assertEquals(Lists.newArrayList("MAIN", "MAIN/2014-01-31", "MAIN/2018-07-31"), branchPaths);
+
+		// The checkpoint is removed when the import completes
+		assertNull(branchService.findLatest(branchPath).getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY).get(ImportService.IMPORT_COMPLETED_RELEASE_KEY));
+	}
+
+	@Test
+	void testFullImportIgnoresCheckpointOfOtherJob() throws ReleaseImportException, IOException {
+		final String branchPath = "MAIN";
+		String archiveChecksum = ImportService.archiveChecksum(rf2Archive);
+		setImportCheckpoint(branchPath, "other-import", archiveChecksum, "20130731");
+
+		// A new job starts from the beginning and removes the checkpoint
+		String importId = importService.createJob(RF2Type.FULL, branchPath, true, false);
+		importService.importArchive(importId, new FileInputStream(rf2Archive), archiveChecksum);
+
+		ImportJob importJob = importService.getImportJobOrThrow(importId);
+		assertEquals(ImportJob.ImportStatus.COMPLETED, importJob.getStatus());
+		assertNull(importJob.getResumedAfterRelease());
+		assertEquals(27, branchService.findAll().size());
+		assertNull(branchService.findLatest(branchPath).getMetadata().getMapOrCreate(INTERNAL_METADATA_KEY).get(ImportService.IMPORT_COMPLETED_RELEASE_KEY));
+	}
+
+	@Test
+	void testRetryWithDifferentArchiveDoesNotResume() throws ReleaseImportException, IOException {
+		final String branchPath = "MAIN";
+		String importId = importService.createJob(RF2Type.FULL, branchPath, true, false);
+		importService.getImportJobOrThrow(importId).setStatus(ImportJob.ImportStatus.FAILED);
+		setImportCheckpoint(branchPath, importId, "checksum-of-another-archive", "20130731");
+
+		importService.importArchive(importId, new FileInputStream(rf2Archive), ImportService.archiveChecksum(rf2Archive));
+
+		ImportJob importJob = importService.getImportJobOrThrow(importId);
+		assertEquals(ImportJob.ImportStatus.COMPLETED, importJob.getStatus());
+		assertNull(importJob.getResumedAfterRelease());
+		assertEquals(27, branchService.findAll().size());
+	}
+
+	private void setImportCheckpoint(String branchPath, String importId, String archiveChecksum, String completedRelease) {
+		Metadata metadata = branchService.findLatest(branchPath).getMetadata();
+		Map<String, String> internalMetadata = metadata.getMapOrCreate(INTERNAL_METADATA_KEY);
+		internalMetadata.put(ImportService.IMPORT_COMPLETED_RELEASE_KEY, completedRelease);
+		internalMetadata.put(ImportService.IMPORT_CHECKPOINT_JOB_KEY, importId);
+		internalMetadata.put(ImportService.IMPORT_CHECKPOINT_ARCHIVE_KEY, archiveChecksum);
+		branchService.updateMetadata(branchPath, metadata);
+	}
+
 	@Test
 	void testImportSnapshotThenDelta() throws ReleaseImportException, FileNotFoundException {
 		final String branchPath = "MAIN";
@@ -602,6 +691,82 @@ class ImportServiceTest extends AbstractTest {
 				"Commit after import must be equal to commit before import because the import commut must roll back");
 	}
 
+	@Test
+	void testImportWithSeveralPersistBatchesInFlight() throws ReleaseImportException, FileNotFoundException {
+		String defaultBranch = "MAIN/PERSIST-DEFAULT";
+		branchService.create(defaultBranch);
+		importService.importArchive(importService.createJob(RF2Type.SNAPSHOT, defaultBranch, false, false), new FileInputStream(rf2Archive));
+
+		// Batches of 10 components, so many batches of each type are waiting or saving at once
+		for (int persistThreads : new int[] {1, 3}) {
+			String branchPath = "MAIN/PERSIST-" + persistThreads;
+			branchService.create(branchPath);
+			setPersistSettings(persistThreads, 10);
+			String importId = importService.createJob(RF2Type.SNAPSHOT, branchPath, false, false);
+			importService.importArchive(importId, new FileInputStream(rf2Archive));
+
+			assertEquals(ImportJob.ImportStatus.COMPLETED, importService.getImportJobOrThrow(importId).getStatus());
+			assertEquals(countConcepts(defaultBranch), countConcepts(branchPath));
+			assertEquals(countMembers(defaultBranch), countMembers(branchPath));
+			assertEquals(getActiveStatedRelationshipCount(defaultBranch), getActiveStatedRelationshipCount(branchPath));
+			assertEquals(2, conceptService.find("131148009", branchPath).getDescriptions().size());
+		}
+	}
+
+	@Test
+	void testImportRolledBackWhenPersistBatchFails() throws ReleaseImportException, FileNotFoundException {
+		final long commitBeforeImport = branchService.findLatest("MAIN").getHeadTimestamp();
+		final long conceptsBeforeImport = countConcepts("MAIN");
+		final long membersBeforeImport = countMembers("MAIN");
+
+		// The third batch of descriptions fails while other batches are waiting or saving
+		ConceptUpdateHelper failingUpdateHelper = Mockito.spy(conceptUpdateHelper);
+		AtomicInteger descriptionBatches = new AtomicInteger();
+		Mockito.doAnswer(invocation -> {
+			if (descriptionBatches.incrementAndGet() == 3) {
+				throw new IllegalStateException("Failed to save descriptions.");
+			}
+			return invocation.callRealMethod();
+		}).when(failingUpdateHelper).doSaveBatchDescriptions(any(), any());
+		ReflectionTestUtils.setField(importService, "conceptUpdateHelper", failingUpdateHelper);
+		setPersistSettings(2, 10);
+
+		String importId = importService.createJob(RF2Type.SNAPSHOT, "MAIN", false, false);
+		SecurityContext securityContext = SecurityContextHolder.getContext();
+		// Stopping the persist threads must not hang, whether batches were saving, waiting for a thread or waiting for a permit
+		Assertions.assertTimeoutPreemptively(Duration.ofMinutes(2), () -> {
+			SecurityContextHolder.setContext(securityContext);
+			Assertions.assertThrows(Exception.class, () -> importService.importArchive(importId, new FileInputStream(rf2Archive)));
+		});
+		assertTrue(descriptionBatches.get() >= 3);
+
+		assertEquals(ImportJob.ImportStatus.FAILED, importService.getImportJobOrThrow(importId).getStatus());
+		Branch mainBranch = branchService.findLatest("MAIN");
+		assertFalse(mainBranch.isLocked());
+		assertEquals("The import commit must be rolled back.", commitBeforeImport, mainBranch.getHeadTimestamp());
+		assertEquals(conceptsBeforeImport, countConcepts("MAIN"));
+		assertEquals(membersBeforeImport, countMembers("MAIN"));
+		assertNull(conceptService.find("131148009", "MAIN"));
+
+		// The branch can be imported again
+		ReflectionTestUtils.setField(importService, "conceptUpdateHelper", conceptUpdateHelper);
+		importService.importArchive(importService.createJob(RF2Type.SNAPSHOT, "MAIN", false, false), new FileInputStream(rf2Archive));
+		assertEquals(2, conceptService.find("131148009", "MAIN").getDescriptions().size());
+	}
+
+	private void setPersistSettings(int persistThreads, int persistBatchSize) {
+		ReflectionTestUtils.setField(importService, "persistThreads", persistThreads);
+		ReflectionTestUtils.setField(importService, "persistBatchSize", persistBatchSize);
+	}
+
+	private long countConcepts(String branchPath) {
+		return conceptService.findAll(branchPath, PageRequest.of(0, 1)).getTotalElements();
+	}
+
+	private long countMembers(String branchPath) {
+		return referenceSetMemberService.findMembers(branchPath, new MemberSearchRequest(), PageRequest.of(0, 1)).getTotalElements();
+	}
+
 	private void collectContentCounts(List<Concept> concepts, Map<String, AtomicInteger> conceptDefinitionStatuses, Map<String, AtomicInteger> descriptionCaseSignificance, Map<String, AtomicInteger> descriptionAcceptability, Map<Integer, AtomicInteger> relationshipGroups) {
 		conceptDefinitionStatuses.clear();
 		descriptionCaseSignificance.clear();
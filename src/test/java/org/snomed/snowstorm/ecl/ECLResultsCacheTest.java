@@ -0,0 +1,148 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.core.util.SearchAfterPage;
+import org.snomed.snowstorm.core.util.SearchAfterPageImpl;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ECLResultsCacheTest {
+
+	@Test
+	void testPutAndGet() {
+		ECLResultsCache cache = new ECLResultsCache();
+		Date head = new Date();
+		BranchVersionECLCache branchCache = cache.getOrCreateBranchVersionCache("MAIN", head);
+
+		PageRequest pageRequest = PageRequest.of(0, 2);
+		assertNull(branchCache.get("<< 100", false, pageRequest));
+
+		branchCache.put("<< 100", false, pageRequest, new PageImpl<>(List.of(100L, 200L), pageRequest, 5));
+		Page<Long> page = branchCache.get("<< 100", false, pageRequest);
+		assertNotNull(page);
+		assertEquals(List.of(100L, 200L), page.getContent());
+		assertEquals(5, page.getTotalElements());
+		assertEquals(pageRequest, page.getPageable());
+
+		// Different stated flag is a different entry
+		assertNull(branchCache.get("<< 100", true, pageRequest));
+
+		Map<String, Long> stats = cache.getStats();
+		assertEquals(1, stats.get("hits"));
+		assertEquals(2, stats.get("misses"));
+		assertEquals(2, branchCache.getStats().get("misses"));
+	}
+
+	@Test
+	void testSearchAfterPreserved() {
+		ECLResultsCache cache = new ECLResultsCache();
+		BranchVersionECLCache branchCache = cache.getOrCreateBranchVersionCache("MAIN", new Date());
+
+		PageRequest pageRequest = PageRequest.of(0, 1);
+		branchCache.put("<< 100", false, pageRequest, new SearchAfterPageImpl<>(List.of(900000000000L), pageRequest, 3, new Object[]{900000000000L}));
+		Page<Long> page = branchCache.get("<< 100", false, pageRequest);
+		assertTrue(page instanceof SearchAfterPage);
+		assertArrayEquals(new Object[]{900000000000L}, ((SearchAfterPage<Long>) page).getSearchAfter());
+	}
+
+	@Test
+	void testNewBranchHeadDropsOldResults() {
+		ECLResultsCache cache = new ECLResultsCache();
+		BranchVersionECLCache branchCache = cache.getOrCreateBranchVersionCache("MAIN", new Date(1000));
+		branchCache.put("<< 100", false, null, new PageImpl<>(List.of(100L)));
+
+		BranchVersionECLCache newBranchCache = cache.getOrCreateBranchVersionCache("MAIN", new Date(2000));
+		assertNotSame(branchCache, newBranchCache);
+		assertNull(newBranchCache.get("<< 100", false, null));
+		assertSame(newBranchCache, cache.getOrCreateBranchVersionCache("MAIN", new Date(2000)));
+	}
+
+	@Test
+	void testUnaffectedResultsCarriedOverToNewHead() {
+		ECLResultsCache cache = new ECLResultsCache();
+		Date head = new Date(1000);
+		BranchVersionECLCache branchCache = cache.getOrCreateBranchVersionCache("MAIN", head);
+		branchCache.put("<< 404684003 |Clinical finding|", false, null, new PageImpl<>(List.of(404684003L)));
+		branchCache.put("<< 71388002 |Procedure|", false, null, new PageImpl<>(List.of(71388002L)));
+		branchCache.put("^ 723264001", false, null, new PageImpl<>(List.of(1L)));
+
+		// Commit changes a concept within the clinical finding hierarchy
+		Date newHead = new Date(2000);
+		cache.recordSemanticChanges("MAIN", head, newHead, new LongOpenHashSet(new long[]{123037004L, 404684003L, 138875005L}));
+
+		BranchVersionECLCache newBranchCache = cache.getOrCreateBranchVersionCache("MAIN", newHead);
+		assertNull(newBranchCache.get("<< 404684003", false, null));
+		assertEquals(List.of(71388002L), newBranchCache.get("<< 71388002", false, null).getContent());
+		// Member of depends on more than the semantic index
+		assertNull(newBranchCache.get("^ 723264001", false, null));
+
+		// Results of the old version are gone, only the carried over result is left
+		assertEquals(1, cache.getStats().get("size"));
+		assertEquals(1, newBranchCache.getResultKeys().size());
+		assertTrue(branchCache.getResultKeys().isEmpty());
+	}
+
+	@Test
+	void testChangesForOtherVersionNotApplied() {
+		ECLResultsCache cache = new ECLResultsCache();
+		BranchVersionECLCache branchCache = cache.getOrCreateBranchVersionCache("MAIN", new Date(1000));
+		branchCache.put("<< 71388002", false, null, new PageImpl<>(List.of(71388002L)));
+
+		cache.recordSemanticChanges("MAIN", new Date(500), new Date(2000), new LongOpenHashSet());
+		assertNull(cache.getOrCreateBranchVersionCache("MAIN", new Date(2000)).get("<< 71388002", false, null));
+	}
+
+	@Test
+	void testUnchangedChildBranchSharesParentResults() {
+		ECLResultsCache cache = new ECLResultsCache();
+		Date mainHead = new Date(1000);
+		BranchVersionECLCache mainCache = cache.getOrCreateBranchVersionCache("MAIN", mainHead);
+		mainCache.put("<< 71388002", false, null, new PageImpl<>(List.of(71388002L)));
+
+		// Task has no semantic changes and MAIN has not moved on
+		BranchVersionECLCache taskCache = cache.getOrCreateSemanticBranchVersionCache("MAIN/A/A-1", new Date(3000),
+				(path, timepoint) -> path.equals("MAIN/A") ? mainHead : new Date(2000), path -> path.equals("MAIN/A") ? new Date(2000) : mainHead);
+		assertSame(mainCache, taskCache);
+
+		// Project has semantic changes
+		taskCache = cache.getOrCreateSemanticBranchVersionCache("MAIN/B/B-1", new Date(3000),
+				(path, timepoint) -> path.equals("MAIN/B") ? null : new Date(2000), path -> new Date(2000));
+		assertNotSame(mainCache, taskCache);
+		assertNull(taskCache.get("<< 71388002", false, null));
+	}
+
+	@Test
+	void testChildBranchBehindParentDoesNotShare() {
+		ECLResultsCache cache = new ECLResultsCache();
+		BranchVersionECLCache mainCache = cache.getOrCreateBranchVersionCache("MAIN", new Date(2000));
+
+		BranchVersionECLCache taskCache = cache.getOrCreateSemanticBranchVersionCache("MAIN/A", new Date(3000),
+				(path, timepoint) -> new Date(1000), path -> new Date(2000));
+		assertNotSame(mainCache, taskCache);
+		assertSame(mainCache, cache.getOrCreateBranchVersionCache("MAIN", new Date(2000)));
+	}
+
+	@Test
+	void testChildBranchDoesNotTakeParentCacheBack() {
+		ECLResultsCache cache = new ECLResultsCache();
+		BranchVersionECLCache mainCache = cache.getOrCreateBranchVersionCache("MAIN", new Date(2000));
+		mainCache.put("<< 71388002", false, null, new PageImpl<>(List.of(71388002L)));
+
+		// Parent head looked up before MAIN moved on to 2000
+		BranchVersionECLCache taskCache = cache.getOrCreateSemanticBranchVersionCache("MAIN/A", new Date(3000),
+				(path, timepoint) -> new Date(1000), path -> new Date(1000));
+		assertNotSame(mainCache, taskCache);
+		assertSame(taskCache, cache.getOrCreateBranchVersionCache("MAIN/A", new Date(3000)));
+		assertSame(mainCache, cache.getOrCreateBranchVersionCache("MAIN", new Date(2000)));
+		assertNotNull(mainCache.get("<< 71388002", false, null));
+	}
+
+}
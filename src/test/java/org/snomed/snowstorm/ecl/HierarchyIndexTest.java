@@ -0,0 +1,77 @@
+package org.snomed.snowstorm.ecl;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HierarchyIndexTest {
+
+	@Test
+	void testHierarchyOperators() {
+		HierarchyIndex index = HierarchyIndex.build("MAIN", new Date(1000), false, createHierarchy());
+
+		assertEquals(List.of(300L, 200L), index.findDescendants(Set.of(100L), false, true));
+		assertEquals(List.of(400L, 300L, 200L, 100L), index.findDescendants(Set.of(100L), true, false));
+		assertEquals(List.of(400L), index.findDescendants(Set.of(200L), false, false));
+		assertEquals(List.of(300L, 200L, 100L), index.findAncestors(Set.of(400L), false, false));
+		assertEquals(List.of(400L, 300L, 200L), index.findAncestors(Set.of(400L), true, true));
+		assertEquals(List.of(), index.findAncestors(Set.of(100L), false, false));
+		assertEquals(List.of(), index.findDescendants(Set.of(999L), true, false));
+	}
+
+	@Test
+	void testWithChanges() {
+		HierarchyIndex index = HierarchyIndex.build("MAIN", new Date(1000), false, createHierarchy());
+
+		Long2ObjectMap<long[]> changes = new Long2ObjectOpenHashMap<>();
+		// Move 400 under 300 only, add 500, remove 200
+		changes.put(400L, new long[]{300L});
+		changes.put(500L, new long[]{400L});
+		changes.put(200L, null);
+		HierarchyIndex newIndex = index.withChanges(new Date(2000), changes);
+
+		assertTrue(newIndex.isVersion("MAIN", new Date(2000), false));
+		assertEquals(List.of(500L, 400L, 300L), newIndex.findDescendants(Set.of(100L), false, false));
+		assertEquals(List.of(400L, 300L, 100L), newIndex.findAncestors(Set.of(500L), false, false));
+
+		assertEquals(4, newIndex.getConceptCount());
+		assertEquals(3, newIndex.getOverlaySize());
+
+		// Original version unchanged
+		assertEquals(List.of(400L, 300L, 200L), index.findDescendants(Set.of(100L), false, false));
+
+		// Changes on top of the overlay
+		Long2ObjectMap<long[]> moreChanges = new Long2ObjectOpenHashMap<>();
+		moreChanges.put(150L, new long[]{100L});
+		moreChanges.put(500L, new long[]{150L});
+		HierarchyIndex laterIndex = newIndex.withChanges(new Date(3000), moreChanges);
+		assertEquals(List.of(500L, 400L, 300L, 150L), laterIndex.findDescendants(Set.of(100L), false, false));
+		assertEquals(List.of(500L, 150L), laterIndex.findDescendants(Set.of(150L), true, false));
+		assertEquals(List.of(400L), laterIndex.findDescendants(Set.of(300L), false, true));
+		assertEquals(List.of(500L, 400L), newIndex.findDescendants(Set.of(300L), false, false));
+
+		HierarchyIndex compacted = laterIndex.compact();
+		assertEquals(0, compacted.getOverlaySize());
+		assertEquals(laterIndex.getConceptCount(), compacted.getConceptCount());
+		assertTrue(compacted.isVersion("MAIN", new Date(3000), false));
+		assertEquals(laterIndex.findDescendants(Set.of(100L), true, false), compacted.findDescendants(Set.of(100L), true, false));
+		assertEquals(laterIndex.findAncestors(Set.of(500L), true, false), compacted.findAncestors(Set.of(500L), true, false));
+	}
+
+	private Long2ObjectMap<long[]> createHierarchy() {
+		// 100 <- 200, 300 <- 400 (multiple parents)
+		Long2ObjectMap<long[]> conceptParents = new Long2ObjectOpenHashMap<>();
+		conceptParents.put(100L, new long[]{});
+		conceptParents.put(200L, new long[]{100L});
+		conceptParents.put(300L, new long[]{100L});
+		conceptParents.put(400L, new long[]{200L, 300L});
+		return conceptParents;
+	}
+
+}
@@ -1,7 +1,15 @@
 package org.snomed.snowstorm.fhir.services;
 
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.UriType;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -61,4 +69,24 @@ class FHIRCodeSystemProviderLookupTest extends AbstractFHIRTest {
 		assertNotNull(p);
 	}
 	
+	@Test
+	void testBatchLookup() {
+		Parameters batch = new Parameters();
+		for (String code : new String[] {sampleSCTID, sampleInactiveSCTID, "12345"}) {
+			Parameters lookup = new Parameters();
+			lookup.addParameter("system", new UriType("http://snomed.info/sct"));
+			lookup.addParameter("code", new CodeType(code));
+			batch.addParameter().setName("lookup").setResource(lookup);
+		}
+
+		HttpEntity<String> request = new HttpEntity<>(fhirJsonParser.encodeResourceToString(batch), headers);
+		ResponseEntity<String> response = restTemplate.exchange(baseUrl + "/CodeSystem/$batch-lookup", HttpMethod.POST, request, String.class);
+		expectResponse(response, 200);
+		List<Parameters.ParametersParameterComponent> results = fhirJsonParser.parseResource(Parameters.class, response.getBody()).getParameter();
+		assertEquals(3, results.size());
+		assertTrue(toBoolean(getProperty((Parameters) results.get(0).getResource(), "active")));
+		assertFalse(toBoolean(getProperty((Parameters) results.get(1).getResource(), "active")));
+		assertTrue(results.get(2).getResource() instanceof OperationOutcome);
+	}
+
 }
@@ -0,0 +1,52 @@
+package org.snomed.snowstorm.fhir.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FHIRGraphBuilderTest {
+
+	@Test
+	void testTransitiveClosure() {
+		FHIRGraphBuilder graphBuilder = new FHIRGraphBuilder();
+		graphBuilder.addParent("B", "A");
+		graphBuilder.addParent("C", "B");
+		graphBuilder.addParent("D", "B");
+		graphBuilder.addParent("D", "A");
+		graphBuilder.addParent("D", "A");
+
+		assertEquals(Set.of("A", "B"), graphBuilder.getTransitiveClosure("D"));
+		assertEquals(Set.of("A", "B"), graphBuilder.getTransitiveClosure("C"));
+		assertEquals(Set.of(), graphBuilder.getTransitiveClosure("A"));
+		assertNull(graphBuilder.getTransitiveClosure("X"));
+
+		assertEquals(Set.of("A", "B"), Set.copyOf(graphBuilder.getNodeParents("D")));
+		assertEquals(Set.of("B", "D"), Set.copyOf(graphBuilder.getNodeChildren("A")));
+		assertTrue(graphBuilder.getNodeChildren("X").isEmpty());
+
+		assertThrows(IllegalStateException.class, () -> graphBuilder.addParent("E", "A"));
+	}
+
+	@Test
+	void testCycle() {
+		FHIRGraphBuilder graphBuilder = new FHIRGraphBuilder();
+		graphBuilder.addParent("X", "Y");
+		graphBuilder.addParent("Y", "X");
+		graphBuilder.addParent("Z", "Y");
+
+		assertEquals(Set.of("Y"), graphBuilder.getTransitiveClosure("X"));
+		assertEquals(Set.of("X", "Y"), graphBuilder.getTransitiveClosure("Z"));
+	}
+
+	@Test
+	void testDeepHierarchy() {
+		FHIRGraphBuilder graphBuilder = new FHIRGraphBuilder();
+		int depth = 5_000;
+		for (int i = 1; i < depth; i++) {
+			graphBuilder.addParent(Integer.toString(i), Integer.toString(i - 1));
+		}
+		assertEquals(depth - 1, graphBuilder.getTransitiveClosure(Integer.toString(depth - 1)).size());
+	}
+}
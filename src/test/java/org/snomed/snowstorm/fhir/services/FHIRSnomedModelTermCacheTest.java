@@ -0,0 +1,88 @@
+package org.snomed.snowstorm.fhir.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.snomed.snowstorm.core.data.domain.Concepts;
+import org.snomed.snowstorm.core.data.domain.Description;
+import org.snomed.snowstorm.core.data.services.DescriptionService;
+import org.snomed.snowstorm.core.pojo.LanguageDialect;
+import org.snomed.snowstorm.fhir.domain.FHIRCodeSystemVersion;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FHIRSnomedModelTermCacheTest {
+
+	private static final List<LanguageDialect> EN = Collections.singletonList(new LanguageDialect("en"));
+
+	private FHIRSnomedModelTermCache termCache;
+	private FHIRCodeSystemVersion snomedVersion;
+	private final AtomicInteger fetches = new AtomicInteger();
+
+	@BeforeEach
+	void setup() {
+		DescriptionService descriptionService = mock(DescriptionService.class);
+		when(descriptionService.findDescriptionsByConceptId(eq("MAIN"), anySet(), eq(true))).thenAnswer(invocation -> {
+			fetches.incrementAndGet();
+			// Slow enough for concurrent requests to queue up
+			Thread.sleep(50);
+			Set<String> conceptIds = invocation.getArgument(1);
+			return conceptIds.stream()
+					.filter(conceptId -> !conceptId.equals("999"))
+					.map(conceptId -> new Description(conceptId + "1", null, true, Concepts.CORE_MODULE, conceptId, "en", Concepts.SYNONYM, "Term " + conceptId, Concepts.CASE_INSENSITIVE)
+							.addLanguageRefsetMember(Concepts.US_EN_LANG_REFSET, Concepts.PREFERRED))
+					.collect(Collectors.toSet());
+		});
+		termCache = new FHIRSnomedModelTermCache();
+		ReflectionTestUtils.setField(termCache, "snomedDescriptionService", descriptionService);
+		ReflectionTestUtils.setField(termCache, "maxSize", 100L);
+		ReflectionTestUtils.setField(termCache, "fetchThreads", 2);
+		termCache.init();
+
+		snomedVersion = new FHIRCodeSystemVersion();
+		snomedVersion.setId("sct_1234_20220131");
+		snomedVersion.setSnomedBranch("MAIN");
+	}
+
+	@Test
+	void testConcurrentMissesAreBatched() throws Exception {
+		ExecutorService executorService = Executors.newFixedThreadPool(10);
+		try {
+			List<Future<String>> terms = new ArrayList<>();
+			for (int i = 0; i < 40; i++) {
+				String code = Integer.toString(100 + i % 20);
+				terms.add(executorService.submit(() -> termCache.getSnomedTerm(code, snomedVersion, EN)));
+			}
+			for (int i = 0; i < terms.size(); i++) {
+				assertEquals("Term " + (100 + i % 20), terms.get(i).get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executorService.shutdownNow();
+			termCache.shutdown();
+		}
+		assertTrue(fetches.get() < 20, "Expected misses to be fetched in batches but there were " + fetches.get() + " fetches.");
+
+		int fetchesBefore = fetches.get();
+		assertEquals("Term 105", termCache.getSnomedTerm("105", snomedVersion, EN));
+		assertEquals(fetchesBefore, fetches.get());
+		assertTrue(termCache.getStats().get("hits") > 0);
+	}
+
+	@Test
+	void testMissingTermIsCached() {
+		assertNull(termCache.getSnomedTerm("999", snomedVersion, EN));
+		assertNull(termCache.getSnomedTerm("999", snomedVersion, EN));
+		assertEquals(1, fetches.get());
+		assertEquals(1, termCache.getStats().get("hits"));
+		assertEquals(1, termCache.getStats().get("misses"));
+		termCache.shutdown();
+	}
+}
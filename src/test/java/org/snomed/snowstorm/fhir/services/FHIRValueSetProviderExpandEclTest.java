@@ -8,7 +8,9 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -85,6 +87,40 @@ class FHIRValueSetProviderExpandEclTest extends AbstractFHIRTest {
 		assertEquals(13,v.getExpansion().getTotal());
 	}
 	
+	@Test
+	void testECLWithCursor() {
+		String url = baseUrl + "/ValueSet/$expand?url=http://snomed.info/sct/1234000008?fhir_vs=ecl/<" + Concepts.SNOMEDCT_ROOT + "&count=13&_format=json";
+		List<String> allCodes = getValueSet(url).getExpansion().getContains().stream().map(ValueSet.ValueSetExpansionContainsComponent::getCode).collect(Collectors.toList());
+		assertEquals(13, allCodes.size());
+
+		// Follow the cursor through the expansion, 5 at a time
+		List<String> cursorCodes = new ArrayList<>();
+		String pageUrl = baseUrl + "/ValueSet/$expand?url=http://snomed.info/sct/1234000008?fhir_vs=ecl/<" + Concepts.SNOMEDCT_ROOT + "&count=5&_format=json";
+		String cursor = null;
+		int pages = 0;
+		do {
+			ValueSet v = getValueSet(cursor == null ? pageUrl : pageUrl + "&cursor=" + cursor);
+			assertEquals(13, v.getExpansion().getTotal());
+			assertEquals(cursorCodes.size(), v.getExpansion().getOffset());
+			v.getExpansion().getContains().forEach(component -> cursorCodes.add(component.getCode()));
+			ValueSet.ValueSetExpansionParameterComponent cursorParameter = v.getExpansion().getParameter().stream()
+					.filter(parameter -> parameter.getName().equals("cursor")).findFirst().orElse(null);
+			cursor = cursorParameter != null ? cursorParameter.getValue().primitiveValue() : null;
+			pages++;
+		} while (cursor != null);
+		assertEquals(3, pages);
+		assertEquals(allCodes, cursorCodes);
+
+		// Pages read from the cached expansion are in the same order as pages searched directly by offset
+		for (int offset = 5; offset < 13; offset += 5) {
+			List<String> offsetCodes = getValueSet(pageUrl + "&offset=" + offset).getExpansion().getContains().stream()
+					.map(ValueSet.ValueSetExpansionContainsComponent::getCode).collect(Collectors.toList());
+			assertEquals(cursorCodes.subList(offset, Math.min(offset + 5, 13)), offsetCodes);
+		}
+
+		getValueSet(pageUrl + "&cursor=not-a-cursor", 400, "Parameter 'cursor' is not valid.");
+	}
+
 	@Test
 	void testECLWithSpecificVersion() {
 		//Asking for 5 at a time, expect 13 Total - 10 on MAIN + 3 in the sample module + 1 Root concept
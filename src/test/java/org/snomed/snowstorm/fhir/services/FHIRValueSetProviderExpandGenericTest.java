@@ -17,6 +17,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -197,4 +199,73 @@ public class FHIRValueSetProviderExpandGenericTest extends AbstractFHIRTest {
 		assertEquals(2, valueSet.getExpansion().getContains().size());
 	}
 
+	@Test
+	public void testExpandSnomedWithOtherCodeSystemAndNestedValueSet() {
+		// 11 SNOMED CT concepts plus 2 from the nested value set after the exclusion
+		Set<String> codes = new HashSet<>();
+		for (int offset = 0; offset < 15; offset += 5) {
+			ValueSet valueSet = expandSnomedWithNestedValueSet(offset);
+			assertEquals(13, valueSet.getExpansion().getTotal());
+			assertEquals(offset, valueSet.getExpansion().getOffset());
+			assertEquals(offset < 10 ? 5 : 3, valueSet.getExpansion().getContains().size());
+			valueSet.getExpansion().getContains().forEach(component -> codes.add(component.getSystem() + "|" + component.getCode()));
+		}
+		assertEquals(13, codes.size());
+		assertTrue(codes.contains("http://terminology.hl7.org/CodeSystem/v3-ContextControl|AP"));
+		assertTrue(codes.contains("http://terminology.hl7.org/CodeSystem/v3-ContextControl|AN"));
+		assertTrue(codes.contains("http://snomed.info/sct|138875005"));
+	}
+
+	private ValueSet expandSnomedWithNestedValueSet(int offset) {
+		HttpEntity<String> expandRequest = new HttpEntity<>("{\n" +
+				"	\"resourceType\": \"Parameters\",\n" +
+				"	\"parameter\": [\n" +
+				"		{\n" +
+				"			\"name\": \"offset\",\n" +
+				"			\"valueInteger\": " + offset + "\n" +
+				"		},\n" +
+				"		{\n" +
+				"			\"name\": \"count\",\n" +
+				"			\"valueInteger\": 5\n" +
+				"		},\n" +
+				"		{\n" +
+				"			\"name\": \"valueSet\",\n" +
+				"			\"resource\": {\n" +
+				"				\"resourceType\": \"ValueSet\",\n" +
+				"					\"compose\": {\n" +
+				"						\"include\": [\n" +
+				"							{\n" +
+				"								\"system\": \"http://snomed.info/sct\",\n" +
+				"								\"filter\": [\n" +
+				"									{\n" +
+				"										\"property\": \"constraint\",\n" +
+				"										\"op\": \"=\",\n" +
+				"										\"value\": \"<<138875005\"\n" +
+				"									}\n" +
+				"								]\n" +
+				"							},\n" +
+				"							{\n" +
+				"								\"valueSet\": \"http://example.com/fhir/vs/sex\"" +
+				"							}\n" +
+				"						]," +
+				"						\"exclude\": [\n" +
+				"							{\n" +
+				"								\"system\": \"http://terminology.hl7.org/CodeSystem/v3-ContextControl\",\n" +
+				"								\"concept\": [\n" +
+				"									{\n" +
+				"										\"code\": \"ON\"\n" +
+				"									}\n" +
+				"								]\n" +
+				"							}\n" +
+				"						]\n" +
+				"					}\n" +
+				"				}\n" +
+				"			}\n" +
+				"		]\n" +
+				"}", headers);
+		ResponseEntity<String> expandResponse = restTemplate.exchange(baseUrl + "/ValueSet/$expand", HttpMethod.POST, expandRequest, String.class);
+		assertEquals(HttpStatus.OK, expandResponse.getStatusCode(), expandResponse.getBody());
+		return fhirJsonParser.parseResource(ValueSet.class, expandResponse.getBody());
+	}
+
 }
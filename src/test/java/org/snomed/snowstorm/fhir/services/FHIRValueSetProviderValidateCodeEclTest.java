@@ -1,13 +1,17 @@
 package org.snomed.snowstorm.fhir.services;
 
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.junit.jupiter.api.Test;
 import org.snomed.snowstorm.core.data.domain.Concepts;
+import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 
 import java.io.InputStream;
+import java.util.List;
 
 import static java.lang.String.format;
 import static org.junit.jupiter.api.Assertions.*;
@@ -158,6 +162,34 @@ class FHIRValueSetProviderValidateCodeEclTest extends AbstractFHIRTest {
 		validateCode(url, 404, "The requested CodeSystem version (http://snomed.info/sct/900000000000207008/version/19990731) was not found.");
 	}
 
+	@Test
+	void testBatchValidateCode() {
+		String valueSetUrl = "http://snomed.info/sct?fhir_vs=ecl/<" + Concepts.SNOMEDCT_ROOT;
+		Parameters batch = new Parameters();
+		for (String code : new String[] {sampleSCTID, Concepts.SNOMEDCT_ROOT, "257751006"}) {
+			Parameters validation = new Parameters();
+			validation.addParameter("url", new UriType(valueSetUrl));
+			validation.addParameter("code", code);
+			validation.addParameter("system", new UriType(SNOMED_URI));
+			batch.addParameter().setName("validation").setResource(validation);
+		}
+		// Invalid entry does not fail the batch
+		Parameters invalid = new Parameters();
+		invalid.addParameter("url", new UriType(valueSetUrl));
+		invalid.addParameter("code", sampleSCTID);
+		batch.addParameter().setName("validation").setResource(invalid);
+
+		HttpEntity<String> request = new HttpEntity<>(fhirJsonParser.encodeResourceToString(batch), headers);
+		ResponseEntity<String> response = restTemplate.exchange(baseUrl + "/ValueSet/$batch-validate-code", HttpMethod.POST, request, String.class);
+		expectResponse(response, 200);
+		List<Parameters.ParametersParameterComponent> results = fhirJsonParser.parseResource(Parameters.class, response.getBody()).getParameter();
+		assertEquals(4, results.size());
+		assertTrue(((Parameters) results.get(0).getResource()).getParameterBool("result"));
+		assertFalse(((Parameters) results.get(1).getResource()).getParameterBool("result"));
+		assertTrue(((Parameters) results.get(2).getResource()).getParameterBool("result"));
+		assertTrue(results.get(3).getResource() instanceof OperationOutcome);
+	}
+
 	@Test
 	void testExplicitValueSetExpansion() {
 		ClassLoader classloader = Thread.currentThread().getContextClassLoader();
@@ -0,0 +1,79 @@
+package org.snomed.snowstorm.fhir.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueSetExpansionCacheTest {
+
+	private final ValueSetExpansionCache cache = new ValueSetExpansionCache(1024 * 1024, Duration.ofMinutes(1));
+
+	@Test
+	void testExpansionLoadedOnce() {
+		AtomicInteger loads = new AtomicInteger();
+		ValueSetExpansionCache.ExpansionKey key = new ValueSetExpansionCache.ExpansionKey("MAIN", new Date(1000), "ecl:false:<404684003", null);
+
+		ValueSetExpansionCache.Expansion expansion = cache.getOrLoad(key, k -> {
+			loads.incrementAndGet();
+			return new long[] {100, 101, 102, 103, 104};
+		});
+		ValueSetExpansionCache.Expansion again = cache.getOrLoad(new ValueSetExpansionCache.ExpansionKey("MAIN", new Date(1000), "ecl:false:<404684003", null), k -> {
+			loads.incrementAndGet();
+			return new long[0];
+		});
+
+		assertEquals(1, loads.get());
+		assertSame(expansion, again);
+		assertEquals(5, expansion.getTotal());
+		assertArrayEquals(new long[] {102, 103}, expansion.getConceptIds(2, 4));
+		assertArrayEquals(new long[] {104}, expansion.getConceptIds(4, 6));
+		assertArrayEquals(new long[0], expansion.getConceptIds(10, 12));
+	}
+
+	@Test
+	void testNewBranchHeadDropsOldExpansions() {
+		cache.getOrLoad(new ValueSetExpansionCache.ExpansionKey("MAIN", new Date(1000), "ecl:false:<404684003", null), k -> new long[] {100});
+		cache.getOrLoad(new ValueSetExpansionCache.ExpansionKey("MAIN", new Date(1000), "ecl:false:<404684003", "heart"), k -> new long[] {101});
+		cache.getOrLoad(new ValueSetExpansionCache.ExpansionKey("MAIN/A", new Date(1000), "ecl:false:<404684003", null), k -> new long[] {102});
+		assertEquals(3, cache.size());
+
+		ValueSetExpansionCache.ExpansionKey newHeadKey = new ValueSetExpansionCache.ExpansionKey("MAIN", new Date(2000), "ecl:false:<404684003", null);
+		assertNull(cache.getIfPresent(newHeadKey));
+		assertEquals(1, cache.size());
+		assertNotNull(cache.getIfPresent(new ValueSetExpansionCache.ExpansionKey("MAIN/A", new Date(1000), "ecl:false:<404684003", null)));
+	}
+
+	@Test
+	void testSearchAfterPositions() {
+		cache.getSearchAfterPositions("query-a:30000").put(10000, new Object[] {"code-10000"});
+		cache.getSearchAfterPositions("query-a:30000").put(20000, new Object[] {"code-20000"});
+
+		NavigableMap<Integer, Object[]> positions = cache.getSearchAfterPositions("query-a:30000");
+		assertEquals(10000, positions.floorEntry(15000).getKey());
+		assertArrayEquals(new Object[] {"code-20000"}, positions.floorEntry(25000).getValue());
+		assertNull(positions.floorEntry(5000));
+		assertTrue(cache.getSearchAfterPositions("query-a:30001").isEmpty());
+
+		cache.clear();
+		assertTrue(cache.getSearchAfterPositions("query-a:30000").isEmpty());
+	}
+
+	@Test
+	void testCursor() {
+		ValueSetExpansionCache.Cursor cursor = ValueSetExpansionCache.parseCursor(ValueSetExpansionCache.createCursor("abc-123", 20000));
+		assertEquals("abc-123", cursor.getExpansionId());
+		assertEquals(20000, cursor.getOffset());
+
+		cursor = ValueSetExpansionCache.parseCursor(ValueSetExpansionCache.createCursor(null, 100));
+		assertNull(cursor.getExpansionId());
+		assertEquals(100, cursor.getOffset());
+
+		assertThrows(IllegalArgumentException.class, () -> ValueSetExpansionCache.parseCursor("not a cursor"));
+		assertThrows(IllegalArgumentException.class, () -> ValueSetExpansionCache.parseCursor(ValueSetExpansionCache.createCursor("abc", -1)));
+	}
+}
@@ -18,6 +18,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -153,6 +154,33 @@ class DroolsValidationServiceTest extends AbstractTest {
         assertEquals("Active FSN should end with a valid semantic tag.", invalidContents.get(index).getMessage());
     }
 
+    @Test
+    void testValidateBatch() throws ServiceException, InterruptedException {
+        for (String conceptId : List.of("200001", "300001")) {
+            Concept concept = new Concept(conceptId, null, true, CORE_MODULE, PRIMITIVE);
+            concept.addDescription(new Description(null, null, true, CORE_MODULE, conceptId, "en", FSN, "Child " + conceptId, CASE_INSENSITIVE));
+            concept.addRelationship(new Relationship(ISA, SNOMEDCT_ROOT));
+            conceptService.create(concept, DEFAULT_BRANCH);
+        }
+
+        DroolsValidationBatch batch = droolValidationService.validateBatch(DEFAULT_BRANCH, "<" + SNOMEDCT_ROOT);
+        for (int i = 0; (batch.getStatus() == DroolsValidationBatch.Status.QUEUED || batch.getStatus() == DroolsValidationBatch.Status.RUNNING) && i < 30; i++) {
+            Thread.sleep(500);
+        }
+        try {
+            assertEquals(DroolsValidationBatch.Status.COMPLETED, batch.getStatus(), batch.getMessage());
+            assertEquals(2, batch.getConceptsFound());
+            assertEquals(2, batch.getConceptsValidated());
+            assertTrue(batch.getInvalidContentFound() > 0);
+            assertSame(batch, droolValidationService.getBatch(DEFAULT_BRANCH, batch.getId()));
+            assertNull(droolValidationService.getBatch("MAIN/other", batch.getId()));
+            assertNull(droolValidationService.cancelBatch("MAIN/other", batch.getId()));
+            assertEquals("validation-bulk-" + batch.getId() + ".tsv", batch.getResultsFile());
+        } finally {
+            new File(batch.getResultsFile()).delete();
+        }
+    }
+
     private ReferenceSetMember constructMrcmRange(String referencedComponentId, String rangeConstraint) {
         ReferenceSetMember rangeMember = new ReferenceSetMember("900000000000207008", REFSET_MRCM_ATTRIBUTE_RANGE_INTERNATIONAL, referencedComponentId);
         rangeMember.setAdditionalField("rangeConstraint", rangeConstraint);